@@ -10,5 +10,8 @@
 
 # additional options: -Daktin.broker.websocket.idletimeoutseconds=3600
 
+# To use a JDBC connection pool, specify its maximum size e.g. -Daktin.broker.jdbc.pool.maxsize=20
+# further pool options: -Daktin.broker.jdbc.pool.minsize=2 -Daktin.broker.jdbc.pool.timeoutmillis=30000 -Daktin.broker.jdbc.pool.validate=true -Daktin.broker.jdbc.pool.leakmillis=60000 -Daktin.broker.jdbc.pool.statementcache=32
+
 
 
@@ -0,0 +1,45 @@
+package org.aktin.broker.admin.rest;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.auth.AuthCache;
+import org.aktin.broker.rest.Authenticated;
+import org.aktin.broker.rest.RequireAdmin;
+
+/**
+ * Statistics for the cache of authenticated principals.
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Authenticated
+@RequireAdmin
+@Path("/broker/status/auth/cache")
+public class AuthCacheEndpoint {
+
+	@Inject
+	private AuthCache cache;
+
+	/**
+	 * Retrieve cache size, hit and miss counts and load times.
+	 * @return JSON string
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getStatistics() {
+		StringBuilder b = new StringBuilder();
+		b.append("{\n");
+		b.append("\t\"size\": ").append(cache.size()).append(",\n");
+		b.append("\t\"hits\": ").append(cache.getHitCount()).append(",\n");
+		b.append("\t\"misses\": ").append(cache.getMissCount()).append(",\n");
+		b.append("\t\"loadFailures\": ").append(cache.getLoadFailureCount()).append(",\n");
+		b.append("\t\"loadMillisTotal\": ").append(cache.getLoadNanosTotal()/1000000).append(",\n");
+		b.append("\t\"evictions\": ").append(cache.getEvictionCount()).append("\n");
+		b.append("}");
+		return b.toString();
+	}
+}
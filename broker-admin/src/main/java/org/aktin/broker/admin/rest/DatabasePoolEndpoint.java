@@ -0,0 +1,67 @@
+package org.aktin.broker.admin.rest;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.admin.standalone.PooledDataSource;
+import org.aktin.broker.rest.Authenticated;
+import org.aktin.broker.rest.RequireAdmin;
+
+/**
+ * Statistics for the JDBC connection pool. Only registered
+ * if pooling is enabled for the standalone server.
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Authenticated
+@RequireAdmin
+@Path("/broker/status/database/pool")
+public class DatabasePoolEndpoint {
+
+	@Inject
+	private PooledDataSource pool;
+
+	/**
+	 * Retrieve current pool usage and the histogram of connection acquire times.
+	 * Histogram keys are the upper bounds in milliseconds, {@code "inf"} for the last bucket.
+	 * @return JSON string
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getStatistics() {
+		StringBuilder b = new StringBuilder();
+		b.append("{\n");
+		b.append("\t\"min\": ").append(pool.getMinSize()).append(",\n");
+		b.append("\t\"max\": ").append(pool.getMaxSize()).append(",\n");
+		b.append("\t\"active\": ").append(pool.getActiveCount()).append(",\n");
+		b.append("\t\"idle\": ").append(pool.getIdleCount()).append(",\n");
+		b.append("\t\"waiting\": ").append(pool.getWaitingCount()).append(",\n");
+		b.append("\t\"created\": ").append(pool.getConnectionsCreated()).append(",\n");
+		b.append("\t\"timeouts\": ").append(pool.getAcquireTimeoutCount()).append(",\n");
+		b.append("\t\"validationFailures\": ").append(pool.getValidationFailures()).append(",\n");
+		b.append("\t\"leaks\": ").append(pool.getLeaksDetected()).append(",\n");
+		b.append("\t\"idleEvictions\": ").append(pool.getIdleEvictions()).append(",\n");
+		b.append("\t\"statementCacheHits\": ").append(pool.getStatementCacheHits()).append(",\n");
+		b.append("\t\"statementCacheMisses\": ").append(pool.getStatementCacheMisses()).append(",\n");
+		b.append("\t\"acquireMillis\": {");
+		long[] counts = pool.getAcquireTimeHistogram();
+		for( int i=0; i<counts.length; i++ ) {
+			if( i != 0 ) {
+				b.append(", ");
+			}
+			b.append("\"");
+			if( i < PooledDataSource.ACQUIRE_HISTOGRAM_BOUNDS.length ) {
+				b.append(PooledDataSource.ACQUIRE_HISTOGRAM_BOUNDS[i]);
+			}else {
+				b.append("inf");
+			}
+			b.append("\": ").append(counts[i]);
+		}
+		b.append("}\n}");
+		return b.toString();
+	}
+}
@@ -0,0 +1,46 @@
+package org.aktin.broker.admin.rest;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.auth.AuthCache;
+import org.aktin.broker.rest.Authenticated;
+import org.aktin.broker.rest.RequireAdmin;
+
+/**
+ * Statistics for writing node last-contact timestamps
+ * to the database.
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Authenticated
+@RequireAdmin
+@Path("/broker/status/database/lastcontact")
+public class LastContactFlushEndpoint {
+
+	@Inject
+	private AuthCache cache;
+
+	/**
+	 * Retrieve flush counts and timings.
+	 * @return JSON string
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getStatistics() {
+		StringBuilder b = new StringBuilder();
+		b.append("{\n");
+		b.append("\t\"flushes\": ").append(cache.getFlushCount()).append(",\n");
+		b.append("\t\"failures\": ").append(cache.getFlushFailures()).append(",\n");
+		b.append("\t\"timestamps\": ").append(cache.getFlushedTimestamps()).append(",\n");
+		b.append("\t\"totalMillis\": ").append(cache.getFlushMillisTotal()).append(",\n");
+		b.append("\t\"lastMillis\": ").append(cache.getFlushMillisLast()).append(",\n");
+		b.append("\t\"maxMillis\": ").append(cache.getFlushMillisMax()).append("\n");
+		b.append("}");
+		return b.toString();
+	}
+}
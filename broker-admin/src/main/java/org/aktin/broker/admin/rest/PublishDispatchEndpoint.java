@@ -0,0 +1,49 @@
+package org.aktin.broker.admin.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.rest.Authenticated;
+import org.aktin.broker.rest.RequireAdmin;
+import org.aktin.broker.websocket.MyBrokerWebsocket;
+import org.aktin.broker.websocket.PublishDispatcher;
+
+/**
+ * Statistics for staggered publish notifications. Compare the peak
+ * notifications per second with the database connection pool size.
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Authenticated
+@RequireAdmin
+@Path("/broker/status/websocket/publish")
+public class PublishDispatchEndpoint {
+
+	/**
+	 * Retrieve dispatch settings, wave counts and peak notification rate.
+	 * @return JSON string
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getStatistics() {
+		PublishDispatcher d = MyBrokerWebsocket.getPublishDispatcher();
+		StringBuilder b = new StringBuilder();
+		b.append("{\n");
+		b.append("\t\"batchSize\": ").append(d.getBatchSize()).append(",\n");
+		b.append("\t\"intervalMillis\": ").append(d.getIntervalMillis()).append(",\n");
+		b.append("\t\"jitterMillis\": ").append(d.getJitterMillis()).append(",\n");
+		b.append("\t\"published\": ").append(d.getDispatchCount()).append(",\n");
+		b.append("\t\"staggered\": ").append(d.getStaggeredCount()).append(",\n");
+		b.append("\t\"waves\": ").append(d.getWaveCount()).append(",\n");
+		b.append("\t\"cancelledWaves\": ").append(d.getCancelledWaves()).append(",\n");
+		b.append("\t\"pendingRequests\": ").append(d.getPendingRequests()).append(",\n");
+		b.append("\t\"notifiedSessions\": ").append(d.getNotifiedSessions()).append(",\n");
+		b.append("\t\"lastSpreadMillis\": ").append(d.getLastSpreadMillis()).append(",\n");
+		b.append("\t\"peakPerSecond\": ").append(d.getPeakPerSecond()).append("\n");
+		b.append("}");
+		return b.toString();
+	}
+}
@@ -0,0 +1,56 @@
+package org.aktin.broker.admin.rest;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.auth.Principal;
+import org.aktin.broker.rest.Authenticated;
+import org.aktin.broker.rest.RequireAdmin;
+import org.aktin.broker.websocket.SessionQueue;
+
+/**
+ * Statistics for the outgoing message queues of connected websocket sessions.
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Authenticated
+@RequireAdmin
+@Path("/broker/status/websocket/queues")
+public class WebsocketQueueEndpoint {
+
+	/**
+	 * Retrieve queue depth, dropped messages and send latency for each session.
+	 * @return JSON string
+	 */
+	@GET
+	@Produces(MediaType.APPLICATION_JSON)
+	public String getStatistics() {
+		StringBuilder b = new StringBuilder();
+		b.append("[");
+		boolean first = true;
+		for( SessionQueue q : SessionQueue.getAll() ) {
+			b.append(first ? "\n" : ",\n");
+			first = false;
+			Principal user = q.getUser();
+			b.append("\t{\"session\": \"").append(q.getSessionId()).append("\", ");
+			b.append("\"endpoint\": \"").append(q.getEndpoint()).append("\", ");
+			b.append("\"node\": ").append(user == null || user.isAdmin() ? "null" : Integer.toString(user.getNodeId())).append(", ");
+			b.append("\"policy\": \"").append(q.getPolicy()).append("\", ");
+			b.append("\"capacity\": ").append(q.getCapacity()).append(", ");
+			b.append("\"depth\": ").append(q.getDepth()).append(", ");
+			b.append("\"maxDepth\": ").append(q.getMaxDepth()).append(", ");
+			b.append("\"sent\": ").append(q.getSentCount()).append(", ");
+			b.append("\"failed\": ").append(q.getFailedCount()).append(", ");
+			b.append("\"dropped\": ").append(q.getDroppedCount()).append(", ");
+			b.append("\"coalesced\": ").append(q.getCoalescedCount()).append(", ");
+			b.append("\"resets\": ").append(q.getResetCount()).append(", ");
+			b.append("\"latencyMicrosAvg\": ").append(q.getAverageLatencyMicros()).append(", ");
+			b.append("\"latencyMicrosMax\": ").append(q.getMaxLatencyMicros()).append("}");
+		}
+		b.append(first ? "]" : "\n]");
+		return b.toString();
+	}
+}
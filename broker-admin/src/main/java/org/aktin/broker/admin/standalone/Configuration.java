@@ -5,7 +5,13 @@ import java.nio.file.Path;
 
 import javax.sql.DataSource;
 
+import org.aktin.broker.auth.AuthCache;
 import org.aktin.broker.server.auth.AuthProvider;
+import org.aktin.broker.websocket.AbstractBroadcastWebsocket;
+import org.aktin.broker.websocket.PostgresNotificationBus;
+import org.aktin.broker.websocket.RequestAdminWebsocket;
+import org.aktin.broker.websocket.SessionHeartbeat;
+import org.aktin.broker.websocket.OutboundQueue.OverflowPolicy;
 
 public interface Configuration {
 
@@ -24,6 +30,135 @@ public interface Configuration {
 	Class<? extends DataSource> getJdbcDataSourceClass() throws ClassNotFoundException;
 	String getJdbcUrl();
 
+	/**
+	 * Maximum number of pooled JDBC connections. If zero or less, no pooling is
+	 * used and every database access opens a new connection via the data source class.
+	 * @return maximum pool size or zero to disable pooling
+	 */
+	default int getJdbcPoolMaxSize() {return 0;}
+	/**
+	 * Number of JDBC connections opened at startup and kept idle in the pool
+	 * @return minimum pool size
+	 */
+	default int getJdbcPoolMinSize() {return 0;}
+	/**
+	 * Maximum time to wait for a free pooled connection
+	 * @return timeout in milliseconds
+	 */
+	default long getJdbcPoolAcquireTimeoutMillis() {return 30000;}
+	/**
+	 * Whether pooled connections are validated before being handed out
+	 * @return {@code true} to validate idle connections
+	 */
+	default boolean isJdbcPoolValidationEnabled() {return true;}
+	/**
+	 * Threshold after which a borrowed connection is reported as possible leak
+	 * @return threshold in milliseconds or zero to disable leak detection
+	 */
+	default long getJdbcPoolLeakDetectionMillis() {return 0;}
+	/**
+	 * Time after which idle connections exceeding the minimum pool size are closed
+	 * @return idle timeout in milliseconds or zero to keep idle connections open
+	 */
+	default long getJdbcPoolIdleTimeoutMillis() {return 600000;}
+
+	/**
+	 * Number of prepared statements to cache for each pooled connection
+	 * @return cache size or zero to disable statement caching
+	 */
+	default int getJdbcPoolStatementCacheSize() {return 32;}
+
+	/**
+	 * Interval for writing changed node last-contact timestamps to the database.
+	 * @return interval in milliseconds or zero to write only during shutdown
+	 */
+	default long getLastContactFlushMillis() {return 60000;}
+
+	/**
+	 * Time after which cached principals are reloaded from the database
+	 * @return time to live in milliseconds, zero to keep principals cached forever
+	 */
+	default long getAuthCacheTtlMillis() {return AuthCache.DEFAULT_TTL_MILLIS;}
+	/**
+	 * Maximum number of cached principals
+	 * @return maximum size, zero for no limit
+	 */
+	default int getAuthCacheMaxSize() {return AuthCache.DEFAULT_MAX_SIZE;}
+
+	/**
+	 * Maximum number of outgoing messages queued for each websocket session
+	 * @return queue capacity
+	 */
+	default int getWebsocketQueueCapacity() {return AbstractBroadcastWebsocket.DEFAULT_QUEUE_CAPACITY;}
+	/**
+	 * Behaviour if the outgoing message queue of a websocket session is full
+	 * @return overflow policy
+	 */
+	default OverflowPolicy getWebsocketOverflowPolicy() {return AbstractBroadcastWebsocket.DEFAULT_OVERFLOW_POLICY;}
+	/**
+	 * Time window for batched admin websocket notifications. Batching is used only
+	 * by admin sessions which request it.
+	 * @return window in milliseconds, zero to disable batching
+	 */
+	default long getWebsocketAdminBatchMillis() {return RequestAdminWebsocket.DEFAULT_BATCH_MILLIS;}
+	/**
+	 * Number of recent websocket notifications kept for each endpoint, to be resumed by reconnecting clients
+	 * @return number of notifications
+	 */
+	default int getWebsocketEventLogSize() {return 1024;}
+	/**
+	 * Interval for websocket pings sent by the server
+	 * @return interval in milliseconds, zero to disable the heartbeat
+	 */
+	default long getWebsocketHeartbeatMillis() {return SessionHeartbeat.DEFAULT_INTERVAL_MILLIS;}
+	/**
+	 * Number of unanswered websocket pings after which a session is closed
+	 * @return number of pings
+	 */
+	default int getWebsocketHeartbeatMaxMissed() {return SessionHeartbeat.DEFAULT_MAX_MISSED;}
+	/**
+	 * Number of nodes notified together about a published request. Further
+	 * nodes are notified in waves, see {@link #getPublishIntervalMillis()}.
+	 * @return nodes per wave, zero to notify all nodes at once
+	 */
+	default int getPublishBatchSize() {return 0;}
+	/**
+	 * Delay between waves of publish notifications
+	 * @return interval in milliseconds
+	 */
+	default long getPublishIntervalMillis() {return 1000;}
+	/**
+	 * Maximum random delay of publish notifications for each node
+	 * @return jitter in milliseconds, zero for no jitter
+	 */
+	default long getPublishJitterMillis() {return 0;}
+	/**
+	 * Notification bus to distribute websocket notifications between broker instances.
+	 * Use {@code local} for a single instance or {@code postgres} for multiple instances
+	 * sharing a PostgreSQL database.
+	 * @return bus type
+	 */
+	default String getNotificationBus() {return "local";}
+	/**
+	 * Channel name used by the {@code postgres} notification bus
+	 * @return channel name
+	 */
+	default String getNotificationChannel() {return PostgresNotificationBus.DEFAULT_CHANNEL;}
+	/**
+	 * Keep downloads, credential tokens and the websocket status of nodes in the
+	 * database, so that multiple broker instances can share the load. All instances
+	 * need access to the same data and download directories.
+	 * @return {@code true} to share state via the database
+	 */
+	default boolean isSharedStateEnabled() {return false;}
+	/**
+	 * Store results and node resources with text or XML media types gzip
+	 * compressed. Clients accepting gzip receive the stored data as is.
+	 * Data stored before is not affected.
+	 * @return {@code true} to compress new data
+	 */
+	default boolean isDataCompressionEnabled() {return false;}
+
 	/**
 	 * local TCP port to listen to
 	 * @return port number
@@ -8,8 +8,14 @@ import java.util.Arrays;
 
 import javax.sql.DataSource;
 
+import org.aktin.broker.auth.AuthCache;
 import org.aktin.broker.auth.CascadedAuthProvider;
 import org.aktin.broker.server.auth.AuthProvider;
+import org.aktin.broker.websocket.AbstractBroadcastWebsocket;
+import org.aktin.broker.websocket.PostgresNotificationBus;
+import org.aktin.broker.websocket.RequestAdminWebsocket;
+import org.aktin.broker.websocket.SessionHeartbeat;
+import org.aktin.broker.websocket.OutboundQueue.OverflowPolicy;
 
 import lombok.extern.java.Log;
 
@@ -20,6 +26,29 @@ import lombok.extern.java.Log;
  * <li> {@code aktin.broker.websocket.idletimeoutseconds} number of seconds to keep websocket connections open without data.
  * <li> {@code aktin.broker.jdbc.datasource.class} datasource implementation class for database driver defaults to local embedded HSQL database
  * <li> {@code aktin.broker.jdbc.url} JDBC URL to use with the datasource class. defaults to local embedded HSQL database
+ * <li> {@code aktin.broker.jdbc.pool.maxsize} maximum number of pooled connections. defaults to 0 which disables pooling
+ * <li> {@code aktin.broker.jdbc.pool.minsize} number of connections to keep open in the pool. defaults to 0
+ * <li> {@code aktin.broker.jdbc.pool.timeoutmillis} maximum time to wait for a pooled connection. defaults to 30000
+ * <li> {@code aktin.broker.jdbc.pool.validate} validate pooled connections before use. defaults to true
+ * <li> {@code aktin.broker.jdbc.pool.leakmillis} report connections borrowed longer than this as possible leak. defaults to 0 (disabled)
+ * <li> {@code aktin.broker.jdbc.pool.idlemillis} close idle connections exceeding the minimum pool size after this time. defaults to 600000, 0 keeps them open
+ * <li> {@code aktin.broker.jdbc.pool.statementcache} number of prepared statements cached per pooled connection. defaults to 32, 0 disables the cache
+ * <li> {@code aktin.broker.lastcontact.flushmillis} interval for writing node last-contact timestamps to the database. defaults to 60000, 0 writes only during shutdown
+ * <li> {@code aktin.broker.auth.cache.ttlmillis} time after which cached principals are reloaded. defaults to 900000 (15 minutes), 0 disables reloading
+ * <li> {@code aktin.broker.auth.cache.maxsize} maximum number of cached principals. defaults to 10000, 0 for no limit
+ * <li> {@code aktin.broker.websocket.queue.capacity} maximum number of outgoing messages queued per websocket session. defaults to 64
+ * <li> {@code aktin.broker.websocket.queue.overflow} behaviour for full websocket queues: {@code disconnect} (default), {@code drop-oldest} or {@code coalesce}. Resumed sessions receive a reset instead of losing messages
+ * <li> {@code aktin.broker.websocket.admin.batchmillis} time window for batched admin websocket notifications, requested by admin sessions via {@code ?batch=true}. defaults to 250, 0 disables batching
+ * <li> {@code aktin.broker.websocket.eventlog.size} number of recent websocket notifications kept per endpoint for resuming clients. defaults to 1024
+ * <li> {@code aktin.broker.websocket.heartbeat.intervalmillis} interval for websocket pings sent by the server. defaults to 30000, 0 disables the heartbeat
+ * <li> {@code aktin.broker.websocket.heartbeat.maxmissed} number of unanswered pings after which a websocket session is closed. defaults to 3
+ * <li> {@code aktin.broker.publish.batchsize} number of nodes notified together about a published request. defaults to 0, which notifies all nodes at once
+ * <li> {@code aktin.broker.publish.intervalmillis} delay between waves of publish notifications. defaults to 1000
+ * <li> {@code aktin.broker.publish.jittermillis} maximum random delay of publish notifications for each node. defaults to 0
+ * <li> {@code aktin.broker.notification.bus} distribution of notifications between broker instances: {@code local} (default) for a single instance or {@code postgres} via LISTEN/NOTIFY
+ * <li> {@code aktin.broker.notification.channel} channel name for the {@code postgres} notification bus. defaults to {@code aktin_broker}
+ * <li> {@code aktin.broker.state.shared} keep downloads, tokens and websocket status in the database shared by multiple instances. requires the {@code postgres} notification bus. defaults to false
+ * <li> {@code aktin.broker.data.compress} store results and node resources with text or XML media types gzip compressed. defaults to false
  * 
  * @author Raphael
  *
@@ -118,6 +147,99 @@ public class DefaultConfiguration implements Configuration{
 		return org.hsqldb.jdbc.JDBCDataSource.class;
 	}
 	@Override
+	public int getJdbcPoolMaxSize() {
+		return Integer.parseInt(System.getProperty("aktin.broker.jdbc.pool.maxsize", "0"));
+	}
+	@Override
+	public int getJdbcPoolMinSize() {
+		return Integer.parseInt(System.getProperty("aktin.broker.jdbc.pool.minsize", "0"));
+	}
+	@Override
+	public long getJdbcPoolAcquireTimeoutMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.jdbc.pool.timeoutmillis", "30000"));
+	}
+	@Override
+	public boolean isJdbcPoolValidationEnabled() {
+		return Boolean.parseBoolean(System.getProperty("aktin.broker.jdbc.pool.validate", "true"));
+	}
+	@Override
+	public long getJdbcPoolLeakDetectionMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.jdbc.pool.leakmillis", "0"));
+	}
+	@Override
+	public long getJdbcPoolIdleTimeoutMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.jdbc.pool.idlemillis", "600000"));
+	}
+	@Override
+	public int getJdbcPoolStatementCacheSize() {
+		return Integer.parseInt(System.getProperty("aktin.broker.jdbc.pool.statementcache", "32"));
+	}
+	@Override
+	public long getLastContactFlushMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.lastcontact.flushmillis", "60000"));
+	}
+	@Override
+	public long getAuthCacheTtlMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.auth.cache.ttlmillis", Long.toString(AuthCache.DEFAULT_TTL_MILLIS)));
+	}
+	@Override
+	public int getAuthCacheMaxSize() {
+		return Integer.parseInt(System.getProperty("aktin.broker.auth.cache.maxsize", Integer.toString(AuthCache.DEFAULT_MAX_SIZE)));
+	}
+	@Override
+	public int getWebsocketQueueCapacity() {
+		return Integer.parseInt(System.getProperty("aktin.broker.websocket.queue.capacity", Integer.toString(AbstractBroadcastWebsocket.DEFAULT_QUEUE_CAPACITY)));
+	}
+	@Override
+	public OverflowPolicy getWebsocketOverflowPolicy() {
+		String policy = System.getProperty("aktin.broker.websocket.queue.overflow", AbstractBroadcastWebsocket.DEFAULT_OVERFLOW_POLICY.name());
+		return OverflowPolicy.valueOf(policy.trim().toUpperCase().replace('-', '_'));
+	}
+	@Override
+	public long getWebsocketAdminBatchMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.websocket.admin.batchmillis", Long.toString(RequestAdminWebsocket.DEFAULT_BATCH_MILLIS)));
+	}
+	@Override
+	public int getWebsocketEventLogSize() {
+		return Integer.parseInt(System.getProperty("aktin.broker.websocket.eventlog.size", "1024"));
+	}
+	@Override
+	public long getWebsocketHeartbeatMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.websocket.heartbeat.intervalmillis", Long.toString(SessionHeartbeat.DEFAULT_INTERVAL_MILLIS)));
+	}
+	@Override
+	public int getWebsocketHeartbeatMaxMissed() {
+		return Integer.parseInt(System.getProperty("aktin.broker.websocket.heartbeat.maxmissed", Integer.toString(SessionHeartbeat.DEFAULT_MAX_MISSED)));
+	}
+	@Override
+	public int getPublishBatchSize() {
+		return Integer.parseInt(System.getProperty("aktin.broker.publish.batchsize", "0"));
+	}
+	@Override
+	public long getPublishIntervalMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.publish.intervalmillis", "1000"));
+	}
+	@Override
+	public long getPublishJitterMillis() {
+		return Long.parseLong(System.getProperty("aktin.broker.publish.jittermillis", "0"));
+	}
+	@Override
+	public String getNotificationBus() {
+		return System.getProperty("aktin.broker.notification.bus", "local").trim();
+	}
+	@Override
+	public String getNotificationChannel() {
+		return System.getProperty("aktin.broker.notification.channel", PostgresNotificationBus.DEFAULT_CHANNEL);
+	}
+	@Override
+	public boolean isSharedStateEnabled() {
+		return Boolean.parseBoolean(System.getProperty("aktin.broker.state.shared", "false"));
+	}
+	@Override
+	public boolean isDataCompressionEnabled() {
+		return Boolean.parseBoolean(System.getProperty("aktin.broker.data.compress", "false"));
+	}
+	@Override
 	public String getJdbcUrl() {
 		String url = System.getProperty("aktin.broker.jdbc.url");
 		if( url == null ) {
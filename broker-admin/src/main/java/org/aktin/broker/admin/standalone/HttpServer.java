@@ -17,11 +17,23 @@ import javax.websocket.server.ServerEndpoint;
 import javax.websocket.server.ServerEndpointConfig;
 
 import org.aktin.broker.Broker;
+import org.aktin.broker.admin.rest.AuthCacheEndpoint;
+import org.aktin.broker.admin.rest.DatabasePoolEndpoint;
 import org.aktin.broker.admin.rest.FormTemplateEndpoint;
+import org.aktin.broker.admin.rest.LastContactFlushEndpoint;
+import org.aktin.broker.admin.rest.PublishDispatchEndpoint;
+import org.aktin.broker.admin.rest.WebsocketQueueEndpoint;
 import org.aktin.broker.db.LiquibaseWrapper;
 import org.aktin.broker.server.auth.AuthProvider;
 import org.aktin.broker.server.auth.HeaderAuthentication;
+import org.aktin.broker.websocket.AbstractBroadcastWebsocket;
 import org.aktin.broker.websocket.HeaderAuthSessionConfigurator;
+import org.aktin.broker.websocket.LocalNotificationBus;
+import org.aktin.broker.websocket.MyBrokerWebsocket;
+import org.aktin.broker.websocket.Notifications;
+import org.aktin.broker.websocket.PostgresNotificationBus;
+import org.aktin.broker.websocket.RequestAdminWebsocket;
+import org.aktin.broker.websocket.SessionHeartbeat;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.ErrorHandler;
@@ -68,6 +80,9 @@ public class HttpServer {
 		Objects.requireNonNull(auth);
 		// initialize database
 		initialiseDatabase(config);
+		if( config.isSharedStateEnabled() ) {
+			authFactory.setSharedDatabase(ds);
+		}
 		rc = new ResourceConfig();
 		// register broker services
 		rc.registerClasses(Broker.ENDPOINTS);
@@ -76,6 +91,13 @@ public class HttpServer {
 		rc.registerClasses(authFactory.getEndpoints());
 		// register admin endpoints
 		rc.register(FormTemplateEndpoint.class);
+		rc.register(LastContactFlushEndpoint.class);
+		rc.register(AuthCacheEndpoint.class);
+		rc.register(WebsocketQueueEndpoint.class);
+		rc.register(PublishDispatchEndpoint.class);
+		if( ds instanceof PooledDataSource ) {
+			rc.register(DatabasePoolEndpoint.class);
+		}
 		// websocket endpoints are initialized in method #setupWebsockets
 	}
 
@@ -95,6 +117,14 @@ public class HttpServer {
 		} catch( ClassNotFoundException e ) {
 			throw new SQLException("Specified DataSource class not found in classpath");
 		}
+		if( config.getJdbcPoolMaxSize() > 0 ) {
+			// wrap the data source in a connection pool
+			PooledDataSource pool = new PooledDataSource(this.ds, config.getJdbcPoolMinSize(), config.getJdbcPoolMaxSize(),
+					config.getJdbcPoolAcquireTimeoutMillis(), config.isJdbcPoolValidationEnabled(), config.getJdbcPoolLeakDetectionMillis());
+			pool.setStatementCacheSize(config.getJdbcPoolStatementCacheSize());
+			pool.setIdleTimeout(config.getJdbcPoolIdleTimeoutMillis());
+			this.ds = pool;
+		}
 		
 		try( LiquibaseWrapper w = new LiquibaseWrapper(ds.getConnection()) ){
 			w.update();
@@ -143,6 +173,8 @@ public class HttpServer {
 		jetty.addBean(errorHandler);
 
 		ServletHolder jersey = new ServletHolder(new ServletContainer(rc));
+		// suspended long-poll requests
+		jersey.setAsyncSupported(true);
 //		jersey.setInitOrder(0);
 		context.addServlet(jersey, "/*");
 
@@ -160,6 +192,31 @@ public class HttpServer {
 		ServerContainer c = WebSocketServerContainerInitializer.initialize(context);
 		// TODO verify session idle timeout and increase accordingly. e.g. 60 minutes 
 		c.setDefaultMaxSessionIdleTimeout(config.getWebsocketIdleTimeoutMillis());
+		// bounded outgoing message queues for slow clients
+		AbstractBroadcastWebsocket.setOutboundQueue(config.getWebsocketQueueCapacity(), config.getWebsocketOverflowPolicy());
+		RequestAdminWebsocket.setBatchWindow(config.getWebsocketAdminBatchMillis());
+		// recent notifications for resuming clients
+		MyBrokerWebsocket.setEventLogCapacity(config.getWebsocketEventLogSize());
+		RequestAdminWebsocket.setEventLogCapacity(config.getWebsocketEventLogSize());
+		// detect half-open connections before the idle timeout
+		SessionHeartbeat.configure(config.getWebsocketHeartbeatMillis(), config.getWebsocketHeartbeatMaxMissed());
+		// publish notifications in waves
+		MyBrokerWebsocket.getPublishDispatcher().configure(config.getPublishBatchSize(), config.getPublishIntervalMillis(), config.getPublishJitterMillis());
+		// distribute notifications to other broker instances
+		switch( config.getNotificationBus() ) {
+		case "local":
+			if( config.isSharedStateEnabled() ) {
+				throw new IllegalArgumentException("Shared state requires a notification bus reaching all instances");
+			}
+			break;
+		case "postgres":
+			// the listening connection is held permanently and not taken from the pool
+			DataSource unpooled = (ds instanceof PooledDataSource) ? ((PooledDataSource)ds).getTarget() : ds;
+			Notifications.setBus(new PostgresNotificationBus(unpooled, config.getNotificationChannel()));
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported notification bus: "+config.getNotificationBus());
+		}
 		// use HeaderAuthentication
 		HeaderAuthSessionConfigurator sc = new HeaderAuthSessionConfigurator(this.auth, binder.getAuthCache());
 		for( Class<?> websocketClass : Broker.WEBSOCKETS ) {
@@ -178,6 +235,12 @@ public class HttpServer {
 		jetty.join();
 	}
 	public void destroy() throws Exception{
+		// write last contact timestamps while the database is available
+		try {
+			binder.getAuthCache().close();
+		}catch( IOException e ) {
+			System.out.println("Failed to write last contact timestamps: "+e);
+		}
 		System.out.println("Shutting down database..");
 		// TODO move shutdown to db.BrokerImpl
 		try( Connection dbc = ds.getConnection();
@@ -193,8 +256,15 @@ public class HttpServer {
 		}catch( Throwable e ) {
 			System.out.println("Jetty.destroy failed with "+e);
 		}
+		// stop listening for notifications of other instances
+		Notifications.setBus(new LocalNotificationBus());
+		binder.removeStateListener();
+		SessionHeartbeat.configure(0, SessionHeartbeat.DEFAULT_MAX_MISSED);
 		// help cleanup
 		binder.closeCloseables();
+		if( ds instanceof PooledDataSource ) {
+			((PooledDataSource)ds).close();
+		}
 		// release threads waiting for termination
 		synchronized( this ){
 			this.notifyAll();
@@ -3,8 +3,12 @@ package org.aktin.broker.admin.standalone;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.sql.DataSource;
@@ -18,6 +22,7 @@ import org.aktin.broker.download.DownloadManager;
 import org.aktin.broker.server.auth.AuthProvider;
 import org.aktin.broker.server.auth.HeaderAuthentication;
 import org.aktin.broker.util.RequestTypeManager;
+import org.aktin.broker.websocket.Notifications;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 import org.glassfish.hk2.utilities.binding.ScopedBindingBuilder;
 
@@ -28,13 +33,15 @@ public class MyBinder extends AbstractBinder{
 
 	private DataSource ds;
 	private Configuration config;
-	private BrokerBackend broker;
+	private BrokerImpl broker;
 	private AggregatorBackend aggregator;
 	private DownloadManager downloads;
 	private AuthProvider authProvider;
 	private HeaderAuthentication auth;
 	private AuthCache authCache;
 	private List<Closeable> closeables;
+	/** applies state changes of other instances, registered with {@link Notifications} */
+	private Consumer<String> stateListener;
 	
 	public MyBinder(DataSource ds,Configuration config, AuthProvider authProvider, HeaderAuthentication auth) throws IOException{
 		this.ds = ds;
@@ -43,7 +50,24 @@ public class MyBinder extends AbstractBinder{
 		this.config = config;
 		closeables = new LinkedList<>();
 		this.broker = new BrokerImpl(ds, Paths.get(config.getBrokerDataPath()));
+		broker.setCompression(config.isDataCompressionEnabled());
 		this.authCache = new AuthCache(broker);
+		authCache.setTimeToLive(config.getAuthCacheTtlMillis());
+		authCache.setMaximumSize(config.getAuthCacheMaxSize());
+		if( config.isSharedStateEnabled() ) {
+			if( config.getLastContactFlushMillis() <= 0 ) {
+				throw new IllegalArgumentException("Shared state requires periodic flushing of last contact timestamps");
+			}
+			// entries of instances which missed three flushes are ignored
+			authCache.setSharedInstance(UUID.randomUUID().toString(), 3*config.getLastContactFlushMillis());
+			// request list versions and cached definitions follow changes of all instances
+			broker.setChangePublisher(Notifications::publishStateChange);
+			stateListener = broker::applyChange;
+			Notifications.addStateListener(stateListener);
+		}
+		if( config.getLastContactFlushMillis() > 0 ) {
+			authCache.startFlusher(config.getLastContactFlushMillis());
+		}
 	}
 	@SuppressWarnings("unchecked")
 	@Override
@@ -52,9 +76,21 @@ public class MyBinder extends AbstractBinder{
 
 		try {
 			// set aggregator data directory
-			aggregator = new AggregatorImpl(ds, Paths.get(config.getAggregatorDataPath()));
+			AggregatorImpl aggregatorImpl = new AggregatorImpl(ds, Paths.get(config.getAggregatorDataPath()));
+			aggregatorImpl.setCompression(config.isDataCompressionEnabled());
+			aggregator = aggregatorImpl;
+			// remove data left over by interrupted uploads
+			try {
+				broker.collectGarbage();
+				aggregatorImpl.collectGarbage();
+			} catch (SQLException | IOException e) {
+				log.log(Level.WARNING, "Unable to remove unreferenced data", e);
+			}
 			// download manager
 			downloads = new DownloadManager(Paths.get(config.getTempDownloadPath()));
+			if( config.isSharedStateEnabled() ) {
+				downloads.setSharedDatabase(ds);
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -63,6 +99,10 @@ public class MyBinder extends AbstractBinder{
 		bind(authCache).to(AuthCache.class);
 		bind(new RequestTypeManager()).to(RequestTypeManager.class);
 		bind(downloads).to(DownloadManager.class);
+		if( ds instanceof PooledDataSource ) {
+			// statistics for the admin endpoint. closed by HttpServer after database shutdown
+			super.bind((PooledDataSource)ds).to(PooledDataSource.class);
+		}
 
 		// bind authentication interfaces
 		bind(auth).to(HeaderAuthentication.class);
@@ -90,5 +130,16 @@ public class MyBinder extends AbstractBinder{
 		}
 	}
 
+	/**
+	 * Stop applying state changes of other instances, e.g. during shutdown.
+	 * Otherwise the static listener keeps the broker reachable after the server was destroyed.
+	 */
+	public void removeStateListener() {
+		if( stateListener != null ) {
+			Notifications.removeStateListener(stateListener);
+			stateListener = null;
+		}
+	}
+
 	public AuthCache getAuthCache() {return authCache;}
 }
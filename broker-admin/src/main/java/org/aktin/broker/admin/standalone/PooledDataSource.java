@@ -0,0 +1,554 @@
+package org.aktin.broker.admin.standalone;
+
+import java.io.Closeable;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Simple JDBC connection pool wrapping a non-pooling {@link DataSource}.
+ * <p>
+ * Physical connections are kept open after {@link Connection#close()} and
+ * handed out again to subsequent callers of {@link #getConnection()}. At most
+ * {@code maxSize} connections are open at any time. Callers wait up to
+ * {@code acquireTimeoutMillis} for a free connection before an
+ * {@link SQLTransientConnectionException} is thrown.
+ * </p>
+ * <p>
+ * Idle connections can be validated via {@link Connection#isValid(int)} before they
+ * are handed out. Connections which are not returned within the leak detection
+ * threshold are logged together with the stack trace of the borrower. Connections
+ * exceeding {@code minSize} are closed after they were idle for the idle timeout
+ * (see {@link #setIdleTimeout(long)}).
+ * </p>
+ * <p>
+ * Optionally, prepared statements are cached per physical connection
+ * (see {@link #setStatementCacheSize(int)}), which allows the database to
+ * reuse parsed statements and query plans across pooled connection borrows.
+ * </p>
+ * @author R.W.Majeed
+ *
+ */
+public class PooledDataSource implements DataSource, Closeable {
+	private static final Logger log = Logger.getLogger(PooledDataSource.class.getName());
+	private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+	/**
+	 * Upper bounds in milliseconds for the acquire time histogram buckets.
+	 * The last bucket counts all acquisitions exceeding the last bound.
+	 */
+	public static final long[] ACQUIRE_HISTOGRAM_BOUNDS = new long[] {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+	private DataSource target;
+	private int minSize;
+	private int maxSize;
+	private long acquireTimeoutMillis;
+	private boolean validateOnBorrow;
+	private long leakThresholdMillis;
+	private int statementCacheSize;
+
+	private Semaphore permits;
+	/** idle connections, most recently returned first */
+	private Deque<IdleConnection> idle;
+	private Set<PooledConnectionHandler> active;
+	private Map<Connection, StatementCache> statementCaches;
+	private ScheduledExecutorService housekeeping;
+	private ScheduledFuture<?> idleEviction;
+	private long idleTimeoutMillis;
+	/** modified only while synchronized on {@link #idle} */
+	private volatile boolean closed;
+
+	private AtomicLongArray acquireHistogram;
+	private AtomicLong acquireTimeouts;
+	private AtomicLong connectionsCreated;
+	private AtomicLong validationFailures;
+	private AtomicLong leaksDetected;
+	private AtomicLong idleEvictions;
+	private AtomicLong statementCacheHits;
+	private AtomicLong statementCacheMisses;
+
+	/**
+	 * Create a connection pool.
+	 * @param target data source used to open physical connections
+	 * @param minSize number of connections to open at startup and keep idle
+	 * @param maxSize maximum number of connections
+	 * @param acquireTimeoutMillis maximum wait time for a free connection
+	 * @param validateOnBorrow whether to validate idle connections before they are returned by {@link #getConnection()}
+	 * @param leakThresholdMillis log a warning for connections which are not closed within this time. Zero or less to disable leak detection.
+	 * @throws SQLException failure to open the initial connections
+	 */
+	public PooledDataSource(DataSource target, int minSize, int maxSize, long acquireTimeoutMillis, boolean validateOnBorrow, long leakThresholdMillis) throws SQLException {
+		if( maxSize < 1 || minSize > maxSize ) {
+			throw new IllegalArgumentException("Illegal pool size min="+minSize+", max="+maxSize);
+		}
+		this.target = target;
+		this.minSize = Math.max(0, minSize);
+		this.maxSize = maxSize;
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.validateOnBorrow = validateOnBorrow;
+		this.leakThresholdMillis = leakThresholdMillis;
+
+		this.permits = new Semaphore(maxSize, true);
+		this.idle = new ArrayDeque<>(maxSize);
+		this.active = ConcurrentHashMap.newKeySet();
+		this.acquireHistogram = new AtomicLongArray(ACQUIRE_HISTOGRAM_BOUNDS.length+1);
+		this.acquireTimeouts = new AtomicLong();
+		this.connectionsCreated = new AtomicLong();
+		this.validationFailures = new AtomicLong();
+		this.leaksDetected = new AtomicLong();
+		this.idleEvictions = new AtomicLong();
+		this.statementCaches = new ConcurrentHashMap<>();
+		this.statementCacheHits = new AtomicLong();
+		this.statementCacheMisses = new AtomicLong();
+
+		// open initial connections
+		for( int i=0; i<this.minSize; i++ ) {
+			idle.add(new IdleConnection(openPhysical()));
+		}
+		if( leakThresholdMillis > 0 ) {
+			long period = Math.max(1000, leakThresholdMillis/2);
+			getHousekeeping().scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+		}
+		log.info("JDBC connection pool initialized with min="+minSize+", max="+maxSize);
+	}
+
+	private static class IdleConnection{
+		final Connection connection;
+		final long since;
+		IdleConnection(Connection connection){
+			this.connection = connection;
+			this.since = System.currentTimeMillis();
+		}
+	}
+
+	private synchronized ScheduledExecutorService getHousekeeping() {
+		if( housekeeping == null ) {
+			housekeeping = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread(r, "jdbc-pool-housekeeping");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return housekeeping;
+	}
+
+	/**
+	 * Get the data source used to open physical connections, e.g. for
+	 * connections held permanently outside of the pool
+	 * @return data source
+	 */
+	public DataSource getTarget() {
+		return target;
+	}
+
+	/**
+	 * Set the maximum number of prepared statements to cache for each physical
+	 * connection. Only statements prepared via {@link Connection#prepareStatement(String)}
+	 * are cached. Should be called before the first connection is borrowed.
+	 * @param size cache size per connection, zero to disable caching
+	 */
+	public void setStatementCacheSize(int size) {
+		this.statementCacheSize = size;
+	}
+
+	/**
+	 * Close connections exceeding the minimum pool size after they were idle for the given time.
+	 * @param millis idle timeout in milliseconds, zero or less to keep idle connections open
+	 */
+	public synchronized void setIdleTimeout(long millis) {
+		this.idleTimeoutMillis = millis;
+		if( idleEviction != null ) {
+			idleEviction.cancel(false);
+			idleEviction = null;
+		}
+		if( millis > 0 ) {
+			long period = Math.max(1000, millis/2);
+			idleEviction = getHousekeeping().scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Close the connections which were idle for longer than the idle timeout,
+	 * down to the minimum pool size
+	 */
+	void evictIdle() {
+		long limit = System.currentTimeMillis() - idleTimeoutMillis;
+		List<Connection> evicted = new ArrayList<>();
+		synchronized( idle ) {
+			// least recently returned connections are at the end
+			while( idle.size() > minSize && idle.peekLast().since < limit ) {
+				evicted.add(idle.pollLast().connection);
+			}
+		}
+		if( !evicted.isEmpty() ) {
+			evicted.forEach(this::discard);
+			idleEvictions.addAndGet(evicted.size());
+			log.fine("Closed "+evicted.size()+" idle pooled connections");
+		}
+	}
+
+	private Connection openPhysical() throws SQLException {
+		Connection c = target.getConnection();
+		connectionsCreated.incrementAndGet();
+		return c;
+	}
+
+	private void recordAcquireTime(long millis) {
+		int i;
+		for( i=0; i<ACQUIRE_HISTOGRAM_BOUNDS.length; i++ ) {
+			if( millis <= ACQUIRE_HISTOGRAM_BOUNDS[i] ) {
+				break;
+			}
+		}
+		acquireHistogram.incrementAndGet(i);
+	}
+
+	private Connection pollIdle() {
+		IdleConnection c;
+		synchronized( idle ) {
+			c = idle.pollFirst();
+		}
+		if( c == null ) {
+			return null;
+		}
+		return c.connection;
+	}
+
+	private StatementCache getStatementCache(Connection physical) {
+		return statementCaches.computeIfAbsent(physical, c -> new StatementCache(c, statementCacheSize, statementCacheHits, statementCacheMisses));
+	}
+
+	/**
+	 * Close a physical connection and release its cached statements
+	 * @param c physical connection
+	 */
+	private void discard(Connection c) {
+		StatementCache cache = statementCaches.remove(c);
+		if( cache != null ) {
+			cache.clear();
+		}
+		closeQuietly(c);
+	}
+
+	private static void closeQuietly(Connection c) {
+		try {
+			c.close();
+		}catch( SQLException e ) {
+			log.log(Level.FINE, "Failed to close physical connection", e);
+		}
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		if( closed ) {
+			throw new SQLException("Connection pool closed");
+		}
+		long start = System.nanoTime();
+		try {
+			if( false == permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS) ) {
+				acquireTimeouts.incrementAndGet();
+				throw new SQLTransientConnectionException("Timeout after "+acquireTimeoutMillis+"ms waiting for pooled connection. active="+getActiveCount()+", waiting="+getWaitingCount());
+			}
+		}catch( InterruptedException e ) {
+			Thread.currentThread().interrupt();
+			throw new SQLTransientConnectionException("Interrupted while waiting for pooled connection", e);
+		}
+		Connection physical = null;
+		try {
+			while( (physical = pollIdle()) != null ) {
+				if( validateOnBorrow == false || physical.isValid(VALIDATION_TIMEOUT_SECONDS) ) {
+					break;
+				}
+				validationFailures.incrementAndGet();
+				log.info("Discarding invalid pooled connection");
+				discard(physical);
+			}
+			if( physical == null ) {
+				physical = openPhysical();
+			}
+		}catch( SQLException | RuntimeException e ) {
+			if( physical != null ) {
+				discard(physical);
+			}
+			permits.release();
+			throw e;
+		}
+		recordAcquireTime(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start));
+		PooledConnectionHandler h = new PooledConnectionHandler(physical, leakThresholdMillis > 0);
+		active.add(h);
+		h.proxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, h);
+		return h.proxy;
+	}
+
+	/**
+	 * Return a physical connection to the pool. Called once
+	 * when the proxy connection is closed.
+	 * @param h handler of the closed proxy
+	 */
+	private void release(PooledConnectionHandler h) {
+		active.remove(h);
+		Connection c = h.physical;
+		boolean reusable = !closed;
+		if( reusable ) {
+			try {
+				// reset connection state modified by the borrower
+				if( c.isClosed() ) {
+					reusable = false;
+				}else {
+					if( c.getAutoCommit() == false ) {
+						c.rollback();
+						c.setAutoCommit(true);
+					}
+					if( c.isReadOnly() ) {
+						c.setReadOnly(false);
+					}
+					c.clearWarnings();
+				}
+			}catch( SQLException e ) {
+				log.log(Level.INFO, "Discarding pooled connection which could not be reset", e);
+				reusable = false;
+			}
+		}
+		if( reusable ) {
+			synchronized( idle ) {
+				// the pool may have been closed concurrently
+				if( closed ) {
+					reusable = false;
+				}else {
+					idle.addFirst(new IdleConnection(c));
+				}
+			}
+		}
+		if( !reusable ) {
+			discard(c);
+		}
+		permits.release();
+	}
+
+	private void detectLeaks() {
+		long now = System.currentTimeMillis();
+		for( PooledConnectionHandler h : active ) {
+			if( h.leakReported == false && now - h.borrowed > leakThresholdMillis ) {
+				h.leakReported = true;
+				leaksDetected.incrementAndGet();
+				log.log(Level.WARNING, "Possible connection leak: connection not returned after "+(now-h.borrowed)+"ms", h.borrowStack);
+			}
+		}
+	}
+
+	private class PooledConnectionHandler implements InvocationHandler{
+		private final Connection physical;
+		private final long borrowed;
+		private final Exception borrowStack;
+		private volatile boolean leakReported;
+		private boolean released;
+		private Connection proxy;
+
+		PooledConnectionHandler(Connection physical, boolean recordStack){
+			this.physical = physical;
+			this.borrowed = System.currentTimeMillis();
+			if( recordStack ) {
+				this.borrowStack = new Exception("Connection borrowed here");
+			}else {
+				this.borrowStack = null;
+			}
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch( method.getName() ) {
+			case "close":
+				synchronized( this ) {
+					if( released == false ) {
+						released = true;
+						release(this);
+					}
+				}
+				return null;
+			case "isClosed":
+				return released || physical.isClosed();
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return "PooledConnection("+physical+")";
+			default:
+				if( released ) {
+					throw new SQLException("Connection already returned to pool");
+				}
+			}
+			if( statementCacheSize > 0 && method.getName().equals("prepareStatement") && args.length == 1 ) {
+				return getStatementCache(physical).prepare((String)args[0], this.proxy);
+			}
+			try {
+				return method.invoke(physical, args);
+			}catch( InvocationTargetException e ) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	/**
+	 * Number of connections currently borrowed from the pool
+	 * @return active connection count
+	 */
+	public int getActiveCount() {
+		return active.size();
+	}
+	/**
+	 * Number of open connections waiting in the pool
+	 * @return idle connection count
+	 */
+	public int getIdleCount() {
+		synchronized( idle ) {
+			return idle.size();
+		}
+	}
+	/**
+	 * Estimated number of threads waiting for a connection
+	 * @return waiting thread count
+	 */
+	public int getWaitingCount() {
+		return permits.getQueueLength();
+	}
+	public int getMinSize() {
+		return minSize;
+	}
+	public int getMaxSize() {
+		return maxSize;
+	}
+	public long getAcquireTimeoutCount() {
+		return acquireTimeouts.get();
+	}
+	public long getConnectionsCreated() {
+		return connectionsCreated.get();
+	}
+	public long getValidationFailures() {
+		return validationFailures.get();
+	}
+	public long getLeaksDetected() {
+		return leaksDetected.get();
+	}
+	/**
+	 * Number of connections closed after exceeding the idle timeout
+	 * @return idle eviction count
+	 */
+	public long getIdleEvictions() {
+		return idleEvictions.get();
+	}
+	public int getStatementCacheSize() {
+		return statementCacheSize;
+	}
+	/**
+	 * Number of prepared statements reused from the statement cache
+	 * @return cache hit count
+	 */
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+	/**
+	 * Number of statements which had to be prepared by the database
+	 * because they were not found in the statement cache
+	 * @return cache miss count
+	 */
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+	/**
+	 * Snapshot of the acquire time histogram. Index {@code i} contains the
+	 * number of acquisitions which took at most {@link #ACQUIRE_HISTOGRAM_BOUNDS}{@code [i]}
+	 * milliseconds (and more than the previous bound). The last index counts
+	 * all slower acquisitions.
+	 * @return histogram counts
+	 */
+	public long[] getAcquireTimeHistogram() {
+		long[] counts = new long[acquireHistogram.length()];
+		for( int i=0; i<counts.length; i++ ) {
+			counts[i] = acquireHistogram.get(i);
+		}
+		return counts;
+	}
+
+	/**
+	 * Close all idle connections and stop pooling. Connections
+	 * currently in use will be closed once they are returned.
+	 */
+	@Override
+	public void close() {
+		synchronized( this ) {
+			if( housekeeping != null ) {
+				housekeeping.shutdownNow();
+			}
+		}
+		List<Connection> list = new ArrayList<>();
+		synchronized( idle ) {
+			// connections returned afterwards are closed by release
+			closed = true;
+			idle.forEach(c -> list.add(c.connection));
+			idle.clear();
+		}
+		list.forEach(this::discard);
+		log.info("JDBC connection pool closed");
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Pooled connections do not support credentials per connection");
+	}
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return target.getLogWriter();
+	}
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		target.setLogWriter(out);
+	}
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		target.setLoginTimeout(seconds);
+	}
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return target.getLoginTimeout();
+	}
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		return log;
+	}
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if( iface.isInstance(this) ) {
+			return iface.cast(this);
+		}
+		return target.unwrap(iface);
+	}
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || target.isWrapperFor(iface);
+	}
+
+}
@@ -0,0 +1,172 @@
+package org.aktin.broker.admin.standalone;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * LRU cache of prepared statements for a single physical connection.
+ * <p>
+ * Statements prepared via {@link Connection#prepareStatement(String)} are
+ * handed out as proxies. Closing the proxy keeps the underlying statement
+ * open and returns it to the cache, so the next request for the same SQL
+ * string on the same physical connection does not need to parse and plan
+ * the statement again.
+ * </p>
+ * @author R.W.Majeed
+ *
+ */
+class StatementCache {
+	private static final Logger log = Logger.getLogger(StatementCache.class.getName());
+
+	private final Connection physical;
+	private final Map<String, PreparedStatement> cache;
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+
+	/**
+	 * Create a statement cache
+	 * @param physical physical connection used to prepare statements
+	 * @param maxSize maximum number of idle statements to keep open
+	 * @param hits counter for cache hits, shared across connections
+	 * @param misses counter for cache misses, shared across connections
+	 */
+	StatementCache(Connection physical, int maxSize, AtomicLong hits, AtomicLong misses){
+		this.physical = physical;
+		this.hits = hits;
+		this.misses = misses;
+		this.cache = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if( size() > maxSize ) {
+					closeQuietly(eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		}catch( SQLException e ) {
+			log.log(Level.FINE, "Failed to close cached statement", e);
+		}
+	}
+
+	/**
+	 * Prepare a statement or reuse a cached statement for the given SQL.
+	 * @param sql SQL string
+	 * @param connectionProxy connection returned by {@link PreparedStatement#getConnection()}
+	 * @return statement proxy which returns the statement to the cache when closed
+	 * @throws SQLException SQL error during statement preparation
+	 */
+	PreparedStatement prepare(String sql, Connection connectionProxy) throws SQLException{
+		PreparedStatement ps;
+		synchronized( cache ) {
+			// remove while in use, so that concurrent use of the same SQL prepares another statement
+			ps = cache.remove(sql);
+		}
+		if( ps == null ) {
+			misses.incrementAndGet();
+			ps = physical.prepareStatement(sql);
+		}else {
+			hits.incrementAndGet();
+		}
+		return (PreparedStatement)Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(), new Class<?>[] {PreparedStatement.class}, new CachedStatementHandler(sql, ps, connectionProxy));
+	}
+
+	private void giveBack(String sql, PreparedStatement ps) {
+		try {
+			// release resources held by the last execution
+			ResultSet rs = ps.getResultSet();
+			if( rs != null ) {
+				rs.close();
+			}
+			ps.clearParameters();
+			ps.clearWarnings();
+		}catch( SQLException e ) {
+			log.log(Level.FINE, "Discarding statement which could not be reset", e);
+			closeQuietly(ps);
+			return;
+		}
+		PreparedStatement previous;
+		synchronized( cache ) {
+			previous = cache.put(sql, ps);
+		}
+		if( previous != null && previous != ps ) {
+			// another statement for the same SQL was returned first
+			closeQuietly(previous);
+		}
+	}
+
+	/**
+	 * Close all cached statements
+	 */
+	void clear() {
+		List<PreparedStatement> list;
+		synchronized( cache ) {
+			list = new ArrayList<>(cache.values());
+			cache.clear();
+		}
+		list.forEach(StatementCache::closeQuietly);
+	}
+
+	private class CachedStatementHandler implements InvocationHandler{
+		private final String sql;
+		private final PreparedStatement ps;
+		private final Connection connectionProxy;
+		private boolean closed;
+
+		CachedStatementHandler(String sql, PreparedStatement ps, Connection connectionProxy){
+			this.sql = sql;
+			this.ps = ps;
+			this.connectionProxy = connectionProxy;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch( method.getName() ) {
+			case "close":
+				synchronized( this ) {
+					if( closed == false ) {
+						closed = true;
+						giveBack(sql, ps);
+					}
+				}
+				return null;
+			case "isClosed":
+				return closed || ps.isClosed();
+			case "getConnection":
+				return connectionProxy;
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			default:
+				if( closed ) {
+					throw new SQLException("Statement already closed");
+				}
+			}
+			try {
+				return method.invoke(ps, args);
+			}catch( InvocationTargetException e ) {
+				throw e.getCause();
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.aktin.broker.admin.standalone;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.aktin.broker.db.LiquibaseWrapper;
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import liquibase.exception.LiquibaseException;
+
+/**
+ * Manual benchmark for the node request list query as executed by
+ * the broker: each query borrows a connection from the {@link PooledDataSource},
+ * prepares the statement via the pooled connection and closes both afterwards.
+ * Compared are
+ * <ul>
+ * <li>SQL statements with concatenated literals</li>
+ * <li>prepared statements without statement cache</li>
+ * <li>prepared statements served from the {@link StatementCache} of the pool</li>
+ * </ul>
+ * <p>
+ * Not run during the build. Without arguments, an in-memory HSQL database
+ * is used. A PostgreSQL JDBC URL can be given as first argument, in which
+ * case the PostgreSQL driver must be on the classpath.
+ * </p>
+ * @author R.W.Majeed
+ *
+ */
+public class BenchmarkStatementParsing {
+	private static final int ITERATIONS = 20000;
+	private static final int CACHE_SIZE = 64;
+	private static final String QUERY_LITERAL = "SELECT r.id, r.published, r.closed FROM requests r LEFT OUTER JOIN request_node_status s ON r.id=s.request_id AND s.node_id=";
+	private static final String QUERY_PREPARED = "SELECT r.id, r.published, r.closed FROM requests r LEFT OUTER JOIN request_node_status s ON r.id=s.request_id AND s.node_id=?";
+
+	private static DataSource createDataSource(String jdbcUrl) {
+		if( jdbcUrl == null ) {
+			JDBCDataSource ds = new JDBCDataSource();
+			ds.setURL("jdbc:hsqldb:mem:benchmark;user=sa");
+			return ds;
+		}
+		try {
+			Class<? extends DataSource> clazz = Class.forName("org.postgresql.ds.PGSimpleDataSource").asSubclass(DataSource.class);
+			DataSource ds = clazz.getConstructor().newInstance();
+			clazz.getMethod("setURL", String.class).invoke(ds, jdbcUrl);
+			return ds;
+		} catch ( Exception e) {
+			throw new RuntimeException("Unable to initialize PostgreSQL DataSource", e);
+		}
+	}
+
+	private static long consume(ResultSet rs) throws SQLException {
+		long rows = 0;
+		while( rs.next() ) {
+			rows ++;
+		}
+		return rows;
+	}
+
+	private static long runLiteral(DataSource pool) throws SQLException {
+		long start = System.nanoTime();
+		for( int i=0; i<ITERATIONS; i++ ) {
+			try( Connection dbc = pool.getConnection();
+					Statement st = dbc.createStatement();
+					ResultSet rs = st.executeQuery(QUERY_LITERAL+(i%100)) ){
+				consume(rs);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runPrepared(DataSource pool) throws SQLException {
+		long start = System.nanoTime();
+		for( int i=0; i<ITERATIONS; i++ ) {
+			try( Connection dbc = pool.getConnection();
+					PreparedStatement ps = dbc.prepareStatement(QUERY_PREPARED) ){
+				ps.setInt(1, i%100);
+				try( ResultSet rs = ps.executeQuery() ){
+					consume(rs);
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static PooledDataSource createPool(DataSource ds, int cacheSize) throws SQLException {
+		PooledDataSource pool = new PooledDataSource(ds, 1, 1, 1000, false, 0);
+		pool.setStatementCacheSize(cacheSize);
+		return pool;
+	}
+
+	public static void main(String[] args) throws SQLException, LiquibaseException {
+		DataSource ds = createDataSource(args.length > 0 ? args[0] : null);
+		// closing the wrapper also closes the connection
+		try( LiquibaseWrapper w = new LiquibaseWrapper(ds.getConnection()) ){
+			w.update();
+		}
+		long literal, uncached, cached;
+		try( PooledDataSource pool = createPool(ds, 0) ){
+			// warm up
+			runLiteral(pool);
+			runPrepared(pool);
+			literal = runLiteral(pool);
+			uncached = runPrepared(pool);
+		}
+		try( PooledDataSource pool = createPool(ds, CACHE_SIZE) ){
+			// warm up
+			runPrepared(pool);
+			cached = runPrepared(pool);
+			System.out.println("Statement cache hits: "+pool.getStatementCacheHits()+", misses: "+pool.getStatementCacheMisses());
+		}
+		System.out.println("Iterations: "+ITERATIONS);
+		System.out.println("Literal SQL:            "+(literal/ITERATIONS)+" ns/query");
+		System.out.println("Prepared SQL:           "+(uncached/ITERATIONS)+" ns/query");
+		System.out.println("Prepared SQL, cached:   "+(cached/ITERATIONS)+" ns/query");
+	}
+}
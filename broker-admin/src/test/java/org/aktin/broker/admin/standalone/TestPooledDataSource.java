@@ -0,0 +1,146 @@
+package org.aktin.broker.admin.standalone;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPooledDataSource {
+	private PooledDataSource pool;
+
+	@Before
+	public void createPool() throws SQLException {
+		JDBCDataSource ds = new JDBCDataSource();
+		ds.setURL("jdbc:hsqldb:mem:pool_test;user=sa");
+		pool = new PooledDataSource(ds, 1, 2, 200, true, 0);
+		pool.setStatementCacheSize(4);
+	}
+	@After
+	public void closePool() {
+		pool.close();
+	}
+
+	@Test
+	public void physicalConnectionsAreReused() throws SQLException {
+		Assert.assertEquals(1, pool.getIdleCount());
+		for( int i=0; i<10; i++ ) {
+			try( Connection c = pool.getConnection();
+					Statement st = c.createStatement() ){
+				st.execute("VALUES(1)");
+				Assert.assertEquals(1, pool.getActiveCount());
+			}
+		}
+		Assert.assertEquals(0, pool.getActiveCount());
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(1, pool.getConnectionsCreated());
+		long total = 0;
+		for( long count : pool.getAcquireTimeHistogram() ) {
+			total += count;
+		}
+		Assert.assertEquals(10, total);
+	}
+
+	@Test
+	public void connectionStateIsResetOnReturn() throws SQLException {
+		try( Connection c = pool.getConnection() ){
+			c.setAutoCommit(false);
+			c.setReadOnly(true);
+		}
+		try( Connection c = pool.getConnection() ){
+			Assert.assertTrue(c.getAutoCommit());
+			Assert.assertFalse(c.isReadOnly());
+		}
+	}
+
+	@Test
+	public void closedConnectionIsUnusable() throws SQLException {
+		Connection c = pool.getConnection();
+		c.close();
+		Assert.assertTrue(c.isClosed());
+		// closing twice must not return the connection twice
+		c.close();
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertThrows(SQLException.class, () -> c.createStatement());
+	}
+
+	@Test
+	public void acquireTimesOutWhenExhausted() throws SQLException {
+		try( Connection c1 = pool.getConnection();
+				Connection c2 = pool.getConnection() ){
+			Assert.assertEquals(2, pool.getActiveCount());
+			Assert.assertThrows(SQLTransientConnectionException.class, () -> pool.getConnection());
+			Assert.assertEquals(1, pool.getAcquireTimeoutCount());
+		}
+		Assert.assertEquals(2, pool.getIdleCount());
+	}
+
+	@Test
+	public void preparedStatementsAreCached() throws SQLException {
+		for( int i=0; i<5; i++ ) {
+			try( Connection c = pool.getConnection();
+					PreparedStatement ps = c.prepareStatement("VALUES(?)") ){
+				ps.setInt(1, i);
+				try( ResultSet rs = ps.executeQuery() ){
+					Assert.assertTrue(rs.next());
+					Assert.assertEquals(i, rs.getInt(1));
+				}
+				Assert.assertSame(c, ps.getConnection());
+			}
+		}
+		Assert.assertEquals(1, pool.getStatementCacheMisses());
+		Assert.assertEquals(4, pool.getStatementCacheHits());
+	}
+
+	@Test
+	public void concurrentStatementsWithSameSql() throws SQLException {
+		try( Connection c = pool.getConnection();
+				PreparedStatement ps1 = c.prepareStatement("VALUES(?)");
+				PreparedStatement ps2 = c.prepareStatement("VALUES(?)") ){
+			ps1.setInt(1, 1);
+			ps2.setInt(1, 2);
+			try( ResultSet r1 = ps1.executeQuery();
+					ResultSet r2 = ps2.executeQuery() ){
+				Assert.assertTrue(r1.next());
+				Assert.assertTrue(r2.next());
+				Assert.assertEquals(1, r1.getInt(1));
+				Assert.assertEquals(2, r2.getInt(1));
+			}
+		}
+		Assert.assertEquals(2, pool.getStatementCacheMisses());
+	}
+
+	@Test
+	public void connectionReturnedAfterCloseIsClosed() throws SQLException {
+		Connection c = pool.getConnection();
+		Connection physical = c.unwrap(Connection.class);
+		pool.close();
+		c.close();
+		Assert.assertEquals(0, pool.getIdleCount());
+		Assert.assertTrue(physical.isClosed());
+	}
+
+	@Test
+	public void idleConnectionsAreEvictedToMinSize() throws SQLException, InterruptedException {
+		pool.setIdleTimeout(50);
+		try( Connection c1 = pool.getConnection();
+				Connection c2 = pool.getConnection() ){
+			Assert.assertEquals(0, pool.getIdleCount());
+		}
+		Assert.assertEquals(2, pool.getIdleCount());
+		// recently returned connections are kept
+		pool.evictIdle();
+		Assert.assertEquals(2, pool.getIdleCount());
+		Thread.sleep(100);
+		pool.evictIdle();
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertEquals(1, pool.getIdleEvictions());
+	}
+}
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.function.BiConsumer;
 
+import javax.sql.DataSource;
+
 public interface AuthProvider {
 
 	public void setBasePath(Path path);
@@ -27,4 +29,12 @@ public interface AuthProvider {
 	 */
 	default Class<?>[] getEndpoints(){return new Class<?>[] {};};
 
+	/**
+	 * Keep state, e.g. issued tokens, in the broker database shared by multiple
+	 * broker instances. Called before {@link #bindSingletons(BiConsumer)} if the
+	 * broker runs with multiple instances. Per default, state is kept in memory.
+	 * @param ds broker database
+	 */
+	default void setSharedDatabase(DataSource ds) {};
+
 }
@@ -23,6 +23,16 @@ public class Node {
 	public Instant lastContact;
 	@XmlElement
 	public boolean websocket;
+	/**
+	 * Percentiles of the websocket round trip time in microseconds, measured
+	 * by the broker heartbeat. Only available while connected via websocket.
+	 */
+	@XmlElement(name="websocket-rtt-p50")
+	public Long websocketRttMedian;
+	@XmlElement(name="websocket-rtt-p95")
+	public Long websocketRtt95;
+	@XmlElement(name="websocket-rtt-p99")
+	public Long websocketRtt99;
 	/**
 	 * Relevant software modules running at the client. The first element must be "broker-api" with
 	 * the current version information.
@@ -91,7 +91,7 @@ public class AuthEndpoint {
 	@Consumes(MediaType.TEXT_PLAIN)
 	public String logout(@HeaderParam(HttpHeaders.AUTHORIZATION) String bearer){
 		Token t = resolveTokenFromBearerHeader(bearer);
-		t.invalidate();
+		tokens.invalidate(t);
 		return "{duration="+(System.currentTimeMillis()-t.issuedTimeMillis())+"}";
 	}
 
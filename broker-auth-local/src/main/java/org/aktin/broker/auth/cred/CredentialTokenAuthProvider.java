@@ -3,6 +3,8 @@ package org.aktin.broker.auth.cred;
 import java.io.IOException;
 import java.util.function.BiConsumer;
 
+import javax.sql.DataSource;
+
 import org.aktin.broker.server.auth.AbstractAuthProvider;
 
 public class CredentialTokenAuthProvider extends AbstractAuthProvider{
@@ -30,6 +32,11 @@ public class CredentialTokenAuthProvider extends AbstractAuthProvider{
 		return auth;
 	}
 
+	@Override
+	public void setSharedDatabase(DataSource ds) {
+		manager.setSharedDatabase(ds);
+	}
+
 	@Override
 	public void bindSingletons(BiConsumer<Object, Class<?>> binder) {
 		binder.accept(manager, TokenManager.class);
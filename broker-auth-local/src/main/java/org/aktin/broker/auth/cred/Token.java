@@ -5,24 +5,56 @@ import java.security.Principal;
 public class Token implements Principal{
 	private String user;
 	private long issued;
+	private long expires;
+
+	private String guid;
 
 	public Token(String user){
 		this.user = user;
 		this.issued = System.currentTimeMillis();
+		this.expires = Long.MAX_VALUE;
+		this.guid = Long.toHexString(System.identityHashCode(this)*this.issued);
+	}
+	/**
+	 * Restore a token issued previously, e.g. by another broker instance
+	 * @param user user name
+	 * @param issued issue timestamp
+	 * @param expires expiration timestamp
+	 * @param guid token id
+	 */
+	Token(String user, long issued, long expires, String guid){
+		this.user = user;
+		this.issued = issued;
+		this.expires = expires;
+		this.guid = guid;
 	}
 	public String getGUID(){
-		return Long.toHexString(System.identityHashCode(this)*this.issued);
+		return guid;
 	}
 
+	/**
+	 * Expire the token immediately, e.g. on logout
+	 */
 	public void invalidate() {
-		// TODO Auto-generated method stub
-		
+		this.expires = System.currentTimeMillis();
 	}
 
 	public long issuedTimeMillis() {
 		return issued;
 	}
 
+	public long expirationTimeMillis() {
+		return expires;
+	}
+
+	void setExpiration(long expires) {
+		this.expires = expires;
+	}
+
+	public boolean isExpired() {
+		return System.currentTimeMillis() >= expires;
+	}
+
 	@Override
 	public String getName() {
 		return user;
@@ -1,15 +1,34 @@
 package org.aktin.broker.auth.cred;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Base64;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.inject.Singleton;
+import javax.sql.DataSource;
 
 /**
  * Simple password based token manager. Currently, only a single (admin) user
  * with one password is supported.
+ * <p>
+ * Tokens are kept in memory and expire after a fixed lifetime. If multiple broker
+ * instances are used, tokens are stored in the shared database instead
+ * (see {@link #setSharedDatabase(DataSource)}), so that tokens issued by one
+ * instance are accepted by all instances and logouts apply to all instances.
+ * Only the SHA-256 hash of a stored token is written to the database. Stored tokens
+ * are bound to the password and rejected after the password was changed.
+ * </p>
  *
  * @author R.W.Majeed
  *
@@ -17,24 +36,48 @@ import javax.inject.Singleton;
 @Singleton
 public class TokenManager {
 	public static final String PROPERTY_BROKER_PASSWORD = "aktin.broker.password"; 
+	/** default token lifetime of 12 hours */
+	public static final long DEFAULT_TOKEN_LIFETIME_MILLIS = 12*60*60*1000L;
 	private static final Logger log = Logger.getLogger(TokenManager.class.getName());
 	private Map<String,Token> map;
 	private BiFunction<String, String, Boolean> authenticator;
+	/** binds stored tokens to the current password */
+	private String credentialSecret;
+	private DataSource sharedDB;
+	private long tokenLifetimeMillis = DEFAULT_TOKEN_LIFETIME_MILLIS;
 
 	public TokenManager(final String simplePassword) {
-		this.map = new HashMap<>();
+		this.map = new ConcurrentHashMap<>();
 		this.authenticator = (login,password) -> password.contentEquals(simplePassword);
+		this.credentialSecret = simplePassword;
 	}
 	public TokenManager(){
-		this.map = new HashMap<>();
+		this.map = new ConcurrentHashMap<>();
 		final String simplePassword = System.getProperty(PROPERTY_BROKER_PASSWORD, randomPassword());
 		// TODO use normal logging or even better real password management
 		System.err.println("Using password: "+simplePassword);
 		log.info("Using password: "+simplePassword);
 		this.authenticator = (login,password) -> password.contentEquals(simplePassword);
-		this.map = new HashMap<>();
+		this.credentialSecret = simplePassword;
+		this.map = new ConcurrentHashMap<>();
 	}
 	
+	/**
+	 * Store tokens in the database shared by all broker instances
+	 * @param ds shared broker database
+	 */
+	public void setSharedDatabase(DataSource ds) {
+		this.sharedDB = ds;
+	}
+
+	/**
+	 * Set the lifetime of tokens issued afterwards
+	 * @param millis lifetime in milliseconds
+	 */
+	public void setTokenLifetime(long millis) {
+		this.tokenLifetimeMillis = millis;
+	}
+
 	public static final String randomPassword() {
 		StringBuilder b = new StringBuilder(8);
 		for( int i=0; i<b.capacity(); i++ ){
@@ -56,11 +99,138 @@ public class TokenManager {
 			return null;
 		}
 		Token t = new Token(username);
-		map.put(t.getGUID(), t);
+		t.setExpiration(t.issuedTimeMillis() + tokenLifetimeMillis);
+		if( sharedDB != null ) {
+			try {
+				cleanupExpiredShared();
+				insertShared(t);
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Unable to store token in shared database", e);
+				return null;
+			}
+		}else {
+			map.values().removeIf(Token::isExpired);
+			map.put(t.getGUID(), t);
+		}
 		return t;
 	}
 
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not supported", e);
+		}
+	}
+
+	/**
+	 * Hash under which a token is stored, so that tokens can not be
+	 * used by anyone with read access to the database
+	 * @param guid token id
+	 * @return base64 encoded SHA-256 digest
+	 */
+	static String tokenHash(String guid) {
+		return Base64.getEncoder().encodeToString(sha256().digest(guid.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Digest which binds a stored token to the current password
+	 * @param tokenHash token hash, see {@link #tokenHash(String)}
+	 * @return base64 encoded digest
+	 */
+	private String credentialDigest(String tokenHash) {
+		MessageDigest md = sha256();
+		md.update(tokenHash.getBytes(StandardCharsets.UTF_8));
+		md.update((byte)0);
+		md.update(credentialSecret.getBytes(StandardCharsets.UTF_8));
+		return Base64.getEncoder().encodeToString(md.digest());
+	}
+
+	private void insertShared(Token t) throws SQLException {
+		String hash = tokenHash(t.getGUID());
+		try( Connection dbc = sharedDB.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("INSERT INTO auth_tokens(token_hash, user_name, issued, expiration, credential)VALUES(?,?,?,?,?)") ){
+			ps.setString(1, hash);
+			ps.setString(2, t.getName());
+			ps.setTimestamp(3, new Timestamp(t.issuedTimeMillis()));
+			ps.setTimestamp(4, new Timestamp(t.expirationTimeMillis()));
+			ps.setString(5, credentialDigest(hash));
+			ps.executeUpdate();
+		}
+	}
+
+	private Token loadShared(String guid) throws SQLException {
+		String hash = tokenHash(guid);
+		try( Connection dbc = sharedDB.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("SELECT user_name, issued, expiration, credential FROM auth_tokens WHERE token_hash=? AND expiration>?") ){
+			ps.setString(1, hash);
+			ps.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+			try( ResultSet rs = ps.executeQuery() ){
+				if( !rs.next() ) {
+					return null;
+				}
+				if( !credentialDigest(hash).equals(rs.getString(4)) ) {
+					// issued with a previous password
+					return null;
+				}
+				return new Token(rs.getString(1), rs.getTimestamp(2).getTime(), rs.getTimestamp(3).getTime(), guid);
+			}
+		}
+	}
+
+	/**
+	 * Remove expired tokens from the shared database
+	 * @throws SQLException SQL error
+	 */
+	private void cleanupExpiredShared() throws SQLException {
+		try( Connection dbc = sharedDB.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("DELETE FROM auth_tokens WHERE expiration<?") ){
+			ps.setTimestamp(1, new Timestamp(System.currentTimeMillis()));
+			int count = ps.executeUpdate();
+			if( count > 0 ) {
+				log.info("Removed "+count+" expired tokens");
+			}
+		}
+	}
+
+	/**
+	 * Look up a valid token
+	 * @param guid token id
+	 * @return token or {@code null} if the token is unknown, expired or invalidated
+	 */
 	public Token lookupToken(String guid){
-		return map.get(guid);
+		if( sharedDB != null ) {
+			// not cached, since the token may be invalidated by another instance
+			try {
+				return loadShared(guid);
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Unable to load token from shared database", e);
+				return null;
+			}
+		}
+		Token t = map.get(guid);
+		if( t != null && t.isExpired() ) {
+			map.remove(guid, t);
+			return null;
+		}
+		return t;
+	}
+
+	/**
+	 * Invalidate a token, e.g. on logout
+	 * @param t token
+	 */
+	public void invalidate(Token t) {
+		t.invalidate();
+		map.remove(t.getGUID());
+		if( sharedDB != null ) {
+			try( Connection dbc = sharedDB.getConnection();
+					PreparedStatement ps = dbc.prepareStatement("DELETE FROM auth_tokens WHERE token_hash=?") ){
+				ps.setString(1, tokenHash(t.getGUID()));
+				ps.executeUpdate();
+			} catch (SQLException e) {
+				log.log(Level.WARNING, "Unable to remove token from shared database", e);
+			}
+		}
 	}
 }
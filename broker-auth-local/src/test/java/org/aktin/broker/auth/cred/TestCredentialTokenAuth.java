@@ -37,8 +37,7 @@ public class TestCredentialTokenAuth {
 		Assert.assertEquals("admin", info.getUserId());
 	}
 
-	// TODO token invalidation is not implemented yet
-	//@Test
+	@Test
 	public void invalidatedTokenShouldNotAuthenticate() throws IOException {
 		// set headers
 		Token t = manager.authenticate("admin", password.toCharArray());
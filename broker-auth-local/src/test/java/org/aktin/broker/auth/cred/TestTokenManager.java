@@ -1,8 +1,19 @@
 package org.aktin.broker.auth.cred;
 
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import javax.sql.DataSource;
+
+import org.aktin.broker.db.LiquibaseWrapper;
+import org.hsqldb.jdbc.JDBCDataSource;
 import org.junit.Assert;
 import org.junit.Test;
 
+import liquibase.exception.LiquibaseException;
+
 public class TestTokenManager {
 
 	@Test
@@ -29,4 +40,57 @@ public class TestTokenManager {
 		System.clearProperty(TokenManager.PROPERTY_BROKER_PASSWORD);
 		Assert.assertNotNull(t);
 	}
+
+	private static DataSource createSharedDatabase(String name) throws SQLException, LiquibaseException {
+		JDBCDataSource ds = new JDBCDataSource();
+		ds.setURL("jdbc:hsqldb:mem:"+name+";user=sa");
+		try( LiquibaseWrapper w = new LiquibaseWrapper(ds.getConnection()) ){
+			w.update();
+		}
+		return ds;
+	}
+
+	@Test
+	public void sharedTokensExpireAndInvalidate() throws SQLException, LiquibaseException, InterruptedException {
+		DataSource ds = createSharedDatabase("tokens1");
+		String pw = TokenManager.randomPassword();
+		TokenManager a = new TokenManager(pw);
+		TokenManager b = new TokenManager(pw);
+		a.setSharedDatabase(ds);
+		b.setSharedDatabase(ds);
+
+		// logout on one instance applies to all instances
+		Token t = a.authenticate("admin", pw.toCharArray());
+		Assert.assertNotNull(b.lookupToken(t.getGUID()));
+		// only the hash is stored
+		try( Connection dbc = ds.getConnection();
+				Statement st = dbc.createStatement();
+				ResultSet rs = st.executeQuery("SELECT token_hash FROM auth_tokens") ){
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(TokenManager.tokenHash(t.getGUID()), rs.getString(1));
+			Assert.assertNotEquals(t.getGUID(), rs.getString(1));
+		}
+		b.invalidate(b.lookupToken(t.getGUID()));
+		Assert.assertNull(a.lookupToken(t.getGUID()));
+
+		// expired tokens are rejected
+		a.setTokenLifetime(50);
+		t = a.authenticate("admin", pw.toCharArray());
+		Assert.assertNotNull(b.lookupToken(t.getGUID()));
+		Thread.sleep(100);
+		Assert.assertNull(b.lookupToken(t.getGUID()));
+	}
+
+	@Test
+	public void sharedTokensRequireCurrentPassword() throws SQLException, LiquibaseException {
+		DataSource ds = createSharedDatabase("tokens2");
+		TokenManager a = new TokenManager("old-password");
+		a.setSharedDatabase(ds);
+		Token t = a.authenticate("admin", "old-password".toCharArray());
+
+		// restarted with a new password
+		TokenManager b = new TokenManager("new-password");
+		b.setSharedDatabase(ds);
+		Assert.assertNull(b.lookupToken(t.getGUID()));
+	}
 }
@@ -35,7 +35,8 @@ public class OpenIdAuthProvider extends AbstractAuthProvider{
 			loadConfig();
 			this.auth = new OpenIdAuthenticator(this.config);
 		}
-		return new OpenIdAuthenticator(config);
+		// shared instance, keeps the JWKS and verified tokens cached
+		return this.auth;
 	}
 
 }
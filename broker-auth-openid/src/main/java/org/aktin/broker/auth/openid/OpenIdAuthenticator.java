@@ -1,9 +1,21 @@
 package org.aktin.broker.auth.openid;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javax.ws.rs.core.HttpHeaders;
 import org.aktin.broker.server.auth.AuthInfo;
 import org.aktin.broker.server.auth.AuthInfoImpl;
@@ -13,18 +25,94 @@ import org.aktin.broker.server.auth.HttpBearerAuthentication;
 import org.jose4j.jwa.AlgorithmConstraints.ConstraintType;
 import org.jose4j.jwk.HttpsJwks;
 import org.jose4j.jwt.JwtClaims;
+import org.jose4j.jwt.MalformedClaimException;
 import org.jose4j.jwt.consumer.InvalidJwtException;
 import org.jose4j.jwt.consumer.JwtConsumer;
 import org.jose4j.jwt.consumer.JwtConsumerBuilder;
 import org.jose4j.keys.resolvers.HttpsJwksVerificationKeyResolver;
+import org.jose4j.lang.JoseException;
 
+/**
+ * Authenticate users via OpenID access tokens.
+ * <p>
+ * The JSON web key set of the identity provider is fetched once and shared by all
+ * requests. It is refreshed periodically in the background and whenever a token
+ * is signed with an unknown key id, but not more often than the configured
+ * minimum refetch interval. Successfully verified tokens are cached until they expire.
+ * </p>
+ */
 public class OpenIdAuthenticator implements HeaderAuthentication {
+  private static final Logger log = Logger.getLogger(OpenIdAuthenticator.class.getName());
 
   public static final String KEY_JWT_USERNAME = "clientId";
   private final OpenIdConfig config;
+  private final HttpsJwks httpsJwks;
+  private final JwtConsumer jwtConsumer;
+  private final Map<String, JwtClaims> verifiedTokens;
+  private ScheduledExecutorService refresher;
 
   public OpenIdAuthenticator(OpenIdConfig config) {
     this.config = config;
+    this.httpsJwks = new HttpsJwks(config.getJwks_uri());
+    long minRefetchMillis = TimeUnit.SECONDS.toMillis(config.getJwksMinRefetchSeconds());
+    // refresh-on-unknown-kid by the key resolver is skipped within this threshold
+    httpsJwks.setRefreshReprieveThreshold(minRefetchMillis);
+    if (config.getJwksRefreshSeconds() > 0) {
+      // keep the keys if a background refresh fails
+      httpsJwks.setRetainCacheOnErrorDuration(config.getJwksRefreshSeconds() * 2);
+    }
+    HttpsJwksVerificationKeyResolver httpsJwksKeyResolver = new HttpsJwksVerificationKeyResolver(httpsJwks);
+
+    this.jwtConsumer = new JwtConsumerBuilder()
+        .setRequireExpirationTime()
+        .setAllowedClockSkewInSeconds(10)
+        .setRequireSubject()
+        .setExpectedIssuer(config.getAuth_host())
+        .setSkipDefaultAudienceValidation() // TODO: take audience requirement into config?
+        .setVerificationKeyResolver(httpsJwksKeyResolver)
+        .setJwsAlgorithmConstraints(
+            ConstraintType.PERMIT, config.getAllowedAlgorithms().toArray(new String[0]))
+        .build();
+
+    final int maxTokens = config.getTokenCacheSize();
+    this.verifiedTokens = new LinkedHashMap<String, JwtClaims>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, JwtClaims> eldest) {
+        return size() > maxTokens;
+      }
+    };
+    if (config.getJwksRefreshSeconds() > 0) {
+      startBackgroundRefresh(config.getJwksRefreshSeconds());
+    }
+  }
+
+  private void startBackgroundRefresh(long seconds) {
+    refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "openid-jwks-refresh");
+      t.setDaemon(true);
+      return t;
+    });
+    // keys stay cached at least until the next background refresh
+    httpsJwks.setDefaultCacheDuration(seconds * 2);
+    refresher.scheduleWithFixedDelay(() -> {
+      try {
+        httpsJwks.refresh();
+      } catch (JoseException | IOException e) {
+        log.log(Level.WARNING, "Unable to refresh JWKS from " + config.getJwks_uri(), e);
+      }
+    }, seconds, seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Stop the background refresh of the JSON web key set
+   */
+  public void close() {
+    if (refresher != null) {
+      refresher.shutdownNow();
+      refresher = null;
+    }
   }
 
   @Override
@@ -32,6 +120,9 @@ public class OpenIdAuthenticator implements HeaderAuthentication {
     Objects.requireNonNull(this.config);
     String accessTokenSerialized = HttpBearerAuthentication.extractBearerToken(getHeader.apply(
         HttpHeaders.AUTHORIZATION));
+    if (accessTokenSerialized == null) {
+      return null;
+    }
 
     try {
       JwtClaims jwtClaims = verifyToken(accessTokenSerialized);
@@ -55,32 +146,53 @@ public class OpenIdAuthenticator implements HeaderAuthentication {
     }
   }
 
+  private static String tokenHash(String token) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.US_ASCII));
+      return Base64.getEncoder().encodeToString(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("message digest SHA-256 not available", e);
+    }
+  }
+
+  private static long expirationMillis(JwtClaims claims) {
+    try {
+      return claims.getExpirationTime().getValueInMillis();
+    } catch (MalformedClaimException e) {
+      // not possible for verified tokens, expiration time is required
+      return 0;
+    }
+  }
+
 	/**
-	 * Take an access token and check its viability.
+	 * Take an access token and check its viability. Verified tokens are
+	 * cached until their expiration time.
 	 * @param accessTokenSerialized the serialized access token as received in the Auth header
 	 * @return the set of claims contained in the token
 	 */
   private JwtClaims verifyToken(String accessTokenSerialized)
       throws IllegalAccessException {
+    String hash = tokenHash(accessTokenSerialized);
+    long now = System.currentTimeMillis();
+    synchronized (verifiedTokens) {
+      JwtClaims claims = verifiedTokens.get(hash);
+      if (claims != null) {
+        if (now < expirationMillis(claims)) {
+          return claims;
+        }
+        verifiedTokens.remove(hash);
+      }
+    }
+    JwtClaims claims;
     try {
-      HttpsJwks httpsJwks = new HttpsJwks(config.getJwks_uri());
-      HttpsJwksVerificationKeyResolver httpsJwksKeyResolver = new HttpsJwksVerificationKeyResolver(httpsJwks);
-
-      JwtConsumer jwtConsumer = new JwtConsumerBuilder()
-          .setRequireExpirationTime()
-          .setAllowedClockSkewInSeconds(10)
-          .setRequireSubject()
-          .setExpectedIssuer(config.getAuth_host())
-          .setSkipDefaultAudienceValidation() // TODO: take audience requirement into config?
-          .setVerificationKeyResolver(httpsJwksKeyResolver)
-          .setJwsAlgorithmConstraints(
-              ConstraintType.PERMIT, config.getAllowedAlgorithms().toArray(new String[0]))
-          .build();
-
-      return jwtConsumer.processToClaims(accessTokenSerialized);
+      claims = jwtConsumer.processToClaims(accessTokenSerialized);
     } catch (InvalidJwtException e) {
       throw new IllegalAccessException();
     }
+    synchronized (verifiedTokens) {
+      verifiedTokens.put(hash, claims);
+    }
+    return claims;
   }
 
 }
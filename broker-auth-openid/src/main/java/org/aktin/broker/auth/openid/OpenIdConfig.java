@@ -15,6 +15,12 @@ public class OpenIdConfig {
   private String auth_host;
   private String siteNameClaim;
   private List<String> allowedAlgorithms;
+  /** interval for refreshing the JWKS in the background, zero to disable */
+  private long jwksRefreshSeconds;
+  /** minimum time between two JWKS fetches triggered by unknown key ids */
+  private long jwksMinRefetchSeconds;
+  /** maximum number of verified tokens to cache */
+  private int tokenCacheSize;
 
   public OpenIdConfig(InputStream in) {
     Properties prop = new Properties();
@@ -24,6 +30,9 @@ public class OpenIdConfig {
       setAuth_host(prop.getProperty("openid.server"));
       setSiteNameClaim(prop.getProperty("openid.claim.site-name"));
       setAllowedAlgorithms(extractAlgorithmsList(prop.getProperty("openid.algorithms")));
+      setJwksRefreshSeconds(Long.parseLong(prop.getProperty("openid.jwks.refresh-seconds", "900")));
+      setJwksMinRefetchSeconds(Long.parseLong(prop.getProperty("openid.jwks.min-refetch-seconds", "10")));
+      setTokenCacheSize(Integer.parseInt(prop.getProperty("openid.token-cache.size", "1000")));
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -0,0 +1,157 @@
+package org.aktin.broker.auth.openid;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aktin.broker.server.auth.AuthInfo;
+import org.aktin.broker.server.auth.AuthRole;
+import org.jose4j.jwk.JsonWebKey.OutputControlLevel;
+import org.jose4j.jwk.JsonWebKeySet;
+import org.jose4j.jwk.RsaJsonWebKey;
+import org.jose4j.jwk.RsaJwkGenerator;
+import org.jose4j.jws.AlgorithmIdentifiers;
+import org.jose4j.jws.JsonWebSignature;
+import org.jose4j.jwt.JwtClaims;
+import org.jose4j.lang.JoseException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Verifies that the JWKS is fetched only when needed, using a local
+ * stand-in for the identity provider which counts JWKS requests.
+ */
+public class TestOpenIdAuthenticator {
+	private static final String ISSUER = "http://localhost/auth/realms/test";
+
+	private HttpServer server;
+	private AtomicInteger fetches;
+	private volatile String jwks;
+	private RsaJsonWebKey key1;
+	private RsaJsonWebKey key2;
+	private OpenIdAuthenticator auth;
+
+	@Before
+	public void startServer() throws IOException, JoseException {
+		key1 = RsaJwkGenerator.generateJwk(2048);
+		key1.setKeyId("k1");
+		key2 = RsaJwkGenerator.generateJwk(2048);
+		key2.setKeyId("k2");
+		publishKeys(key1);
+		fetches = new AtomicInteger();
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		server.createContext("/certs", exchange -> {
+			fetches.incrementAndGet();
+			byte[] body = jwks.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try( OutputStream out = exchange.getResponseBody() ){
+				out.write(body);
+			}
+		});
+		server.start();
+		auth = createAuthenticator(60);
+	}
+	@After
+	public void stopServer() {
+		auth.close();
+		server.stop(0);
+	}
+
+	private OpenIdAuthenticator createAuthenticator(int minRefetchSeconds) {
+		String props = "openid.server="+ISSUER+"\n"
+				+ "openid.jwks_uri=http://localhost:"+server.getAddress().getPort()+"/certs\n"
+				+ "openid.claim.site-name=site-name\n"
+				+ "openid.algorithms=RS256\n"
+				+ "openid.jwks.min-refetch-seconds="+minRefetchSeconds+"\n";
+		return new OpenIdAuthenticator(new OpenIdConfig(new ByteArrayInputStream(props.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	private void publishKeys(RsaJsonWebKey... keys) {
+		jwks = new JsonWebKeySet(keys).toJson(OutputControlLevel.PUBLIC_ONLY);
+	}
+
+	private static String createToken(RsaJsonWebKey key, String clientId, String site) throws JoseException {
+		JwtClaims claims = new JwtClaims();
+		claims.setIssuer(ISSUER);
+		claims.setSubject(clientId);
+		claims.setExpirationTimeMinutesInTheFuture(5);
+		claims.setGeneratedJwtId();
+		claims.setClaim(OpenIdAuthenticator.KEY_JWT_USERNAME, clientId);
+		if( site != null ) {
+			claims.setClaim("site-name", site);
+		}
+		JsonWebSignature jws = new JsonWebSignature();
+		jws.setPayload(claims.toJson());
+		jws.setKey(key.getPrivateKey());
+		jws.setKeyIdHeaderValue(key.getKeyId());
+		jws.setAlgorithmHeaderValue(AlgorithmIdentifiers.RSA_USING_SHA256);
+		return jws.getCompactSerialization();
+	}
+
+	private AuthInfo authenticate(String token) {
+		return auth.authenticateByHeaders(h -> "Bearer "+token);
+	}
+
+	@Test
+	public void keysAreFetchedOnce() throws JoseException {
+		String token = createToken(key1, "node1", "Site 1");
+		for( int i=0; i<10; i++ ) {
+			AuthInfo info = authenticate(token);
+			Assert.assertEquals("node1", info.getUserId());
+			Assert.assertEquals("CN=Site 1", info.getClientDN());
+			Assert.assertTrue(info.getRoles().contains(AuthRole.NODE_READ));
+		}
+		// different tokens signed with the same key
+		for( int i=0; i<10; i++ ) {
+			Assert.assertNotNull(authenticate(createToken(key1, "admin"+i, null)));
+		}
+		Assert.assertEquals(1, fetches.get());
+	}
+
+	@Test
+	public void unknownKeyIdTriggersRefetch() throws JoseException {
+		Assert.assertNotNull(authenticate(createToken(key1, "node1", "Site 1")));
+		Assert.assertEquals(1, fetches.get());
+
+		// identity provider rotates keys
+		publishKeys(key1, key2);
+		// token with unknown key id. keys were fetched within the minimum refetch interval
+		Assert.assertNull(authenticate(createToken(key2, "node2", "Site 2")));
+		Assert.assertEquals(1, fetches.get());
+	}
+
+	@Test
+	public void rotatedKeysAreFetched() throws JoseException {
+		auth.close();
+		auth = createAuthenticator(0);
+		Assert.assertNotNull(authenticate(createToken(key1, "node1", "Site 1")));
+		Assert.assertEquals(1, fetches.get());
+
+		// unknown key id is fetched once
+		publishKeys(key1, key2);
+		Assert.assertNotNull(authenticate(createToken(key2, "node2", "Site 2")));
+		Assert.assertEquals(2, fetches.get());
+		Assert.assertNotNull(authenticate(createToken(key2, "node3", "Site 3")));
+		Assert.assertNotNull(authenticate(createToken(key1, "node4", "Site 4")));
+		Assert.assertEquals(2, fetches.get());
+	}
+
+	@Test
+	public void invalidTokensAreRejected() throws JoseException {
+		Assert.assertNull(authenticate("invalid"));
+		Assert.assertNull(auth.authenticateByHeaders(h -> null));
+		// signed with a key not matching the published key id
+		RsaJsonWebKey other = RsaJwkGenerator.generateJwk(2048);
+		other.setKeyId("k1");
+		Assert.assertNull(authenticate(createToken(other, "node1", "Site 1")));
+	}
+}
@@ -46,6 +46,12 @@ public abstract class AbstractExecutionService<T extends AbortableRequestExecuti
 	private Map<Integer, PendingExecution> pending;
 
 	private ScheduledFuture<?> pingpongTimer;
+	/** initial delay after consecutive resets during notification polling */
+	static final long RESET_BACKOFF_MIN_MILLIS = 1000;
+	/** maximum delay after consecutive resets during notification polling */
+	static final long RESET_BACKOFF_MAX_MILLIS = 60000;
+	/** thread running {@link #runNotificationPolling(int, long)}, interrupted on shutdown */
+	private volatile Thread pollingThread;
 
 	public AbstractExecutionService(BrokerClient2 client){
 		this.abort = new AtomicBoolean();
@@ -79,6 +85,11 @@ public abstract class AbstractExecutionService<T extends AbortableRequestExecuti
 				long millis = System.currentTimeMillis()- Long.parseLong(msg);
 				log.info("Websocket received pong, roundtrip="+millis);
 			}
+
+			@Override
+			public void onNotificationsMissed() {
+				AbstractExecutionService.this.onNotificationsMissed();
+			}
 		});
 	}
 
@@ -177,6 +188,71 @@ public abstract class AbstractExecutionService<T extends AbortableRequestExecuti
 		}
 		client.connectWebsocket();
 	}
+	/**
+	 * Receive live updates about published or closed requests via long polling.
+	 * Alternative to {@link #startupWebsocketListener()} for nodes which cannot hold a
+	 * websocket connection. The calling thread is blocked until {@link #shutdown()}.
+	 * Notifications missed while a poll failed are delivered with the next successful poll.
+	 * If they are no longer available, {@link #onNotificationsMissed()} is called.
+	 * <p>
+	 * Consecutive resets indicate that the cursor is not accepted, e.g. if requests are
+	 * distributed to multiple broker instances without sticky sessions. Polling is then
+	 * delayed with exponential backoff, so that the request list is not retrieved in
+	 * a tight loop.
+	 * </p>
+	 * @param timeoutSeconds maximum time the server waits for notifications during each poll
+	 * @param retryMillis delay before retrying after a failed poll. Negative to shut down instead
+	 */
+	public void runNotificationPolling(int timeoutSeconds, long retryMillis) {
+		pollingThread = Thread.currentThread();
+		// the first poll is always answered with a reset
+		int resets = -1;
+		try {
+			while( !isAborted() ) {
+				long delay;
+				try {
+					if( client.pollNotifications(timeoutSeconds) ) {
+						resets = 0;
+						continue;
+					}
+					resets ++;
+					if( resets == 0 ) {
+						continue;
+					}else if( resets == 1 ) {
+						log.warning("Notification cursor not accepted by the broker. Sticky sessions are required for multiple broker instances.");
+					}
+					delay = resetBackoffMillis(resets);
+				} catch (IOException e) {
+					if( isAborted() ) {
+						break;
+					}
+					log.warning("Notification polling failed: "+e.getMessage());
+					if( retryMillis < 0 ) {
+						log.info("Notification polling retry disabled. Shutting down.");
+						shutdown();
+						break;
+					}
+					delay = retryMillis;
+				}
+				try {
+					Thread.sleep(delay);
+				} catch (InterruptedException e1) {
+					// interrupted by shutdown
+				}
+			}
+		}finally {
+			pollingThread = null;
+		}
+	}
+	/**
+	 * Delay after consecutive resets during notification polling
+	 * @param resets number of consecutive resets, excluding the first poll
+	 * @return delay in milliseconds
+	 */
+	static long resetBackoffMillis(int resets) {
+		long delay = RESET_BACKOFF_MIN_MILLIS << Math.min(resets-1, 16);
+		return Math.min(delay, RESET_BACKOFF_MAX_MILLIS);
+	}
 	/**
 	 * Abort the executor by shutting down the websocket and aborting all
 	 * pending and running executions.
@@ -188,6 +264,11 @@ public abstract class AbstractExecutionService<T extends AbortableRequestExecuti
 	public List<T> shutdown() {
 		client.closeWebsocket();
 		this.abort.set(true);
+		Thread polling = pollingThread;
+		if( polling != null && polling != Thread.currentThread() ) {
+			// abort waiting poll request
+			polling.interrupt();
+		}
 		List<Runnable> aborted = executor.shutdownNow();
 		// extract executions from local wrapper PendingExecution
 		List<T> list = new ArrayList<>(aborted.size());
@@ -282,6 +363,19 @@ public abstract class AbstractExecutionService<T extends AbortableRequestExecuti
 	}
 
 
+	/**
+	 * Called after a websocket reconnect, if missed notifications could not be
+	 * resumed. Polls the server for the current requests.
+	 */
+	protected void onNotificationsMissed() {
+		log.info("Missed websocket notifications not available");
+		try {
+			pollRequests();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Polling for missed requests failed", e);
+		}
+	}
+
 	/**
 	 * Poll the server for new requests.
 	 * @throws IOException IO error during polling
@@ -95,7 +95,7 @@ public abstract class AbstractRequestExecution implements Runnable {
 	/**
 	 * Open the input stream containing result data.
 	 * This method will be called by the method {@link #reportCompleted()} 
-	 * after successful execution.
+	 * after successful execution. It is called again for each attempt to resume an interrupted upload.
 	 * @return opened input stream. must be closed.
 	 * @throws IOException io error
 	 * @throws IllegalStateException when the method was called before both {@link #doExecution()} and  {@link #finishExecution()} terminated successfully
@@ -115,9 +115,9 @@ public abstract class AbstractRequestExecution implements Runnable {
 		statusListener.accept(this, RequestStatus.failed);
 	}
 	protected void reportCompleted() {
-		// read stout and report to broker
-		try( InputStream in = getResultData() ){
-			client.putRequestResult(requestId, getResultMediatype(), in);				
+		// read stout and report to broker. interrupted uploads are resumed, the result data is opened again for each attempt
+		try{
+			client.putRequestResultResumable(requestId, getResultMediatype(), this::getResultData);
 			client.deleteMyRequest(requestId);
 		} catch (IOException e) {
 			// error during reading the result or reporting the outcome will count as failure
@@ -26,7 +26,10 @@ public abstract class CLIClientPluginConfiguration<T extends CLIExecutionService
 
 	int websocketReconnectSeconds;
 	boolean websocketReconnectPolling;
+	boolean websocketReconnectResume;
 	int websocketPingpongSeconds;
+	/** server side timeout for long polling, zero to use the websocket */
+	int notificationsLongpollSeconds;
 	
 	int executorThreads;
 	private long executorTimeoutMillis;
@@ -69,7 +72,9 @@ public abstract class CLIClientPluginConfiguration<T extends CLIExecutionService
 		
 		this.websocketReconnectSeconds = Integer.valueOf(props.getProperty("client.websocket.reconnect.seconds"));
 		this.websocketReconnectPolling = Boolean.valueOf(props.getProperty("client.websocket.reconnect.polling"));
+		this.websocketReconnectResume = Boolean.valueOf(props.getProperty("client.websocket.reconnect.resume","true"));
 		this.websocketPingpongSeconds = Integer.valueOf(props.getProperty("client.websocket.ping.seconds","0"));
+		this.notificationsLongpollSeconds = Integer.valueOf(props.getProperty("client.notifications.longpoll.seconds","0"));
 		
 		this.executorThreads = Integer.valueOf(props.getProperty("client.executor.threads","1"));
 		this.executorTimeoutMillis = 1000*Long.valueOf(props.getProperty("client.executor.timeout.seconds"));
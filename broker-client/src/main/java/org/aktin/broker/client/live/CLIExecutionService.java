@@ -26,11 +26,13 @@ public abstract class CLIExecutionService<T extends AbortableRequestExecution> e
 		super(client);
 		this.config = config;
 		setExecutor(configureExecutor(config));
+		client.setResumeNotifications(config.websocketReconnectResume);
 	}
 
 	public void setConfiguration(CLIClientPluginConfiguration<?> config) {
 		this.config = config;
 		this.setExecutor(configureExecutor(config));
+		client.setResumeNotifications(config.websocketReconnectResume);
 	}
 
 	public static ScheduledExecutorService configureExecutor(CLIClientPluginConfiguration<?> config) {
@@ -91,6 +93,10 @@ public abstract class CLIExecutionService<T extends AbortableRequestExecution> e
 
 	@Override
 	public void run() {
+		if( config.getNotificationsLongpollSeconds() > 0 ) {
+			runLongPolling();
+			return;
+		}
 		try {
 			startupWebsocketListener();
 			log.info("websocket connection established");
@@ -139,8 +145,11 @@ public abstract class CLIExecutionService<T extends AbortableRequestExecution> e
 					previousConnection = System.currentTimeMillis();
 					startupWebsocketListener();
 					log.info("websocket connection re-established");
-					// websocket established. poll for missed requests
-					pollRequests();
+					if( !client.isResumeNotifications() ) {
+						// websocket established. poll for missed requests
+						pollRequests();
+					}
+					// otherwise missed notifications are resumed. polling only if not available
 				} catch (IOException e) {
 					log.warning("websocket reconnect failed: "+e.getMessage());
 				}
@@ -157,4 +166,20 @@ public abstract class CLIExecutionService<T extends AbortableRequestExecution> e
 			}
 		}
 	}
+
+	/**
+	 * Receive notifications via long polling instead of the websocket.
+	 * Failed polls are retried after the websocket reconnect delay.
+	 */
+	private void runLongPolling() {
+		try {
+			// try to load queue. this will do nothing if disabled by configuration
+			loadQueue();
+		} catch (IOException e) {
+			log.warning("loading queue failed: "+e.getMessage());
+		}
+		log.info("long polling for notifications with timeout "+config.getNotificationsLongpollSeconds()+"s");
+		long retryMillis = config.getWebsocketReconnectSeconds() * 1000L;
+		runNotificationPolling(config.getNotificationsLongpollSeconds(), retryMillis);
+	}
 }
@@ -55,6 +55,15 @@ public abstract class AbstractBrokerClient<T extends NotificationListener> {
 	@Getter
 	private WebSocket websocket;
 	private WebsocketNotificationService notifier;
+	/** resume missed notifications after reconnecting */
+	@Getter
+	@Setter
+	private boolean resumeNotifications;
+	/** epoch of the last sequenced notification, {@code null} if none was received */
+	private volatile String notificationEpoch;
+	private volatile long notificationSequence;
+	/** whether a previous connection was already resumed */
+	private volatile boolean notificationsResumed;
 	
 	protected List<T> listeners;
 
@@ -78,8 +87,20 @@ public abstract class AbstractBrokerClient<T extends NotificationListener> {
 	abstract protected URI getQueryBaseURI();
 	abstract protected String getWebsocketPath();
 
+	/**
+	 * Connect the websocket for notifications. If {@link #setResumeNotifications(boolean)}
+	 * is enabled, notifications missed since the previous connection are delivered after
+	 * connecting. If missed notifications are no longer available on the server,
+	 * {@link NotificationListener#onNotificationsMissed()} is called instead.
+	 * @return websocket
+	 * @throws IOException connection failure
+	 */
 	public WebSocket connectWebsocket() throws IOException{
-		connectWebsocket(getWebsocketPath());
+		String path = getWebsocketPath();
+		if( resumeNotifications ) {
+			path += (path.indexOf('?') == -1 ? "?" : "&")+"resume="+getNotificationCursor();
+		}
+		connectWebsocket(path);
 		return this.getWebsocket();
 	}
 
@@ -160,6 +181,60 @@ public abstract class AbstractBrokerClient<T extends NotificationListener> {
 	}
 	protected abstract void onWebsocketText(String text);
 
+	/**
+	 * Process sequence numbers and resume responses before passing
+	 * notifications to {@link #onWebsocketText(String)}.
+	 * This method will be called by threads created from {@link #notifier}
+	 * or by the thread polling for notifications.
+	 * @param text websocket message
+	 */
+	protected void onSequencedText(String text) {
+		if( text.startsWith("#") ) {
+			int sep = text.indexOf(' ');
+			long seq = Long.parseLong(text.substring(1, sep));
+			if( seq <= notificationSequence ) {
+				// already received
+				return;
+			}
+			notificationSequence = seq;
+			onWebsocketText(text.substring(sep+1));
+		}else if( text.startsWith("resumed ") ) {
+			setNotificationCursor(text.substring(8));
+			notificationsResumed = true;
+		}else if( text.equals("reset") || text.startsWith("reset ") ) {
+			// missed notifications not available. nothing was missed on the first connection
+			boolean missed = notificationsResumed;
+			setNotificationCursor(text.length() > 6 ? text.substring(6) : null);
+			notificationsResumed = true;
+			if( missed ) {
+				listeners.forEach(NotificationListener::onNotificationsMissed);
+			}
+		}else {
+			onWebsocketText(text);
+		}
+	}
+	/**
+	 * Get the position of the last received sequenced notification.
+	 * @return cursor or empty string if no sequenced notification was received
+	 */
+	protected String getNotificationCursor() {
+		String epoch = notificationEpoch;
+		if( epoch == null ) {
+			return "";
+		}
+		return epoch+"-"+notificationSequence;
+	}
+	private void setNotificationCursor(String cursor) {
+		int sep = (cursor == null) ? -1 : cursor.lastIndexOf('-');
+		if( sep == -1 ) {
+			this.notificationEpoch = null;
+			this.notificationSequence = 0;
+		}else {
+			this.notificationSequence = Long.parseLong(cursor.substring(sep+1));
+			this.notificationEpoch = cursor.substring(0, sep);
+		}
+	}
+
 	protected void connectWebsocket(String urlspec) throws IOException {
 		if( this.websocket != null ) {
 			throw new IOException("Websocket already connected");
@@ -168,7 +243,7 @@ public abstract class AbstractBrokerClient<T extends NotificationListener> {
 			this.notifier = new WebsocketNotificationService(Executors.newSingleThreadExecutor()) {
 				@Override
 				protected void notifyText(String text) {
-					onWebsocketText(text);
+					onSequencedText(text);
 				}
 				
 				@Override
@@ -261,7 +336,7 @@ public abstract class AbstractBrokerClient<T extends NotificationListener> {
 			throw new IOException("HTTP connection interrupted",e);
 		}
 		if( responseCode != expectedStatus ) {
-			throw new IOException("Unexpected response code "+responseCode+" instead of expected "+expectedStatus);
+			throw new HttpStatusException(responseCode, "Unexpected response code "+responseCode+" instead of expected "+expectedStatus);
 		}
 	}
 
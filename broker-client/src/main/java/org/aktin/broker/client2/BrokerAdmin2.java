@@ -1,8 +1,10 @@
 package org.aktin.broker.client2;
 
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
@@ -19,6 +21,9 @@ import java.nio.charset.StandardCharsets;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.xml.bind.JAXB;
 import javax.xml.transform.TransformerException;
@@ -39,11 +44,168 @@ import org.w3c.dom.Node;
 
 
 public class BrokerAdmin2 extends AbstractBrokerClient<AdminNotificationListener> implements BrokerAdmin{
+	private static final String MEDIATYPE_EVENT_STREAM = "text/event-stream";
+	private static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+	/** websocket close code reported for a normally ended event stream */
+	private static final int CLOSE_NORMAL = 1000;
+	/** websocket close code reported for a failed event stream */
+	private static final int CLOSE_ABNORMAL = 1006;
+
+	private boolean batchNotifications;
+	/** response body of the server-sent event stream, {@code null} if not connected */
+	private volatile InputStream eventStream;
+	private ExecutorService eventStreamExecutor;
+	private Future<?> eventStreamReader;
+
 	public BrokerAdmin2(URI endpointURI) {
 		super();
 		setEndpoint(endpointURI);
 	}
 
+	/**
+	 * Request batched websocket notifications. The server then accumulates events
+	 * for a short time window and sends them in a single frame. Status and result
+	 * events for the same request and node within a window are reduced to the latest.
+	 * Listeners are notified for each event as with single notifications.
+	 * Must be called before {@link #connectWebsocket()}.
+	 * @param batch {@code true} to receive batched notifications
+	 */
+	public void setBatchNotifications(boolean batch) {
+		this.batchNotifications = batch;
+	}
+
+	/**
+	 * Receive notifications via server-sent events instead of the websocket, e.g.
+	 * if websocket upgrades are not supported by a reverse proxy. Listeners are notified
+	 * in the same way as with {@link #connectWebsocket()}. After reconnecting, notifications
+	 * missed since the previous connection are delivered. If they are no longer available,
+	 * {@link NotificationListener#onNotificationsMissed()} is called instead.
+	 * If the stream is ended by the server, {@link NotificationListener#onWebsocketClosed(int)} is
+	 * called with status {@code 1000}, or {@code 1006} if the connection failed.
+	 * @throws IOException connection failure
+	 */
+	public synchronized void connectEventStream() throws IOException {
+		if( eventStream != null ) {
+			throw new IOException("Event stream already connected");
+		}
+		HttpRequest.Builder rb = createBrokerRequest("events")
+				.header(ACCEPT_HEADER, MEDIATYPE_EVENT_STREAM)
+				.GET();
+		String cursor = getNotificationCursor();
+		if( !cursor.isEmpty() ) {
+			rb.header(LAST_EVENT_ID_HEADER, cursor);
+		}
+		HttpResponse<InputStream> resp = sendRequest(rb.build(), BodyHandlers.ofInputStream());
+		if( resp.statusCode() != 200 ) {
+			resp.body().close();
+			throw new IOException("Unexpected HTTP response code "+resp.statusCode());
+		}
+		if( eventStreamExecutor == null ) {
+			eventStreamExecutor = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "broker-admin-event-stream");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		InputStream in = resp.body();
+		this.eventStream = in;
+		this.eventStreamReader = eventStreamExecutor.submit(() -> readEventStream(in));
+	}
+
+	/**
+	 * Close the server-sent event stream. Listeners are not notified.
+	 */
+	public synchronized void closeEventStream() {
+		InputStream in = eventStream;
+		if( in == null ) {
+			// already closed
+			return;
+		}
+		this.eventStream = null;
+		// reading thread blocks until data arrives, interrupt it
+		eventStreamReader.cancel(true);
+		try {
+			in.close();
+		} catch (IOException e) {
+			// closing anyways
+		}
+	}
+
+	public boolean isEventStreamConnected() {
+		return eventStream != null;
+	}
+
+	/**
+	 * Parse server-sent events and pass them to {@link #onSequencedText(String)}.
+	 * Called by the event stream thread.
+	 * @param in event stream
+	 */
+	private void readEventStream(InputStream in) {
+		int status = CLOSE_NORMAL;
+		try( BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)) ){
+			String id = null;
+			String name = null;
+			StringBuilder data = new StringBuilder();
+			String line;
+			while( (line = reader.readLine()) != null ) {
+				if( line.isEmpty() ) {
+					// end of event
+					if( id != null && data.length() > 0 ) {
+						onServerSentEvent(id, name, data.toString());
+					}
+					id = null;
+					name = null;
+					data.setLength(0);
+					continue;
+				}else if( line.startsWith(":") ) {
+					// comment
+					continue;
+				}
+				int sep = line.indexOf(':');
+				String field = (sep == -1) ? line : line.substring(0, sep);
+				String value = (sep == -1) ? "" : line.substring(sep+1);
+				if( value.startsWith(" ") ) {
+					value = value.substring(1);
+				}
+				switch( field ) {
+				case "id":
+					id = value;
+					break;
+				case "event":
+					name = value;
+					break;
+				case "data":
+					if( data.length() > 0 ) {
+						data.append('\n');
+					}
+					data.append(value);
+					break;
+				default:
+					// ignore unsupported fields, e.g. retry
+				}
+			}
+		}catch( IOException e ) {
+			status = CLOSE_ABNORMAL;
+		}
+		synchronized( this ) {
+			if( eventStream != in ) {
+				// closed locally
+				return;
+			}
+			eventStream = null;
+		}
+		onWebsocketClose(status);
+	}
+
+	private void onServerSentEvent(String id, String name, String data) {
+		if( "reset".equals(name) ) {
+			onSequencedText("reset "+id);
+		}else {
+			// event ids are cursors <epoch>-<seq>
+			onSequencedText("#"+id.substring(id.lastIndexOf('-')+1)+" "+data);
+		}
+	}
+
 	public <T> HttpResponse<T> getRequestDefinition(int requestId, String mediaType, BodyHandler<T> handler) throws IOException {
 		HttpRequest req = createBrokerRequest("request/"+requestId)
 				.header(ACCEPT_HEADER, mediaType)
@@ -339,6 +501,9 @@ public class BrokerAdmin2 extends AbstractBrokerClient<AdminNotificationListener
 	}
 	@Override
 	public String getWebsocketPath() {
+		if( batchNotifications ) {
+			return "websocket?batch=true";
+		}
 		return "websocket";
 	}
 
@@ -346,6 +511,12 @@ public class BrokerAdmin2 extends AbstractBrokerClient<AdminNotificationListener
 	protected void onWebsocketText(String text) {
 		String[] args = text.split(" ", 4);
 			switch( args[0] ) {
+			case "batch": // multiple events, one per line (count)
+				String[] lines = text.split("\n");
+				for( int i=1; i<lines.length; i++ ) {
+					onWebsocketText(lines[i]);
+				}
+				break;
 			case "created": // request created (requestId)
 				for( AdminNotificationListener listener : listeners )
 				listener.onRequestCreated(Integer.valueOf(args[1]));
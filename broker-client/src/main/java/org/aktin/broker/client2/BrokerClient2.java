@@ -16,10 +16,18 @@ import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 
 import org.aktin.broker.client.BrokerClient;
 import org.aktin.broker.client.BrokerClientImpl.OutputWriter;
@@ -33,12 +41,43 @@ import org.aktin.broker.xml.RequestStatus;
 import org.aktin.broker.xml.util.Util;
 import org.w3c.dom.Document;
 
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.java.Log;
 
+@Log
 public class BrokerClient2 extends AbstractBrokerClient<ClientNotificationListener> implements BrokerClient{
+	private static final int HTTP_STATUS_304_NOT_MODIFIED = 304;
+	private static final int HTTP_STATUS_405_METHOD_NOT_ALLOWED = 405;
+	private static final int HTTP_STATUS_409_CONFLICT = 409;
+	private static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+	/** additional time to wait for the long-poll response, beyond the server side timeout */
+	private static final int POLL_TIMEOUT_MARGIN_SECONDS = 30;
+
+	/** entity tag of the last retrieved request list */
+	private String requestListTag;
+	/** last retrieved request list, reused if the server reports no modification */
+	private List<RequestInfo> requestList;
+
+	/** size of chunks sent for resumable result uploads */
+	@Getter
+	@Setter
+	private int uploadChunkSize;
+	/** number of times an interrupted result upload is resumed */
+	@Getter
+	@Setter
+	private int uploadRetries;
+	/** delay before resuming an interrupted result upload */
+	@Getter
+	@Setter
+	private int uploadRetryMillis;
 
 	public BrokerClient2(URI endpointURI) {
 		super();
 		setEndpoint(endpointURI);
+		this.uploadChunkSize = 4*1024*1024;
+		this.uploadRetries = 3;
+		this.uploadRetryMillis = 10000;
 	}
 //	// aggregator functions
 //	private void putResource(String urispec, String contentType, OutputWriter writer) throws IOException{
@@ -61,10 +100,62 @@ public class BrokerClient2 extends AbstractBrokerClient<ClientNotificationListen
 
 
 	@Override
-	public List<RequestInfo> listMyRequests() throws IOException{
-		HttpRequest req = createBrokerRequest("my/request").GET().build();
-		RequestList resp = sendAndExpectJaxb(req, RequestList.class);
-		return postprocessRequestList(resp);
+	public synchronized List<RequestInfo> listMyRequests() throws IOException{
+		HttpRequest.Builder rb = createBrokerRequest("my/request").GET();
+		if( requestListTag != null ) {
+			rb.header("If-None-Match", requestListTag);
+		}
+		HttpResponse<Supplier<RequestList>> resp = sendRequest(rb.build(), JaxbBodyHandler.forType(RequestList.class));
+		if( resp.statusCode() == HTTP_STATUS_304_NOT_MODIFIED && requestList != null ) {
+			// list unchanged since last call
+			return new ArrayList<>(requestList);
+		}else if( resp.statusCode() != 200 ) {
+			throw new IOException("Unexpected HTTP response code "+resp.statusCode());
+		}
+		List<RequestInfo> list = postprocessRequestList(resp.body().get());
+		requestListTag = resp.headers().firstValue(ETAG_HEADER).orElse(null);
+		requestList = new ArrayList<>(list);
+		return list;
+	}
+	/**
+	 * Wait for notifications via long polling. Alternative to {@link #connectWebsocket()}
+	 * for environments where websocket connections are not possible. The server responds
+	 * as soon as notifications for this node are available or after the timeout.
+	 * Received notifications are passed to the listeners before this method returns.
+	 * If notifications were missed since the previous call,
+	 * {@link NotificationListener#onNotificationsMissed()} is called instead.
+	 * <p>
+	 * Call this method repeatedly to receive further notifications.
+	 * </p>
+	 * <p>
+	 * Cursors are valid only for the broker instance which issued them. With multiple
+	 * broker instances, long polling requires sticky sessions. Otherwise every call
+	 * answered by a different instance reports missed notifications.
+	 * </p>
+	 * @param timeoutSeconds maximum time the server waits for notifications
+	 * @return {@code true} if notifications continued from the previous call, {@code false}
+	 *  if the server could not continue from the cursor and the request list should be checked
+	 * @throws IOException communication failure
+	 */
+	public boolean pollNotifications(int timeoutSeconds) throws IOException{
+		String spec = "my/events?timeout="+timeoutSeconds+"&cursor="+URLEncoder.encode(getNotificationCursor(), StandardCharsets.UTF_8);
+		HttpRequest req = createBrokerRequest(spec)
+				.timeout(Duration.ofSeconds(timeoutSeconds + POLL_TIMEOUT_MARGIN_SECONDS))
+				.GET().build();
+		HttpResponse<String> resp = sendRequest(req, BodyHandlers.ofString());
+		if( resp.statusCode() != 200 ) {
+			throw new IOException("Unexpected HTTP response code "+resp.statusCode());
+		}
+		boolean resumed = true;
+		for( String line : resp.body().split("\n") ) {
+			if( line.equals("reset") || line.startsWith("reset ") ) {
+				resumed = false;
+			}
+			if( !line.isEmpty() ) {
+				onSequencedText(line);
+			}
+		}
+		return resumed;
 	}
 	@Override
 	public void postSoftwareVersions(Map<String,String> softwareVersions) throws IOException, NullPointerException{
@@ -232,6 +323,235 @@ public class BrokerClient2 extends AbstractBrokerClient<ClientNotificationListen
 				.build();
 		sendAndExpectStatus(req, HTTP_STATUS_204_NO_CONTENT);
 	}
+	/**
+	 * Source of result data for resumable uploads. Opened again for each resume attempt.
+	 */
+	@FunctionalInterface
+	public interface ResultSource{
+		/**
+		 * Open the result data
+		 * @return input stream starting with the first byte of the result, will be closed
+		 * @throws IOException IO error
+		 */
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Start a resumable upload of a result.
+	 * @param requestId request id
+	 * @param contentType media type of the result
+	 * @return upload id or {@code null} if the broker does not support resumable uploads
+	 * @throws IOException communication failure
+	 */
+	public String createResultUpload(int requestId, String contentType) throws IOException {
+		HttpRequest req = createAggregatorRequest("my/request/"+requestId+"/result/upload")
+				.header(CONTENT_TYPE_HEADER, contentType)
+				.POST(BodyPublishers.noBody())
+				.build();
+		HttpResponse<String> resp = sendRequest(req, BodyHandlers.ofString());
+		if( resp.statusCode() == HTTP_STATUS_404_NOT_FOUND || resp.statusCode() == HTTP_STATUS_405_METHOD_NOT_ALLOWED ) {
+			// older broker versions
+			return null;
+		}else if( resp.statusCode() != HTTP_STATUS_201_CREATED ) {
+			throw new HttpStatusException(resp.statusCode(), "Unexpected HTTP response code "+resp.statusCode()+" instead of "+HTTP_STATUS_201_CREATED);
+		}
+		return resp.body().trim();
+	}
+	private HttpRequest.Builder createRequestForResultUpload(int requestId, String uploadId) throws IOException{
+		return createAggregatorRequest("my/request/"+requestId+"/result/upload/"+URLEncoder.encode(uploadId, StandardCharsets.UTF_8));
+	}
+	private static long parseUploadOffset(HttpResponse<?> resp) throws IOException{
+		String offset = resp.headers().firstValue(UPLOAD_OFFSET_HEADER).orElseThrow( () -> new IOException("Response header "+UPLOAD_OFFSET_HEADER+" missing") );
+		try {
+			return Long.parseLong(offset);
+		}catch( NumberFormatException e ) {
+			throw new IOException("Invalid response header "+UPLOAD_OFFSET_HEADER+": "+offset, e);
+		}
+	}
+	/**
+	 * Get the number of bytes received by the broker for a resumable upload
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @return number of received bytes or {@code -1} if the upload does not exist, e.g. because it was completed or expired
+	 * @throws IOException communication failure
+	 */
+	public long getResultUploadOffset(int requestId, String uploadId) throws IOException {
+		HttpRequest req = createRequestForResultUpload(requestId, uploadId)
+				.method("HEAD", BodyPublishers.noBody())
+				.build();
+		HttpResponse<Void> resp = sendRequest(req, BodyHandlers.discarding());
+		if( resp.statusCode() == HTTP_STATUS_404_NOT_FOUND ) {
+			return -1;
+		}else if( resp.statusCode() != 200 ) {
+			throw new HttpStatusException(resp.statusCode(), "Unexpected HTTP response code "+resp.statusCode());
+		}
+		return parseUploadOffset(resp);
+	}
+	/**
+	 * Append a chunk of data to a resumable upload.
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @param offset position of the first byte of the chunk, must match the number of bytes received by the broker
+	 * @param data buffer containing the chunk
+	 * @param start index of the first byte in the buffer
+	 * @param length number of bytes
+	 * @return number of bytes received by the broker. If the offset did not match, the chunk was rejected
+	 *  and the returned number is different from {@code offset+length}.
+	 * @throws IOException communication failure
+	 */
+	public long appendResultUpload(int requestId, String uploadId, long offset, byte[] data, int start, int length) throws IOException {
+		HttpRequest req = createRequestForResultUpload(requestId, uploadId)
+				.header(CONTENT_TYPE_HEADER, "application/offset+octet-stream")
+				.header(UPLOAD_OFFSET_HEADER, Long.toString(offset))
+				.method("PATCH", BodyPublishers.ofByteArray(data, start, length))
+				.build();
+		HttpResponse<Void> resp = sendRequest(req, BodyHandlers.discarding());
+		if( resp.statusCode() != HTTP_STATUS_204_NO_CONTENT && resp.statusCode() != HTTP_STATUS_409_CONFLICT ) {
+			throw new HttpStatusException(resp.statusCode(), "Unexpected HTTP response code "+resp.statusCode()+" instead of "+HTTP_STATUS_204_NO_CONTENT);
+		}
+		return parseUploadOffset(resp);
+	}
+	/**
+	 * Complete a resumable upload. The broker verifies the digest and stores
+	 * the received data as result. The upload is removed afterwards, also if the digest did not match.
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @param sha256 SHA-256 digest of the complete result data
+	 * @throws IOException communication failure or digest mismatch
+	 */
+	public void completeResultUpload(int requestId, String uploadId, byte[] sha256) throws IOException {
+		HttpRequest req = createRequestForResultUpload(requestId, uploadId)
+				.header("Digest", "sha-256="+Base64.getEncoder().encodeToString(sha256))
+				.POST(BodyPublishers.noBody())
+				.build();
+		sendAndExpectStatus(req, HTTP_STATUS_204_NO_CONTENT);
+	}
+	/**
+	 * Abort a resumable upload
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @throws IOException communication failure
+	 */
+	public void deleteResultUpload(int requestId, String uploadId) throws IOException {
+		HttpRequest req = createRequestForResultUpload(requestId, uploadId).DELETE().build();
+		HttpResponse<Void> resp = sendRequest(req, BodyHandlers.discarding());
+		if( resp.statusCode() != HTTP_STATUS_204_NO_CONTENT && resp.statusCode() != HTTP_STATUS_404_NOT_FOUND ) {
+			throw new HttpStatusException(resp.statusCode(), "Unexpected HTTP response code "+resp.statusCode()+" instead of "+HTTP_STATUS_204_NO_CONTENT);
+		}
+	}
+
+	/**
+	 * Submit a result via resumable upload. The data is sent in chunks of {@link #getUploadChunkSize()} bytes.
+	 * If the transfer fails, it is resumed after {@link #getUploadRetryMillis()} at the offset reported
+	 * by the broker, up to {@link #getUploadRetries()} times. For each attempt, the result source is opened again
+	 * and data already received by the broker is read only for calculating the digest.
+	 * <p>
+	 * Only connection failures, server errors (5xx) and offset mismatches (409) are retried.
+	 * Other responses, e.g. a rejected digest or missing permissions, fail immediately
+	 * with a {@link HttpStatusException}.
+	 * </p>
+	 * <p>
+	 * Brokers not supporting resumable uploads receive the result in a single request.
+	 * </p>
+	 * @param requestId request id
+	 * @param contentType media type of the result
+	 * @param source result data
+	 * @throws HttpStatusException unexpected response which is not retried
+	 * @throws IOException communication failure after the last retry
+	 */
+	public void putRequestResultResumable(int requestId, String contentType, ResultSource source) throws IOException {
+		String uploadId = null;
+		IOException failure = null;
+		for( int attempt=0; attempt<=uploadRetries; attempt++ ) {
+			if( attempt > 0 ) {
+				log.log(Level.INFO, "Resuming result upload for request {0} in {1}ms after failure: {2}", new Object[] {requestId, uploadRetryMillis, failure.toString()});
+				try {
+					Thread.sleep(uploadRetryMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw failure;
+				}
+			}
+			try {
+				long offset = -1;
+				if( uploadId != null ) {
+					offset = getResultUploadOffset(requestId, uploadId);
+				}
+				if( offset == -1 ) {
+					// first attempt or upload removed by the broker, e.g. after expiry
+					uploadId = createResultUpload(requestId, contentType);
+					offset = 0;
+					if( uploadId == null ) {
+						try( InputStream in = source.open() ){
+							putRequestResult(requestId, contentType, in);
+						}
+						return;
+					}
+				}
+				byte[] sha256 = uploadResultChunks(requestId, uploadId, offset, source);
+				completeResultUpload(requestId, uploadId, sha256);
+				return;
+			}catch( IOException e ) {
+				if( !isRetryableUploadFailure(e) ) {
+					if( failure != null ) {
+						e.addSuppressed(failure);
+					}
+					throw e;
+				}
+				if( failure == null ) {
+					failure = e;
+				}else {
+					failure.addSuppressed(e);
+				}
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Whether a failed result upload should be resumed
+	 * @param e failure
+	 * @return {@code true} for connection failures, server errors and offset mismatches
+	 */
+	private static boolean isRetryableUploadFailure(IOException e) {
+		if( e instanceof HttpStatusException ) {
+			int status = ((HttpStatusException)e).getStatusCode();
+			return status >= 500 || status == HTTP_STATUS_409_CONFLICT;
+		}
+		return true;
+	}
+
+	private byte[] uploadResultChunks(int requestId, String uploadId, long offset, ResultSource source) throws IOException{
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("message digest not available", e);
+		}
+		byte[] buffer = new byte[uploadChunkSize];
+		long pos = 0;
+		try( InputStream in = new DigestInputStream(source.open(), md) ){
+			int n;
+			while( (n = in.readNBytes(buffer, 0, buffer.length)) > 0 ) {
+				long end = pos + n;
+				if( end > offset ) {
+					// skip bytes already received by the broker
+					int skip = (int)Math.max(0, offset - pos);
+					long received = appendResultUpload(requestId, uploadId, pos+skip, buffer, skip, n-skip);
+					if( received != end ) {
+						throw new HttpStatusException(HTTP_STATUS_409_CONFLICT, "Broker received "+received+" bytes instead of "+end);
+					}
+					offset = end;
+				}
+				pos = end;
+			}
+		}
+		if( pos < offset ) {
+			throw new IOException("Result data shorter than already uploaded");
+		}
+		return md.digest();
+	}
+
 	@Override
 	public void postRequestStatus(int requestId, RequestStatus status) throws IOException {
 		postRequestStatus(requestId, status, null, null);	
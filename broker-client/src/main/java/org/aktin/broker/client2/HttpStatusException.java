@@ -0,0 +1,24 @@
+package org.aktin.broker.client2;
+
+import java.io.IOException;
+
+import lombok.Getter;
+
+/**
+ * The broker answered with an unexpected HTTP status code.
+ * In contrast to other {@link IOException}s, the request was received
+ * and processed by the broker.
+ */
+public class HttpStatusException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public HttpStatusException(int statusCode, String message) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+	/** HTTP status code of the response */
+	@Getter
+	private int statusCode;
+
+}
@@ -3,4 +3,10 @@ package org.aktin.broker.client2;
 public interface NotificationListener {
 	void onWebsocketClosed(int statusCode);
 	default void onPong(String msg) {};
+	/**
+	 * Called after reconnecting with resumed notifications, if notifications
+	 * were missed and are no longer available from the server. The current
+	 * state should be polled.
+	 */
+	default void onNotificationsMissed() {};
 }
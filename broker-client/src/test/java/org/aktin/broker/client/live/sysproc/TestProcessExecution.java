@@ -4,7 +4,6 @@ import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -172,7 +171,7 @@ public class TestProcessExecution {
 		exec.setClient(client);
 		exec.run();
 		
-		Mockito.verify(client, Mockito.times(1)).putRequestResult(Mockito.eq(requestId), Mockito.eq(resultType), Mockito.any(InputStream.class));
+		Mockito.verify(client, Mockito.times(1)).putRequestResultResumable(Mockito.eq(requestId), Mockito.eq(resultType), Mockito.any());
 		Assertions.assertFalse(exec.isRunning());
 		Assertions.assertFalse(exec.isFailed());
 		Assertions.assertNull(exec.getCause());
@@ -2,6 +2,7 @@ package org.aktin.broker;
 
 import org.aktin.broker.auth.AuthenticationRequestFilter;
 import org.aktin.broker.auth.AuthorizationRequestFilter;
+import org.aktin.broker.rest.AdminEventStreamEndpoint;
 import org.aktin.broker.rest.AggregatorEndpoint;
 import org.aktin.broker.rest.BrokerStatusEndpoint;
 import org.aktin.broker.rest.DownloadEndpoint;
@@ -21,7 +22,8 @@ public class Broker {
 		NodeInfoEndpoint.class,
 		AggregatorEndpoint.class,
 		ExportEndpoint.class,
-		DownloadEndpoint.class
+		DownloadEndpoint.class,
+		AdminEventStreamEndpoint.class
 	};
 	public static final Class<?>[] WEBSOCKETS = new Class<?>[]{
 		MyBrokerWebsocket.class,
@@ -5,9 +5,21 @@ import java.io.Flushable;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.annotation.PreDestroy;
@@ -17,25 +29,110 @@ import javax.inject.Singleton;
 import org.aktin.broker.db.BrokerBackend;
 import org.aktin.broker.server.auth.AuthInfo;
 import org.aktin.broker.server.auth.AuthRole;
+import org.aktin.broker.websocket.MyBrokerWebsocket;
 import org.aktin.broker.xml.Node;
 
 
 /**
  * In memory cache for user objects which also has manages a last-contact timestamp.
-
+ * <p>
+ * Principals are reloaded from the backend after a time to live and the number of
+ * cached principals is limited. Concurrent requests for the same user which is not
+ * cached are combined into a single backend access.
+ * </p>
+ * <p>
+ * Last-contact timestamps are written to the database by {@link #flush()}. For
+ * durability, a periodic write-behind flush can be enabled via {@link #startFlusher(long)}.
+ * Only timestamps which changed since the previous flush are written.
+ * </p>
+ * <p>
+ * If multiple broker instances share the database, see {@link #setSharedInstance(String, long)},
+ * each flush also writes the nodes with open websocket connections to this instance. The
+ * online status and last contact of nodes is then aggregated across all instances, while
+ * this cache serves as local near-cache.
+ * </p>
  * @author R.W.Majeed
  *
  */
 @Singleton
 public class AuthCache implements Flushable, Closeable{
 	private static final Logger log = Logger.getLogger(AuthCache.class.getName());
+	/** default time to live for cached principals, 15 minutes */
+	public static final long DEFAULT_TTL_MILLIS = 15*60*1000;
+	/** default maximum number of cached principals */
+	public static final int DEFAULT_MAX_SIZE = 10000;
 
-	private Map<String, Principal> cache;
+	private ConcurrentHashMap<String, Entry> cache;
+	/** last contact timestamps of evicted principals which were not yet written */
+	private ConcurrentHashMap<Integer, Long> evictedTimestamps;
+	private Object evictionLock;
+	private volatile long ttlMillis;
+	private volatile int maxSize;
 
 	private BrokerBackend backend;
 
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong loadFailures;
+	private AtomicLong loadNanosTotal;
+	private AtomicLong evictions;
+
+	/** instance id if the database is shared with other broker instances */
+	private volatile String sharedInstanceId;
+	private volatile long sharedTimeoutMillis;
+
+	private ScheduledExecutorService flusher;
+	private AtomicLong flushCount;
+	private AtomicLong flushFailures;
+	private AtomicLong flushedTimestamps;
+	private AtomicLong flushMillisTotal;
+	private volatile long flushMillisLast;
+	private volatile long flushMillisMax;
+
+	/**
+	 * Cache entry. The principal future is completed by the thread
+	 * which loads the principal, other threads wait for completion.
+	 */
+	private static class Entry{
+		final CompletableFuture<Principal> principal;
+		/** expired principal which is replaced by this entry */
+		Principal previous;
+		volatile long loaded;
+
+		Entry(Principal previous){
+			this.principal = new CompletableFuture<>();
+			this.previous = previous;
+		}
+		/**
+		 * Get the principal, if loaded successfully
+		 * @return principal or {@code null} if not loaded or loading failed
+		 */
+		Principal getLoaded() {
+			if( principal.isDone() && !principal.isCompletedExceptionally() ) {
+				return principal.join();
+			}
+			return null;
+		}
+		boolean isExpired(long now, long ttl) {
+			return ttl > 0 && getLoaded() != null && now - loaded > ttl;
+		}
+	}
+
 	public AuthCache(){
-		cache = new HashMap<>();
+		cache = new ConcurrentHashMap<>();
+		evictedTimestamps = new ConcurrentHashMap<>();
+		evictionLock = new Object();
+		ttlMillis = DEFAULT_TTL_MILLIS;
+		maxSize = DEFAULT_MAX_SIZE;
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		loadFailures = new AtomicLong();
+		loadNanosTotal = new AtomicLong();
+		evictions = new AtomicLong();
+		flushCount = new AtomicLong();
+		flushFailures = new AtomicLong();
+		flushedTimestamps = new AtomicLong();
+		flushMillisTotal = new AtomicLong();
 	}
 	/**
 	 * CDI constructor
@@ -50,6 +147,34 @@ public class AuthCache implements Flushable, Closeable{
 		this.backend = backend;
 	}
 
+	/**
+	 * Set the time after which cached principals are reloaded from the backend.
+	 * @param millis time to live in milliseconds, zero or less to keep principals forever
+	 */
+	public void setTimeToLive(long millis) {
+		this.ttlMillis = millis;
+	}
+	/**
+	 * Set the maximum number of cached principals. Principals with
+	 * open websocket connections are not evicted.
+	 * @param maxSize maximum size, zero or less for no limit
+	 */
+	public void setMaximumSize(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Share the websocket status of nodes with other broker instances using the same
+	 * database. Requires periodic flushes, see {@link #startFlusher(long)}.
+	 * @param instanceId unique id of this broker instance
+	 * @param timeoutMillis time after which the entries of instances without flush are ignored.
+	 *  Should be a multiple of the flush interval.
+	 */
+	public void setSharedInstance(String instanceId, long timeoutMillis) {
+		this.sharedTimeoutMillis = timeoutMillis;
+		this.sharedInstanceId = instanceId;
+	}
+
 	private boolean isNodePrincipal(AuthInfo info) {
 		if( info.getRoles().contains(AuthRole.NODE_READ) || info.getRoles().contains(AuthRole.NODE_WRITE) ) {
 			return true;
@@ -57,93 +182,380 @@ public class AuthCache implements Flushable, Closeable{
 			return false;
 		}
 	}
+
+	private void load(String key, Entry entry, AuthInfo info) {
+		long start = System.nanoTime();
+		try {
+			Principal p;
+			if( isNodePrincipal(info) ) {
+				// register node with backend
+				p = backend.accessPrincipal(info);
+			}else {
+				// admin user. just cache the information without registering with backend
+				p = Principal.createAdminPrincipal(info);
+			}
+			if( entry.previous != null ) {
+				p.inheritState(entry.previous);
+				entry.previous = null;
+			}
+			p.updateLastAccessed();
+			entry.loaded = System.currentTimeMillis();
+			entry.principal.complete(p);
+		}catch( SQLException | RuntimeException e ) {
+			loadFailures.incrementAndGet();
+			// allow retry by the next request
+			cache.remove(key, entry);
+			entry.principal.completeExceptionally(e);
+		}catch( Throwable e ) {
+			// errors must not leave waiting threads blocked
+			loadFailures.incrementAndGet();
+			cache.remove(key, entry);
+			entry.principal.completeExceptionally(e);
+			throw e;
+		}finally {
+			loadNanosTotal.addAndGet(System.nanoTime() - start);
+		}
+	}
+
 	/**
 	 * Retrieve a {@link Principal} user object for a client node.
 	 * @param info authentication info
 	 * @return user object
-	 * @throws SQLException 
+	 * @throws IOException backend failure during principal retrieval
 	 */
 	public Principal getPrincipal(AuthInfo info) throws IOException{
 		Objects.requireNonNull(info);
 		Objects.requireNonNull(info.getClientDN());
 		Objects.requireNonNull(info.getUserId());
-		Principal p = cache.get(info.getUserId());
-		if( p == null ){
-			// principal not cached previously
-			if( isNodePrincipal(info) ) {
-				// register node with backend				
-				try {
-					p = backend.accessPrincipal(info);
-				} catch (SQLException e) {
-					throw new IOException("SQL error during principal retrieval for node "+info.getUserId(), e);
+		String key = info.getUserId();
+		long now = System.currentTimeMillis();
+		Entry entry;
+		boolean loader = false;
+		while( true ) {
+			entry = cache.get(key);
+			if( entry == null ) {
+				// principal not cached previously
+				Entry created = new Entry(null);
+				entry = cache.putIfAbsent(key, created);
+				if( entry == null ) {
+					entry = created;
+					loader = true;
 				}
-			}else {
-				// admin user. just cache the information without registering with backend
-				p = Principal.createAdminPrincipal(info);
+			}else if( entry.isExpired(now, ttlMillis) ) {
+				// reload principal, state of the expired principal is carried over
+				Entry created = new Entry(entry.getLoaded());
+				if( !cache.replace(key, entry, created) ) {
+					// replaced concurrently, try again
+					continue;
+				}
+				entry = created;
+				loader = true;
 			}
-			cache.put(info.getUserId(), p);
-		}else{
-			; // TODO check if client DN changed. If so, log warning and update the client DN
+			break;
+		}
+		if( loader ) {
+			misses.incrementAndGet();
+			load(key, entry, info);
+		}else {
+			hits.incrementAndGet();
 		}
+		Principal p;
+		try {
+			p = entry.principal.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for principal retrieval for "+key, e);
+		} catch (ExecutionException e) {
+			throw new IOException("SQL error during principal retrieval for node "+key, e.getCause());
+		}
+		// TODO check if client DN changed. If so, log warning and update the client DN
 		p.updateLastAccessed();
+		if( loader ) {
+			evictIfNecessary();
+		}
 		return p;
 	}
 
 	/**
-	 * Get the cached last contact timestamp. If the node did not have contact 
+	 * Remove the least recently accessed principals if the maximum size is exceeded.
+	 * Removes a tenth of the maximum size at once to avoid scanning the cache
+	 * for every new principal.
+	 */
+	private void evictIfNecessary() {
+		int max = maxSize;
+		if( max <= 0 || cache.size() <= max ) {
+			return;
+		}
+		synchronized( evictionLock ) {
+			int excess = cache.size() - max;
+			if( excess <= 0 ) {
+				return;
+			}
+			List<Map.Entry<String, Entry>> candidates = new ArrayList<>();
+			for( Map.Entry<String, Entry> e : cache.entrySet() ) {
+				Principal p = e.getValue().getLoaded();
+				if( p != null && p.getWebsocketCount() == 0 ) {
+					candidates.add(e);
+				}
+			}
+			candidates.sort(Comparator.comparingLong(e -> e.getValue().getLoaded().getLastAccessed()));
+			int count = Math.min(candidates.size(), excess + max/10);
+			for( int i=0; i<count; i++ ) {
+				Map.Entry<String, Entry> e = candidates.get(i);
+				if( cache.remove(e.getKey(), e.getValue()) ) {
+					Principal p = e.getValue().getLoaded();
+					if( p.isNode() && p.isLastAccessedDirty() ) {
+						// keep timestamp for the next flush
+						evictedTimestamps.merge(p.getNodeId(), p.getLastAccessed(), Math::max);
+					}
+					evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	private static void updateLastContact(Node node, long timestamp) {
+		// the database may contain a newer timestamp written by another instance
+		if( node.lastContact == null || node.lastContact.toEpochMilli() < timestamp ) {
+			node.lastContact = Instant.ofEpochMilli(timestamp);
+		}
+	}
+
+	/**
+	 * Nodes with websocket connections to other broker instances
+	 * @return nodes with round trip times indexed by node id, empty if the database is not shared
+	 */
+	private Map<Integer, Node> loadSharedWebsockets(){
+		if( sharedInstanceId == null ) {
+			return Collections.emptyMap();
+		}
+		try {
+			return backend.loadNodeWebsockets(Instant.now().minusMillis(sharedTimeoutMillis));
+		} catch (SQLException e) {
+			log.log(Level.WARNING, "Unable to load websocket status of other broker instances", e);
+			return Collections.emptyMap();
+		}
+	}
+
+	private static void copyRoundTripTimes(Node from, Node to) {
+		to.websocketRttMedian = from.websocketRttMedian;
+		to.websocketRtt95 = from.websocketRtt95;
+		to.websocketRtt99 = from.websocketRtt99;
+	}
+
+	/**
+	 * Get the cached last contact timestamp. If the node did not have contact
 	 * since server startup, the node's timestamp will not be modified.
+	 * If the database is shared, the websocket status and round trip times
+	 * reported by all broker instances are filled as well.
 	 * @param nodes nodes to update the timestamp
 	 */
 	public void fillCachedAccessTimestamps(Iterable<Node> nodes){
+		Map<Integer, Node> shared = loadSharedWebsockets();
 		Map<Integer,Principal> lookup = new HashMap<>();
 		// retrieve list cached principals which have been authenticated since startup
-		for( Principal p : cache.values() ){
-			//timestamps.put(p.getNodeId(), p.getLastAccessed());
-			if( p.isNode() ) {
-				lookup.put(p.getNodeId(), p);				
+		for( Entry e : cache.values() ){
+			Principal p = e.getLoaded();
+			if( p != null && p.isNode() ) {
+				lookup.put(p.getNodeId(), p);
 			}
 		}
 		for( Node node : nodes ){
 			Principal p = lookup.get(node.id);
 			if( p == null ) {
 				// cached access information not available
+				Long ts = evictedTimestamps.get(node.id);
+				if( ts != null ) {
+					updateLastContact(node, ts);
+				}
+				if( shared.containsKey(node.id) ) {
+					node.websocket = true;
+					copyRoundTripTimes(shared.get(node.id), node);
+				}
 				continue;
 			}
-			Long ts = p.getLastAccessed();
-			if( ts != null ){
-				// timesta mp not available
-				node.lastContact = Instant.ofEpochMilli(ts);
+			updateLastContact(node, p.getLastAccessed());
+			node.websocket = (p.getWebsocketCount() > 0) || shared.containsKey(node.id);
+			if( shared.containsKey(node.id) ) {
+				copyRoundTripTimes(shared.get(node.id), node);
 			}
-			node.websocket = (p.getWebsocketCount() > 0);
 		}
 	}
-	// TODO also flush sometimes before close, e.g. using timer
+	/**
+	 * Periodically write changed last-contact timestamps to the database.
+	 * @param intervalMillis flush interval in milliseconds
+	 */
+	public synchronized void startFlusher(long intervalMillis) {
+		if( flusher != null ) {
+			throw new IllegalStateException("Flusher already started");
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor( r -> {
+			Thread t = new Thread(r, "auth-cache-flush");
+			t.setDaemon(true);
+			return t;
+		});
+		flusher.scheduleWithFixedDelay(() -> {
+			try {
+				flush();
+			}catch( IOException e ) {
+				log.log(Level.WARNING, "Periodic flush of last contact timestamps failed", e);
+			}
+		}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		log.info("Flushing last contact timestamps every "+intervalMillis+"ms");
+	}
 
+	/**
+	 * Write all last-contact timestamps which changed since the previous
+	 * flush to the database.
+	 */
 	@PreDestroy
 	@Override
-	public void flush() throws IOException {
-		// collect last accessed timestamps
-		log.info("flushing");
-		Map<Integer,Long> timestamps = new HashMap<>();
-		
-		for( Principal p : cache.values() ){
-			if( p.isNode() ) {
-				timestamps.put(p.getNodeId(), p.getLastAccessed());
+	public synchronized void flush() throws IOException {
+		long start = System.currentTimeMillis();
+		if( sharedInstanceId != null ) {
+			flushWebsockets();
+		}
+		// collect changed last accessed timestamps
+		List<Principal> dirty = new ArrayList<>();
+		List<Long> snapshot = new ArrayList<>();
+		Map<Integer,Long> evicted = new HashMap<>(evictedTimestamps);
+		Map<Integer,Long> timestamps = new HashMap<>(evicted);
+		for( Entry e : cache.values() ){
+			Principal p = e.getLoaded();
+			if( p != null && p.isNode() && p.isLastAccessedDirty() ) {
+				long ts = p.getLastAccessed();
+				dirty.add(p);
+				snapshot.add(ts);
+				timestamps.merge(p.getNodeId(), ts, Math::max);
 			}
 		}
-
-		// convert to arrays
+		if( timestamps.isEmpty() ) {
+			return;
+		}
 		// write last accessed timestamps to database
 		try {
 			backend.updateNodeLastSeen(timestamps);
 		} catch (SQLException e) {
+			flushFailures.incrementAndGet();
+			throw new IOException(e);
+		}
+		// timestamps updated during the flush remain dirty
+		for( int i=0; i<dirty.size(); i++ ) {
+			dirty.get(i).setLastAccessedPersisted(snapshot.get(i));
+		}
+		for( Map.Entry<Integer, Long> e : evicted.entrySet() ) {
+			evictedTimestamps.remove(e.getKey(), e.getValue());
+		}
+		long millis = System.currentTimeMillis() - start;
+		flushCount.incrementAndGet();
+		flushedTimestamps.addAndGet(timestamps.size());
+		flushMillisTotal.addAndGet(millis);
+		flushMillisLast = millis;
+		flushMillisMax = Math.max(flushMillisMax, millis);
+		log.fine("Flushed "+timestamps.size()+" last contact timestamps in "+millis+"ms");
+	}
+	/**
+	 * Write the nodes with open websocket connections to this instance
+	 * and their round trip times
+	 * @throws IOException database error
+	 */
+	private void flushWebsockets() throws IOException {
+		Map<Integer, Node> connected = new HashMap<>();
+		for( Entry e : cache.values() ){
+			Principal p = e.getLoaded();
+			if( p != null && p.isNode() && p.getWebsocketCount() > 0 ) {
+				connected.computeIfAbsent(p.getNodeId(), id -> new Node(id, null, null));
+			}
+		}
+		MyBrokerWebsocket.fillRoundTripTimes(connected.values());
+		try {
+			backend.updateNodeWebsockets(sharedInstanceId, connected.values(), Instant.now());
+		} catch (SQLException e) {
+			flushFailures.incrementAndGet();
 			throw new IOException(e);
 		}
 	}
 	@Override
 	public void close() throws IOException {
 		log.info("performing close");
+		synchronized( this ) {
+			if( flusher != null ) {
+				flusher.shutdown();
+				flusher = null;
+			}
+		}
 		flush();
+		String instanceId = sharedInstanceId;
+		if( instanceId != null ) {
+			// connections to this instance are closed
+			try {
+				backend.updateNodeWebsockets(instanceId, Collections.emptyList(), Instant.now());
+			} catch (SQLException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Number of cached principals, including principals which are currently loaded
+	 * @return size
+	 */
+	public int size() {
+		return cache.size();
+	}
+	/**
+	 * Number of principal retrievals served from the cache. Includes
+	 * requests which waited for a concurrent load of the same principal.
+	 * @return count
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+	/**
+	 * Number of principal retrievals which required loading the principal
+	 * @return count
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+	public long getLoadFailureCount() {
+		return loadFailures.get();
+	}
+	/**
+	 * Total time spent loading principals
+	 * @return time in nanoseconds
+	 */
+	public long getLoadNanosTotal() {
+		return loadNanosTotal.get();
+	}
+	public long getEvictionCount() {
+		return evictions.get();
 	}
 
+	/**
+	 * Number of flushes which wrote at least one timestamp
+	 * @return count
+	 */
+	public long getFlushCount() {
+		return flushCount.get();
+	}
+	public long getFlushFailures() {
+		return flushFailures.get();
+	}
+	/**
+	 * Total number of timestamps written to the database
+	 * @return count
+	 */
+	public long getFlushedTimestamps() {
+		return flushedTimestamps.get();
+	}
+	public long getFlushMillisTotal() {
+		return flushMillisTotal.get();
+	}
+	public long getFlushMillisLast() {
+		return flushMillisLast;
+	}
+	public long getFlushMillisMax() {
+		return flushMillisMax;
+	}
 }
@@ -7,6 +7,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.function.BiConsumer;
 
+import javax.sql.DataSource;
+
 import org.aktin.broker.server.auth.AbstractAuthProvider;
 import org.aktin.broker.server.auth.AuthProvider;
 import org.aktin.broker.server.auth.HeaderAuthentication;
@@ -37,6 +39,10 @@ public class CascadedAuthProvider extends AbstractAuthProvider{
 		}
 	}
 	@Override
+	public void setSharedDatabase(DataSource ds) {
+		providers.forEach(p -> p.setSharedDatabase(ds));
+	}
+	@Override
 	public Class<?>[] getEndpoints() {
 		final ArrayList<Class<?>> endpoints = new ArrayList<Class<?>>();
 		providers.forEach( p -> endpoints.addAll(Arrays.asList(p.getEndpoints())) );
@@ -1,6 +1,7 @@
 package org.aktin.broker.auth;
 
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.core.SecurityContext;
 
@@ -17,8 +18,11 @@ public class Principal implements java.security.Principal, SecurityContext{
 	/** distinguished name. Client information a la X.509/LDAP/etc. Should contain at least CN=display name **/
 	private String clientDn;
 	private Set<AuthRole> roles;
-	private long lastAccessed;
-	private int websocketConnections;
+	private volatile long lastAccessed;
+	/** last accessed timestamp which was written to the database */
+	private volatile long lastPersisted;
+	/** shared with reloaded principals for the same user, see {@link #inheritState(Principal)} */
+	private AtomicInteger websocketConnections;
 	
 	/**
 	 * Constructor for node principal.
@@ -33,7 +37,7 @@ public class Principal implements java.security.Principal, SecurityContext{
 	private Principal(AuthInfo info) {
 		this.clientDn = info.getClientDN();
 		this.roles = info.getRoles();
-		this.websocketConnections = 0;
+		this.websocketConnections = new AtomicInteger();
 		// TODO load client DN correctly
 		if( clientDn != null && clientDn.startsWith("CN=") ){
 			int e = clientDn.indexOf(',');
@@ -133,14 +137,42 @@ public class Principal implements java.security.Principal, SecurityContext{
 		return this.lastAccessed;
 	}
 
+	/**
+	 * Determine whether the last accessed timestamp changed since
+	 * it was last written to the database.
+	 * @return {@code true} if the timestamp needs to be written
+	 */
+	boolean isLastAccessedDirty() {
+		return lastAccessed != lastPersisted;
+	}
+	/**
+	 * Mark the last accessed timestamp as written to the database
+	 * @param timestamp timestamp which was written
+	 */
+	void setLastAccessedPersisted(long timestamp) {
+		this.lastPersisted = timestamp;
+	}
+
 	public void incrementWebsocketCount() {
-		this.websocketConnections ++;
+		this.websocketConnections.incrementAndGet();
 	}
 	public void decrementWebsocketCount() {
-		this.websocketConnections --;
+		this.websocketConnections.decrementAndGet();
 	}
 	public int getWebsocketCount() {
-		return this.websocketConnections;
+		return this.websocketConnections.get();
+	}
+
+	/**
+	 * Take over the state of a previous principal object for the same user,
+	 * which was replaced by this principal after reloading. Websocket
+	 * connections registered with the previous principal remain counted.
+	 * @param previous previous principal
+	 */
+	void inheritState(Principal previous) {
+		this.lastAccessed = previous.lastAccessed;
+		this.lastPersisted = previous.lastPersisted;
+		this.websocketConnections = previous.websocketConnections;
 	}
 
 	@Override
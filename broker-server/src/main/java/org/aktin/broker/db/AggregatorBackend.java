@@ -21,5 +21,66 @@ public interface AggregatorBackend extends Aggregator{
 
 	void addOrReplaceResult(int requestId, int nodeId, MediaType mediaType, InputStream content) throws SQLException;
 
+	/**
+	 * Start a resumable upload of a result. The data is appended in chunks
+	 * via {@link #appendResultUpload(String, int, int, long, InputStream)} and
+	 * stored as result by {@link #completeResultUpload(String, int, int, byte[])}.
+	 * @param requestId request id
+	 * @param nodeId node id
+	 * @param mediaType media type of the result
+	 * @return upload id
+	 * @throws SQLException database error
+	 */
+	String createResultUpload(int requestId, int nodeId, MediaType mediaType) throws SQLException;
+
+	/**
+	 * Get the number of bytes received for an upload
+	 * @param uploadId upload id
+	 * @param requestId request id
+	 * @param nodeId node id
+	 * @return number of received bytes or {@code -1} if there is no such upload for the request and node
+	 * @throws SQLException database error
+	 */
+	long getResultUploadOffset(String uploadId, int requestId, int nodeId) throws SQLException;
+
+	/**
+	 * Append data to an upload. If reading the content fails, the data received
+	 * until then is kept and the upload can be resumed at the new offset.
+	 * @param uploadId upload id
+	 * @param requestId request id
+	 * @param nodeId node id
+	 * @param offset offset of the first byte, must equal the number of received bytes
+	 * @param content content, not closed
+	 * @return number of received bytes or {@code -1} if there is no such upload for the request and node
+	 * @throws SQLException database error
+	 * @throws IOException error reading the content or writing the data
+	 * @throws IllegalStateException offset does not match or concurrent append in progress
+	 */
+	long appendResultUpload(String uploadId, int requestId, int nodeId, long offset, InputStream content) throws SQLException, IOException, IllegalStateException;
+
+	/**
+	 * Complete an upload and add or replace the result with the received data.
+	 * The upload is removed, also if the digest does not match.
+	 * @param uploadId upload id
+	 * @param requestId request id
+	 * @param nodeId node id
+	 * @param sha256 expected SHA-256 digest of the complete data
+	 * @return media type of the stored result or {@code null} if there is no such upload for the request and node
+	 * @throws SQLException database error
+	 * @throws IllegalArgumentException digest of the received data does not match
+	 * @throws IllegalStateException concurrent append in progress
+	 */
+	String completeResultUpload(String uploadId, int requestId, int nodeId, byte[] sha256) throws SQLException, IllegalArgumentException, IllegalStateException;
+
+	/**
+	 * Abort an upload and delete the received data
+	 * @param uploadId upload id
+	 * @param requestId request id
+	 * @param nodeId node id
+	 * @return {@code false} if there is no such upload for the request and node
+	 * @throws SQLException database error
+	 */
+	boolean deleteResultUpload(String uploadId, int requestId, int nodeId) throws SQLException;
+
 	boolean isRequestWritable(int requestId, int nodeId);
 }
\ No newline at end of file
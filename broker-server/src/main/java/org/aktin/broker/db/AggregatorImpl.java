@@ -1,20 +1,31 @@
 package org.aktin.broker.db;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
 import java.sql.Timestamp;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 import javax.annotation.Resource;
@@ -22,13 +33,22 @@ import javax.inject.Singleton;
 import javax.sql.DataSource;
 import javax.ws.rs.core.MediaType;
 
-import org.aktin.broker.util.PathDataSource;
+import org.aktin.broker.db.Dbms.Parameter;
+import org.aktin.broker.util.DigestPathDataSource;
 import org.aktin.broker.xml.ResultInfo;
 
 @Singleton
 public class AggregatorImpl implements AggregatorBackend {
+	private static final Logger log = Logger.getLogger(AggregatorImpl.class.getName());
+	private static final String[] RESULT_DIGESTS = new String[]{"SHA-256"};
+	/** file name of resumable uploads in the data directory, distinct from the blob store temporary files */
+	private static final String UPLOAD_PREFIX = "partial-";
+	private static final String UPLOAD_SUFFIX = ".part";
+	private static final long UPLOAD_EXPIRY_MILLIS = 7*24*60*60*1000L;
 	private DataSource ds;
+	private Dbms dbms;
 	private Path dataDir;
+	private final BlobStore blobs = new BlobStore("results");
 
 	public AggregatorImpl() throws IOException{
 		setDataDirectory(Paths.get("aggregator-data"));
@@ -41,9 +61,18 @@ public class AggregatorImpl implements AggregatorBackend {
 
 	public void setDataDirectory(Path dataDir) throws IOException{
 		this.dataDir = dataDir;
+		blobs.setDirectory(dataDir);
 		// create dir if not existing
 		Files.createDirectories(dataDir);
 	}
+	/**
+	 * Store results with compressible media types gzip encoded.
+	 * Results are decoded transparently when read.
+	 * @param compress {@code true} to compress new results
+	 */
+	public void setCompression(boolean compress){
+		blobs.setCompression(compress);
+	}
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.AggregatorBackend#setBrokerDB(javax.sql.DataSource)
 	 */
@@ -51,6 +80,7 @@ public class AggregatorImpl implements AggregatorBackend {
 	@Resource(name="brokerDB")
 	public void setBrokerDB(DataSource ds){
 		this.ds = ds;
+		this.dbms = Dbms.detect(ds);
 	}
 
 	/* (non-Javadoc)
@@ -68,39 +98,6 @@ public class AggregatorImpl implements AggregatorBackend {
 			} );
 		}
 	}
-	private void removeData(String data_file) throws IOException{
-		// we need to delete the file
-		Path file = dataDir.resolve(data_file);
-		Files.delete(file);
-	}
-	private String getFileExtension(MediaType mediaType){
-		if( mediaType.isCompatible(MediaType.APPLICATION_XML_TYPE) ){
-			return ".xml";
-		}else if( mediaType.getType().equals("text") ){
-			return ".txt";
-		}else{
-			return ".bin";
-		}
-	}
-	/**
-	 * Read the provided data and return a filename
-	 * TODO use filename and return size
-	 * @param requestId request id
-	 * @param nodeId node id
-	 * @param mediaType media type
-	 * @param content content
-	 * @return file name
-	 * @throws IOException error
-	 */
-	private String readData(int requestId, int nodeId, MediaType mediaType, InputStream content) throws IOException{
-		// for the prototype, always write to file
-		String name = "result-"+requestId+"-"+nodeId+getFileExtension(mediaType);
-		Path file = dataDir.resolve(name);
-		//
-		Files.copy(content, file);
-		return name;
-	}
-
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.AggregatorBackend#listResults(int)
 	 */
@@ -108,10 +105,11 @@ public class AggregatorImpl implements AggregatorBackend {
 	public List<ResultInfo> listResults(int requestId) throws SQLException{
 		List<ResultInfo> list = new ArrayList<>();
 		try( Connection dbc = ds.getConnection(); 
-				Statement st = dbc.createStatement() ){
+				PreparedStatement ps = dbc.prepareStatement("SELECT node_id, media_type FROM request_node_results WHERE request_id=?") ){
 			dbc.setReadOnly(true);
 			// find is result is already present
-			ResultSet rs = st.executeQuery("SELECT node_id, media_type FROM request_node_results WHERE request_id="+requestId);
+			ps.setInt(1, requestId);
+			ResultSet rs = ps.executeQuery();
 			// compile list
 			while( rs.next() ){
 				list.add(new ResultInfo(rs.getInt(1), rs.getString(2)));
@@ -124,15 +122,22 @@ public class AggregatorImpl implements AggregatorBackend {
 	 * @see org.aktin.broker.db.AggregatorBackend#getResult(int, int)
 	 */
 	@Override
-	public PathDataSource getResult(int requestId, int nodeId) throws SQLException{
-		PathDataSource data;
+	public DigestPathDataSource getResult(int requestId, int nodeId) throws SQLException{
+		DigestPathDataSource data;
 		try( Connection dbc = ds.getConnection(); 
-				Statement st = dbc.createStatement() ){
+				PreparedStatement ps = dbc.prepareStatement("SELECT r.media_type, r.last_modified, r.data_file, r.data_sha2, b.content_encoding, b.data_size FROM request_node_results r LEFT JOIN blobs b ON b.store=? AND b.digest=r.data_file WHERE r.request_id=? AND r.node_id=?") ){
 			// find is result is already present
-			ResultSet rs = st.executeQuery("SELECT media_type, last_modified, data_file FROM request_node_results WHERE request_id="+requestId+" AND node_id="+nodeId);
+			ps.setString(1, blobs.getName());
+			ps.setInt(2, requestId);
+			ps.setInt(3, nodeId);
+			ResultSet rs = ps.executeQuery();
 			if( rs.next() ){
 				Timestamp ts = rs.getTimestamp(2);
-				data = new PathDataSource(dataDir.resolve(rs.getString(3)), rs.getString(1), ts.toInstant());
+				data = new DigestPathDataSource(blobs.resolve(rs.getString(3)), rs.getString(1), ts.toInstant());
+				// not available for results received by previous versions
+				data.sha256 = rs.getBytes(4);
+				// no blob for results received by previous versions, which are never compressed
+				data.setContentEncoding(rs.getString(5), rs.getLong(6));
 			}else{
 				data = null;
 			}
@@ -145,55 +150,304 @@ public class AggregatorImpl implements AggregatorBackend {
 	 */
 	@Override
 	public void addOrReplaceResult(int requestId, int nodeId, MediaType mediaType, InputStream content) throws SQLException{
+		// receive the data before opening a database connection, slow uploads must not hold connections or locks
+		BlobStore.Blob data;
+		try {
+			data = blobs.receive(content, RESULT_DIGESTS, mediaType);
+		} catch (IOException e) {
+			throw new SQLException("Unable to read supplied data", e);
+		}
+		storeResult(requestId, nodeId, mediaType, data, null);
+	}
+
+	/**
+	 * Reference received data as result for the request and node
+	 * @param requestId request id
+	 * @param nodeId node id
+	 * @param mediaType media type
+	 * @param data received data, the temporary file is always removed
+	 * @param uploadId completed upload to remove within the same transaction, may be {@code null}
+	 * @throws SQLException database error
+	 */
+	private void storeResult(int requestId, int nodeId, MediaType mediaType, BlobStore.Blob data, String uploadId) throws SQLException{
+		String prevFile = null;
 		try( Connection dbc = ds.getConnection();
-				Statement st = dbc.createStatement() ){
+				PreparedStatement st = dbc.prepareStatement("SELECT data_file FROM request_node_results WHERE request_id=? AND node_id=?") ){
 			dbc.setAutoCommit(false);
-			// find is result is already present
-			ResultSet rs = st.executeQuery("SELECT media_type, data_file FROM request_node_results WHERE request_id="+requestId+" AND node_id="+nodeId);
-			String insertOrUpdate;
-			if( rs.next() ){
-				String prevType = rs.getString(1);
-				// remove data file if necessary
-				// TODO log info: replacing prevType
-				Objects.requireNonNull(prevType); // prevent unused code warning
-				try{
-					removeData(rs.getString(2));
-				}catch( IOException e ){
-					// TODO log error
-				}
-				// update data
-				insertOrUpdate = "UPDATE request_node_results SET media_type=?, data_file=?, last_modified=NOW() WHERE request_id=? AND node_id=?";
-			}else{
-				// insert data
-				insertOrUpdate = "INSERT INTO request_node_results (media_type, data_file, request_id, node_id, first_received, last_modified) VALUES(?,?,?,?, NOW(), NOW())";
+			// reference the new data first, identical content might already be referenced by the previous result
+			blobs.store(dbc, dbms, data);
+			// release previous data
+			st.setInt(1, requestId);
+			st.setInt(2, nodeId);
+			ResultSet rs = st.executeQuery();
+			if( rs.next() && rs.getString(1) != null ){
+				prevFile = rs.getString(1);
+				blobs.release(dbc, prevFile);
 			}
 			rs.close();
-			
-			String file;
-			try {
-				file = readData(requestId, nodeId, mediaType, content);
-				content.close();
-			} catch (IOException e) {
-				throw new SQLException("Unable to read supplied data", e);
-			}
-			try( PreparedStatement ps = dbc.prepareStatement(insertOrUpdate) ){
-				ps.setString(1, mediaType.toString());
-				ps.setString(2, file);
-				ps.setInt(3, requestId);
-				ps.setInt(4, nodeId);
-				ps.executeUpdate();
+
+			// insert or update data
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			dbms.upsert(dbc, "request_node_results",
+					new String[] {"request_id","node_id"}, new String[] {"media_type","data_file","data_size","data_sha2","last_modified"}, new String[] {"first_received"},
+					Parameter.ofInt(requestId),
+					Parameter.ofInt(nodeId),
+					Parameter.ofString(mediaType.toString()),
+					Parameter.ofString(data.name),
+					Parameter.ofLong(data.size),
+					Parameter.ofBytes(data.sha256),
+					Parameter.ofTimestamp(now),
+					Parameter.ofTimestamp(now));
+			if( uploadId != null ) {
+				try( PreparedStatement ps = dbc.prepareStatement("DELETE FROM result_uploads WHERE id=?") ){
+					ps.setString(1, uploadId);
+					ps.executeUpdate();
+				}
 			}
 			dbc.commit();
+			if( prevFile != null ){
+				// delete the previous data only after the result points to the new data
+				blobs.purge(dbc, prevFile);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Unable to store supplied data", e);
+		} finally {
+			blobs.discard(data);
+		}
+	}
+
+	private Path getUploadFile(String uploadId) {
+		return dataDir.resolve(UPLOAD_PREFIX+uploadId+UPLOAD_SUFFIX);
+	}
+
+	/**
+	 * Find an upload
+	 * @return media type or {@code null} if there is no such upload for the request and node
+	 */
+	private String findUpload(String uploadId, int requestId, int nodeId) throws SQLException{
+		try( Connection dbc = ds.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("SELECT media_type FROM result_uploads WHERE id=? AND request_id=? AND node_id=?") ){
+			dbc.setReadOnly(true);
+			ps.setString(1, uploadId);
+			ps.setInt(2, requestId);
+			ps.setInt(3, nodeId);
+			try( ResultSet rs = ps.executeQuery() ){
+				return rs.next() ? rs.getString(1) : null;
+			}
+		}
+	}
+
+	/**
+	 * Lock the upload file. The lock is released when the channel is closed.
+	 * @throws IllegalStateException the upload is locked by another append or completion
+	 */
+	private static void lockUpload(FileChannel channel) throws IOException, IllegalStateException{
+		FileLock lock;
+		try {
+			lock = channel.tryLock();
+		}catch( OverlappingFileLockException e ) {
+			// locked by another thread of this instance
+			lock = null;
+		}
+		if( lock == null ) {
+			throw new IllegalStateException("Concurrent access to upload");
+		}
+	}
+
+	@Override
+	public String createResultUpload(int requestId, int nodeId, MediaType mediaType) throws SQLException{
+		String id = UUID.randomUUID().toString();
+		try {
+			Files.createFile(getUploadFile(id));
+		} catch (IOException e) {
+			throw new SQLException("Unable to create upload file", e);
+		}
+		try( Connection dbc = ds.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("INSERT INTO result_uploads(id, request_id, node_id, media_type, created) VALUES(?,?,?,?,?)") ){
+			ps.setString(1, id);
+			ps.setInt(2, requestId);
+			ps.setInt(3, nodeId);
+			ps.setString(4, mediaType.toString());
+			ps.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+			ps.executeUpdate();
+		}
+		return id;
+	}
+
+	@Override
+	public long getResultUploadOffset(String uploadId, int requestId, int nodeId) throws SQLException{
+		if( findUpload(uploadId, requestId, nodeId) == null ) {
+			return -1;
+		}
+		try {
+			return Files.size(getUploadFile(uploadId));
+		} catch (IOException e) {
+			throw new SQLException("Unable to access upload file", e);
+		}
+	}
+
+	@Override
+	public long appendResultUpload(String uploadId, int requestId, int nodeId, long offset, InputStream content) throws SQLException, IOException, IllegalStateException{
+		if( findUpload(uploadId, requestId, nodeId) == null ) {
+			return -1;
+		}
+		// received without holding a database connection
+		try( FileChannel channel = FileChannel.open(getUploadFile(uploadId), StandardOpenOption.WRITE) ){
+			lockUpload(channel);
+			if( findUpload(uploadId, requestId, nodeId) == null ) {
+				// completed or deleted before the lock was acquired
+				return -1;
+			}
+			if( channel.size() != offset ) {
+				throw new IllegalStateException("Offset "+offset+" does not match received length "+channel.size());
+			}
+			channel.position(offset);
+			// data received before an interruption is kept
+			content.transferTo(Channels.newOutputStream(channel));
+			return channel.size();
+		}
+	}
+
+	@Override
+	public String completeResultUpload(String uploadId, int requestId, int nodeId, byte[] sha256) throws SQLException, IllegalArgumentException, IllegalStateException{
+		String type = findUpload(uploadId, requestId, nodeId);
+		if( type == null ) {
+			return null;
+		}
+		MediaType mediaType = MediaType.valueOf(type);
+		Path file = getUploadFile(uploadId);
+		boolean matches;
+		// the lock is held until the upload row is removed, appends in between would not be stored
+		try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE) ){
+			lockUpload(channel);
+			// closing the stream must not close the channel, which would release the lock
+			InputStream in = new FilterInputStream(Channels.newInputStream(channel)) {
+				@Override
+				public void close() {
+				}
+			};
+			// copied to a temporary file of the blob store, compressed if enabled
+			BlobStore.Blob data = blobs.receive(in, RESULT_DIGESTS, mediaType);
+			matches = Arrays.equals(data.sha256, sha256);
+			if( matches ) {
+				storeResult(requestId, nodeId, mediaType, data, uploadId);
+			}else {
+				blobs.discard(data);
+				deleteUploadRow(uploadId, requestId, nodeId);
+			}
+		} catch (IOException e) {
+			throw new SQLException("Unable to read upload data", e);
+		}
+		deleteUploadFile(uploadId);
+		if( !matches ) {
+			throw new IllegalArgumentException("Digest does not match received data");
+		}
+		return type;
+	}
+
+	private int deleteUploadRow(String uploadId, int requestId, int nodeId) throws SQLException{
+		try( Connection dbc = ds.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("DELETE FROM result_uploads WHERE id=? AND request_id=? AND node_id=?") ){
+			ps.setString(1, uploadId);
+			ps.setInt(2, requestId);
+			ps.setInt(3, nodeId);
+			return ps.executeUpdate();
+		}
+	}
+
+	@Override
+	public boolean deleteResultUpload(String uploadId, int requestId, int nodeId) throws SQLException{
+		if( deleteUploadRow(uploadId, requestId, nodeId) == 0 ) {
+			return false;
+		}
+		deleteUploadFile(uploadId);
+		return true;
+	}
+
+	private void deleteUploadFile(String uploadId) {
+		try{
+			Files.deleteIfExists(getUploadFile(uploadId));
+		}catch( IOException e ){
+			log.log(Level.WARNING, "Unable to delete upload data: "+uploadId, e);
+		}
+	}
+
+	/**
+	 * Remove uploads which were neither appended to nor completed
+	 * within {@link #UPLOAD_EXPIRY_MILLIS}.
+	 * @return number of deleted files
+	 */
+	private int removeExpiredUploads() throws SQLException, IOException{
+		Instant threshold = Instant.now().minusMillis(UPLOAD_EXPIRY_MILLIS);
+		Set<String> active = new HashSet<>();
+		try( Connection dbc = ds.getConnection() ){
+			List<String> expired = new ArrayList<>();
+			try( PreparedStatement ps = dbc.prepareStatement("SELECT id, created FROM result_uploads") ){
+				ResultSet rs = ps.executeQuery();
+				while( rs.next() ) {
+					String id = rs.getString(1);
+					Path file = getUploadFile(id);
+					if( rs.getTimestamp(2).toInstant().isBefore(threshold)
+							&& (!Files.exists(file) || Files.getLastModifiedTime(file).toInstant().isBefore(threshold)) ) {
+						expired.add(id);
+					}else {
+						active.add(id);
+					}
+				}
+				rs.close();
+			}
+			try( PreparedStatement ps = dbc.prepareStatement("DELETE FROM result_uploads WHERE id=?") ){
+				for( String id : expired ) {
+					ps.setString(1, id);
+					ps.executeUpdate();
+				}
+			}
+		}
+		// delete files of expired uploads and files without upload
+		List<Path> files = new ArrayList<>();
+		try( Stream<Path> list = Files.list(dataDir) ){
+			list.forEach( p -> {
+				String name = p.getFileName().toString();
+				if( name.startsWith(UPLOAD_PREFIX) && name.endsWith(UPLOAD_SUFFIX)
+						&& !active.contains(name.substring(UPLOAD_PREFIX.length(), name.length()-UPLOAD_SUFFIX.length())) ) {
+					files.add(p);
+				}
+			});
+		}
+		int count = 0;
+		for( Path p : files ) {
+			if( Files.getLastModifiedTime(p).toInstant().isBefore(threshold) ) {
+				Files.deleteIfExists(p);
+				count ++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove unreferenced result data. Data is usually removed when
+	 * the last reference is replaced. This is only necessary to clean up
+	 * after interrupted uploads or transactions. Resumable uploads are
+	 * removed if they were not continued within seven days.
+	 * @return number of deleted files
+	 * @throws SQLException database error
+	 * @throws IOException unable to list the data directory
+	 */
+	public int collectGarbage() throws SQLException, IOException{
+		int count = removeExpiredUploads();
+		try( Connection dbc = ds.getConnection() ){
+			return count + blobs.collectGarbage(dbc);
 		}
 	}
 	@Override
 	public String[] getDistinctResultTypes(int requestId) throws SQLException {
 		List<String> list = new ArrayList<>();
 		try( Connection dbc = ds.getConnection();
-				Statement st = dbc.createStatement() ){
+				PreparedStatement ps = dbc.prepareStatement("SELECT DISTINCT media_type FROM request_node_results WHERE request_id=?") ){
 			dbc.setReadOnly(true);
 			// find is result is already present
-			ResultSet rs = st.executeQuery("SELECT DISTINCT media_type FROM request_node_results WHERE request_id="+requestId);
+			ps.setInt(1, requestId);
+			ResultSet rs = ps.executeQuery();
 			
 			// compile list
 			while( rs.next() ){
@@ -0,0 +1,386 @@
+package org.aktin.broker.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.db.Dbms.Parameter;
+
+/**
+ * Content addressed storage for uploaded data. Files are named
+ * by the hex encoded SHA-256 digest of their content, so that identical
+ * payloads are stored only once. References are counted in the
+ * {@code blobs} table and files are deleted when the last reference
+ * is released.
+ * <p>
+ * Data is received into a temporary file via {@link #receive(InputStream, String[], MediaType)}
+ * without any database connection. The blob is then referenced via
+ * {@link #store(Connection, Dbms, Blob)} and the previous data is released via
+ * {@link #release(Connection, String)}, both within the transaction which
+ * updates the referencing row. Released data is deleted via {@link #purge(Connection, String)}
+ * after the transaction is committed.
+ * </p>
+ * <p>
+ * If compression is enabled, data with compressible media types is
+ * stored gzip encoded. The encoding is recorded in the {@code blobs} table.
+ * Digests and sizes always refer to the uncompressed content.
+ * </p>
+ * <p>
+ * Files named differently were written by previous versions and
+ * are not reference counted. These are deleted directly when purged.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+class BlobStore {
+	private static final Logger log = Logger.getLogger(BlobStore.class.getName());
+	static final String KEY_DIGEST = "SHA-256";
+	/** unreferenced files younger than this are not garbage collected, they may belong to running transactions */
+	private static final long GC_GRACE_MILLIS = 60*60*1000;
+	private static final int BUFFER_SIZE = 8192;
+
+	private final String store;
+	private Path dir;
+	private boolean compress;
+
+	/**
+	 * Received data, not yet referenced
+	 */
+	static class Blob{
+		/** temporary file */
+		private final Path temp;
+		/** file name, hex encoded SHA-256 */
+		final String name;
+		final long size;
+		/** digests in the order of the requested algorithms */
+		final byte[][] digests;
+		final byte[] sha256;
+		/** encoding of the temporary file, {@code null} if uncompressed */
+		final String encoding;
+
+		private Blob(Path temp, String encoding, long size, byte[][] digests, int keyIndex) {
+			this.temp = temp;
+			this.encoding = encoding;
+			this.size = size;
+			this.digests = digests;
+			this.sha256 = digests[keyIndex];
+			this.name = toHex(sha256);
+		}
+	}
+
+	/**
+	 * Create a blob store. The data directory must be set before use.
+	 * @param store name of the store, used to distinguish the reference counts of multiple stores in the same database
+	 */
+	BlobStore(String store){
+		this.store = store;
+	}
+
+	String getName() {
+		return store;
+	}
+	void setDirectory(Path dir) {
+		this.dir = dir;
+	}
+	/**
+	 * Compress data with compressible media types. Already stored
+	 * data is not affected.
+	 * @param compress {@code true} to store compressible data gzip encoded
+	 */
+	void setCompression(boolean compress) {
+		this.compress = compress;
+	}
+
+	/**
+	 * Choose the storage encoding for a media type. Text and
+	 * structured formats are compressed, other types are usually
+	 * already compressed or binary.
+	 * @param mediaType media type
+	 * @return {@code gzip} or {@code null} to store uncompressed
+	 */
+	static String chooseEncoding(MediaType mediaType) {
+		String sub = mediaType.getSubtype().toLowerCase();
+		if( mediaType.getType().equalsIgnoreCase("text")
+				|| sub.equals("xml") || sub.endsWith("+xml")
+				|| sub.equals("json") || sub.endsWith("+json")
+				|| sub.equals("csv") ) {
+			return "gzip";
+		}
+		return null;
+	}
+
+	static String toHex(byte[] digest) {
+		StringBuilder b = new StringBuilder(digest.length*2);
+		for( byte x : digest ) {
+			b.append(Character.forDigit((x >> 4) & 0xF, 16));
+			b.append(Character.forDigit(x & 0xF, 16));
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Determine whether a file name denotes a content addressed blob
+	 * @param name file name
+	 * @return {@code true} for hex encoded SHA-256 digests
+	 */
+	static boolean isBlobName(String name) {
+		return name.length() == 64 && name.chars().allMatch( c -> (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') );
+	}
+
+	Path resolve(String name) {
+		return dir.resolve(name);
+	}
+
+	/**
+	 * Receive the data into a temporary file. Size and digests are calculated while reading.
+	 * Must be called before the database transaction is started, slow uploads must not hold
+	 * connections or locks.
+	 * @param content content, will be closed
+	 * @param algorithms digest algorithms, must include {@link #KEY_DIGEST}
+	 * @param mediaType media type, used to choose the encoding
+	 * @return received data
+	 * @throws IOException error reading the data or writing the temporary file
+	 */
+	Blob receive(InputStream content, String[] algorithms, MediaType mediaType) throws IOException {
+		int keyIndex = List.of(algorithms).indexOf(KEY_DIGEST);
+		if( keyIndex == -1 ) {
+			throw new IllegalArgumentException("Digest algorithms must include "+KEY_DIGEST);
+		}
+		DigestCalculatingInputStream di;
+		try {
+			di = new DigestCalculatingInputStream(content, algorithms);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("message digest not available", e);
+		}
+		String encoding = compress ? chooseEncoding(mediaType) : null;
+		// concurrent uploads use separate temporary files
+		Path temp = Files.createTempFile(dir, "upload", ".tmp");
+		long size;
+		try{
+			if( encoding != null ) {
+				try( OutputStream out = new GZIPOutputStream(Files.newOutputStream(temp), BUFFER_SIZE) ){
+					size = di.transferTo(out);
+				}
+			}else {
+				size = Files.copy(di, temp, StandardCopyOption.REPLACE_EXISTING);
+			}
+			di.close();
+		}catch( IOException e ) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return new Blob(temp, encoding, size, di.getDigests(), keyIndex);
+	}
+
+	/**
+	 * Add a reference to the received data. If the content is already stored and referenced,
+	 * the temporary file is discarded and the stored encoding is kept. Otherwise,
+	 * it is moved into place, replacing unreferenced leftovers.
+	 * The blob row remains locked until the transaction completes.
+	 * @param dbc database connection with active transaction
+	 * @param dbms dialect for the upsert
+	 * @param blob received data
+	 * @throws SQLException database error
+	 * @throws IOException unable to move the data into place
+	 */
+	void store(Connection dbc, Dbms dbms, Blob blob) throws SQLException, IOException {
+		// create the row if missing, then increment while holding the row lock
+		dbms.upsert(dbc, "blobs",
+				new String[] {"store","digest"}, new String[] {"data_size"}, new String[] {"ref_count"},
+				Parameter.ofString(store),
+				Parameter.ofString(blob.name),
+				Parameter.ofLong(blob.size),
+				Parameter.ofInt(0));
+		try( PreparedStatement ps = dbc.prepareStatement("UPDATE blobs SET ref_count=ref_count+1 WHERE store=? AND digest=?") ){
+			ps.setString(1, store);
+			ps.setString(2, blob.name);
+			ps.executeUpdate();
+		}
+		Path file = dir.resolve(blob.name);
+		if( getReferenceCount(dbc, blob.name) > 1 && Files.exists(file) ) {
+			// identical content already stored and referenced, the recorded encoding belongs to this file
+			Files.delete(blob.temp);
+		}else {
+			// new or unreferenced row. an existing file may be left over from a rolled back
+			// transaction and have a different encoding than recorded, so it is replaced
+			Files.move(blob.temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			try( PreparedStatement ps = dbc.prepareStatement("UPDATE blobs SET content_encoding=? WHERE store=? AND digest=?") ){
+				ps.setString(1, blob.encoding);
+				ps.setString(2, store);
+				ps.setString(3, blob.name);
+				ps.executeUpdate();
+			}
+		}
+	}
+
+	/**
+	 * Delete the temporary file of data which was not stored, e.g. because the transaction failed
+	 * @param blob received data
+	 */
+	void discard(Blob blob) {
+		try {
+			Files.deleteIfExists(blob.temp);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to delete temporary file "+blob.temp, e);
+		}
+	}
+
+	/**
+	 * Release a reference. Only the reference count is decremented, since the
+	 * transaction may still be rolled back. Unreferenced data must be removed via
+	 * {@link #purge(Connection, String)} after the transaction is committed.
+	 * @param dbc database connection with active transaction
+	 * @param name file name of the previous data
+	 * @throws SQLException database error
+	 */
+	void release(Connection dbc, String name) throws SQLException {
+		if( !isBlobName(name) ) {
+			// written by previous versions, not reference counted
+			return;
+		}
+		try( PreparedStatement ps = dbc.prepareStatement("UPDATE blobs SET ref_count=ref_count-1 WHERE store=? AND digest=?") ){
+			ps.setString(1, store);
+			ps.setString(2, name);
+			ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * Delete released data if it is no longer referenced. Must be called after the
+	 * transaction calling {@link #release(Connection, String)} was committed. Blobs are
+	 * deleted in a separate transaction while the row is locked, so that concurrent
+	 * transactions storing the same content will find neither row nor file. Failures
+	 * are logged, remaining data is removed by {@link #collectGarbage(Connection)}.
+	 * @param dbc database connection, auto commit must be disabled
+	 * @param name file name of the released data
+	 */
+	void purge(Connection dbc, String name) {
+		try {
+			if( !isBlobName(name) ) {
+				// file written by a previous version
+				Files.deleteIfExists(dir.resolve(name));
+				return;
+			}
+			deleteUnreferenced(dbc, name);
+			dbc.commit();
+		} catch (SQLException | IOException e) {
+			log.log(Level.WARNING, "Unable to delete released data "+name, e);
+		}
+	}
+
+	private boolean deleteUnreferenced(Connection dbc, String name) throws SQLException {
+		int deleted;
+		try( PreparedStatement ps = dbc.prepareStatement("DELETE FROM blobs WHERE store=? AND digest=? AND ref_count<=0") ){
+			ps.setString(1, store);
+			ps.setString(2, name);
+			deleted = ps.executeUpdate();
+		}
+		if( deleted == 0 ) {
+			return false;
+		}
+		try {
+			Files.deleteIfExists(dir.resolve(name));
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to delete unreferenced data "+name, e);
+		}
+		return true;
+	}
+
+	/**
+	 * Delete blobs without references, unreferenced content addressed files and
+	 * leftover temporary files. Files younger than one hour are kept, since they may
+	 * belong to transactions which are still running.
+	 * @param dbc database connection, auto commit is disabled during the collection
+	 * @return number of deleted files
+	 * @throws SQLException database error
+	 * @throws IOException unable to list the data directory
+	 */
+	int collectGarbage(Connection dbc) throws SQLException, IOException {
+		dbc.setAutoCommit(false);
+		List<String> unreferenced = new ArrayList<>();
+		Set<String> known = new HashSet<>();
+		try( PreparedStatement ps = dbc.prepareStatement("SELECT digest, ref_count FROM blobs WHERE store=?") ){
+			ps.setString(1, store);
+			ResultSet rs = ps.executeQuery();
+			while( rs.next() ) {
+				known.add(rs.getString(1));
+				if( rs.getInt(2) <= 0 ) {
+					unreferenced.add(rs.getString(1));
+				}
+			}
+			rs.close();
+		}
+		int count = 0;
+		for( String name : unreferenced ) {
+			// commit each deletion separately, to keep the locks short
+			if( deleteUnreferenced(dbc, name) ) {
+				count ++;
+			}
+			dbc.commit();
+		}
+		Instant threshold = Instant.now().minusMillis(GC_GRACE_MILLIS);
+		List<Path> orphans = new ArrayList<>();
+		try( Stream<Path> files = Files.list(dir) ){
+			files.forEach( p -> {
+				String name = p.getFileName().toString();
+				boolean temp = name.startsWith("upload") && name.endsWith(".tmp");
+				if( temp || (isBlobName(name) && !known.contains(name)) ) {
+					orphans.add(p);
+				}
+			});
+		}
+		for( Path p : orphans ) {
+			if( Files.getLastModifiedTime(p).toInstant().isAfter(threshold) ) {
+				continue;
+			}
+			if( isBlobName(p.getFileName().toString()) && getReferenceCount(dbc, p.getFileName().toString()) > 0 ) {
+				// stored after the listing
+				continue;
+			}
+			Files.deleteIfExists(p);
+			count ++;
+		}
+		dbc.commit();
+		if( count > 0 ) {
+			log.info("Removed "+count+" unreferenced files from "+dir);
+		}
+		return count;
+	}
+
+	/**
+	 * Get the number of references to a blob
+	 * @param dbc database connection
+	 * @param name file name
+	 * @return reference count, zero if the blob is not stored
+	 * @throws SQLException database error
+	 */
+	int getReferenceCount(Connection dbc, String name) throws SQLException {
+		try( PreparedStatement ps = dbc.prepareStatement("SELECT ref_count FROM blobs WHERE store=? AND digest=?") ){
+			ps.setString(1, store);
+			ps.setString(2, name);
+			try( ResultSet rs = ps.executeQuery() ){
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+		}
+	}
+}
@@ -3,6 +3,8 @@ package org.aktin.broker.db;
 import java.io.IOException;
 import java.io.InputStream;
 import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -12,6 +14,8 @@ import javax.ws.rs.core.MediaType;
 import org.aktin.broker.auth.Principal;
 import org.aktin.broker.server.Broker;
 import org.aktin.broker.server.auth.AuthInfo;
+import org.aktin.broker.util.CachedRequestDefinition;
+import org.aktin.broker.xml.Node;
 
 public interface BrokerBackend extends Broker{
 
@@ -47,9 +51,58 @@ public interface BrokerBackend extends Broker{
 		updateNodeLastSeen(ids, ts);
 	}
 
+	/**
+	 * Replace the nodes with open websocket connections to the given broker instance.
+	 * Used to aggregate the online status of nodes if multiple broker instances
+	 * share the database.
+	 * @param instanceId broker instance id
+	 * @param nodes nodes with open websocket connections and round trip times, if available.
+	 *  Empty to remove all entries of the instance
+	 * @param heartbeat timestamp of the update
+	 * @throws SQLException SQL error
+	 */
+	void updateNodeWebsockets(String instanceId, Collection<Node> nodes, Instant heartbeat) throws SQLException;
+
+	/**
+	 * Load the nodes with open websocket connections to any broker instance.
+	 * Entries of instances which did not update their nodes since the given timestamp
+	 * are ignored and removed.
+	 * @param since minimum heartbeat timestamp
+	 * @return nodes with round trip times, if available, indexed by node id
+	 * @throws SQLException SQL error
+	 */
+	Map<Integer, Node> loadNodeWebsockets(Instant since) throws SQLException;
+
 
 	void updateNodeResource(int nodeId, String resourceId, MediaType mediaType, InputStream content) throws SQLException, IOException;
 
 
 	void clearDataDirectory() throws IOException;
+
+	/**
+	 * Get the current version of the request list for the given node. The
+	 * version changes whenever the result of {@link #listRequestsForNode(int)}
+	 * may have changed, e.g. when requests are published, closed or deleted or
+	 * when the node status changes.
+	 * <p>
+	 * The version is kept in memory and can be determined without database access.
+	 * </p>
+	 * @param nodeId node id
+	 * @return opaque version string, suitable for use as entity tag
+	 */
+	String getRequestListVersion(int nodeId);
+
+	/**
+	 * Get a request definition prepared for delivery via HTTP. Definitions
+	 * are kept in a bounded in-memory cache, which is invalidated when the
+	 * request definitions are changed or the request is deleted. Large definitions
+	 * are not cached and must be retrieved via {@link #getRequestDefinition(int, String)}.
+	 *
+	 * @param requestId request id
+	 * @param mediaType media type of the definition
+	 * @return definition or {@code null} if not found or too large for caching
+	 * @throws SQLException SQL error
+	 * @throws IOException IO error reading the definition
+	 */
+	CachedRequestDefinition getCachedRequestDefinition(int requestId, String mediaType) throws SQLException, IOException;
 }
\ No newline at end of file
@@ -3,28 +3,29 @@ package org.aktin.broker.db;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
-import java.io.StringReader;
 import java.io.UncheckedIOException;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.NoSuchAlgorithmException;
-import java.sql.Clob;
+import java.security.SecureRandom;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.stream.Stream;
 
@@ -42,14 +43,16 @@ import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
 import org.aktin.broker.auth.Principal;
+import org.aktin.broker.db.Dbms.Parameter;
 import org.aktin.broker.server.Broker;
 import org.aktin.broker.server.auth.AuthInfo;
+import org.aktin.broker.util.CachedRequestDefinition;
 import org.aktin.broker.util.DigestPathDataSource;
+import org.aktin.broker.util.RequestDefinitionCache;
 import org.aktin.broker.xml.Node;
 import org.aktin.broker.xml.RequestInfo;
 import org.aktin.broker.xml.RequestStatus;
 import org.aktin.broker.xml.RequestStatusInfo;
-import org.aktin.broker.xml.util.Util;
 import org.w3c.dom.Document;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -65,6 +68,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 
 	private DataSource brokerDB;
 	private Path dataDir; // for node resource data
+	private final BlobStore resourceBlobs = new BlobStore("resources");
 	/**
 	 * Character streams up to this size should be kept
 	 * in memory for data transfers. Larger streams
@@ -74,10 +78,36 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	private int inMemoryTreshold = 1024*1024;
 	
 	private static final String SELECT_MEDIATYPE_BY_REQUESTID = "SELECT media_type FROM request_definitions WHERE request_id=?";
+	private static final String SELECT_NODE_BY_ID = "SELECT id, subject_dn, last_contact FROM nodes WHERE id=?";
+	private static final String SELECT_MODULES_BY_NODEID = "SELECT module, version FROM node_modules WHERE node_id=?";
+	private static final String SELECT_REQUEST_BY_ID = "SELECT r.id, r.published, r.closed, r.targeted FROM requests r WHERE r.id=?";
+	// targeted requests are ONLY supplied to selected nodes: .. AND (r.targeted = FALSE OR s.request_id IS NOT NULL)
+	// media types are joined to avoid a separate query for each request. rows are repeated for each media type
+	private static final String SELECT_REQUESTS_FOR_NODE = "SELECT r.id, r.published, r.closed, r.targeted, s.retrieved, s.interaction, s.queued, s.processing, s.completed, s.rejected, s.failed, d.media_type FROM requests r LEFT OUTER JOIN request_node_status s ON r.id=s.request_id AND s.node_id=? LEFT OUTER JOIN request_definitions d ON r.id=d.request_id WHERE s.deleted IS NULL AND r.closed IS NULL AND r.published IS NOT NULL AND (r.targeted = FALSE OR s.request_id IS NOT NULL) ORDER BY r.id";
+	private static final String SELECT_NODE_STATUS_DELETED = "SELECT retrieved, deleted FROM request_node_status r WHERE request_id=? AND node_id=?";
+	private static final String SELECT_NODE_STATUS_BY_REQUESTID = "SELECT node_id, retrieved, deleted, queued, processing, completed, rejected, failed, interaction, message_type  FROM request_node_status WHERE request_id=?";
+	private static final String SELECT_TARGETED_BY_REQUESTID = "SELECT targeted FROM requests WHERE id=?";
+	private static final String SELECT_NODES_BY_REQUESTID = "SELECT node_id FROM request_node_status WHERE request_id=?";
 
-	private static enum Dbms{ POSTGRES, HSQL }
 	private Dbms dbms;
 
+	/**
+	 * Random prefix for request list versions. Makes sure that
+	 * versions from previous server instances are not reused.
+	 */
+	private final String versionPrefix = Long.toHexString(new SecureRandom().nextLong());
+	/** version for changes affecting the request lists of all nodes */
+	private final AtomicLong requestListVersion = new AtomicLong();
+	/** versions for changes affecting the request list of single nodes */
+	private final Map<Integer, AtomicLong> nodeRequestListVersions = new ConcurrentHashMap<>();
+
+	/** definitions with more characters are not cached, but streamed for each retrieval */
+	private static final long MAX_CACHED_DEFINITION_LENGTH = 256*1024;
+	/** cache for request definitions which are retrieved by many nodes */
+	private final RequestDefinitionCache definitionCache = new RequestDefinitionCache(256, 16*1024*1024);
+	/** distributes changes to other broker instances sharing the database */
+	private volatile Consumer<String> changePublisher;
+
 	public BrokerImpl(){
 	}
 	public BrokerImpl(DataSource brokerDB, Path dataDirectory) throws IOException{
@@ -94,18 +124,21 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	public void setBrokerDB(DataSource brokerDB){
 		this.brokerDB = brokerDB;
 		// determine type of DBMS
-		String pkg = brokerDB.getClass().getPackageName();
-		if( pkg.startsWith("org.postgresql") ) {
-			this.dbms = Dbms.POSTGRES;
-		}else {
-			// default to HSQL
-			this.dbms = Dbms.HSQL;
-		}
+		this.dbms = Dbms.detect(brokerDB);
 		log.info("Using DBMS dialect for "+dbms);
 	}
 
 	public void setDataDirectory(Path dataDir){
 		this.dataDir = dataDir;
+		resourceBlobs.setDirectory(dataDir);
+	}
+	/**
+	 * Store node resources with compressible media types gzip encoded.
+	 * Resources are decoded transparently when read.
+	 * @param compress {@code true} to compress new resources
+	 */
+	public void setCompression(boolean compress){
+		resourceBlobs.setCompression(compress);
 	}
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.AggregatorBackend#clearDataDirectory()
@@ -149,8 +182,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	public Node getNode(int nodeId) throws SQLException{
 		Node n;
 		try( Connection dbc = brokerDB.getConnection() ){
-			try( Statement st = dbc.createStatement() ){				
-				ResultSet rs = st.executeQuery("SELECT id, subject_dn, last_contact FROM nodes WHERE id="+nodeId);
+			try( PreparedStatement ps = dbc.prepareStatement(SELECT_NODE_BY_ID) ){
+				ps.setInt(1, nodeId);
+				ResultSet rs = ps.executeQuery();
 				if( rs.next() ){
 					n = new Node(rs.getInt(1), rs.getString(2), rs.getTimestamp(3).toInstant());
 				}else{
@@ -160,8 +194,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			}
 			if( n != null ){
 				// load module versions
-				try( Statement st = dbc.createStatement() ){
-					ResultSet rs = st.executeQuery("SELECT module, version FROM node_modules WHERE node_id="+nodeId);
+				try( PreparedStatement ps = dbc.prepareStatement(SELECT_MODULES_BY_NODEID) ){
+					ps.setInt(1, nodeId);
+					ResultSet rs = ps.executeQuery();
 					n.modules = new HashMap<>();
 					while( rs.next() ){
 						n.modules.put(rs.getString(1), rs.getString(2));
@@ -213,6 +248,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	public int createRequest(String mediaType, Reader content) throws SQLException{
 		int id;
 		try( Connection dbc = brokerDB.getConnection() ){
+			dbms.prepareClobs(dbc);
 			dbc.setAutoCommit(false);
 			id = createEmptyRequest(dbc);
 			// insert request content
@@ -220,6 +256,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			// commit transaction
 			dbc.commit();
 		}
+		changed("request "+id);
 		return id;
 	}
 	/* (non-Javadoc)
@@ -237,61 +274,14 @@ public class BrokerImpl implements BrokerBackend, Broker {
 		return id;
 	}
 
-	private static String readAllContent(Reader reader) throws IOException {
-		char[] buffer = new char[4096];
-        StringBuilder builder = new StringBuilder();
-        int numChars;
-
-        while ((numChars = reader.read(buffer)) >= 0) {
-            builder.append(buffer, 0, numChars);
-        }
-
-        return builder.toString();
-	}
-	private void setClob(PreparedStatement ps, int index, Reader content) throws SQLException {
-		if( dbms == Dbms.POSTGRES ) {
-			// no support for setClob(Reader) as of 42.2.20 (2021-06)
-			// read reader into string
-			try {
-				ps.setString(index, readAllContent(content));
-			} catch ( IOException e ) {
-				throw new SQLException("Unable to read from content stream", e);
-			}
-		}else {
-			ps.setClob(index, content);
-		}
-	}
 	private void setRequestDefinition(Connection dbc, int requestId, String mediaType, Reader content) throws SQLException{
-		// determine a definition is already there
-		boolean hasRecord;
-		try( PreparedStatement ps = dbc.prepareStatement("SELECT COUNT(*) FROM request_definitions WHERE request_id=? AND media_type=?") ){			
-			ps.setInt(1, requestId);
-			ps.setString(2, mediaType);
-			ResultSet rs = ps.executeQuery();
-			rs.next();
-			hasRecord = (rs.getInt(1) != 0);
-			rs.close();
-		}
-
-		if( hasRecord ){
-			// already there, update the definition
-			try( PreparedStatement ps = dbc.prepareStatement("UPDATE request_definitions SET query_def=? WHERE request_id=? AND media_type=?") ){
-				setClob(ps, 1, content);
-				ps.setInt(2, requestId);
-				ps.setString(3, mediaType);
-				ps.executeUpdate();		
-			}
-			log.info("Updated definition for request "+requestId+": "+mediaType);
-		}else{
-			// no definition, create one
-			try( PreparedStatement ps = dbc.prepareStatement("INSERT INTO request_definitions (request_id, media_type, query_def) VALUES(?,?,?)") ){
-				ps.setInt(1, requestId);
-				ps.setString(2, mediaType);
-				setClob(ps, 3, content);
-				ps.executeUpdate();
-			}
-			log.info("New definition for request "+requestId+": "+mediaType);
-		}
+		// insert or replace the definition in a single statement
+		dbms.upsert(dbc, "request_definitions", 
+				new String[] {"request_id","media_type"}, new String[] {"query_def"}, new String[] {},
+				Parameter.ofInt(requestId),
+				Parameter.ofString(mediaType),
+				Parameter.ofClob(content));
+		log.info("Stored definition for request "+requestId+": "+mediaType);
 	}
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.BrokerBackend#addRequestDefinition(int, java.lang.String, java.io.Reader)
@@ -299,11 +289,14 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	@Override
 	public void setRequestDefinition(int requestId, String mediaType, Reader content) throws SQLException{
 		try( Connection dbc = brokerDB.getConnection() ){
+			dbms.prepareClobs(dbc);
 			dbc.setAutoCommit(false);
 			// TODO should also replace existing definitions
 			setRequestDefinition(dbc, requestId, mediaType, content);	
 			dbc.commit();
 		}
+		// media types are part of the request lists
+		changed("request "+requestId);
 	}
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.BrokerBackend#deleteRequest(int)
@@ -313,12 +306,13 @@ public class BrokerImpl implements BrokerBackend, Broker {
 		try( Connection dbc = brokerDB.getConnection() ){
 			dbc.setAutoCommit(false);
 
-			executeUpdate(dbc, "DELETE FROM request_definitions WHERE request_id="+id);
+			executeUpdate(dbc, "DELETE FROM request_definitions WHERE request_id=?", id);
 
-			executeUpdate(dbc, "DELETE FROM requests WHERE id="+id);
+			executeUpdate(dbc, "DELETE FROM requests WHERE id=?", id);
 			// commit transaction
 			dbc.commit();
 		}
+		changed("request "+id);
 		log.info("Request "+id+" deleted");
 	}
 	@FunctionalInterface
@@ -336,23 +330,27 @@ public class BrokerImpl implements BrokerBackend, Broker {
 				//new request info
 				if( req != null ){
 					// previous one is complete, add to list
-					req.setTypes(types.toArray(new String[types.size()]));
+					if( !types.isEmpty() ){
+						req.setTypes(types.toArray(new String[types.size()]));
+					}
 					l.add(req);
 					types.clear();
 				}
 				req = loader.load(rs);
-				// add type
-				types.add(rs.getString(mediaTypeIndex));
-			}else{
-				// another type for the same request
-				types.add(rs.getString(mediaTypeIndex));
+			}
+			// add type. might be null for outer joins without request definition
+			String type = rs.getString(mediaTypeIndex);
+			if( type != null ){
+				types.add(type);
 			}
 			// remember id for next row
 			prevId = id;
 		}
 		// add last request
 		if( req != null ){
-			req.setTypes(types.toArray(new String[types.size()]));
+			if( !types.isEmpty() ){
+				req.setTypes(types.toArray(new String[types.size()]));
+			}
 			l.add(req);
 		}
 		return l;
@@ -364,9 +362,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	public List<RequestInfo> listAllRequests() throws SQLException{
 		List<RequestInfo> list;
 		try( Connection dbc = brokerDB.getConnection();
-				Statement st = dbc.createStatement() )
+				PreparedStatement st = dbc.prepareStatement("SELECT r.id, r.published, r.closed, d.media_type, r.targeted FROM requests r JOIN request_definitions d ON r.id=d.request_id ORDER BY r.id") )
 		{
-			ResultSet rs = st.executeQuery("SELECT r.id, r.published, r.closed, d.media_type, r.targeted FROM requests r JOIN request_definitions d ON r.id=d.request_id ORDER BY r.id");
+			ResultSet rs = st.executeQuery();
 			list = loadRequestList(rs, 4,  
 					r -> new RequestInfo(r.getInt(1), optionalTimestamp(rs, 2), optionalTimestamp(rs, 3), rs.getBoolean(5))
 			);
@@ -388,7 +386,12 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	 */
 	@Override
 	public List<String> getRequestTypes(int requestId) throws SQLException{
-		List<String> types = new ArrayList<>();
+		List<String> types = definitionCache.getTypes(requestId);
+		if( types != null ){
+			return new ArrayList<>(types);
+		}
+		long generation = definitionCache.getGeneration();
+		types = new ArrayList<>();
 		try( Connection dbc = brokerDB.getConnection();
 				PreparedStatement ps = dbc.prepareStatement(SELECT_MEDIATYPE_BY_REQUESTID) )
 		{
@@ -398,72 +401,74 @@ public class BrokerImpl implements BrokerBackend, Broker {
 				types.add(rs.getString(1));
 			}
 		}
+		if( !types.isEmpty() ){
+			// unknown ids are not cached, the request may be created later
+			definitionCache.putTypes(requestId, new ArrayList<>(types), generation);
+		}
 		return types;
 	}
 
-	private Reader createTemporaryClobReader(ResultSet rs, int index) throws SQLException, IOException{
-		if( dbms == Dbms.POSTGRES ) {
-			// no clob support. return string reader
-			return new StringReader(rs.getString(index));
-		}
-		Clob clob = rs.getClob(index);
-		if( clob == null ) {
-			return null;
-		}
-		if( clob.length() < inMemoryTreshold ){
-			String str = null;
-			try( Reader reader = clob.getCharacterStream() ){
-				str = Util.readContent(reader);
-			}
-			return new StringReader(str);
-		}else{
-			// current implementation reads the clob directly.
-			// if this is implemented later asynchronously, we need to make sure that
-			// the underlying connection can be closed and the clob is still readable.
-			throw new UnsupportedOperationException("Temporary file CLOB reader not implemented yet. Size > "+inMemoryTreshold);
-		}
-	}
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.BrokerBackend#getRequestDefinition(int, java.lang.String)
 	 */
 	@Override
 	public Reader getRequestDefinition(int requestId, String mediaType) throws SQLException, IOException{
+		try( Connection dbc = brokerDB.getConnection() ){
+			return dbms.readClob(dbc, "query_def", "request_definitions WHERE request_id=? AND media_type=?", inMemoryTreshold,
+					Parameter.ofInt(requestId),
+					Parameter.ofString(mediaType));
+		}
+	}
+	@Override
+	public CachedRequestDefinition getCachedRequestDefinition(int requestId, String mediaType) throws SQLException, IOException{
+		CachedRequestDefinition def = definitionCache.get(requestId, mediaType);
+		if( def != null ){
+			return def;
+		}
+		long generation = definitionCache.getGeneration();
+		// length and small definitions in a single round trip, larger definitions are streamed via getRequestDefinition
+		String content;
 		try( Connection dbc = brokerDB.getConnection();
-			PreparedStatement ps = dbc.prepareStatement("SELECT query_def FROM request_definitions WHERE request_id=? AND media_type=?") )
-		{
-			ps.setInt(1, requestId);
-			ps.setString(2, mediaType);
-			ResultSet rs = ps.executeQuery();
-			if( !rs.next() ){
-				return null;
+				PreparedStatement ps = dbc.prepareStatement("SELECT CHAR_LENGTH(query_def), CASE WHEN CHAR_LENGTH(query_def)<=? THEN query_def END FROM request_definitions WHERE request_id=? AND media_type=?") ){
+			ps.setLong(1, MAX_CACHED_DEFINITION_LENGTH);
+			ps.setInt(2, requestId);
+			ps.setString(3, mediaType);
+			try( ResultSet rs = ps.executeQuery() ){
+				if( !rs.next() ){
+					return null;
+				}
+				content = rs.getString(2);
 			}
-			return createTemporaryClobReader(rs,1);
 		}
+		if( content == null ){
+			// too large for the cache, streamed directly via getRequestDefinition
+			return null;
+		}
+		def = new CachedRequestDefinition(requestId, mediaType, content);
+		definitionCache.put(def, generation);
+		return def;
 	}
 	/* (non-Javadoc)
 	 * @see org.aktin.broker.db.BrokerBackend#listRequestsForNode(int)
 	 */
 	@Override
 	public List<RequestInfo> listRequestsForNode(int nodeId) throws SQLException{
-		List<RequestInfo> list = new ArrayList<>();
-		List<String> types = new ArrayList<>();
+		List<RequestInfo> list;
 		try( Connection dbc = brokerDB.getConnection();
-				PreparedStatement ps = dbc.prepareStatement(SELECT_MEDIATYPE_BY_REQUESTID);
-				Statement st = dbc.createStatement() )
+				PreparedStatement st = dbc.prepareStatement(SELECT_REQUESTS_FOR_NODE) )
 		{
-			// targeted requests are ONLY supplied to selected nodes: .. AND (r.targeted = FALSE OR s.request_id IS NOT NULL)
-			ResultSet rs = st.executeQuery("SELECT r.id, r.published, r.closed, r.targeted, s.retrieved, s.interaction, s.queued, s.processing, s.completed, s.rejected, s.failed FROM requests r LEFT OUTER JOIN request_node_status s ON r.id=s.request_id AND s.node_id="+ nodeId+" WHERE s.deleted IS NULL AND r.closed IS NULL AND r.published IS NOT NULL AND (r.targeted = FALSE OR s.request_id IS NOT NULL) ORDER BY r.id");
-//			ResultSet rs = st.executeQuery("SELECT r.id, r.published, r.closed, s.retrieved FROM requests r LEFT OUTER JOIN request_node_status s ON r.id=s.request_id AND s.node_id="+ nodeId+" WHERE s.deleted IS NULL AND r.closed IS NULL AND r.published IS NOT NULL ORDER BY r.id");
-			while( rs.next() ){
-				RequestInfo ri = new RequestInfo(rs.getInt(1), optionalTimestamp(rs, 2), optionalTimestamp(rs,3), rs.getBoolean(4));
+			st.setInt(1, nodeId);
+			ResultSet rs = st.executeQuery();
+			list = loadRequestList(rs, 12, r -> {
+				RequestInfo ri = new RequestInfo(r.getInt(1), optionalTimestamp(r, 2), optionalTimestamp(r,3), r.getBoolean(4));
 				RequestStatusInfo status = new RequestStatusInfo();
-				status.retrieved = optionalTimestamp(rs, 5);
-				status.interaction = optionalTimestamp(rs, 6);
-				status.queued = optionalTimestamp(rs, 7);
-				status.processing = optionalTimestamp(rs, 8);
-				status.completed = optionalTimestamp(rs, 9);
-				status.rejected = optionalTimestamp(rs, 10);
-				status.failed = optionalTimestamp(rs, 11);
+				status.retrieved = optionalTimestamp(r, 5);
+				status.interaction = optionalTimestamp(r, 6);
+				status.queued = optionalTimestamp(r, 7);
+				status.processing = optionalTimestamp(r, 8);
+				status.completed = optionalTimestamp(r, 9);
+				status.rejected = optionalTimestamp(r, 10);
+				status.failed = optionalTimestamp(r, 11);
 				// TODO more status
 				if( status.getStatus() == null ){
 					// all timestamps empty, there is no status
@@ -472,22 +477,11 @@ public class BrokerImpl implements BrokerBackend, Broker {
 					ri.nodeStatus = Collections.singletonList(status);
 				}
 				// deleted timestamp will always be null here, because of the where clause
-				list.add(ri);
-				// retrieve media types
-				ps.setInt(1, rs.getInt(1));
-				ps.clearWarnings();
-				types.clear();
-				ResultSet rs2 = ps.executeQuery();
-				while( rs2.next() ){
-					types.add(rs2.getString(1));
-				}
-				if( !types.isEmpty() ){
-					ri.setTypes(types.toArray(new String[types.size()]));
-				}
-			}
+				return ri;
+			});
 			rs.close();
 		}
-		return list;		
+		return list;
 	}
 	
 	@Override
@@ -499,8 +493,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	
 	private RequestInfo loadRequest(Connection dbc, int requestId, boolean fillTypes) throws SQLException{
 		RequestInfo ri = null;
-		try( Statement st = dbc.createStatement() ){
-			ResultSet rs = st.executeQuery("SELECT r.id, r.published, r.closed, r.targeted FROM requests r WHERE r.id="+requestId);
+		try( PreparedStatement ps = dbc.prepareStatement(SELECT_REQUEST_BY_ID) ){
+			ps.setInt(1, requestId);
+			ResultSet rs = ps.executeQuery();
 			if( rs.next() ){
 				ri = new RequestInfo(rs.getInt(1), optionalTimestamp(rs, 2), optionalTimestamp(rs, 3), rs.getBoolean(4));
 			}
@@ -526,8 +521,10 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	private boolean loadRequestNodeStatus(Connection dbc, int nodeId, int requestId, RequestStatusInfo ri) throws SQLException{
 		
 		boolean status_found = false;
-		try( Statement st = dbc.createStatement() ){
-			ResultSet rs = st.executeQuery("SELECT retrieved, deleted FROM request_node_status r WHERE request_id="+requestId+" AND node_id="+nodeId);
+		try( PreparedStatement ps = dbc.prepareStatement(SELECT_NODE_STATUS_DELETED) ){
+			ps.setInt(1, requestId);
+			ps.setInt(2, nodeId);
+			ResultSet rs = ps.executeQuery();
 			if( rs.next() ){
 				status_found = true;
 				ri.retrieved = optionalTimestamp(rs, 1);
@@ -575,18 +572,18 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			}
 			dbc.commit();
 		}
+		nodeRequestListChanged(nodeId);
 	}
 	@Override
 	public void setRequestNodeStatusMessage(int requestId, int nodeId, String mediaType, Reader message) throws SQLException{
-		try( Connection dbc = brokerDB.getConnection();
-				PreparedStatement ps = dbc.prepareStatement("UPDATE request_node_status SET message_type=?, message=? WHERE request_id=? AND node_id=?") )
-		{
+		try( Connection dbc = brokerDB.getConnection() ){
+			dbms.prepareClobs(dbc);
 			dbc.setAutoCommit(false);
-			ps.setString(1, mediaType);
-			setClob(ps, 2, message);
-			ps.setInt(3, requestId);
-			ps.setInt(4, nodeId);
-			ps.executeUpdate();
+			dbms.update(dbc, "UPDATE request_node_status SET message_type=%s, message=%s WHERE request_id=%s AND node_id=%s",
+					Parameter.ofString(mediaType),
+					Parameter.ofClob(message),
+					Parameter.ofInt(requestId),
+					Parameter.ofInt(nodeId));
 			dbc.commit();
 		}
 	}
@@ -594,18 +591,10 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	// TODO unit test
 	@Override
 	public Reader getRequestNodeStatusMessage(int requestId, int nodeId) throws SQLException, IOException{
-		try( Connection dbc = brokerDB.getConnection();
-				PreparedStatement ps = dbc.prepareStatement("SELECT message_type, message FROM request_node_status WHERE request_id=? AND node_id=?") )
-		{
-			dbc.setReadOnly(true);
-			ps.setInt(1, requestId);
-			ps.setInt(2, nodeId);
-			ResultSet rs = ps.executeQuery();
-			if( !rs.next() ){
-				return null;
-			}
-			
-			return createTemporaryClobReader(rs, 2);
+		try( Connection dbc = brokerDB.getConnection() ){
+			return dbms.readClob(dbc, "message", "request_node_status WHERE request_id=? AND node_id=?", inMemoryTreshold,
+					Parameter.ofInt(requestId),
+					Parameter.ofInt(nodeId));
 		}
 	}
 	/* (non-Javadoc)
@@ -624,17 +613,13 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			}else if( false == loadRequestNodeStatus(dbc, nodeId, requestId, si) ){
 				// no status for node, need to insert
 				// this also means that the request was never retrieved by the node
-				try( Statement st = dbc.createStatement() ){
-					st.executeUpdate("INSERT INTO request_node_status(deleted, node_id, request_id) VALUES(NOW(),"+nodeId+","+requestId+")");
-				}
+				executeUpdate(dbc, "INSERT INTO request_node_status(deleted, node_id, request_id) VALUES(NOW(),?,?)", nodeId, requestId);
 				dbc.commit();
 				delete_ok = true;
 			}else if( si.deleted == null ){
 				// request was retrieved by node, but not deleted.
 				// we need to update the timestamp to now
-				try( Statement st = dbc.createStatement() ){
-					st.executeUpdate("UPDATE request_node_status SET deleted=NOW() WHERE request_id="+requestId+" AND node_id="+nodeId);
-				}
+				executeUpdate(dbc, "UPDATE request_node_status SET deleted=NOW() WHERE request_id=? AND node_id=?", requestId, nodeId);
 				dbc.commit();
 				delete_ok = true;
 			}else{
@@ -642,6 +627,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 				//return false;
 			}
 		}
+		if( delete_ok ){
+			nodeRequestListChanged(nodeId);
+		}
 		return delete_ok;
 	}
 
@@ -652,10 +640,11 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	public List<RequestStatusInfo> listRequestNodeStatus(Integer requestId) throws SQLException {
 		List<RequestStatusInfo> list = new ArrayList<>();
 		try( Connection dbc = brokerDB.getConnection();
-				Statement st = dbc.createStatement() )
+				PreparedStatement ps = dbc.prepareStatement(SELECT_NODE_STATUS_BY_REQUESTID) )
 		{
 			dbc.setReadOnly(true);
-			ResultSet rs = st.executeQuery("SELECT node_id, retrieved, deleted, queued, processing, completed, rejected, failed, interaction, message_type  FROM request_node_status WHERE request_id="+requestId);
+			ps.setInt(1, requestId);
+			ResultSet rs = ps.executeQuery();
 			while( rs.next() ){
 				RequestStatusInfo info = new RequestStatusInfo(rs.getInt(1));
 				info.retrieved = optionalTimestamp(rs, 2);
@@ -716,7 +705,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 				p = loadPrincipalByNodeKey(select_node, auth);
 			}else{
 				// update last contact
-				executeUpdate(dbc, "UPDATE nodes SET last_contact=NOW() WHERE id="+p.getNodeId());
+				executeUpdate(dbc, "UPDATE nodes SET last_contact=NOW() WHERE id=?", p.getNodeId());
 				// check if subject_dn changed
 				if( Objects.equals(auth.getClientDN(), p.getDbSubjectDn()) == false ){
 					log.log(Level.INFO, "Updating changed DN for node {0}: {1} -> {2}", new Object[] {p.getNodeId(), p.getDbSubjectDn(), auth.getClientDN()});
@@ -741,6 +730,21 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			st.executeUpdate(sql);
 		}
 	}
+	/**
+	 * Execute a parameterized update statement with integer arguments.
+	 * @param dbc connection
+	 * @param sql SQL with one placeholder per argument
+	 * @param args integer arguments
+	 * @throws SQLException SQL error
+	 */
+	private static void executeUpdate(Connection dbc, String sql, int... args) throws SQLException {
+		try( PreparedStatement ps = dbc.prepareStatement(sql) ){
+			for( int i=0; i<args.length; i++ ) {
+				ps.setInt(i+1, args[i]);
+			}
+			ps.executeUpdate();
+		}
+	}
 
 
 //	private static final String convertNodeToString(org.w3c.dom.Node node) throws TransformerException{
@@ -772,6 +776,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			dbc.setAutoCommit(true);
 			updateRequestTimestamp(dbc, requestId, "published", timestamp);
 		}
+		changed("requests");
 	}
 	@Override
 	public void setRequestClosed(int requestId, Instant timestamp) throws SQLException {
@@ -779,19 +784,91 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			dbc.setAutoCommit(true);
 			updateRequestTimestamp(dbc, requestId, "closed", timestamp);
 		}
+		changed("requests");
 	}
 	@Override
 	public void updateNodeLastSeen(int[] nodeIds, long[] timestamps) throws SQLException{
 		try( Connection dbc = brokerDB.getConnection();
-				PreparedStatement ps = dbc.prepareStatement("UPDATE nodes SET last_contact=? WHERE id=?") )
+				PreparedStatement ps = dbc.prepareStatement("UPDATE nodes SET last_contact=? WHERE id=? AND (last_contact IS NULL OR last_contact<?)") )
 		{
-			dbc.setAutoCommit(true);
+			dbc.setAutoCommit(false);
+			// never overwrite newer timestamps written by other broker instances
 			for( int i=0; i<nodeIds.length; i++ ){
-				ps.setInt(1, nodeIds[i]);
-				ps.setTimestamp(2, new Timestamp(timestamps[i]));
+				Timestamp ts = new Timestamp(timestamps[i]);
+				ps.setTimestamp(1, ts);
+				ps.setInt(2, nodeIds[i]);
+				ps.setTimestamp(3, ts);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			dbc.commit();
+		}
+	}
+	private static void setLongOrNull(PreparedStatement ps, int index, Long value) throws SQLException {
+		if( value == null ) {
+			ps.setNull(index, Types.BIGINT);
+		}else {
+			ps.setLong(index, value);
+		}
+	}
+	private static Long getLongOrNull(ResultSet rs, int index) throws SQLException {
+		long value = rs.getLong(index);
+		return rs.wasNull() ? null : value;
+	}
+	@Override
+	public void updateNodeWebsockets(String instanceId, Collection<Node> nodes, Instant heartbeat) throws SQLException {
+		try( Connection dbc = brokerDB.getConnection() ){
+			dbc.setAutoCommit(false);
+			try( PreparedStatement ps = dbc.prepareStatement("DELETE FROM node_websockets WHERE instance_id=?") ){
+				ps.setString(1, instanceId);
+				ps.executeUpdate();
+			}
+			if( !nodes.isEmpty() ) {
+				try( PreparedStatement ps = dbc.prepareStatement("INSERT INTO node_websockets(instance_id, node_id, heartbeat, rtt_median, rtt_95, rtt_99)VALUES(?,?,?,?,?,?)") ){
+					Timestamp ts = Timestamp.from(heartbeat);
+					for( Node node : nodes ) {
+						ps.setString(1, instanceId);
+						ps.setInt(2, node.id);
+						ps.setTimestamp(3, ts);
+						setLongOrNull(ps, 4, node.websocketRttMedian);
+						setLongOrNull(ps, 5, node.websocketRtt95);
+						setLongOrNull(ps, 6, node.websocketRtt99);
+						ps.addBatch();
+					}
+					ps.executeBatch();
+				}
+			}
+			dbc.commit();
+		}
+	}
+	@Override
+	public Map<Integer, Node> loadNodeWebsockets(Instant since) throws SQLException {
+		Map<Integer, Node> nodes = new HashMap<>();
+		Timestamp ts = Timestamp.from(since);
+		try( Connection dbc = brokerDB.getConnection() ){
+			// remove entries of instances which stopped without cleanup
+			try( PreparedStatement ps = dbc.prepareStatement("DELETE FROM node_websockets WHERE heartbeat<?") ){
+				ps.setTimestamp(1, ts);
 				ps.executeUpdate();
 			}
+			// the most recent round trip times are used for nodes connected to multiple instances
+			try( PreparedStatement ps = dbc.prepareStatement("SELECT node_id, rtt_median, rtt_95, rtt_99 FROM node_websockets WHERE heartbeat>=? ORDER BY heartbeat") ){
+				ps.setTimestamp(1, ts);
+				try( ResultSet rs = ps.executeQuery() ){
+					while( rs.next() ) {
+						Node node = nodes.computeIfAbsent(rs.getInt(1), id -> new Node(id, null, null));
+						node.websocket = true;
+						Long median = getLongOrNull(rs, 2);
+						if( median != null ) {
+							node.websocketRttMedian = median;
+							node.websocketRtt95 = getLongOrNull(rs, 3);
+							node.websocketRtt99 = getLongOrNull(rs, 4);
+						}
+					}
+				}
+			}
 		}
+		return nodes;
 	}
 	@Override
 	public void setRequestTargets(int requestId, int[] nodes) throws SQLException {
@@ -800,12 +877,12 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			dbc.setAutoCommit(false);
 
 			// set targeted
-			executeUpdate(dbc, "UPDATE requests SET targeted=TRUE WHERE id="+requestId);
+			executeUpdate(dbc, "UPDATE requests SET targeted=TRUE WHERE id=?", requestId);
 
 			// clear nodes
 			// TODO issue warning, if the request was already retrieved by a node
 			// TODO 
-			executeUpdate(dbc, "DELETE FROM request_node_status WHERE request_id="+requestId);
+			executeUpdate(dbc, "DELETE FROM request_node_status WHERE request_id=?", requestId);
 
 			// insert target nodes
 			try( PreparedStatement ps = dbc.prepareStatement("INSERT INTO request_node_status(request_id,node_id)VALUES(?,?)") ){				
@@ -819,6 +896,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			// commit transaction
 			dbc.commit();
 		}
+		changed("requests");
 	}
 	@Override
 	public int[] getRequestTargets(int requestId) throws SQLException {
@@ -827,8 +905,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			dbc.setReadOnly(true);
 			// first find out, if the query is targeted at all
 			boolean isTargeted = false;
-			try( Statement st = dbc.createStatement() ){
-				ResultSet rs = st.executeQuery("SELECT targeted FROM requests WHERE id="+requestId);
+			try( PreparedStatement ps = dbc.prepareStatement(SELECT_TARGETED_BY_REQUESTID) ){
+				ps.setInt(1, requestId);
+				ResultSet rs = ps.executeQuery();
 				if( rs.next() ){
 					isTargeted = rs.getBoolean(1);
 				}
@@ -836,8 +915,9 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			if( isTargeted == true ){
 				// retrieve nodes
 				ArrayList<Integer> list = new ArrayList<>();
-				try( Statement st = dbc.createStatement() ){
-					ResultSet rs = st.executeQuery("SELECT node_id FROM request_node_status WHERE request_id="+requestId);
+				try( PreparedStatement ps = dbc.prepareStatement(SELECT_NODES_BY_REQUESTID) ){
+					ps.setInt(1, requestId);
+					ResultSet rs = ps.executeQuery();
 					while( rs.next() ){
 						list.add(rs.getInt(1));
 					}
@@ -856,96 +936,106 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	public void clearRequestTargets(int requestId) throws SQLException {
 		try( Connection dbc = brokerDB.getConnection() ){
 			dbc.setAutoCommit(true);
-			executeUpdate(dbc, "UPDATE requests SET targeted=FALSE WHERE id="+requestId);
+			executeUpdate(dbc, "UPDATE requests SET targeted=FALSE WHERE id=?", requestId);
 		}
+		changed("requests");
 	}
-	private String nodeResourceName(int nodeId, String resourceId, MediaType mediaType){
-		// use media type to generate file extension (e.g. .txt, .xml)
-		try {
-			StringBuilder builder = new StringBuilder();
-			builder.append(nodeId).append('_').append(URLEncoder.encode(resourceId, "UTF-8"));
-			if( mediaType.isCompatible(MediaType.TEXT_PLAIN_TYPE) ){
-				builder.append(".txt");
-			}else if( mediaType.isCompatible(MediaType.APPLICATION_XML_TYPE) || mediaType.getSubtype().endsWith("+xml") ){
-				builder.append(".xml");
-			}
-			return builder.toString();
-			
-		} catch (UnsupportedEncodingException e) {
-			throw new IllegalStateException(e);
-		}
+
+	private void nodeRequestListChanged(int nodeId){
+		changed("node "+nodeId);
 	}
 
-	
-	// replace file and generate checksum
-	private byte[][] replaceResourceFile(InputStream data, String oldFile, String newFile) throws IOException{
-		// replace file
-		if( oldFile != null ){
-			// delete old file
-			try{
-				Files.delete(dataDir.resolve(oldFile));
-			}catch( IOException e ){
-				// delete may fail, log warning
-				log.log(Level.WARNING, "Unable to delete node resource: "+oldFile, e);
-			}
+	/**
+	 * Apply a change locally or publish it to all broker instances,
+	 * including this instance.
+	 * @param change change, see {@link #applyChange(String)}
+	 */
+	private void changed(String change) {
+		Consumer<String> publisher = changePublisher;
+		if( publisher == null ) {
+			applyChange(change);
+		}else {
+			publisher.accept(change);
 		}
-		// create the new file, shouldn't replace anything
-		DigestCalculatingInputStream di;
-		try {
-			di = new DigestCalculatingInputStream(data, RESOURCE_DIGESTS);
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException("message digest SHA-256 not available");
+	}
+
+	/**
+	 * Publish changes of cached request lists and definitions to all broker
+	 * instances sharing the database. Each instance, including this one,
+	 * must pass the published changes to {@link #applyChange(String)}.
+	 * @param publisher publisher, {@code null} to apply changes only locally
+	 */
+	public void setChangePublisher(Consumer<String> publisher) {
+		this.changePublisher = publisher;
+	}
+
+	/**
+	 * Update request list versions and invalidate cached definitions after a change,
+	 * which may have been made by another broker instance.
+	 * @param change {@code request <id>} for a changed request definition,
+	 *  {@code requests} for changed request lists of all nodes, {@code node <id>}
+	 *  for a changed request list of a single node or {@code reset} if changes may
+	 *  have been missed
+	 */
+	public void applyChange(String change) {
+		if( change.equals("requests") ) {
+			requestListVersion.incrementAndGet();
+		}else if( change.startsWith("request ") ) {
+			definitionCache.invalidate(Integer.parseInt(change.substring(8)));
+			requestListVersion.incrementAndGet();
+		}else if( change.startsWith("node ") ) {
+			nodeRequestListVersions.computeIfAbsent(Integer.parseInt(change.substring(5)), k -> new AtomicLong()).incrementAndGet();
+		}else if( change.equals("reset") ) {
+			definitionCache.clear();
+			// node versions are part of the request list version
+			requestListVersion.incrementAndGet();
+		}else {
+			log.warning("Ignoring unsupported change: "+change);
 		}
-		Files.copy(di, dataDir.resolve(newFile));
-		return di.getDigests();
 	}
 	@Override
-	// TODO add last modified timestamp
+	public String getRequestListVersion(int nodeId){
+		AtomicLong nodeVersion = nodeRequestListVersions.get(nodeId);
+		return versionPrefix+"-"+requestListVersion.get()+"-"+(nodeVersion==null?0:nodeVersion.get());
+	}
+	@Override
 	public void updateNodeResource(int nodeId, String resourceId, MediaType mediaType, InputStream content) throws IOException, SQLException {
-		// TODO find if resource already exists
+		// receive data before opening a database connection, slow uploads must not hold connections or locks
+		BlobStore.Blob blob = resourceBlobs.receive(content, RESOURCE_DIGESTS, mediaType);
 		String oldFile = null;
-		String newFile = nodeResourceName(nodeId, resourceId, mediaType);
 		try( Connection dbc = brokerDB.getConnection() ){
 			dbc.setAutoCommit(false);
+			// reference the new data first, nodes usually upload unchanged resources
+			resourceBlobs.store(dbc, dbms, blob);
 			try( PreparedStatement ps = dbc.prepareStatement("SELECT data_file FROM node_resources WHERE node_id=? AND name=?") ){				
 				ps.setInt(1, nodeId);
 				ps.setString(2, resourceId);
 				ResultSet rs = ps.executeQuery();
 				if( rs.next() ){
 					oldFile = rs.getString(1);
+					resourceBlobs.release(dbc, oldFile);
 				}
 			}
 
-			// replace file
-			byte[][] digests = replaceResourceFile(content, oldFile, newFile);
-			// XXX this is not 100% transaction safe, the file is still replaced if the next database operation fails. Would be better to backup the old file and restore it if the database operation fails
-
-			// update database entry
-			PreparedStatement ps = null;
-			try{
-				if( oldFile != null ){
-					// previous entry, replace existing
-					ps = dbc.prepareStatement("UPDATE node_resources SET media_type=?, last_modified=?, data_file=?, data_md5=?, data_sha2=? WHERE node_id=? AND name=?");
-				}else{
-					// no previous entry, create new one
-					ps = dbc.prepareStatement("INSERT INTO node_resources(media_type, last_modified, data_file, data_md5, data_sha2, node_id, name)VALUES(?,?,?,?,?,?,?)");
-				}
-	
-				ps.setString(1, mediaType.toString());
-				ps.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
-				ps.setString(3, newFile);
-				ps.setBytes(4, digests[0]);
-				ps.setBytes(5, digests[1]);
-				ps.setInt(6, nodeId);
-				ps.setString(7, resourceId);
-				ps.executeUpdate();
-			}finally {
-				if( ps != null ) {
-					ps.close();					
-				}
-			}
+			// insert or update database entry
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			dbms.upsert(dbc, "node_resources",
+					new String[] {"node_id","name"}, new String[] {"media_type","last_modified","data_file","data_md5","data_sha2"}, new String[] {},
+					Parameter.ofInt(nodeId),
+					Parameter.ofString(resourceId),
+					Parameter.ofString(mediaType.toString()),
+					Parameter.ofTimestamp(now),
+					Parameter.ofString(blob.name),
+					Parameter.ofBytes(blob.digests[0]),
+					Parameter.ofBytes(blob.digests[1]));
 			// done
 			dbc.commit();
+			if( oldFile != null ){
+				// delete the previous data only after the database entry points to the new data
+				resourceBlobs.purge(dbc, oldFile);
+			}
+		}finally {
+			resourceBlobs.discard(blob);
 		}
 	}
 	@Override
@@ -955,11 +1045,14 @@ public class BrokerImpl implements BrokerBackend, Broker {
 		Path file;
 		byte[] md5;
 		byte[] sha2;
+		String encoding;
+		long size;
 		try( Connection dbc = brokerDB.getConnection();
-				PreparedStatement ps = dbc.prepareStatement("SELECT media_type, last_modified, data_file, data_md5, data_sha2 FROM node_resources WHERE node_id=? AND name=?")	){
+				PreparedStatement ps = dbc.prepareStatement("SELECT r.media_type, r.last_modified, r.data_file, r.data_md5, r.data_sha2, b.content_encoding, b.data_size FROM node_resources r LEFT JOIN blobs b ON b.store=? AND b.digest=r.data_file WHERE r.node_id=? AND r.name=?")	){
 			dbc.setReadOnly(true);
-			ps.setInt(1, nodeId);
-			ps.setString(2, resourceId);
+			ps.setString(1, resourceBlobs.getName());
+			ps.setInt(2, nodeId);
+			ps.setString(3, resourceId);
 			ResultSet rs = ps.executeQuery();
 			if( !rs.next() ){
 				// not found
@@ -967,18 +1060,35 @@ public class BrokerImpl implements BrokerBackend, Broker {
 			}
 			mediaType = rs.getString(1);
 			lastModified = rs.getTimestamp(2).toInstant();
-			file = dataDir.resolve(rs.getString(3));
+			file = resourceBlobs.resolve(rs.getString(3));
 			md5 = rs.getBytes(4);
 			sha2 = rs.getBytes(5);
+			encoding = rs.getString(6);
+			size = rs.getLong(7);
 			rs.close();
 		}
 		
 		DigestPathDataSource ds = new DigestPathDataSource(file, mediaType, lastModified);
 		ds.md5 = md5;
 		ds.sha256 = sha2;
+		ds.setContentEncoding(encoding, size);
 		return ds;
 	}
 
+	/**
+	 * Remove unreferenced node resource data. Data is usually removed when
+	 * the last reference is replaced. This is only necessary to clean up
+	 * after interrupted uploads or transactions.
+	 * @return number of deleted files
+	 * @throws SQLException database error
+	 * @throws IOException unable to list the data directory
+	 */
+	public int collectGarbage() throws SQLException, IOException{
+		try( Connection dbc = brokerDB.getConnection() ){
+			return resourceBlobs.collectGarbage(dbc);
+		}
+	}
+
 	/**
 	 * Update the clientDN string for the nodes given in the provided map.
 	 * @param ds data source
@@ -1004,7 +1114,7 @@ public class BrokerImpl implements BrokerBackend, Broker {
 	@Override
 	public List<RequestInfo> searchAllRequests(String mediaType, String searchLanguage, String predicate) throws IOException {
 		List<RequestInfo> list;
-		String sql = "SELECT r.id, r.published, r.closed, r.targeted, d.query_def FROM requests r JOIN request_definitions d ON r.id=d.request_id WHERE d.media_type=? ORDER BY r.id";
+		String sql = "SELECT r.id, r.published, r.closed, r.targeted FROM requests r JOIN request_definitions d ON r.id=d.request_id WHERE d.media_type=? ORDER BY r.id";
 		if( !searchLanguage.equals("XPath" ) ) {
 			throw new IllegalArgumentException("Only XPath permitted. Unsupported search language: "+searchLanguage);
 		}
@@ -1027,32 +1137,43 @@ public class BrokerImpl implements BrokerBackend, Broker {
 		}
 
 		
-		try( Connection dbc = brokerDB.getConnection();
-				PreparedStatement st = dbc.prepareStatement(sql) )
-		{
-			st.setString(1, mediaType);
-			ResultSet rs = st.executeQuery();
+		try( Connection dbc = brokerDB.getConnection() ){
+			List<RequestInfo> candidates = new ArrayList<>();
+			try( PreparedStatement st = dbc.prepareStatement(sql) ){
+				st.setString(1, mediaType);
+				ResultSet rs = st.executeQuery();
+				while( rs.next() ) {
+					candidates.add(new RequestInfo(rs.getInt(1), optionalTimestamp(rs, 2), optionalTimestamp(rs,3), rs.getBoolean(4)));
+				}
+				rs.close();
+			}
 			list = new ArrayList<>();
-			while( rs.next() ) {
+			// definitions are streamed separately for each request
+			for( RequestInfo candidate : candidates ) {
 				Document xml;
 				String result;
-				try( Reader r = createTemporaryClobReader(rs, 5) ){
+				try( Reader r = dbms.readClob(dbc, "query_def", "request_definitions WHERE request_id=? AND media_type=?", inMemoryTreshold,
+						Parameter.ofInt(candidate.getId()),
+						Parameter.ofString(mediaType)) ){
+					if( r == null ) {
+						// deleted in the meantime
+						continue;
+					}
 					try {
 						xml = domBuilder.parse(new InputSource(r));
 						result = xpath.evaluate(xml, XPathConstants.STRING).toString();
 					} catch (IOException | SAXException e) {
-						log.log(Level.INFO, "Failed to parse XML for query {0} definition {1}",new Object[]{rs.getInt(1), mediaType});
+						log.log(Level.INFO, "Failed to parse XML for query {0} definition {1}",new Object[]{candidate.getId(), mediaType});
 						continue;
 					} catch (XPathExpressionException e) {
-						log.log(Level.INFO, "Failed to evaluate XPath against query definition {0}", rs.getInt(1));
+						log.log(Level.INFO, "Failed to evaluate XPath against query definition {0}", candidate.getId());
 						continue;
 					}
 				}
 				if( result != null && result.equals("true") ) {
-					list.add(new RequestInfo(rs.getInt(1), optionalTimestamp(rs, 2), optionalTimestamp(rs,3), rs.getBoolean(4)));
+					list.add(candidate);
 				}
 			}
-			rs.close();
 		} catch (SQLException e) {
 			throw new IOException("SQL error", e);
 		}
@@ -0,0 +1,507 @@
+package org.aktin.broker.db;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Supported database management systems and their
+ * SQL dialect specific functionality.
+ *
+ * @author R.W.Majeed
+ *
+ */
+enum Dbms{
+	POSTGRES, HSQL;
+
+	private static final Logger log = Logger.getLogger(Dbms.class.getName());
+
+	/**
+	 * Maximum number of characters held in memory while
+	 * streaming CLOB content to PostgreSQL.
+	 */
+	static final int CLOB_CHUNK_SIZE = 1024*1024;
+
+	/** physical connections which already contain the temporary table for CLOB chunks */
+	private static final Map<Connection, Boolean> clobTables = Collections.synchronizedMap(new WeakHashMap<>());
+
+	@FunctionalInterface
+	private interface Binder{
+		void set(PreparedStatement ps, int index) throws SQLException;
+	}
+
+	/**
+	 * Statement parameter with SQL data type. The data type is
+	 * needed by some dialects to resolve the parameter type.
+	 */
+	static class Parameter{
+		private final String sqlType;
+		private final Binder binder;
+		private final Reader clob;
+
+		private Parameter(String sqlType, Binder binder, Reader clob) {
+			this.sqlType = sqlType;
+			this.binder = binder;
+			this.clob = clob;
+		}
+		static Parameter ofInt(int value) {
+			return new Parameter("INTEGER", (ps, i) -> ps.setInt(i, value), null);
+		}
+		static Parameter ofString(String value) {
+			return new Parameter("VARCHAR(32768)", (ps, i) -> ps.setString(i, value), null);
+		}
+		static Parameter ofLong(long value) {
+			return new Parameter("BIGINT", (ps, i) -> ps.setLong(i, value), null);
+		}
+		static Parameter ofTimestamp(Timestamp value) {
+			return new Parameter("TIMESTAMP", (ps, i) -> ps.setTimestamp(i, value), null);
+		}
+		static Parameter ofBytes(byte[] value) {
+			return new Parameter("VARBINARY(32768)", (ps, i) -> ps.setBytes(i, value), null);
+		}
+		/**
+		 * Character large object. The content is streamed to the database
+		 * without reading it completely into memory.
+		 * @param content content reader, will be read once
+		 * @return parameter
+		 */
+		static Parameter ofClob(Reader content) {
+			return new Parameter("CLOB", (ps, i) -> ps.setClob(i, content), content);
+		}
+	}
+
+	/**
+	 * Determine the DBMS for a data source. The implementation package is
+	 * checked first. For wrapped data sources (e.g. connection pools),
+	 * the connection metadata is used.
+	 *
+	 * @param ds data source
+	 * @return DBMS, defaults to {@link #HSQL} if unknown
+	 */
+	static Dbms detect(DataSource ds) {
+		String pkg = ds.getClass().getPackageName();
+		if( pkg.startsWith("org.postgresql") ) {
+			return POSTGRES;
+		}else if( pkg.startsWith("org.hsqldb") ) {
+			return HSQL;
+		}
+		// data source might be wrapped e.g. by a connection pool
+		try( Connection dbc = ds.getConnection() ){
+			String product = dbc.getMetaData().getDatabaseProductName();
+			if( product != null && product.toLowerCase().contains("postgres") ) {
+				return POSTGRES;
+			}
+		}catch( SQLException e ) {
+			log.log(Level.WARNING, "Unable to determine DBMS from connection metadata", e);
+		}
+		// default to HSQL
+		return HSQL;
+	}
+
+	private static void appendList(StringBuilder b, String[] columns, String format) {
+		for( int i=0; i<columns.length; i++ ) {
+			if( i != 0 ) {
+				b.append(", ");
+			}
+			b.append(String.format(format, columns[i]));
+		}
+	}
+	private static String[] concat(String[]... arrays) {
+		int length = 0;
+		for( String[] a : arrays ) {
+			length += a.length;
+		}
+		String[] all = new String[length];
+		int pos = 0;
+		for( String[] a : arrays ) {
+			System.arraycopy(a, 0, all, pos, a.length);
+			pos += a.length;
+		}
+		return all;
+	}
+
+	/**
+	 * Build the SQL for an upsert statement.
+	 * @param table table name
+	 * @param keys primary key columns
+	 * @param values columns to insert or update
+	 * @param insertOnly columns which are only written for new rows
+	 * @param placeholders SQL expressions for the parameters, in the order of the columns
+	 * @return SQL statement
+	 * @see #upsert(Connection, String, String[], String[], String[], Parameter...)
+	 */
+	String upsertSql(String table, String[] keys, String[] values, String[] insertOnly, String[] placeholders) {
+		String[] columns = concat(keys, values, insertOnly);
+		StringBuilder b = new StringBuilder();
+		switch( this ) {
+		case POSTGRES:
+			b.append("INSERT INTO ").append(table).append("(");
+			appendList(b, columns, "%s");
+			b.append(") VALUES(");
+			appendList(b, placeholders, "%s");
+			b.append(") ON CONFLICT(");
+			appendList(b, keys, "%s");
+			b.append(") DO UPDATE SET ");
+			appendList(b, values, "%1$s=EXCLUDED.%1$s");
+			break;
+		case HSQL:
+			b.append("MERGE INTO ").append(table).append(" USING (VALUES(");
+			appendList(b, placeholders, "%s");
+			b.append(")) AS v(");
+			appendList(b, columns, "%s");
+			b.append(") ON ");
+			for( int i=0; i<keys.length; i++ ) {
+				if( i != 0 ) {
+					b.append(" AND ");
+				}
+				b.append(table).append('.').append(keys[i]).append("=v.").append(keys[i]);
+			}
+			b.append(" WHEN MATCHED THEN UPDATE SET ");
+			appendList(b, values, table+".%1$s=v.%1$s");
+			b.append(" WHEN NOT MATCHED THEN INSERT (");
+			appendList(b, columns, "%s");
+			b.append(") VALUES(");
+			appendList(b, columns, "v.%s");
+			b.append(")");
+			break;
+		}
+		return b.toString();
+	}
+
+	/**
+	 * Create the temporary table for CLOB chunks. Temporary tables live as long as the
+	 * physical connection, which is reused by connection pools. The table is therefore
+	 * created only once per physical connection. A table created within a transaction
+	 * is not remembered, since it is dropped again by a rollback.
+	 */
+	private static void createClobTable(Connection dbc) throws SQLException {
+		// pooled connections delegate unwrap to the physical connection
+		Connection physical = dbc.unwrap(Connection.class);
+		if( clobTables.containsKey(physical) ) {
+			return;
+		}
+		try( Statement st = dbc.createStatement() ){
+			st.executeUpdate("CREATE TEMPORARY TABLE IF NOT EXISTS clob_chunks(slot INTEGER, seq INTEGER, chunk TEXT)");
+		}
+		if( dbc.getAutoCommit() ) {
+			clobTables.put(physical, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Prepare a connection for statements with CLOB parameters. Should be called
+	 * before a transaction is started on the connection, so that dialect specific
+	 * preparations are committed independently of the transaction.
+	 *
+	 * @param dbc database connection
+	 * @throws SQLException SQL error
+	 */
+	void prepareClobs(Connection dbc) throws SQLException {
+		if( this == POSTGRES ) {
+			createClobTable(dbc);
+		}
+	}
+
+	/**
+	 * Stream CLOB content into a temporary table. The chunks are
+	 * reassembled by the database via {@link #clobChunksExpression(int)}.
+	 * @param first first chunk, already read from the content
+	 */
+	private static void writeClobChunks(Connection dbc, int slot, String first, Reader content) throws SQLException, IOException {
+		createClobTable(dbc);
+		try( PreparedStatement ps = dbc.prepareStatement("INSERT INTO clob_chunks(slot, seq, chunk) VALUES(?,?,?)") ){
+			ps.setInt(1, slot);
+			int seq = 0;
+			String chunk = first;
+			while( !chunk.isEmpty() ) {
+				ps.setInt(2, seq++);
+				ps.setString(3, chunk);
+				// execute each chunk separately, batches would keep all chunks in memory
+				ps.executeUpdate();
+				chunk = readChunk(content);
+			}
+		}
+	}
+	/**
+	 * Read up to {@link #CLOB_CHUNK_SIZE} characters. Less characters are
+	 * returned only at the end of the stream.
+	 */
+	private static String readChunk(Reader reader) throws IOException {
+		StringBuilder b = new StringBuilder();
+		char[] buffer = new char[8192];
+		while( b.length() < CLOB_CHUNK_SIZE ) {
+			int n = reader.read(buffer, 0, Math.min(buffer.length, CLOB_CHUNK_SIZE - b.length()));
+			if( n == -1 ) {
+				break;
+			}
+			b.append(buffer, 0, n);
+		}
+		return b.toString();
+	}
+	private static String clobChunksExpression(int slot) {
+		return "(SELECT string_agg(chunk, '' ORDER BY seq) FROM clob_chunks WHERE slot="+slot+")";
+	}
+	private static void clearClobChunks(Connection dbc) throws SQLException {
+		try( Statement st = dbc.createStatement() ){
+			// truncate does not leave dead rows in the long lived temporary table
+			st.executeUpdate("TRUNCATE clob_chunks");
+		}
+	}
+
+	/**
+	 * Prepare and execute a statement. Each placeholder {@code %s} in the
+	 * SQL is replaced by a dialect specific expression for the corresponding
+	 * parameter.
+	 */
+	private int execute(Connection dbc, SqlBuilder sql, boolean typed, Parameter...params) throws SQLException {
+		String[] placeholders = new String[params.length];
+		Binder[] binders = new Binder[params.length];
+		boolean chunks = false;
+		int count;
+		try {
+			for( int i=0; i<params.length; i++ ) {
+				binders[i] = params[i].binder;
+				if( this == POSTGRES && params[i].clob != null ) {
+					// PostgreSQL JDBC driver reads character streams into memory.
+					// content up to one chunk is bound directly, larger content is
+					// transferred in chunks via a temporary table
+					String first = readChunk(params[i].clob);
+					if( first.length() < CLOB_CHUNK_SIZE ) {
+						binders[i] = (ps, index) -> ps.setString(index, first);
+						placeholders[i] = "?";
+					}else {
+						chunks = true;
+						writeClobChunks(dbc, i, first, params[i].clob);
+						placeholders[i] = clobChunksExpression(i);
+					}
+				}else if( typed ) {
+					placeholders[i] = "CAST(? AS "+params[i].sqlType+")";
+				}else {
+					placeholders[i] = "?";
+				}
+			}
+			try( PreparedStatement ps = dbc.prepareStatement(sql.build(placeholders)) ){
+				int index = 1;
+				for( int i=0; i<params.length; i++ ) {
+					if( placeholders[i].contains("?") ) {
+						binders[i].set(ps, index++);
+					}
+				}
+				count = ps.executeUpdate();
+			}
+		}catch( IOException e ) {
+			SQLException se = new SQLException("Unable to read from content stream", e);
+			clearClobChunksAfterFailure(dbc, chunks, se);
+			throw se;
+		}catch( SQLException | RuntimeException e ) {
+			clearClobChunksAfterFailure(dbc, chunks, e);
+			throw e;
+		}
+		if( chunks ) {
+			clearClobChunks(dbc);
+		}
+		return count;
+	}
+	private static void clearClobChunksAfterFailure(Connection dbc, boolean chunks, Exception e) {
+		if( chunks ) {
+			try {
+				clearClobChunks(dbc);
+			}catch( SQLException e2 ) {
+				// fails within aborted transactions, the rollback removes the chunks
+				e.addSuppressed(e2);
+			}
+		}
+	}
+
+	@FunctionalInterface
+	private interface SqlBuilder{
+		String build(String[] placeholders);
+	}
+
+	/**
+	 * Insert a row or update the existing row with the same primary key in a single
+	 * atomic statement. Uses {@code MERGE} for HSQL and {@code INSERT .. ON CONFLICT}
+	 * for PostgreSQL.
+	 * <p>
+	 * Parameters must be given in the order of key columns, value columns and insert-only
+	 * columns.
+	 * </p>
+	 *
+	 * @param dbc database connection
+	 * @param table table name
+	 * @param keys primary key columns
+	 * @param values columns to insert or update
+	 * @param insertOnly columns which are written only when a new row is inserted
+	 * @param params parameters for all columns
+	 * @return update count
+	 * @throws SQLException SQL error
+	 */
+	int upsert(Connection dbc, String table, String[] keys, String[] values, String[] insertOnly, Parameter...params) throws SQLException {
+		if( params.length != keys.length + values.length + insertOnly.length ) {
+			throw new IllegalArgumentException("Parameter count does not match column count");
+		}
+		// HSQL can not infer parameter types within the VALUES table
+		return execute(dbc, p -> upsertSql(table, keys, values, insertOnly, p), this == HSQL, params);
+	}
+
+	/**
+	 * Execute an update statement. Parameters are specified via {@code %s} placeholders
+	 * instead of {@code ?}. This allows streaming of CLOB parameters in all dialects.
+	 *
+	 * @param dbc database connection
+	 * @param sql SQL statement with {@code %s} placeholders
+	 * @param params parameters
+	 * @return update count
+	 * @throws SQLException SQL error
+	 */
+	int update(Connection dbc, String sql, Parameter...params) throws SQLException {
+		return execute(dbc, p -> String.format(sql, (Object[])p), false, params);
+	}
+
+	@FunctionalInterface
+	private interface ContentWriter{
+		void write(Writer writer) throws SQLException, IOException;
+	}
+
+	/**
+	 * Write content to a temporary file and open it for reading. The file
+	 * is deleted when the returned reader is closed.
+	 */
+	private static Reader temporaryFileReader(ContentWriter content) throws SQLException, IOException {
+		Path temp = Files.createTempFile("clob", ".tmp");
+		try( Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8) ){
+			content.write(writer);
+		}catch( SQLException | IOException | RuntimeException e ) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return new InputStreamReader(Files.newInputStream(temp, StandardOpenOption.DELETE_ON_CLOSE), StandardCharsets.UTF_8);
+	}
+
+	private static void bind(PreparedStatement ps, int index, Parameter...params) throws SQLException {
+		for( int i=0; i<params.length; i++ ) {
+			params[i].binder.set(ps, index+i);
+		}
+	}
+
+	/**
+	 * Read a CLOB value from a single row without keeping large content in memory.
+	 * Content with less than {@code threshold} characters is read into memory, larger
+	 * content is copied to a temporary file which is deleted when the returned reader
+	 * is closed. The reader remains usable after the connection is closed.
+	 * <p>
+	 * The PostgreSQL JDBC driver does not stream character data. Small values are
+	 * retrieved with a single query, large values are retrieved in chunks of
+	 * {@link #CLOB_CHUNK_SIZE} characters within a single snapshot.
+	 * </p>
+	 *
+	 * @param dbc database connection
+	 * @param column CLOB column
+	 * @param from table and condition selecting a single row, e.g. {@code request_definitions WHERE request_id=?}
+	 * @param threshold maximum number of characters kept in memory
+	 * @param params parameters for the condition
+	 * @return reader or {@code null} if the row was not found or the value is {@code NULL}
+	 * @throws SQLException SQL error
+	 * @throws IOException IO error writing the temporary file
+	 */
+	Reader readClob(Connection dbc, String column, String from, int threshold, Parameter...params) throws SQLException, IOException {
+		if( this == POSTGRES ) {
+			return readClobChunks(dbc, column, from, threshold, params);
+		}
+		try( PreparedStatement ps = dbc.prepareStatement("SELECT "+column+" FROM "+from) ){
+			bind(ps, 1, params);
+			try( ResultSet rs = ps.executeQuery() ){
+				if( !rs.next() ) {
+					return null;
+				}
+				Clob clob = rs.getClob(1);
+				if( clob == null ) {
+					return null;
+				}
+				try( Reader reader = clob.getCharacterStream() ){
+					if( clob.length() < threshold ) {
+						StringBuilder b = new StringBuilder((int)clob.length());
+						char[] buffer = new char[8192];
+						int len;
+						while( (len = reader.read(buffer)) != -1 ) {
+							b.append(buffer, 0, len);
+						}
+						return new StringReader(b.toString());
+					}
+					return temporaryFileReader(reader::transferTo);
+				}
+			}
+		}
+	}
+
+	private static Reader readClobChunks(Connection dbc, String column, String from, int threshold, Parameter...params) throws SQLException, IOException {
+		// small values are retrieved with a single query
+		try( PreparedStatement ps = dbc.prepareStatement("SELECT CHAR_LENGTH("+column+"), CASE WHEN CHAR_LENGTH("+column+")<"+threshold+" THEN "+column+" END FROM "+from) ){
+			bind(ps, 1, params);
+			try( ResultSet rs = ps.executeQuery() ){
+				if( !rs.next() ) {
+					return null;
+				}
+				long length = rs.getLong(1);
+				if( rs.wasNull() ) {
+					return null;
+				}else if( length < threshold ) {
+					return new StringReader(rs.getString(2));
+				}
+			}
+		}
+		boolean autoCommit = dbc.getAutoCommit();
+		if( autoCommit ) {
+			// all chunks are read from the same snapshot
+			dbc.setAutoCommit(false);
+			try( Statement st = dbc.createStatement() ){
+				st.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ, READ ONLY");
+			}
+		}
+		try( PreparedStatement ps = dbc.prepareStatement("SELECT SUBSTRING("+column+" FROM ? FOR "+CLOB_CHUNK_SIZE+") FROM "+from) ){
+			return temporaryFileReader(writer -> {
+				String chunk;
+				// PostgreSQL text values are limited to 1GB
+				int pos = 1;
+				do {
+					ps.setInt(1, pos);
+					bind(ps, 2, params);
+					try( ResultSet rs = ps.executeQuery() ){
+						if( !rs.next() || (chunk = rs.getString(1)) == null ) {
+							// deleted after the length was determined
+							break;
+						}
+					}
+					writer.write(chunk);
+					pos += CLOB_CHUNK_SIZE;
+				}while( chunk.length() == CLOB_CHUNK_SIZE );
+			});
+		}finally {
+			if( autoCommit ) {
+				// read only transaction
+				dbc.rollback();
+				dbc.setAutoCommit(true);
+			}
+		}
+	}
+}
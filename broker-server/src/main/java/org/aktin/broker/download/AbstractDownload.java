@@ -8,6 +8,8 @@ abstract class AbstractDownload implements Download {
 	long expiration;
 	/** unique download id */
 	UUID id;
+	/** registered in the shared database. files are deleted with the database entry */
+	boolean shared;
 
 	@Override
 	public long getExpireTimestamp() {
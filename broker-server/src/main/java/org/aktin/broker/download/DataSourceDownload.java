@@ -81,6 +81,29 @@ public class DataSourceDownload extends AbstractDownload {
 		return ds.getOutputStream();
 	}
 
+	/**
+	 * Get the underlying path, if available
+	 * @return path data source or {@code null} for other data sources
+	 */
+	PathDataSource getPathDataSource() {
+		if( ds instanceof PathDataSource ) {
+			return (PathDataSource)ds;
+		}else {
+			return null;
+		}
+	}
+	@Override
+	public Path getFile() {
+		PathDataSource pds = getPathDataSource();
+		if( pds == null || pds.getContentEncoding() != null ) {
+			return null;
+		}
+		return pds.getPath();
+	}
+	boolean isDeletePath() {
+		return deletePath;
+	}
+
 	@Override
 	void postRemovalCleanup() {
 		if( deletePath ) {
@@ -1,5 +1,6 @@
 package org.aktin.broker.download;
 
+import java.nio.file.Path;
 import java.util.UUID;
 
 import org.aktin.broker.server.DateDataSource;
@@ -9,4 +10,13 @@ public interface Download extends DateDataSource{
 	public UUID getId();
 	public long getExpireTimestamp();
 
+	/**
+	 * Get the file containing the download data as is. Allows
+	 * serving byte ranges without reading the preceding data.
+	 * @return file or {@code null} if the data is not available as uncompressed file
+	 */
+	public default Path getFile() {
+		return null;
+	}
+
 }
@@ -1,13 +1,24 @@
 package org.aktin.broker.download;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.activation.DataSource;
@@ -25,6 +36,13 @@ import org.aktin.broker.util.PathDataSource;
  * request downloads) from the actual download. The browser does
  * not send authentication headers (e.g. bearer token) to
  * download links.
+ * <p>
+ * If multiple broker instances are used, downloads can be registered
+ * in the shared database via {@link #setSharedDatabase(javax.sql.DataSource)}.
+ * Any instance can then serve the download, as long as the files are
+ * accessible by all instances (e.g. shared temporary directory). Downloads
+ * are kept in memory as near-cache.
+ * </p>
  *
  * @author R.W.Majeed
  *
@@ -36,6 +54,7 @@ public class DownloadManager {
 	private long expirationMillis;
 	private Hashtable<UUID, AbstractDownload> store;
 	private Path tempDir;
+	private javax.sql.DataSource sharedDB;
 
 	public DownloadManager() {
 		store = new Hashtable<>();
@@ -59,6 +78,15 @@ public class DownloadManager {
 		Files.createDirectories(tempDir);
 	}
 
+	/**
+	 * Register downloads in the database shared by all broker instances.
+	 * Only downloads backed by files can be shared.
+	 * @param ds shared broker database
+	 */
+	public void setSharedDatabase(javax.sql.DataSource ds) {
+		this.sharedDB = ds;
+	}
+
 	/**
 	 * Retrieve a download for the given id. Non-existing
 	 * and expired downloads will return {@code null}.
@@ -68,7 +96,66 @@ public class DownloadManager {
 	 */
 	public Download get(UUID id) throws IOException {
 		cleanupExpired();
-		return store.get(id);
+		AbstractDownload download = store.get(id);
+		if( download == null && sharedDB != null ) {
+			// download created by another instance
+			try {
+				download = loadShared(id);
+			} catch (SQLException e) {
+				throw new IOException("Unable to load download "+id, e);
+			}
+			if( download != null ) {
+				store.put(id, download);
+			}
+		}
+		return download;
+	}
+
+	private AbstractDownload loadShared(UUID id) throws SQLException {
+		try( Connection dbc = sharedDB.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("SELECT name, media_type, last_modified, data_file, expiration, content_encoding, data_size FROM downloads WHERE id=? AND expiration>=?") ){
+			ps.setString(1, id.toString());
+			ps.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+			try( ResultSet rs = ps.executeQuery() ){
+				if( !rs.next() ) {
+					return null;
+				}
+				Timestamp lastModified = rs.getTimestamp(3);
+				PathDataSource ds = new PathDataSource(Paths.get(rs.getString(4)), rs.getString(2), lastModified == null ? null : lastModified.toInstant());
+				long size = rs.getLong(7);
+				ds.setContentEncoding(rs.getString(6), rs.wasNull() ? null : size);
+				DataSourceDownload download = new DataSourceDownload(ds);
+				download.setName(rs.getString(1));
+				download.expiration = rs.getTimestamp(5).getTime();
+				download.id = id;
+				download.shared = true;
+				return download;
+			}
+		}
+	}
+
+	private void insertShared(DataSourceDownload download, PathDataSource ds) throws SQLException {
+		try( Connection dbc = sharedDB.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("INSERT INTO downloads(id, name, media_type, last_modified, data_file, delete_file, expiration, content_encoding, data_size)VALUES(?,?,?,?,?,?,?,?,?)") ){
+			ps.setString(1, download.id.toString());
+			ps.setString(2, download.getName());
+			ps.setString(3, ds.getContentType());
+			if( ds.getLastModified() != null ) {
+				ps.setTimestamp(4, Timestamp.from(ds.getLastModified()));
+			}else {
+				ps.setTimestamp(4, null);
+			}
+			ps.setString(5, ds.getPath().toAbsolutePath().toString());
+			ps.setBoolean(6, download.isDeletePath());
+			ps.setTimestamp(7, new Timestamp(download.expiration));
+			ps.setString(8, ds.getContentEncoding());
+			if( ds.getContentEncoding() != null && ds.getContentLength() != null ) {
+				ps.setLong(9, ds.getContentLength());
+			}else {
+				ps.setNull(9, Types.BIGINT);
+			}
+			ps.executeUpdate();
+		}
 	}
 
 	/**
@@ -80,10 +167,10 @@ public class DownloadManager {
 	 */
 	public Download createDataSourceDownload(DataSource ds, String name) {
 		DataSourceDownload download = new DataSourceDownload(ds);
-		addDownload(download);
 		if( name != null ) {
 			download.setName(name);
 		}
+		addDownload(download);
 		return download;
 	}
 
@@ -92,10 +179,23 @@ public class DownloadManager {
 	 * to the list.
 	 * @param download download
 	 */
-	private void addDownload(AbstractDownload download) {
+	private void addDownload(DataSourceDownload download) {
 		download.expiration = System.currentTimeMillis()+expirationMillis;
 		download.id = UUID.randomUUID();
 
+		if( sharedDB != null ) {
+			PathDataSource ds = download.getPathDataSource();
+			if( ds != null ) {
+				try {
+					insertShared(download, ds);
+				} catch (SQLException e) {
+					throw new UncheckedIOException(new IOException("Unable to register shared download", e));
+				}
+				download.shared = true;
+			}else {
+				log.warning("Download "+download.id+" not shared with other instances, no file available");
+			}
+		}
 		store.put(download.id, download);
 		log.info("Download added with UUID "+download.id);
 	}
@@ -135,7 +235,53 @@ public class DownloadManager {
 			if( entry.getExpireTimestamp() < now ) {
 				log.info("Expired download "+entry.getId());
 				i.remove();
-				entry.postRemovalCleanup();
+				if( !entry.shared ) {
+					entry.postRemovalCleanup();
+				}
+			}
+		}
+		if( sharedDB != null ) {
+			try {
+				cleanupExpiredShared(now);
+			} catch (SQLException e) {
+				throw new IOException("Unable to remove expired downloads", e);
+			}
+		}
+	}
+
+	/**
+	 * Remove expired downloads from the shared database. The instance which
+	 * removes the entry deletes the temporary file.
+	 * @param now current timestamp
+	 * @throws SQLException SQL error
+	 */
+	private void cleanupExpiredShared(long now) throws SQLException {
+		List<String[]> expired = new ArrayList<>();
+		try( Connection dbc = sharedDB.getConnection() ){
+			try( PreparedStatement ps = dbc.prepareStatement("SELECT id, data_file, delete_file FROM downloads WHERE expiration<?") ){
+				ps.setTimestamp(1, new Timestamp(now));
+				try( ResultSet rs = ps.executeQuery() ){
+					while( rs.next() ) {
+						expired.add(new String[] {rs.getString(1), rs.getBoolean(3) ? rs.getString(2) : null});
+					}
+				}
+			}
+			if( expired.isEmpty() ) {
+				return;
+			}
+			try( PreparedStatement ps = dbc.prepareStatement("DELETE FROM downloads WHERE id=?") ){
+				for( String[] entry : expired ) {
+					ps.setString(1, entry[0]);
+					if( ps.executeUpdate() == 1 && entry[1] != null ) {
+						Path path = Paths.get(entry[1]);
+						try {
+							Files.deleteIfExists(path);
+							log.info("Download "+entry[0]+" file "+path+" deleted");
+						} catch (IOException e) {
+							log.log(Level.WARNING, "Download "+entry[0]+" failed to delete file "+path, e);
+						}
+					}
+				}
 			}
 		}
 	}
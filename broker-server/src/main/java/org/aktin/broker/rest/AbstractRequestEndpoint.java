@@ -2,15 +2,22 @@ package org.aktin.broker.rest;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.io.StringReader;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
 
 import javax.ws.rs.NotAcceptableException;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
 import org.aktin.broker.db.BrokerBackend;
+import org.aktin.broker.util.CachedRequestDefinition;
 import org.aktin.broker.util.RequestConverter;
 import org.aktin.broker.util.RequestTypeManager;
 
@@ -30,25 +37,82 @@ public abstract class AbstractRequestEndpoint {
 		return new MediaType(type.getType(), type.getSubtype());
 	}
 
-	protected Response getRequest(int requestId, List<MediaType> accept) throws SQLException, IOException, NotFoundException, NotAcceptableException{
+	/**
+	 * Determine whether the client accepts gzip content encoding
+	 * @param headers request headers
+	 * @return true if gzip is acceptable
+	 */
+	static boolean acceptsGzip(HttpHeaders headers){
+		List<String> values = headers.getRequestHeader(HttpHeaders.ACCEPT_ENCODING);
+		if( values == null ){
+			return false;
+		}
+		for( String value : values ){
+			for( String coding : value.split(",") ){
+				String[] parts = coding.trim().split(";");
+				if( parts[0].trim().equalsIgnoreCase("gzip") ){
+					// gzip;q=0 means not acceptable
+					return !(parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?"));
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Retrieve the request definition matching the Accept header. Definitions are served from the
+	 * backend's definition cache with entity tag and gzip compression, if accepted by the client.
+	 *
+	 * @param requestId request id
+	 * @param headers request headers containing acceptable media types and encodings
+	 * @param request request used to evaluate {@code If-None-Match} preconditions
+	 * @return response containing the definition or 304 if not modified
+	 * @throws SQLException SQL error
+	 * @throws IOException IO error
+	 * @throws NotFoundException request id does not exist
+	 * @throws NotAcceptableException requested media type not available
+	 */
+	protected Response getRequestDefinition(int requestId, HttpHeaders headers, Request request) throws SQLException, IOException, NotFoundException, NotAcceptableException{
 		MediaType[] available = getTypeManager().createMediaTypes(getBroker().getRequestTypes(requestId));
 		if( available.length == 0 ){
 			throw new NotFoundException();
 		}
 		// find acceptable request definition
-		RequestConverter rc = getTypeManager().buildConverterChain(accept, Arrays.asList(available));
+		RequestConverter rc = getTypeManager().buildConverterChain(headers.getAcceptableMediaTypes(), Arrays.asList(available));
 	
 		if( rc == null ){
 			// no acceptable response type available
 			throw new NotAcceptableException();
 			// could also return Response.notAcceptable(Variant.mediaTypes(available).build()).build();
-		}else{
-			Reader def = getBroker().getRequestDefinition(requestId, rc.getConsumedType());
+		}
+		// output using UTF-8. The HTTP default charset ISO-8859-1 has some missing characters like e.g Euro sign.
+		MediaType produced = MediaType.valueOf(rc.getProducedType()).withCharset("UTF-8");
+		CachedRequestDefinition def = getBroker().getCachedRequestDefinition(requestId, rc.getConsumedType());
+		if( def == null ){
+			// too large for the cache, stream without entity tag
+			Reader reader = getBroker().getRequestDefinition(requestId, rc.getConsumedType());
+			if( reader == null ){
+				// removed concurrently
+				throw new NotFoundException();
+			}
+			return Response.ok(rc.transform(reader), produced).build();
+		}
+		if( !rc.getProducedType().equals(rc.getConsumedType()) ){
 			// transform
-			def = rc.transform(def);
-			// output using UTF-8. The HTTP default charset ISO-8859-1 has some missing characters like e.g Euro sign.
-			return Response.ok(def, MediaType.valueOf(rc.getProducedType()).withCharset("UTF-8")).build();
+			return Response.ok(rc.transform(new StringReader(def.getContent())), produced).build();
+		}
+		// identity transformation, use the prepared representations
+		boolean gzip = acceptsGzip(headers) && def.getGzipData().length < def.getData().length;
+		// each encoding is a separate representation with its own strong entity tag
+		EntityTag tag = new EntityTag(gzip?def.getEntityTag()+"-gzip":def.getEntityTag());
+		ResponseBuilder rb = request.evaluatePreconditions(tag);
+		if( rb == null ){
+			rb = Response.ok(gzip?def.getGzipData():def.getData(), produced);
+			if( gzip ){
+				rb.encoding("gzip");
+			}
 		}
+		return rb.tag(tag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
 	}
 
 }
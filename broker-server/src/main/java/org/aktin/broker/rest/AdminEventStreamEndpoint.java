@@ -0,0 +1,172 @@
+package org.aktin.broker.rest;
+
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.sse.OutboundSseEvent;
+import javax.ws.rs.sse.Sse;
+import javax.ws.rs.sse.SseEventSink;
+
+import org.aktin.broker.websocket.AbstractBroadcastWebsocket;
+import org.aktin.broker.websocket.OutboundQueue;
+import org.aktin.broker.websocket.RequestAdminWebsocket;
+
+/**
+ * Server-sent events for admin notifications. Alternative to the
+ * {@link RequestAdminWebsocket} for environments where websocket upgrades
+ * are not well supported, e.g. reverse proxies using HTTP/2.
+ * <p>
+ * Each event carries the same single-line notation as the websocket
+ * (e.g. {@code published 1}) as data. The event name is the first word of
+ * the notation. The event id is a cursor which can be sent via {@code Last-Event-ID}
+ * on reconnect to receive missed events. If missed events are no longer available
+ * or no {@code Last-Event-ID} is sent, the stream starts with a {@code reset} event.
+ * </p>
+ * <p>
+ * Each stream has a bounded outbound queue like the websocket sessions. Idle streams
+ * receive an empty comment every {@value #KEEPALIVE_MILLIS} milliseconds.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Authenticated
+@RequireAdmin
+@Path(AdminEventStreamEndpoint.REST_PATH)
+public class AdminEventStreamEndpoint {
+	private static final Logger log = Logger.getLogger(AdminEventStreamEndpoint.class.getName());
+	public static final String REST_PATH = "/broker/events";
+
+	/** interval between keep-alive comments on idle streams */
+	static final long KEEPALIVE_MILLIS = 20000;
+
+	/** sends the events, since a sink may write synchronously. At most one send is in progress for each stream */
+	private static final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+		Thread t = new Thread(r, "admin-event-stream");
+		t.setDaemon(true);
+		return t;
+	});
+	/** sends keep-alive comments to idle streams */
+	private static final ScheduledExecutorService keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "admin-event-stream-keepalive");
+		t.setDaemon(true);
+		return t;
+	});
+	/** open streams */
+	private static final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+
+	static {
+		keepAlive.scheduleWithFixedDelay(() -> subscriptions.forEach(Subscription::keepAlive), KEEPALIVE_MILLIS, KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Bounded outbound queue of a single stream, with the same capacity
+	 * and overflow policy as the websocket sessions.
+	 */
+	private static class Subscription extends OutboundQueue<OutboundSseEvent> implements RequestAdminWebsocket.EventListener{
+		private final SseEventSink sink;
+		private final Sse sse;
+
+		Subscription(SseEventSink sink, Sse sse){
+			super(AbstractBroadcastWebsocket.getQueueCapacity(), AbstractBroadcastWebsocket.getOverflowPolicy());
+			this.sink = sink;
+			this.sse = sse;
+		}
+
+		@Override
+		public void onEvent(String cursor, String event) {
+			int sep = event.indexOf(' ');
+			offer(sse.newEventBuilder()
+					.id(cursor)
+					.name(sep == -1 ? event : event.substring(0, sep))
+					.data(event)
+					.build());
+		}
+
+		@Override
+		protected boolean isDuplicate(OutboundSseEvent queued, OutboundSseEvent event) {
+			return Objects.equals(queued.getData(), event.getData());
+		}
+
+		/**
+		 * Send a comment if the stream is idle, to keep proxies from closing
+		 * the connection and to detect closed streams
+		 */
+		void keepAlive() {
+			offerIfIdle(sse.newEventBuilder().comment("").build());
+		}
+
+		@Override
+		protected void transmit(OutboundSseEvent e) {
+			executor.execute(() -> {
+				if( sink.isClosed() ) {
+					closeStream();
+					completed(false);
+					return;
+				}
+				CompletionStage<?> stage;
+				try {
+					stage = sink.send(e);
+				}catch( RuntimeException t ) {
+					failed(t);
+					return;
+				}
+				stage.whenComplete((result, t) -> {
+					if( t != null ) {
+						failed(t);
+					}else {
+						completed(true);
+					}
+				});
+			});
+		}
+
+		private void failed(Throwable t) {
+			log.log(Level.INFO, "Closing admin event stream after failed send: {0}", t.getMessage());
+			closeStream();
+			completed(false);
+		}
+
+		@Override
+		protected void overflow() {
+			log.warning("Closing slow admin event stream: outbound queue overflow");
+			closeStream();
+		}
+
+		private void closeStream() {
+			close();
+			subscriptions.remove(this);
+			RequestAdminWebsocket.removeEventListener(this);
+			sink.close();
+		}
+	}
+
+	/**
+	 * Subscribe to admin notifications.
+	 * @param lastEventId id of the last event received via a previous connection
+	 * @param sink event sink
+	 * @param sse event builder
+	 */
+	@GET
+	@Produces(MediaType.SERVER_SENT_EVENTS)
+	public void subscribe(@HeaderParam(HttpHeaders.LAST_EVENT_ID_HEADER) String lastEventId, @Context SseEventSink sink, @Context Sse sse) {
+		Subscription s = new Subscription(sink, sse);
+		subscriptions.add(s);
+		RequestAdminWebsocket.addEventListener(s, lastEventId);
+	}
+}
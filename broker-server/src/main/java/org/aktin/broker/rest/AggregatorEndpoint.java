@@ -1,29 +1,38 @@
 package org.aktin.broker.rest;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.sql.SQLException;
-import java.util.Date;
+import java.util.Base64;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
 import javax.ws.rs.BadRequestException;
+import javax.ws.rs.DELETE;
 import javax.ws.rs.ForbiddenException;
 import javax.ws.rs.GET;
+import javax.ws.rs.HEAD;
 import javax.ws.rs.HeaderParam;
 import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.NotFoundException;
+import javax.ws.rs.PATCH;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.SecurityContext;
+import javax.ws.rs.core.UriInfo;
 
 import org.aktin.broker.auth.Principal;
 import org.aktin.broker.db.AggregatorBackend;
@@ -31,7 +40,6 @@ import org.aktin.broker.download.Download;
 import org.aktin.broker.download.DownloadManager;
 import org.aktin.broker.download.RequestBundleExport;
 import org.aktin.broker.server.DateDataSource;
-import org.aktin.broker.util.FileStreamingResponse;
 import org.aktin.broker.util.PathDataSource;
 import org.aktin.broker.websocket.RequestAdminWebsocket;
 import org.aktin.broker.xml.ResultInfo;
@@ -41,11 +49,15 @@ import org.aktin.broker.xml.ResultList;
 public class AggregatorEndpoint {
 	private static final Logger log = Logger.getLogger(AggregatorEndpoint.class.getName());
 	public static final String SERVICE_URL = "/aggregator/";
+	/** number of bytes received for a resumable upload */
+	public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
 
 	@Inject
 	private AggregatorBackend db;
 	@Inject
 	private DownloadManager downloads;
+	@Context
+	private Request request;
 
 	private boolean isRequestWritable(int requestId, int nodeId){
 		// check if request is open for writing results (e.g. not closed)
@@ -78,6 +90,206 @@ public class AggregatorEndpoint {
 		}
 	}
 	
+	private int checkWritable(String requestId, Principal user) {
+		int request;
+		try {
+			request = Integer.parseInt(requestId);
+		}catch( NumberFormatException e ) {
+			throw new NotFoundException();
+		}
+		if( !isRequestWritable(request, user.getNodeId()) ){
+			throw new ForbiddenException();
+		}
+		return request;
+	}
+
+	/**
+	 * Start a resumable upload of a result. Result data is then sent in one or more chunks
+	 * via {@link #appendResultUpload(String, String, Long, SecurityContext, InputStream)}
+	 * and stored via {@link #completeResultUpload(String, String, String, SecurityContext)}.
+	 * Interrupted uploads are continued at the offset reported by
+	 * {@link #getResultUploadOffset(String, String, SecurityContext)}.
+	 * @param requestId request id
+	 * @param type media type of the result
+	 * @param sec security context
+	 * @param info URI info for the response location
+	 * @return status 201 with the upload id as body and location header
+	 */
+	@Authenticated
+	@POST
+	@Path("my/request/{id}/result/upload")
+	@Produces(MediaType.TEXT_PLAIN)
+	public Response createResultUpload(@PathParam("id") String requestId, @HeaderParam("Content-type") MediaType type, @Context SecurityContext sec, @Context UriInfo info){
+		Principal user = (Principal)sec.getUserPrincipal();
+		if( type == null ) {
+			throw new BadRequestException("required Content-type header missing");
+		}
+		int request = checkWritable(requestId, user);
+		try {
+			String uploadId = db.createResultUpload(request, user.getNodeId(), type);
+			log.info("Result upload "+uploadId+" started by node "+user.getNodeId()+": "+type.toString());
+			return Response.created(info.getAbsolutePathBuilder().path(uploadId).build()).entity(uploadId).build();
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, "Unable to create upload", e);
+			throw new InternalServerErrorException();
+		}
+	}
+
+	/**
+	 * Get the number of bytes received for a resumable upload
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @param sec security context
+	 * @return status 200 with {@value #UPLOAD_OFFSET_HEADER} header
+	 */
+	@Authenticated
+	@HEAD
+	@Path("my/request/{id}/result/upload/{uploadId}")
+	public Response getResultUploadOffset(@PathParam("id") String requestId, @PathParam("uploadId") String uploadId, @Context SecurityContext sec){
+		Principal user = (Principal)sec.getUserPrincipal();
+		int request = checkWritable(requestId, user);
+		long offset;
+		try {
+			offset = db.getResultUploadOffset(uploadId, request, user.getNodeId());
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, "Unable to retrieve upload offset", e);
+			throw new InternalServerErrorException();
+		}
+		if( offset == -1 ) {
+			throw new NotFoundException();
+		}
+		return Response.ok().header(UPLOAD_OFFSET_HEADER, offset).build();
+	}
+
+	/**
+	 * Append a chunk of data to a resumable upload. If the offset does not match the
+	 * number of received bytes, the chunk is rejected with status 409 and the current offset.
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @param offset position of the first byte of the chunk
+	 * @param sec security context
+	 * @param content chunk data
+	 * @return status 204 with the new {@value #UPLOAD_OFFSET_HEADER}
+	 */
+	@Authenticated
+	@PATCH
+	@Path("my/request/{id}/result/upload/{uploadId}")
+	public Response appendResultUpload(@PathParam("id") String requestId, @PathParam("uploadId") String uploadId, @HeaderParam(UPLOAD_OFFSET_HEADER) Long offset, @Context SecurityContext sec, InputStream content){
+		Principal user = (Principal)sec.getUserPrincipal();
+		if( offset == null ) {
+			throw new BadRequestException("required "+UPLOAD_OFFSET_HEADER+" header missing");
+		}
+		int request = checkWritable(requestId, user);
+		long received;
+		try {
+			received = db.appendResultUpload(uploadId, request, user.getNodeId(), offset, content);
+		} catch( IllegalStateException e ) {
+			// the servlet container replaces the headers of error responses without entity
+			long current;
+			try {
+				current = db.getResultUploadOffset(uploadId, request, user.getNodeId());
+			} catch (SQLException e1) {
+				log.log(Level.SEVERE, "Unable to retrieve upload offset", e1);
+				throw new InternalServerErrorException();
+			}
+			return Response.status(Status.CONFLICT).header(UPLOAD_OFFSET_HEADER, current)
+					.entity(e.getMessage()).type(MediaType.TEXT_PLAIN_TYPE).build();
+		} catch (SQLException | IOException e) {
+			log.log(Level.WARNING, "Unable to append to upload "+uploadId, e);
+			throw new InternalServerErrorException();
+		}
+		if( received == -1 ) {
+			throw new NotFoundException();
+		}
+		return Response.noContent().header(UPLOAD_OFFSET_HEADER, received).build();
+	}
+
+	/**
+	 * Complete a resumable upload and store the received data as result.
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @param digest SHA-256 digest of the complete data, e.g. {@code sha-256=<base64>}
+	 * @param sec security context
+	 * @return status 204, 400 if the digest does not match. The upload is removed in both cases.
+	 */
+	@Authenticated
+	@POST
+	@Path("my/request/{id}/result/upload/{uploadId}")
+	public Response completeResultUpload(@PathParam("id") String requestId, @PathParam("uploadId") String uploadId, @HeaderParam("Digest") String digest, @Context SecurityContext sec){
+		Principal user = (Principal)sec.getUserPrincipal();
+		int request = checkWritable(requestId, user);
+		byte[] sha256 = parseSha256Digest(digest);
+		if( sha256 == null ) {
+			throw new BadRequestException("required Digest header with sha-256 missing");
+		}
+		String type;
+		try {
+			type = db.completeResultUpload(uploadId, request, user.getNodeId(), sha256);
+		} catch( IllegalArgumentException e ) {
+			log.warning("Result upload "+uploadId+" from node "+user.getNodeId()+" discarded: "+e.getMessage());
+			throw new BadRequestException(e.getMessage());
+		} catch( IllegalStateException e ) {
+			throw new WebApplicationException(e.getMessage(), Status.CONFLICT);
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, "Unable to persist data", e);
+			throw new InternalServerErrorException();
+		}
+		if( type == null ) {
+			throw new NotFoundException();
+		}
+		log.info("Result upload "+uploadId+" completed by node "+user.getNodeId());
+		RequestAdminWebsocket.broadcastNodeResult(request, user.getNodeId(), type);
+		return Response.noContent().build();
+	}
+
+	/**
+	 * Abort a resumable upload and delete the received data
+	 * @param requestId request id
+	 * @param uploadId upload id
+	 * @param sec security context
+	 */
+	@Authenticated
+	@DELETE
+	@Path("my/request/{id}/result/upload/{uploadId}")
+	public void deleteResultUpload(@PathParam("id") String requestId, @PathParam("uploadId") String uploadId, @Context SecurityContext sec){
+		Principal user = (Principal)sec.getUserPrincipal();
+		int request = checkWritable(requestId, user);
+		boolean deleted;
+		try {
+			deleted = db.deleteResultUpload(uploadId, request, user.getNodeId());
+		} catch (SQLException e) {
+			log.log(Level.SEVERE, "Unable to delete upload", e);
+			throw new InternalServerErrorException();
+		}
+		if( !deleted ) {
+			throw new NotFoundException();
+		}
+	}
+
+	/**
+	 * Parse the SHA-256 value of a {@code Digest} header (RFC 3230)
+	 * @param header header value, e.g. {@code sha-256=X48E9qOokqqrvdts8nOJRJN3OWDUoyWxBf7kbu9DBPE=}
+	 * @return digest or {@code null} if not present or invalid
+	 */
+	static byte[] parseSha256Digest(String header) {
+		if( header == null ) {
+			return null;
+		}
+		for( String part : header.split(",") ) {
+			part = part.trim();
+			int eq = part.indexOf('=');
+			if( eq != -1 && part.substring(0, eq).equalsIgnoreCase("sha-256") ) {
+				try {
+					byte[] digest = Base64.getDecoder().decode(part.substring(eq+1));
+					return digest.length == 32 ? digest : null;
+				}catch( IllegalArgumentException e ) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
 	@Authenticated
 	@RequireAdmin
 	@GET
@@ -144,18 +356,14 @@ public class AggregatorEndpoint {
 	@RequireAdmin
 	@GET
 	@Path("request/{id}/result/{nodeId}")
-	public Response getResultNodeDataStream(@PathParam("id") int requestId, @PathParam("nodeId") int nodeId){
+	public Response getResultNodeDataStream(@PathParam("id") int requestId, @PathParam("nodeId") int nodeId, @Context HttpHeaders headers) throws IOException{
 		DateDataSource data = getResultForNode(requestId, nodeId);
 		// this should be changed later to use the interface e.g. passing the path via interface
 		if( !(data instanceof PathDataSource) ) {
 			throw new InternalServerErrorException("Unexpected interface for result data source");
 		}
-		PathDataSource path = (PathDataSource)data;
-
-		return Response.ok(new FileStreamingResponse(path.getPath()), data.getContentType())
-			.lastModified(Date.from(data.getLastModified()))
-			.header("Content-length", data.getContentLength())
-			.build();
+		// stored compressed data is sent as is if accepted by the client
+		return StoredDataResponse.build((PathDataSource)data, request, headers).build();
 	}
 
 }
@@ -1,7 +1,7 @@
 package org.aktin.broker.rest;
 
 import java.io.IOException;
-import java.sql.Date;
+import java.util.Date;
 import java.util.UUID;
 import java.util.logging.Logger;
 
@@ -10,6 +10,7 @@ import javax.ws.rs.GET;
 import javax.ws.rs.NotFoundException;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
@@ -34,13 +35,18 @@ public class DownloadEndpoint {
 	/**
 	 * Retrieve a download. This method is not authenticated on purpose, as the download id
 	 * can not be guessed and authentication was already required for creation of the download link.
+	 * <p>
+	 * Downloads backed by a file support byte range requests, so that interrupted
+	 * downloads can be resumed.
+	 * </p>
 	 * @param id download id
+	 * @param headers request headers containing {@code Range} and {@code If-Range}
 	 * @return download content stream
 	 * @throws IOException IO error
 	 */
 	@GET
 	@Path("{id}")
-	public Response download(@PathParam("id") String id) throws IOException {
+	public Response download(@PathParam("id") String id, @Context HttpHeaders headers) throws IOException {
 		System.err.println("Download requested for "+id);
 		UUID uuid;
 		Download download;
@@ -56,16 +62,25 @@ public class DownloadEndpoint {
 			log.info("No download found with UUID "+uuid);
 			throw new NotFoundException();
 		}
+		Date lastModified = null;
+		if( download.getLastModified() != null ) {
+			lastModified = Date.from(download.getLastModified());
+		}
 		// add media type
 		ResponseBuilder rb;
-		rb = Response.ok(download.getInputStream(), download.getContentType());
-		if( download.getLastModified() != null ) {
-			rb.lastModified(Date.from(download.getLastModified()));
+		if( download.getFile() != null ) {
+			// send file directly, with support for ranges
+			rb = RangeResponse.build(download.getFile(), download.getContentType(), headers, null, lastModified);
+		}else {
+			rb = Response.ok(download.getInputStream(), download.getContentType());
+			// add content length header if available
+			Long contentLength = download.getContentLength();
+			if( contentLength != null ) {
+				rb.header(HttpHeaders.CONTENT_LENGTH, contentLength);
+			}
 		}
-		// add content length header if available
-		Long contentLength = download.getContentLength();
-		if( contentLength != null ) {
-			rb.header(HttpHeaders.CONTENT_LENGTH, contentLength);
+		if( lastModified != null ) {
+			rb.lastModified(lastModified);
 		}
 		// add file name if available
 		if( download.getName() != null ) {
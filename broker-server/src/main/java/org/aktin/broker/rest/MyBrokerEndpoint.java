@@ -5,12 +5,15 @@ import java.io.InputStream;
 import java.io.Reader;
 import java.sql.SQLException;
 import java.util.Date;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
+import javax.ws.rs.BadRequestException;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.InternalServerErrorException;
 import javax.ws.rs.NotFoundException;
@@ -20,15 +23,22 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.SecurityContext;
 
 import org.aktin.broker.auth.Principal;
 import org.aktin.broker.db.BrokerBackend;
 import org.aktin.broker.util.RequestTypeManager;
+import org.aktin.broker.websocket.MyBrokerWebsocket;
 import org.aktin.broker.websocket.RequestAdminWebsocket;
 import org.aktin.broker.xml.Node;
 import org.aktin.broker.xml.RequestInfo;
@@ -88,20 +98,89 @@ public class MyBrokerEndpoint extends AbstractRequestEndpoint{
 		}
 	}
 
-	// list requests for the calling node
+	/**
+	 * List requests for the calling node. The response carries an entity tag
+	 * which changes whenever the node's request list changes. Clients sending
+	 * the tag via {@code If-None-Match} will receive {@code 304 Not Modified}
+	 * if the list did not change.
+	 *
+	 * @param sec security context
+	 * @param request request used to evaluate preconditions
+	 * @return request list or 304 response
+	 */
 	@GET
 	@Path("request")
 	@Produces(MediaType.APPLICATION_XML)
-	public RequestList listNodesRequests(@Context SecurityContext sec){
+	public Response listNodesRequests(@Context SecurityContext sec, @Context Request request){
 		Principal user = (Principal)sec.getUserPrincipal();
+		// determine the version before loading the list. concurrent modifications will change the version
+		EntityTag tag = new EntityTag(db.getRequestListVersion(user.getNodeId()));
+		ResponseBuilder rb = request.evaluatePreconditions(tag);
+		if( rb != null ){
+			// not modified
+			return rb.build();
+		}
 		try {
-			return new RequestList(db.listRequestsForNode(user.getNodeId()));
+			return Response.ok(new RequestList(db.listRequestsForNode(user.getNodeId()))).tag(tag).build();
 		} catch (SQLException e) {
 			log.log(Level.SEVERE, "Unable to read requests for nodeId="+user.getNodeId(), e);
 			throw new InternalServerErrorException(e);
 		}
 	}
 	
+	/** maximum time a long-poll request is suspended */
+	static final int MAX_EVENTS_TIMEOUT_SECONDS = 300;
+
+	/**
+	 * Long-poll for notifications. Alternative to the websocket for nodes
+	 * which cannot hold a websocket connection. If notifications after the
+	 * cursor are available, the response is sent immediately. Otherwise,
+	 * the request is suspended without blocking a server thread until
+	 * a notification for the node arrives or the timeout elapses.
+	 * <p>
+	 * The response contains one notification per line, prefixed by its sequence
+	 * number, followed by {@code resumed <cursor>}. The cursor is passed to the
+	 * next call. If the given cursor is empty or notifications were missed,
+	 * the response is {@code reset <cursor>} and the node should check its
+	 * request list.
+	 * </p>
+	 * <p>
+	 * Cursors are only valid for the broker instance which issued them. With
+	 * multiple instances behind a load balancer, sticky sessions are required.
+	 * </p>
+	 * @param cursor cursor from the previous response, empty for the first call
+	 * @param timeoutSeconds maximum time to wait for notifications, limited to {@value #MAX_EVENTS_TIMEOUT_SECONDS}
+	 * @param sec security context
+	 * @param response asynchronous response
+	 */
+	@GET
+	@Path("events")
+	@Produces(MediaType.TEXT_PLAIN)
+	public void awaitEvents(@QueryParam("cursor") @DefaultValue("") String cursor, @QueryParam("timeout") @DefaultValue("60") int timeoutSeconds, @Context SecurityContext sec, @Suspended AsyncResponse response) {
+		if( timeoutSeconds < 0 ) {
+			throw new BadRequestException("Negative timeout not allowed");
+		}
+		Principal user = (Principal)sec.getUserPrincipal();
+		Supplier<String> cancel = MyBrokerWebsocket.awaitEvents(user, cursor, response::resume);
+		if( response.isDone() ) {
+			return;
+		}else if( timeoutSeconds == 0 ) {
+			// no waiting, a zero timeout would suspend indefinitely
+			String empty = cancel.get();
+			if( empty != null ) {
+				response.resume(empty);
+			}
+			return;
+		}
+		response.setTimeoutHandler(r -> {
+			String empty = cancel.get();
+			if( empty != null ) {
+				r.resume(empty);
+			}
+		});
+		response.setTimeout(Math.min(timeoutSeconds, MAX_EVENTS_TIMEOUT_SECONDS), TimeUnit.SECONDS);
+	}
+
 	@OPTIONS
 	@Path("request/{id}")
 	public RequestInfo getNodesRequestInfo(@PathParam("id") Integer requestId, @Context SecurityContext sec, @Context HttpHeaders headers) throws SQLException, IOException{
@@ -115,11 +194,10 @@ public class MyBrokerEndpoint extends AbstractRequestEndpoint{
 	@GET
 	@Path("request/{id}")
 	// response type depends on the data
-	public Response getNodesRequest(@PathParam("id") Integer requestId, @Context SecurityContext sec, @Context HttpHeaders headers) throws SQLException, IOException{
+	public Response getNodesRequest(@PathParam("id") Integer requestId, @Context SecurityContext sec, @Context HttpHeaders headers, @Context Request request) throws SQLException, IOException{
 //		Principal user = (Principal)sec.getUserPrincipal();
-		List<MediaType> accept = headers.getAcceptableMediaTypes();
 		// TODO for */* and only single request definition, return that definition
-		Response resp = getRequest(requestId, accept);
+		Response resp = getRequestDefinition(requestId, headers, request);
 		//  don't set the status automatically. the client might fail during storage. let the client set the #retrieved status
 //		if( resp.getStatus() == 200 ){
 //			// set retrieved timestamp
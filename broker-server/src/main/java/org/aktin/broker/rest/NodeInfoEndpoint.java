@@ -1,9 +1,8 @@
 package org.aktin.broker.rest;
 
+import java.io.IOException;
 import java.sql.SQLException;
-import java.util.Base64;
 import java.util.Collections;
-import java.util.Date;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,6 +16,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.CacheControl;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
@@ -25,7 +25,8 @@ import javax.ws.rs.core.Response.ResponseBuilder;
 import org.aktin.broker.auth.AuthCache;
 import org.aktin.broker.db.BrokerBackend;
 import org.aktin.broker.server.DateDataSource;
-import org.aktin.broker.util.DigestPathDataSource;
+import org.aktin.broker.util.PathDataSource;
+import org.aktin.broker.websocket.MyBrokerWebsocket;
 import org.aktin.broker.xml.Node;
 import org.aktin.broker.xml.NodeList;
 
@@ -53,6 +54,7 @@ public class NodeInfoEndpoint {
 		try {
 			List<Node> nodes = db.getAllNodes();
 			auth.fillCachedAccessTimestamps(nodes);
+			MyBrokerWebsocket.fillRoundTripTimes(nodes);
 			return Response.ok(new NodeList(nodes)).build();
 			// look up cached last contact in AuthCache
 		} catch (SQLException e) {
@@ -79,6 +81,7 @@ public class NodeInfoEndpoint {
 			}
 			// look up cached last contact in AuthCache
 			auth.fillCachedAccessTimestamps(Collections.singletonList(node));
+			MyBrokerWebsocket.fillRoundTripTimes(Collections.singletonList(node));
 		} catch (SQLException e) {
 			log.log(Level.SEVERE, "unable to retrieve node list", e);
 			throw new InternalServerErrorException(e);
@@ -90,36 +93,30 @@ public class NodeInfoEndpoint {
 	 * <p>
 	 * Last modified and eTag headers will be set.
 	 * The eTag is calculated {@code url-safe-base64(sha-256(data))}.
+	 * Resources stored compressed are sent gzip encoded, if accepted
+	 * by the client.
 	 * </p>
 	 * @param nodeId node id
 	 * @param resourceId resource id
+	 * @param headers request headers containing acceptable encodings
 	 * @return status {@code 200} with node info or status {@code 404} if not found. 
 	 * @throws SQLException sql error
+	 * @throws IOException unable to access the resource data
 	 */
 	@GET
 	@Path("{node}/{resource}")
 	@Authenticated
 	@RequireAdmin
-	public Response getNodeResource(@PathParam("node") int nodeId, @PathParam("resource") String resourceId) throws SQLException{		
+	public Response getNodeResource(@PathParam("node") int nodeId, @PathParam("resource") String resourceId, @Context HttpHeaders headers) throws SQLException, IOException{		
 		DateDataSource ds = db.getNodeResource(nodeId, resourceId);
 		if( ds == null ){
 			throw new NotFoundException();
 		}
-		Date lastModified = Date.from(ds.getLastModified());
-		ResponseBuilder resp = request.evaluatePreconditions(lastModified);
-		if( resp == null ){
-			// timestamps different, resource modified
-			resp = Response.ok(ds, ds.getContentType());
-			// set etag
-		}else{
-			log.info("Resource not changed "+nodeId+"/"+resourceId);
+		if( !(ds instanceof PathDataSource) ){
+			throw new InternalServerErrorException("Unexpected interface for resource data source");
 		}
-		if( ds instanceof DigestPathDataSource ){
-			resp.tag(Base64.getUrlEncoder().encodeToString(((DigestPathDataSource)ds).sha256));
-			resp.header("Content-MD5", Base64.getUrlEncoder().encodeToString(((DigestPathDataSource)ds).md5));
-		}
-		// set last modified
-		resp.lastModified(lastModified);
+		// stored compressed data is sent as is if accepted by the client
+		ResponseBuilder resp = StoredDataResponse.build((PathDataSource)ds, request, headers);
 		// add cache control header
 		CacheControl cc = new CacheControl();
 		cc.setMustRevalidate(true);
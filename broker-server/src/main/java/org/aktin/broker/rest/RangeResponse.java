@@ -0,0 +1,266 @@
+package org.aktin.broker.rest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.RuntimeDelegate;
+
+import org.aktin.broker.util.FileStreamingResponse;
+
+/**
+ * Responses for files supporting byte range requests (RFC 7233).
+ * <p>
+ * Single ranges are answered with status 206 and a {@code Content-Range} header,
+ * multiple ranges with a {@code multipart/byteranges} body. Overlapping ranges are
+ * coalesced. Range requests are answered with the complete file, if the range header
+ * is invalid, the {@code If-Range} validator does not match or too many ranges
+ * are requested. HEAD requests are handled by the JAX-RS runtime, which omits the body.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+final class RangeResponse {
+	/** more ranges are answered with the complete file */
+	static final int MAX_RANGES = 16;
+	private static final String CRLF = "\r\n";
+
+	private RangeResponse() {
+	}
+
+	/**
+	 * Byte range with inclusive first and last position
+	 */
+	static class Range{
+		final long first;
+		final long last;
+		Range(long first, long last){
+			this.first = first;
+			this.last = last;
+		}
+		long length() {
+			return last - first + 1;
+		}
+		String contentRange(long total) {
+			return "bytes "+first+"-"+last+"/"+total;
+		}
+	}
+
+	/**
+	 * Parse a range header
+	 * @param header header value, e.g. {@code bytes=0-99,200-}
+	 * @param total file length
+	 * @return satisfiable ranges sorted and coalesced, empty if no range is satisfiable,
+	 *  {@code null} if the header is invalid and should be ignored
+	 */
+	static List<Range> parse(String header, long total) {
+		if( !header.regionMatches(true, 0, "bytes=", 0, 6) ) {
+			return null;
+		}
+		List<Range> ranges = new ArrayList<>();
+		String[] specs = header.substring(6).split(",");
+		if( specs.length > MAX_RANGES ) {
+			return null;
+		}
+		for( String spec : specs ) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if( dash == -1 ) {
+				return null;
+			}
+			long first, last;
+			try {
+				if( dash == 0 ) {
+					// suffix range, last n bytes
+					long suffix = Long.parseLong(spec.substring(1));
+					if( suffix <= 0 ) {
+						continue;
+					}
+					first = Math.max(total - suffix, 0);
+					last = total - 1;
+				}else {
+					first = Long.parseLong(spec.substring(0, dash));
+					if( dash == spec.length() - 1 ) {
+						last = total - 1;
+					}else {
+						last = Long.parseLong(spec.substring(dash+1));
+						if( last < first ) {
+							// invalid range
+							return null;
+						}
+						last = Math.min(last, total - 1);
+					}
+				}
+			}catch( NumberFormatException e ) {
+				return null;
+			}
+			if( first < 0 ) {
+				return null;
+			}
+			if( first < total && first <= last ) {
+				ranges.add(new Range(first, last));
+			}
+		}
+		// coalesce overlapping and adjacent ranges
+		ranges.sort( (a,b) -> Long.compare(a.first, b.first) );
+		List<Range> merged = new ArrayList<>();
+		for( Range r : ranges ) {
+			Range prev = merged.isEmpty() ? null : merged.get(merged.size()-1);
+			if( prev != null && r.first <= prev.last + 1 ) {
+				merged.set(merged.size()-1, new Range(prev.first, Math.max(prev.last, r.last)));
+			}else {
+				merged.add(r);
+			}
+		}
+		return merged;
+	}
+
+	/**
+	 * Evaluate the {@code If-Range} precondition. Entity tags
+	 * are compared strongly, dates must match exactly.
+	 * @param ifRange header value
+	 * @param tag current entity tag or {@code null}
+	 * @param lastModified current last modified timestamp or {@code null}
+	 * @return {@code true} if the range request can be served
+	 */
+	static boolean matchesIfRange(String ifRange, EntityTag tag, Date lastModified) {
+		if( ifRange == null ) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if( ifRange.startsWith("\"") || ifRange.startsWith("W/") ) {
+			if( tag == null || tag.isWeak() || ifRange.startsWith("W/") ) {
+				return false;
+			}
+			return RuntimeDelegate.getInstance().createHeaderDelegate(EntityTag.class).fromString(ifRange).equals(tag);
+		}
+		if( lastModified == null ) {
+			return false;
+		}
+		Date date;
+		try {
+			date = RuntimeDelegate.getInstance().createHeaderDelegate(Date.class).fromString(ifRange);
+		}catch( IllegalArgumentException e ) {
+			return false;
+		}
+		// HTTP dates have a resolution of one second
+		return date.getTime()/1000 == lastModified.getTime()/1000;
+	}
+
+	/**
+	 * Build the response for a file. The entity tag and last modified
+	 * headers must be added by the caller.
+	 * @param file file to send as is
+	 * @param contentType media type of the file
+	 * @param headers request headers containing {@code Range} and {@code If-Range}
+	 * @param tag entity tag used to validate {@code If-Range}, may be {@code null}
+	 * @param lastModified last modified timestamp used to validate {@code If-Range}, may be {@code null}
+	 * @return response builder with status 200, 206 or 416
+	 * @throws IOException unable to determine the file size
+	 */
+	static ResponseBuilder build(Path file, String contentType, HttpHeaders headers, EntityTag tag, Date lastModified) throws IOException {
+		long total = Files.size(file);
+		String header = headers.getHeaderString("Range");
+		List<Range> ranges = null;
+		if( header != null && matchesIfRange(headers.getHeaderString("If-Range"), tag, lastModified) ) {
+			ranges = parse(header, total);
+		}
+		ResponseBuilder rb;
+		if( ranges == null ) {
+			rb = Response.ok(new FileStreamingResponse(file), contentType)
+					.header(HttpHeaders.CONTENT_LENGTH, total);
+		}else if( ranges.isEmpty() ) {
+			// the servlet container replaces the headers of error responses without entity
+			rb = Response.status(Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+					.entity("Requested range not satisfiable")
+					.type(MediaType.TEXT_PLAIN_TYPE)
+					.header("Content-Range", "bytes */"+total);
+		}else if( ranges.size() == 1 ) {
+			Range r = ranges.get(0);
+			rb = Response.status(Status.PARTIAL_CONTENT)
+					.entity(new FileStreamingResponse(file, r.first, r.length()))
+					.type(contentType)
+					.header("Content-Range", r.contentRange(total))
+					.header(HttpHeaders.CONTENT_LENGTH, r.length());
+		}else {
+			Multipart body = new Multipart(file, contentType, total, ranges);
+			rb = Response.status(Status.PARTIAL_CONTENT)
+					.entity(body)
+					.type("multipart/byteranges; boundary="+body.boundary)
+					.header(HttpHeaders.CONTENT_LENGTH, body.length());
+		}
+		return rb.header("Accept-Ranges", "bytes");
+	}
+
+	/**
+	 * Body for multiple ranges
+	 */
+	private static class Multipart implements StreamingOutput{
+		private final Path file;
+		private final List<Range> ranges;
+		private final String boundary;
+		private final byte[][] partHeaders;
+		private final byte[] end;
+
+		Multipart(Path file, String contentType, long total, List<Range> ranges){
+			this.file = file;
+			this.ranges = ranges;
+			this.boundary = UUID.randomUUID().toString();
+			this.partHeaders = new byte[ranges.size()][];
+			for( int i=0; i<partHeaders.length; i++ ) {
+				StringBuilder b = new StringBuilder();
+				if( i != 0 ) {
+					// end of previous part
+					b.append(CRLF);
+				}
+				b.append("--").append(boundary).append(CRLF);
+				if( contentType != null ) {
+					b.append("Content-Type: ").append(contentType).append(CRLF);
+				}
+				b.append("Content-Range: ").append(ranges.get(i).contentRange(total)).append(CRLF);
+				b.append(CRLF);
+				partHeaders[i] = b.toString().getBytes(StandardCharsets.US_ASCII);
+			}
+			this.end = (CRLF+"--"+boundary+"--"+CRLF).getBytes(StandardCharsets.US_ASCII);
+		}
+
+		long length() {
+			long length = end.length;
+			for( int i=0; i<partHeaders.length; i++ ) {
+				length += partHeaders[i].length + ranges.get(i).length();
+			}
+			return length;
+		}
+
+		@Override
+		public void write(OutputStream output) throws IOException {
+			WritableByteChannel target = Channels.newChannel(output);
+			try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ){
+				for( int i=0; i<partHeaders.length; i++ ) {
+					output.write(partHeaders[i]);
+					Range r = ranges.get(i);
+					FileStreamingResponse.transfer(channel, r.first, r.length(), target);
+				}
+			}
+			output.write(end);
+		}
+	}
+}
@@ -27,6 +27,7 @@ import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
@@ -215,6 +216,7 @@ public class RequestAdminEndpoint extends AbstractRequestEndpoint{
 	 * 
 	 * @param requestId request id request id
 	 * @param headers headers headers containing acceptable media types
+	 * @param request request used to evaluate preconditions
 	 * @return request definition matching the Accept header
 	 * @throws SQLException SQL error
 	 * @throws IOException IO error
@@ -223,9 +225,8 @@ public class RequestAdminEndpoint extends AbstractRequestEndpoint{
 	 */
 	@GET
 	@Path("{id}")
-	public Response getRequest(@PathParam("id") Integer requestId, @Context HttpHeaders headers) throws SQLException, IOException, NotFoundException, NotAcceptableException{
-			List<MediaType> accept = headers.getAcceptableMediaTypes();
-			return getRequest(requestId, accept);
+	public Response getRequest(@PathParam("id") Integer requestId, @Context HttpHeaders headers, @Context Request request) throws SQLException, IOException, NotFoundException, NotAcceptableException{
+			return getRequestDefinition(requestId, headers, request);
 	}
 
 	/**
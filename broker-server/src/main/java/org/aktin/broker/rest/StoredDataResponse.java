@@ -0,0 +1,86 @@
+package org.aktin.broker.rest;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Date;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+
+import org.aktin.broker.util.DigestPathDataSource;
+import org.aktin.broker.util.PathDataSource;
+
+/**
+ * Responses for result and resource data stored in the data directories.
+ * <p>
+ * Data stored gzip encoded is sent without recompression to clients accepting
+ * gzip and decoded on the fly for other clients. Each encoding is a separate
+ * representation with its own strong entity tag derived from the SHA-256 digest.
+ * Byte ranges are supported whenever the stored file is sent as is.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+final class StoredDataResponse {
+
+	private StoredDataResponse() {
+	}
+
+	/**
+	 * Build the response for stored data. Preconditions are evaluated
+	 * using the last modified timestamp and, if available, the entity tag.
+	 * @param data stored data
+	 * @param request request for evaluating preconditions
+	 * @param headers request headers containing acceptable encodings
+	 * @return response builder with status 200, 206, 304, 412 or 416
+	 * @throws IOException unable to determine the file size
+	 */
+	static ResponseBuilder build(PathDataSource data, Request request, HttpHeaders headers) throws IOException {
+		boolean stored = "gzip".equals(data.getContentEncoding());
+		boolean gzip = stored && AbstractRequestEndpoint.acceptsGzip(headers);
+		DigestPathDataSource digests = null;
+		if( data instanceof DigestPathDataSource && ((DigestPathDataSource)data).sha256 != null ) {
+			digests = (DigestPathDataSource)data;
+		}
+		EntityTag tag = null;
+		if( digests != null ) {
+			String value = Base64.getUrlEncoder().encodeToString(digests.sha256);
+			tag = new EntityTag(gzip?value+"-gzip":value);
+		}
+		Date lastModified = Date.from(data.getLastModified());
+		ResponseBuilder rb;
+		if( tag != null ) {
+			rb = request.evaluatePreconditions(lastModified, tag);
+		}else {
+			rb = request.evaluatePreconditions(lastModified);
+		}
+		if( rb == null ) {
+			if( gzip || !stored ) {
+				// send the file as is, byte ranges refer to the stored representation
+				rb = RangeResponse.build(data.getPath(), data.getContentType(), headers, tag, lastModified);
+				if( gzip ) {
+					rb.encoding("gzip");
+				}
+			}else {
+				// decoded on the fly, ranges are not supported
+				rb = Response.ok(data, data.getContentType())
+						.header("Content-length", data.getContentLength());
+			}
+			if( digests != null && digests.md5 != null && !gzip && headers.getHeaderString("Range") == null ) {
+				// digest of the complete decoded content
+				rb.header("Content-MD5", Base64.getUrlEncoder().encodeToString(digests.md5));
+			}
+		}
+		if( tag != null ) {
+			rb.tag(tag);
+		}
+		if( stored ) {
+			rb.header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+		}
+		return rb.lastModified(lastModified);
+	}
+}
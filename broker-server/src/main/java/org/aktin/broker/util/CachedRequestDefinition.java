@@ -0,0 +1,71 @@
+package org.aktin.broker.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+import lombok.Getter;
+
+/**
+ * Request definition prepared for repeated delivery to nodes.
+ * Contains the UTF-8 encoded content, a gzip compressed variant
+ * and an entity tag calculated from the SHA-256 digest of the content.
+ *
+ * @author R.W.Majeed
+ *
+ */
+@Getter
+public class CachedRequestDefinition {
+	private int requestId;
+	private String mediaType;
+	/** UTF-8 encoded definition */
+	private byte[] data;
+	/** gzip compressed UTF-8 encoded definition */
+	private byte[] gzipData;
+	/** base64 encoded SHA-256 digest of {@link #data} */
+	private String entityTag;
+
+	public CachedRequestDefinition(int requestId, String mediaType, String content) {
+		this.requestId = requestId;
+		this.mediaType = mediaType;
+		this.data = content.getBytes(StandardCharsets.UTF_8);
+		try {
+			this.entityTag = Base64.getUrlEncoder().withoutPadding().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("message digest SHA-256 not available", e);
+		}
+		this.gzipData = gzip(data);
+	}
+
+	private static byte[] gzip(byte[] data) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length/2 + 32);
+		try( GZIPOutputStream out = new GZIPOutputStream(bytes) ){
+			out.write(data);
+		} catch (IOException e) {
+			// should not happen for in-memory streams
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Get the definition content as string
+	 * @return content
+	 */
+	public String getContent() {
+		return new String(data, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Memory used by the byte arrays of this definition
+	 * @return size in bytes
+	 */
+	public long getSize() {
+		return data.length + gzipData.length;
+	}
+}
@@ -1,22 +1,145 @@
 package org.aktin.broker.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
 
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.StreamingOutput;
 
-import lombok.AllArgsConstructor;
-
-@AllArgsConstructor
+/**
+ * Streams a file or a byte range of a file to the response.
+ * <p>
+ * If the output is the stream of a Jetty response, the file is memory mapped and passed
+ * to {@code HttpOutput.sendContent(ByteBuffer)}, which writes it to the connection without
+ * copying through the Java heap. Jetty is accessed via reflection, since other containers
+ * may be used.
+ * </p>
+ * <p>
+ * Otherwise, e.g. if the JAX-RS implementation wraps the container stream, the data is
+ * transferred via {@link FileChannel#transferTo(long, long, WritableByteChannel)} to a channel
+ * wrapping the output stream. This still copies the data through a heap buffer, but avoids
+ * allocating a buffer per read.
+ * </p>
+ */
 public class FileStreamingResponse implements StreamingOutput{
+	private static final Logger log = Logger.getLogger(FileStreamingResponse.class.getName());
+	private static final String JETTY_OUTPUT_CLASS = "org.eclipse.jetty.server.HttpOutput";
+
 	private Path file;
+	private long offset;
+	private long count;
+
+	/**
+	 * Stream the complete file
+	 * @param file file
+	 */
+	public FileStreamingResponse(Path file) {
+		this(file, 0, -1);
+	}
+	/**
+	 * Stream a byte range of the file
+	 * @param file file
+	 * @param offset position of the first byte
+	 * @param count number of bytes, negative for all remaining bytes
+	 */
+	public FileStreamingResponse(Path file, long offset, long count) {
+		this.file = file;
+		this.offset = offset;
+		this.count = count;
+	}
 
 	@Override
 	public void write(OutputStream output) throws IOException, WebApplicationException {
-		Files.copy(file, output);
+		try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ){
+			long length = count;
+			if( length < 0 ) {
+				length = channel.size() - offset;
+			}
+			if( sendJettyContent(output, channel, offset, length) ) {
+				return;
+			}
+			// the channel must not be closed, which would close the response stream
+			transfer(channel, offset, length, Channels.newChannel(output));
+		}
 	}
 
+	private static Method findJettySendContent(OutputStream output) {
+		for( Class<?> c = output.getClass(); c != null; c = c.getSuperclass() ) {
+			if( c.getName().equals(JETTY_OUTPUT_CLASS) ) {
+				try {
+					return c.getMethod("sendContent", ByteBuffer.class);
+				} catch (NoSuchMethodException e) {
+					log.warning("Unsupported Jetty version, method "+JETTY_OUTPUT_CLASS+".sendContent(ByteBuffer) not found");
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Send a byte range of a file via Jetty's {@code HttpOutput.sendContent(ByteBuffer)},
+	 * if the output is a Jetty response stream.
+	 * @param output response stream
+	 * @param channel file channel
+	 * @param position position of the first byte
+	 * @param count number of bytes
+	 * @return {@code true} if the content was sent, {@code false} if the output is not a Jetty response stream
+	 * @throws IOException IO error
+	 */
+	static boolean sendJettyContent(OutputStream output, FileChannel channel, long position, long count) throws IOException {
+		if( count > Integer.MAX_VALUE ) {
+			// larger files can not be mapped to a single buffer
+			return false;
+		}
+		Method sendContent = findJettySendContent(output);
+		if( sendContent == null ) {
+			return false;
+		}
+		if( position + count > channel.size() ) {
+			throw new EOFException("File shorter than expected");
+		}
+		ByteBuffer content = channel.map(MapMode.READ_ONLY, position, count);
+		try {
+			sendContent.invoke(output, content);
+		} catch (InvocationTargetException e) {
+			if( e.getCause() instanceof IOException ) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Unable to send content", e.getCause());
+		} catch (IllegalAccessException e) {
+			throw new IOException("Unable to send content", e);
+		}
+		return true;
+	}
+
+	/**
+	 * Transfer bytes from a file channel to the target
+	 * @param source file channel
+	 * @param position position of the first byte
+	 * @param count number of bytes
+	 * @param target target channel
+	 * @throws IOException IO error or file shorter than expected
+	 */
+	public static void transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+		long end = position + count;
+		while( position < end ) {
+			long n = source.transferTo(position, end - position, target);
+			if( n <= 0 && position >= source.size() ) {
+				throw new EOFException("File truncated during transfer");
+			}
+			position += n;
+		}
+	}
 }
@@ -8,6 +8,8 @@ import java.nio.file.Path;
 import java.time.Instant;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.aktin.broker.server.DateDataSource;
 
@@ -18,6 +20,8 @@ public class PathDataSource implements DateDataSource {
 	private Path path;
 	private String type;
 	private Instant lastModified;
+	private String encoding;
+	private Long decodedLength;
 
 	public PathDataSource(Path path, String type, Instant lastModified){
 		this.path = path;
@@ -33,9 +37,33 @@ public class PathDataSource implements DateDataSource {
 	public String toString() {
 		return "PathDataSource(path="+path.toString()+", type="+type+")";
 	}
+	/**
+	 * Declare the file content as compressed. The content is
+	 * decoded by {@link #getInputStream()} and encoded by {@link #getOutputStream()}.
+	 * @param encoding content encoding, only {@code gzip} is supported. {@code null} for uncompressed files
+	 * @param decodedLength length of the decoded content, {@code null} if unknown
+	 */
+	public void setContentEncoding(String encoding, Long decodedLength) {
+		if( encoding != null && !encoding.equals("gzip") ) {
+			throw new IllegalArgumentException("Unsupported content encoding: "+encoding);
+		}
+		this.encoding = encoding;
+		this.decodedLength = decodedLength;
+	}
+	/**
+	 * Get the encoding of the file content
+	 * @return content encoding or {@code null} if the file is not compressed
+	 */
+	public String getContentEncoding() {
+		return encoding;
+	}
 	@Override
 	public InputStream getInputStream() throws IOException {
-		return Files.newInputStream(path);
+		InputStream in = Files.newInputStream(path);
+		if( encoding != null ) {
+			in = new GZIPInputStream(in);
+		}
+		return in;
 	}
 
 	@Override
@@ -45,7 +73,11 @@ public class PathDataSource implements DateDataSource {
 
 	@Override
 	public OutputStream getOutputStream() throws IOException {
-		return Files.newOutputStream(path);
+		OutputStream out = Files.newOutputStream(path);
+		if( encoding != null ) {
+			out = new GZIPOutputStream(out);
+		}
+		return out;
 	}
 	@Override
 	public Instant getLastModified() {
@@ -53,6 +85,9 @@ public class PathDataSource implements DateDataSource {
 	}
 	@Override
 	public Long getContentLength() {
+		if( encoding != null ) {
+			return decodedLength;
+		}
 		try {
 			return Files.size(path);
 		} catch (IOException e) {
@@ -0,0 +1,159 @@
+package org.aktin.broker.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded in-memory LRU cache for request definitions and the media types
+ * available for each request.
+ * <p>
+ * The cache is limited by number of definitions and by total byte size.
+ * Entries must be invalidated via {@link #invalidate(int)} whenever a
+ * definition is changed or deleted. To prevent stale entries from loads
+ * which overlap an invalidation, loaders must obtain a generation number via
+ * {@link #getGeneration()} before reading from the database and pass it to
+ * the put methods.
+ * </p>
+ * @author R.W.Majeed
+ *
+ */
+public class RequestDefinitionCache {
+	private final int maxEntries;
+	private final long maxBytes;
+
+	private long totalBytes;
+	private long generation;
+	private final LinkedHashMap<Key, CachedRequestDefinition> definitions;
+	private final LinkedHashMap<Integer, List<String>> types;
+
+	private static class Key{
+		private final int requestId;
+		private final String mediaType;
+
+		Key(int requestId, String mediaType){
+			this.requestId = requestId;
+			this.mediaType = mediaType;
+		}
+		@Override
+		public int hashCode() {
+			return Objects.hash(requestId, mediaType);
+		}
+		@Override
+		public boolean equals(Object obj) {
+			if( !(obj instanceof Key) ) {
+				return false;
+			}
+			Key other = (Key)obj;
+			return requestId == other.requestId && mediaType.equals(other.mediaType);
+		}
+	}
+
+	/**
+	 * Create a request definition cache
+	 * @param maxEntries maximum number of cached definitions
+	 * @param maxBytes maximum total size of cached definitions, including compressed variants
+	 */
+	public RequestDefinitionCache(int maxEntries, long maxBytes) {
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+		this.definitions = new LinkedHashMap<>(16, 0.75f, true);
+		this.types = new LinkedHashMap<Integer, List<String>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Integer, List<String>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the current generation. Must be called before loading data
+	 * which is later put into the cache.
+	 * @return generation number
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	public synchronized CachedRequestDefinition get(int requestId, String mediaType) {
+		return definitions.get(new Key(requestId, mediaType));
+	}
+
+	/**
+	 * Add a definition to the cache. The definition is not added, if the cache
+	 * was invalidated after the given generation or if the definition exceeds the
+	 * size limit.
+	 * @param def definition
+	 * @param loadGeneration generation obtained before the definition was loaded
+	 */
+	public synchronized void put(CachedRequestDefinition def, long loadGeneration) {
+		if( loadGeneration != generation || def.getSize() > maxBytes ) {
+			return;
+		}
+		CachedRequestDefinition prev = definitions.put(new Key(def.getRequestId(), def.getMediaType()), def);
+		if( prev != null ) {
+			totalBytes -= prev.getSize();
+		}
+		totalBytes += def.getSize();
+		// remove least recently used entries until within limits
+		Iterator<CachedRequestDefinition> iter = definitions.values().iterator();
+		while( (definitions.size() > maxEntries || totalBytes > maxBytes) && iter.hasNext() ) {
+			totalBytes -= iter.next().getSize();
+			iter.remove();
+		}
+	}
+
+	public synchronized List<String> getTypes(int requestId) {
+		return types.get(requestId);
+	}
+
+	/**
+	 * Add the list of available media types for a request
+	 * @param requestId request id
+	 * @param list media types, the list is not copied and must not be modified afterwards
+	 * @param loadGeneration generation obtained before the list was loaded
+	 */
+	public synchronized void putTypes(int requestId, List<String> list, long loadGeneration) {
+		if( loadGeneration != generation ) {
+			return;
+		}
+		types.put(requestId, list);
+	}
+
+	/**
+	 * Remove all cached data for the given request
+	 * @param requestId request id
+	 */
+	public synchronized void invalidate(int requestId) {
+		generation ++;
+		types.remove(requestId);
+		Iterator<Map.Entry<Key, CachedRequestDefinition>> iter = definitions.entrySet().iterator();
+		while( iter.hasNext() ) {
+			Map.Entry<Key, CachedRequestDefinition> e = iter.next();
+			if( e.getKey().requestId == requestId ) {
+				totalBytes -= e.getValue().getSize();
+				iter.remove();
+			}
+		}
+	}
+
+	/**
+	 * Remove all cached data, e.g. if changes may have been missed
+	 */
+	public synchronized void clear() {
+		generation ++;
+		types.clear();
+		definitions.clear();
+		totalBytes = 0;
+	}
+
+	public synchronized int size() {
+		return definitions.size();
+	}
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+}
@@ -1,6 +1,7 @@
 package org.aktin.broker.websocket;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -14,21 +15,89 @@ import javax.websocket.PongMessage;
 import javax.websocket.Session;
 
 import org.aktin.broker.auth.Principal;
+import org.aktin.broker.websocket.OutboundQueue.OverflowPolicy;
 
 import lombok.extern.java.Log;
 
 /**
  * Abstract websocket implementation used for client and admin connections.
- * 
+ * <p>
+ * Outgoing messages are sent through a bounded {@link SessionQueue} for each
+ * session, so that slow clients cannot accumulate an unlimited number of pending
+ * messages.
+ * </p>
+ * <p>
+ * Sessions connecting with the query parameter {@code resume} receive each event
+ * prefixed with its sequence number, e.g. {@code #42 published 7}. With the parameter
+ * value set to the last cursor received, missed events are sent again, followed by
+ * {@code resumed <cursor>}. If the missed events are no longer available or the cursor
+ * is empty, the server sends {@code reset <cursor>} and the client needs to poll the
+ * current state.
+ * </p>
+ * <p>
+ * Sessions are pinged periodically by the server, see {@link SessionHeartbeat}.
+ * Sessions which do not answer are reaped before the idle timeout.
+ * </p>
  * @author R.W.Majeed
  *
  */
 @Log
 public abstract class AbstractBroadcastWebsocket {
+	private static final String SEQUENCED = "aktin.broker.websocket.sequenced";
+	/** default maximum number of queued outgoing messages per session */
+	public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+	private static volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	/** default behaviour for full outbound queues, clients reconnect and do not miss any events */
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DISCONNECT;
+
+	private static volatile OverflowPolicy overflowPolicy = DEFAULT_OVERFLOW_POLICY;
+
+	/**
+	 * Configure the outbound queues for sessions opened afterwards.
+	 * @param capacity maximum number of queued messages per session
+	 * @param policy behaviour if the queue is full
+	 */
+	public static void setOutboundQueue(int capacity, OverflowPolicy policy) {
+		if( capacity < 1 ) {
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		queueCapacity = capacity;
+		overflowPolicy = Objects.requireNonNull(policy);
+	}
+
+	/**
+	 * Maximum number of queued outgoing messages per session
+	 * @return capacity
+	 */
+	public static int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Behaviour if the outbound queue of a session is full
+	 * @return overflow policy
+	 */
+	public static OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
 
 	protected abstract boolean isAuthorized(Principal principal);
 	protected abstract void addSession(Session session, Principal user);
 	protected abstract void removeSession(Session session, Principal user);
+	/**
+	 * Get the event log used to resume the session
+	 * @param session session
+	 * @return event log or {@code null} if resuming is not supported for the session
+	 */
+	protected abstract EventLog getEventLog(Session session);
+	/**
+	 * Determine whether a logged event was sent to the given user
+	 * @param user user
+	 * @param nodeIds event targets or {@code null} if the event was sent to all sessions
+	 * @return {@code true} if the event should be resent to the user
+	 */
+	protected abstract boolean isTargeted(Principal user, int[] nodeIds);
 
 
 	@OnOpen
@@ -38,7 +107,14 @@ public abstract class AbstractBroadcastWebsocket {
 
 		// check privileges and close session if needed
 		if( isAuthorized(user) ) {
-			addSession(session, user);
+			SessionQueue.attach(session, session.getRequestURI().getPath(), queueCapacity, overflowPolicy);
+			SessionHeartbeat.attach(session, () -> close(session));
+			List<String> resume = session.getRequestParameterMap().get("resume");
+			if( resume == null ) {
+				addSession(session, user);
+			}else {
+				resume(session, user, resume.isEmpty() ? "" : resume.get(0));
+			}
 
 		}else {
 			// unauthorized, close session
@@ -50,16 +126,57 @@ public abstract class AbstractBroadcastWebsocket {
 			}
 		}
 		// send welcome message
-		try {
-			session.getBasicRemote().sendText("welcome "+user.getName());
-		} catch (IOException e) {
-			log.log(Level.WARNING,"Unable to send welcome message", e);
+		send(session, "welcome "+user.getName());
+	}
+	/**
+	 * Add the session and send missed events after the cursor. Broadcasts are
+	 * blocked meanwhile, so that no event is lost or delivered twice.
+	 * @param session session
+	 * @param user user
+	 * @param cursor last cursor received by the client, may be empty
+	 */
+	private void resume(Session session, Principal user, String cursor) {
+		EventLog events = getEventLog(session);
+		if( events == null ) {
+			addSession(session, user);
+			send(session, "reset");
+			return;
+		}
+		synchronized( events ) {
+			List<String> missed = events.since(cursor, nodeIds -> isTargeted(user, nodeIds));
+			SessionQueue q = SessionQueue.of(session);
+			if( missed != null && missed.size() >= q.getCapacity() - q.getDepth() ) {
+				// replay would overflow the outbound queue
+				missed = null;
+			}
+			// events up to the current sequence number are replayed and not sent again
+			session.getUserProperties().put(SEQUENCED, events.getSequence());
+			// messages are never dropped silently, the client polls after a reset
+			q.setOverflowReset(() -> "reset "+events.getCursor());
+			addSession(session, user);
+			if( missed == null ) {
+				send(session, "reset "+events.getCursor());
+			}else {
+				missed.forEach(event -> send(session, event));
+				send(session, "resumed "+events.getCursor());
+			}
 		}
+		log.log(Level.INFO, "Websocket session {0} resumed from cursor {1}", new Object[] {session.getId(), cursor});
 	}
+
 	@OnClose
 	public void close(Session session){
+		SessionHeartbeat h = SessionHeartbeat.of(session);
+		if( h != null && !h.detach() ) {
+			// already removed by reaping
+			return;
+		}
 		Principal user = getSessionPrincipal(session);
 		removeSession(session, user);
+		SessionQueue q = SessionQueue.of(session);
+		if( q != null ) {
+			q.detach();
+		}
 		log.log(Level.INFO,"Websocket session {0} closed for user {1} ",new Object[] {session.getId(), user});
 	}
 
@@ -74,11 +191,10 @@ public abstract class AbstractBroadcastWebsocket {
 		Principal user = getSessionPrincipal(session);
 		if( message.startsWith("ping ") ) {
 			// send pong
-			try {
-				session.getBasicRemote().sendText("pong "+message.substring(5));
-				log.log(Level.INFO, "Websocket ping reply sent for session {0} user {1}", new Object[] {session.getId(), user});
-			} catch (IOException e) {
-				log.log(Level.WARNING, "Websocket ping pong reply failed for user "+user, e);
+			if( send(session, "pong "+message.substring(5)) ) {
+				log.log(Level.INFO, "Websocket ping reply queued for session {0} user {1}", new Object[] {session.getId(), user});
+			}else {
+				log.log(Level.WARNING, "Websocket ping pong reply failed for user {0}", user);
 			}
 		}else {
 			log.log(Level.INFO, "Ignoring message from user {0}", user);
@@ -88,8 +204,12 @@ public abstract class AbstractBroadcastWebsocket {
 
 	@OnMessage
 	public void message(Session session, PongMessage message){
+		SessionHeartbeat h = SessionHeartbeat.of(session);
+		if( h != null ) {
+			h.pong(message.getApplicationData());
+		}
 		Principal user = getSessionPrincipal(session);
-	    log.log(Level.INFO, "Websocket pong message for session {0} user {1} length {2}", new Object[] {session.getId(), user, message.getApplicationData().remaining()});
+	    log.log(Level.FINE, "Websocket pong message for session {0} user {1} length {2}", new Object[] {session.getId(), user, message.getApplicationData().remaining()});
 	}
 	@OnError
 	public void error(Session session, Throwable t) {
@@ -102,6 +222,26 @@ public abstract class AbstractBroadcastWebsocket {
 		return broadcast(clients, message, p -> true);
 	}
 
+	/**
+	 * Broadcast a logged event. Resumed sessions receive the event with its sequence number.
+	 * Must be called while synchronized on the event log.
+	 * @param clients sessions
+	 * @param seq sequence number of the event
+	 * @param message event
+	 * @return number of sessions
+	 */
+	static int broadcast(Set<Session> clients, long seq, String message){
+		int count = 0;
+		synchronized( clients ) {
+			for( Session session : clients ){
+				if( send(session, seq, message) ){
+					count ++;
+				}
+			}
+		}
+		return count;
+	}
+
 	static int broadcast(Set<Session> clients, String message, Predicate<Principal> principalFilter){
 		Objects.requireNonNull(principalFilter);
 		if( clients.isEmpty() ){
@@ -119,14 +259,67 @@ public abstract class AbstractBroadcastWebsocket {
 				// skip filtered
 				continue;
 			}
-			if( session.isOpen() ){
-				session.getAsyncRemote().sendText(message);
+			if( send(session, message) ){
 				count ++;
 			}
 		}
 		return count;
 	}
 
+	/**
+	 * Send a message asynchronously to a single session. The message is
+	 * added to the outbound queue of the session.
+	 * @param session session
+	 * @param message message
+	 * @return {@code true} if the message was queued, {@code false} if the session is closed
+	 */
+	static boolean send(Session session, String message) {
+		if( !session.isOpen() ){
+			return false;
+		}
+		SessionQueue q = SessionQueue.of(session);
+		if( q == null ) {
+			log.log(Level.WARNING, "Skipping websocket session {0} without outbound queue", session.getId());
+			return false;
+		}
+		return q.offer(message);
+	}
+
+	/**
+	 * Send a logged event to a single session. Resumed sessions receive the event
+	 * with its sequence number. Events logged before the session resumed were
+	 * already replayed and are skipped.
+	 * @param session session
+	 * @param seq sequence number
+	 * @param message event
+	 * @return {@code true} if the message was queued or already replayed, {@code false} if the session is closed
+	 */
+	static boolean send(Session session, long seq, String message) {
+		Long resumed = (Long)session.getUserProperties().get(SEQUENCED);
+		if( resumed != null ) {
+			if( seq <= resumed ) {
+				return true;
+			}
+			return send(session, EventLog.format(seq, message));
+		}
+		return send(session, message);
+	}
+
+	/**
+	 * Tell a resumed session that events were missed, after the event log was cleared.
+	 * The client needs to poll for changes, like after an unsuccessful resume.
+	 * Other sessions do not support resuming and are not notified.
+	 * @param session session
+	 * @param cursor current cursor of the event log
+	 * @return {@code true} if the message was queued
+	 */
+	static boolean sendReset(Session session, String cursor) {
+		if( !session.getUserProperties().containsKey(SEQUENCED) ) {
+			return false;
+		}
+		return send(session, "reset "+cursor);
+	}
+
 	/**
 	 * Get authentication info for a given websocket session
 	 * @param session session
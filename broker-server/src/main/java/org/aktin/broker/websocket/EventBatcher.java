@@ -0,0 +1,104 @@
+package org.aktin.broker.websocket;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accumulates notification events for a time window and delivers
+ * them as a single multi-event frame.
+ * <p>
+ * The frame starts with a line {@code batch <count>}, followed by one
+ * line for each event in the single-line notification protocol.
+ * Events added with the same key during a window are deduplicated:
+ * only the latest event is kept, at the position of its latest occurrence.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+class EventBatcher {
+	private static final Logger log = Logger.getLogger(EventBatcher.class.getName());
+
+	private final Consumer<String> sink;
+	private final String threadName;
+	private ScheduledExecutorService executor;
+	private long windowMillis;
+	private Map<Object, String> pending;
+	private long sequence;
+
+	EventBatcher(String threadName, long windowMillis, Consumer<String> sink){
+		this.threadName = threadName;
+		this.windowMillis = windowMillis;
+		this.sink = sink;
+		this.pending = new LinkedHashMap<>();
+	}
+
+	synchronized void setWindowMillis(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+	synchronized long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * Add an event to the current window. The window starts with the first event.
+	 * @param key deduplication key, or {@code null} to always keep the event
+	 * @param event event in single-line notation
+	 */
+	synchronized void add(String key, String event) {
+		if( pending.isEmpty() ) {
+			schedule();
+		}
+		Object k;
+		if( key == null ) {
+			k = Long.valueOf(sequence ++);
+		}else {
+			k = key;
+			// move to the position of the latest occurrence
+			pending.remove(k);
+		}
+		pending.put(k, event);
+	}
+
+	private void schedule() {
+		if( executor == null ) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Deliver all pending events as a single frame.
+	 */
+	void flush() {
+		Collection<String> events;
+		synchronized( this ) {
+			if( pending.isEmpty() ) {
+				return;
+			}
+			events = pending.values();
+			pending = new LinkedHashMap<>();
+		}
+		StringBuilder b = new StringBuilder();
+		b.append("batch ").append(events.size());
+		for( String event : events ) {
+			b.append('\n').append(event);
+		}
+		try {
+			sink.accept(b.toString());
+		}catch( RuntimeException e ) {
+			log.log(Level.WARNING, "Unable to deliver batched events", e);
+		}
+	}
+}
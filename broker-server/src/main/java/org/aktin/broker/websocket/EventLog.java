@@ -0,0 +1,153 @@
+package org.aktin.broker.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Bounded in-memory log of broadcast events with monotonic sequence numbers.
+ * <p>
+ * The most recent events are kept in a ring buffer, so that reconnecting clients
+ * can resume from the last sequence number they received. Positions in the log
+ * are exchanged with clients as cursor {@code <epoch>-<seq>}. The epoch changes
+ * with every server start, so that cursors from previous runs are not resumed.
+ * </p>
+ * <p>
+ * Each broker instance keeps its own log. Cursors issued by one instance are
+ * reset by all other instances, so multiple instances behind a load balancer
+ * require sticky sessions for resuming and long polling nodes.
+ * </p>
+ * <p>
+ * Sessions resuming concurrently synchronize on the log. Events up to the
+ * sequence number at the time of resuming are replayed and skipped when
+ * delivered afterwards, so an event can be delivered later than it was appended,
+ * e.g. in waves.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+class EventLog {
+	/** default number of events kept for resuming clients */
+	static final int DEFAULT_CAPACITY = 1024;
+
+	private final String epoch;
+	private String[] events;
+	private int[][] targets;
+	/** sequence number of the next event */
+	private long next;
+	/** sequence number of the oldest event still available */
+	private long first;
+
+	EventLog(int capacity){
+		this.epoch = Long.toString(System.currentTimeMillis(), 36);
+		this.next = 1;
+		resize(capacity);
+	}
+
+	/**
+	 * Change the capacity. Previous events are discarded.
+	 * @param capacity maximum number of events to keep
+	 */
+	synchronized void resize(int capacity) {
+		if( capacity < 1 ) {
+			throw new IllegalArgumentException("Event log capacity must be positive");
+		}
+		this.events = new String[capacity];
+		this.targets = new int[capacity][];
+		this.first = next;
+	}
+
+	/**
+	 * Discard all events, e.g. if events may have been missed. Cursors
+	 * before the current position can no longer be resumed.
+	 */
+	synchronized void clear() {
+		this.first = next;
+	}
+
+	/**
+	 * Append an event to the log
+	 * @param event event in single-line notation
+	 * @param nodeIds target nodes or {@code null} if the event is for all sessions
+	 * @return sequence number assigned to the event
+	 */
+	synchronized long append(String event, int[] nodeIds) {
+		long seq = next ++;
+		int i = (int)(seq % events.length);
+		events[i] = event;
+		targets[i] = nodeIds;
+		if( seq - first >= events.length ) {
+			// oldest event was overwritten
+			first = seq - events.length + 1;
+		}
+		return seq;
+	}
+
+	/**
+	 * Get the sequence number of the latest event
+	 * @return sequence number, zero if no event was appended yet
+	 */
+	synchronized long getSequence() {
+		return next - 1;
+	}
+
+	/**
+	 * Get the cursor for the latest event
+	 * @return cursor
+	 */
+	synchronized String getCursor() {
+		return getCursor(next - 1);
+	}
+
+	/**
+	 * Get the cursor for the given event
+	 * @param seq sequence number
+	 * @return cursor
+	 */
+	String getCursor(long seq) {
+		return epoch+"-"+seq;
+	}
+
+	/**
+	 * Format an event with its sequence number for sessions which resumed.
+	 * @param seq sequence number
+	 * @param event event
+	 * @return formatted event
+	 */
+	static String format(long seq, String event) {
+		return "#"+seq+" "+event;
+	}
+
+	/**
+	 * Retrieve all events after the given cursor.
+	 * @param cursor cursor previously received by the client
+	 * @param targetFilter filter for the event targets, called with {@code null} for events without specific targets
+	 * @return formatted events or {@code null} if events after the cursor are no longer available
+	 */
+	synchronized List<String> since(String cursor, Predicate<int[]> targetFilter){
+		int sep = cursor.lastIndexOf('-');
+		if( sep == -1 || !cursor.substring(0, sep).equals(epoch) ) {
+			// unknown cursor or previous server run
+			return null;
+		}
+		long seq;
+		try {
+			seq = Long.parseLong(cursor.substring(sep+1));
+		}catch( NumberFormatException e ) {
+			return null;
+		}
+		if( seq >= next || seq + 1 < first ) {
+			// invalid or missed events were overwritten
+			return null;
+		}
+		List<String> list = new ArrayList<>();
+		for( long s=seq+1; s<next; s++ ) {
+			int i = (int)(s % events.length);
+			if( targetFilter.test(targets[i]) ) {
+				list.add(format(s, events[i]));
+			}
+		}
+		return list;
+	}
+}
@@ -0,0 +1,97 @@
+package org.aktin.broker.websocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Long-poll requests of nodes waiting for notifications, indexed by node id.
+ * <p>
+ * Not thread safe. Access is synchronized by the owner via its {@link EventLog},
+ * so that no notification is appended between checking the log and registering a waiter.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+class EventWaiters {
+
+	static class Waiter{
+		final int nodeId;
+		final String cursor;
+		final Consumer<String> callback;
+		Waiter(int nodeId, String cursor, Consumer<String> callback){
+			this.nodeId = nodeId;
+			this.cursor = cursor;
+			this.callback = callback;
+		}
+	}
+
+	private final Map<Integer, Set<Waiter>> waiters;
+	private int count;
+
+	EventWaiters(){
+		this.waiters = new HashMap<>();
+	}
+
+	void add(Waiter w) {
+		waiters.computeIfAbsent(w.nodeId, k -> new HashSet<>()).add(w);
+		count ++;
+	}
+
+	boolean remove(Waiter w) {
+		Set<Waiter> set = waiters.get(w.nodeId);
+		if( set == null || !set.remove(w) ) {
+			return false;
+		}
+		if( set.isEmpty() ) {
+			waiters.remove(w.nodeId);
+		}
+		count --;
+		return true;
+	}
+
+	/**
+	 * Remove the waiters of the targeted nodes
+	 * @param nodeIds targeted nodes or {@code null} for all nodes
+	 * @param excludedNodeIds nodes to skip if {@code nodeIds} is {@code null}. May be {@code null}
+	 * @return removed waiters
+	 */
+	List<Waiter> take(int[] nodeIds, int[] excludedNodeIds){
+		List<Waiter> list = new ArrayList<>();
+		if( count == 0 ) {
+			return list;
+		}
+		if( nodeIds != null ) {
+			for( int id : nodeIds ) {
+				Set<Waiter> set = waiters.remove(id);
+				if( set != null ) {
+					list.addAll(set);
+				}
+			}
+		}else {
+			int[] excluded = (excludedNodeIds == null) ? new int[0] : excludedNodeIds.clone();
+			Arrays.sort(excluded);
+			Iterator<Map.Entry<Integer, Set<Waiter>>> i = waiters.entrySet().iterator();
+			while( i.hasNext() ) {
+				Map.Entry<Integer, Set<Waiter>> e = i.next();
+				if( Arrays.binarySearch(excluded, e.getKey()) < 0 ) {
+					list.addAll(e.getValue());
+					i.remove();
+				}
+			}
+		}
+		count -= list.size();
+		return list;
+	}
+
+	int size() {
+		return count;
+	}
+}
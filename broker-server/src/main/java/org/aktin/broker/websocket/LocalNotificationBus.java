@@ -0,0 +1,32 @@
+package org.aktin.broker.websocket;
+
+import java.util.function.Consumer;
+
+/**
+ * Notification bus for a single broker instance. Messages are
+ * delivered to the local receiver within the publishing thread.
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class LocalNotificationBus implements NotificationBus{
+	private volatile Consumer<String> receiver;
+
+	@Override
+	public void open(Consumer<String> receiver) {
+		this.receiver = receiver;
+	}
+
+	@Override
+	public void publish(String message) {
+		Consumer<String> r = receiver;
+		if( r != null ) {
+			r.accept(message);
+		}
+	}
+
+	@Override
+	public void close() {
+		this.receiver = null;
+	}
+}
@@ -1,14 +1,18 @@
 package org.aktin.broker.websocket;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
 import org.aktin.broker.auth.Principal;
+import org.aktin.broker.xml.Node;
 
 /**
  * Websocket endpoint to notify connected clients about updates for requests.
@@ -22,6 +26,11 @@ import org.aktin.broker.auth.Principal;
  * Notifications have the form {@code published 123} or {@code closed 123} ({@code 123} being the request id).
  * The client does not send any data via websocket, except for optional ping-pong messages to probe the connection.
  * Notifications are only sent from server to client.
+ * Reconnecting clients can resume missed notifications, see {@link AbstractBroadcastWebsocket}.
+ * Publish notifications can be sent to the nodes in waves, see {@link PublishDispatcher}.
+ * Nodes without websocket connection can wait for the same notifications
+ * via long polling, see {@link #awaitEvents(Principal, String, Consumer)}.
+ * Events are distributed to all broker instances via {@link Notifications}.
  *
  * @author R.W.Majeed
  *
@@ -31,23 +40,183 @@ import org.aktin.broker.auth.Principal;
 public class MyBrokerWebsocket extends AbstractBroadcastWebsocket{
 	public static final String REST_PATH = "/broker/my/websocket";
 	private static final Logger log = Logger.getLogger(MyBrokerWebsocket.class.getName());
-	/** set of connected sessions, needs to be static and local */ 
-	private static Set<Session> clients = Collections.synchronizedSet(new HashSet<Session>());
+	/** connected sessions indexed by node id, needs to be static and local */
+	private static final SessionRegistry clients = new SessionRegistry();
+	/** recent notifications for resuming clients */
+	private static final EventLog events = new EventLog(EventLog.DEFAULT_CAPACITY);
+	/** long-poll requests waiting for notifications, guarded by {@link #events} */
+	private static final EventWaiters waiters = new EventWaiters();
+	/** sends publish notifications, optionally staggered */
+	private static final PublishDispatcher dispatcher = new PublishDispatcher(new PublishDispatcher.Sink() {
+		@Override
+		public long append(String message, int[] nodeIds) {
+			return events.append(message, nodeIds);
+		}
+		@Override
+		public int send(long seq, String message, int[] nodeIds, int[] excludedNodeIds) {
+			return deliver(seq, message, nodeIds, excludedNodeIds);
+		}
+	}, clients::getNodeIds);
+
+	/**
+	 * Set the number of notifications kept for resuming clients. Previous notifications are discarded.
+	 * @param capacity number of notifications
+	 */
+	public static void setEventLogCapacity(int capacity) {
+		events.resize(capacity);
+	}
 
-	private static Set<Integer> integerArraySet(int[] values){
-		Set<Integer> nodes = new HashSet<Integer>(values.length);
-		for( int i=0; i<values.length; i++ ) {
-			nodes.add(values[i]);
+	/**
+	 * Get the dispatcher for publish notifications, e.g. to configure staggered notifications
+	 * @return dispatcher
+	 */
+	public static PublishDispatcher getPublishDispatcher() {
+		return dispatcher;
+	}
+
+	private static int broadcastToSubset(String message, int[] nodeIds) {
+		// long-poll requests are completed outside of the lock, sessions resumed meanwhile skip the event
+		return deliver(events.append(message, nodeIds), message, nodeIds, null);
+	}
+
+	/**
+	 * Deliver a logged event to the connected sessions and waiting long-poll requests
+	 * @param seq sequence number of the logged event
+	 * @param message event
+	 * @param nodeIds nodes to notify, or {@code null} for all nodes except the excluded
+	 * @param excludedNodeIds nodes already notified, only used if {@code nodeIds} is {@code null}
+	 * @return number of sessions and long-poll requests notified
+	 */
+	private static int deliver(long seq, String message, int[] nodeIds, int[] excludedNodeIds) {
+		AtomicInteger count = new AtomicInteger();
+		List<EventWaiters.Waiter> woken = new ArrayList<>();
+		List<String> responses = new ArrayList<>();
+		synchronized( events ) {
+			if( nodeIds == null && excludedNodeIds != null ) {
+				// all nodes which were not notified before
+				int[] excluded = excludedNodeIds.clone();
+				Arrays.sort(excluded);
+				clients.forEach(session -> {
+					if( Arrays.binarySearch(excluded, getSessionPrincipal(session).getNodeId()) < 0 && send(session, seq, message) ) {
+						count.incrementAndGet();
+					}
+				});
+			}else if( nodeIds == null ) {
+				clients.forEach(session -> {
+					if( send(session, seq, message) ) {
+						count.incrementAndGet();
+					}
+				});
+			}else {
+				// only the sessions of the targeted nodes are visited
+				clients.forEach(nodeIds, session -> {
+					if( send(session, seq, message) ) {
+						count.incrementAndGet();
+					}
+				});
+			}
+			for( EventWaiters.Waiter w : waiters.take(nodeIds, excludedNodeIds) ) {
+				String response = pollResponse(w.nodeId, w.cursor);
+				if( response == null ) {
+					// nothing new for this node, keep waiting
+					waiters.add(w);
+				}else {
+					woken.add(w);
+					responses.add(response);
+				}
+			}
+		}
+		// complete long-poll requests outside of the lock
+		for( int i=0; i<woken.size(); i++ ) {
+			woken.get(i).callback.accept(responses.get(i));
 		}
-		return nodes;
+		return count.get() + woken.size();
 	}
-	private static void broadcastToSubset(String message, int[] nodeIds) {
+
+	private static boolean isTargeted(int nodeId, int[] nodeIds) {
 		if( nodeIds == null ) {
-			broadcast(clients, message);
-		}else {
-			final Set<Integer> nodes = integerArraySet(nodeIds);
-			broadcast(clients, message, p -> nodes.contains(p.getNodeId()));
-		}		
+			return true;
+		}
+		for( int i=0; i<nodeIds.length; i++ ) {
+			if( nodeIds[i] == nodeId ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Build the long-poll response with all notifications after the cursor.
+	 * Must be called while synchronized on {@link #events}.
+	 * @param nodeId node id
+	 * @param cursor cursor
+	 * @return response, one notification per line followed by {@code resumed <cursor>},
+	 *  or {@code reset <cursor>} if notifications after the cursor are not available.
+	 *  {@code null} if there are no new notifications
+	 */
+	private static String pollResponse(int nodeId, String cursor) {
+		List<String> list = events.since(cursor, ids -> isTargeted(nodeId, ids));
+		if( list == null ) {
+			return "reset "+events.getCursor();
+		}else if( list.isEmpty() ) {
+			return null;
+		}
+		StringBuilder b = new StringBuilder();
+		for( String event : list ) {
+			b.append(event).append('\n');
+		}
+		b.append("resumed ").append(events.getCursor());
+		return b.toString();
+	}
+
+	/**
+	 * Wait for notifications for a node without websocket connection. The response
+	 * uses the same format as resumed websocket sessions: notifications with sequence
+	 * numbers, one per line, followed by {@code resumed <cursor>}. If notifications
+	 * after the cursor are not available or the cursor is empty, the response is
+	 * {@code reset <cursor>} and the node needs to poll its requests.
+	 *
+	 * @param user node principal
+	 * @param cursor last cursor received by the node, may be empty
+	 * @param callback called once with the response, either immediately or with the next notification for the node
+	 * @return function to stop waiting, e.g. on timeout. The function returns the response
+	 *  without new notifications, or {@code null} if the callback was already called.
+	 */
+	public static Supplier<String> awaitEvents(Principal user, String cursor, Consumer<String> callback) {
+		int nodeId = user.getNodeId();
+		String response;
+		EventWaiters.Waiter w;
+		synchronized( events ) {
+			response = pollResponse(nodeId, cursor);
+			if( response == null ) {
+				w = new EventWaiters.Waiter(nodeId, cursor, callback);
+				waiters.add(w);
+			}else {
+				w = null;
+			}
+		}
+		if( w == null ) {
+			callback.accept(response);
+			return () -> null;
+		}
+		return () -> {
+			synchronized( events ) {
+				if( waiters.remove(w) ) {
+					return "resumed "+events.getCursor();
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * Number of long-poll requests waiting for notifications
+	 * @return waiting requests
+	 */
+	public static int getWaitingCount() {
+		synchronized( events ) {
+			return waiters.size();
+		}
 	}
 	
 	/**
@@ -57,7 +226,7 @@ public class MyBrokerWebsocket extends AbstractBroadcastWebsocket{
 	 * @param nodeIds nodes to notify
 	 */
 	public static void broadcastRequestPublished(int requestId, int[] nodeIds){
-		broadcastToSubset("published "+requestId, nodeIds);
+		Notifications.publishNodeEvent("published "+requestId, nodeIds);
 	}
 
 	/**
@@ -67,7 +236,77 @@ public class MyBrokerWebsocket extends AbstractBroadcastWebsocket{
 	 * @param nodeIds nodes to notify
 	 */
 	public static void broadcastRequestClosed(int requestId, int[] nodeIds){
-		broadcastToSubset("closed "+requestId, nodeIds);
+		Notifications.publishNodeEvent("closed "+requestId, nodeIds);
+	}
+
+	/**
+	 * Deliver a node event from the {@link NotificationBus} to the sessions of this instance.
+	 * @param event event, {@code published <id>} or {@code closed <id>}
+	 * @param nodeIds nodes to notify, {@code null} for all nodes
+	 */
+	static void receiveEvent(String event, int[] nodeIds) {
+		int sep = event.indexOf(' ');
+		int requestId = Integer.parseInt(event.substring(sep+1));
+		switch( event.substring(0, sep) ) {
+		case "published":
+			dispatcher.dispatch(requestId, event, nodeIds);
+			break;
+		case "closed":
+			// publish notifications not yet sent are obsolete
+			dispatcher.cancel(requestId);
+			broadcastToSubset(event, nodeIds);
+			break;
+		default:
+			throw new IllegalArgumentException("Unsupported node event: "+event);
+		}
+	}
+
+	/**
+	 * Discard logged notifications after notifications of other instances may have
+	 * been missed. Resumed sessions and waiting long-poll requests receive
+	 * {@code reset <cursor>}, so that the nodes poll their requests.
+	 */
+	static void resetEvents() {
+		List<EventWaiters.Waiter> woken;
+		String response;
+		synchronized( events ) {
+			events.clear();
+			String cursor = events.getCursor();
+			clients.forEach(session -> sendReset(session, cursor));
+			woken = waiters.take(null, null);
+			response = "reset "+cursor;
+		}
+		for( EventWaiters.Waiter w : woken ) {
+			w.callback.accept(response);
+		}
+	}
+
+	/**
+	 * Fill the websocket round trip time percentiles of nodes connected to this
+	 * instance. Round trip times of all sessions of a node are combined.
+	 * @param nodes nodes
+	 */
+	public static void fillRoundTripTimes(Iterable<Node> nodes) {
+		for( Node node : nodes ) {
+			long[] rtt = new long[0];
+			for( Session session : clients.get(node.id) ) {
+				SessionHeartbeat h = SessionHeartbeat.of(session);
+				if( h == null ) {
+					continue;
+				}
+				long[] samples = h.getRoundTripTimes();
+				int offset = rtt.length;
+				rtt = Arrays.copyOf(rtt, offset+samples.length);
+				System.arraycopy(samples, 0, rtt, offset, samples.length);
+			}
+			if( rtt.length == 0 ) {
+				continue;
+			}
+			Arrays.sort(rtt);
+			node.websocketRttMedian = SessionHeartbeat.percentile(rtt, 50) / 1000;
+			node.websocketRtt95 = SessionHeartbeat.percentile(rtt, 95) / 1000;
+			node.websocketRtt99 = SessionHeartbeat.percentile(rtt, 99) / 1000;
+		}
 	}
 
 //	private static void broadcastToNode(int nodeId, String message){
@@ -90,10 +329,20 @@ public class MyBrokerWebsocket extends AbstractBroadcastWebsocket{
 
 
 
+	@Override
+	protected EventLog getEventLog(Session session) {
+		return events;
+	}
+
+	@Override
+	protected boolean isTargeted(Principal user, int[] nodeIds) {
+		return isTargeted(user.getNodeId(), nodeIds);
+	}
+
 	@Override
 	protected void addSession(Session session, Principal user) {
 		user.incrementWebsocketCount();
-		clients.add(session);
+		clients.add(user.getNodeId(), session);
 	}
 
 
@@ -102,6 +351,6 @@ public class MyBrokerWebsocket extends AbstractBroadcastWebsocket{
 	@Override
 	protected void removeSession(Session session, Principal user) {
 		user.decrementWebsocketCount();
-		clients.remove(session);
+		clients.remove(user.getNodeId(), session);
 	}
 }
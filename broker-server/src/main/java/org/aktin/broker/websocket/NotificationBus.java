@@ -0,0 +1,35 @@
+package org.aktin.broker.websocket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Distributes notifications between broker instances. Sessions are
+ * connected to a single instance, so events raised on one instance need to
+ * reach the sessions of all other instances.
+ * <p>
+ * Implementations deliver each published message to the receivers of all
+ * instances, including the local receiver. Messages are single-line strings.
+ * See {@link Notifications} for the message format.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public interface NotificationBus extends Closeable{
+
+	/**
+	 * Start receiving messages
+	 * @param receiver receiver for messages of all instances
+	 * @throws IOException unable to connect to the bus
+	 */
+	void open(Consumer<String> receiver) throws IOException;
+
+	/**
+	 * Publish a message to all instances. Must not block for long,
+	 * since it is called from request threads.
+	 * @param message message
+	 */
+	void publish(String message);
+}
@@ -0,0 +1,140 @@
+package org.aktin.broker.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Routes broadcast events through the {@link NotificationBus}, so that events
+ * raised on any broker instance reach the sessions connected to every instance.
+ * Per default, a {@link LocalNotificationBus} is used.
+ * <p>
+ * Messages have the form {@code node <targets> <event>} for node events, with targets
+ * being a comma separated list of node ids or {@code *} for all nodes, and
+ * {@code admin <event>} for admin events. Events use the websocket notation.
+ * Messages {@code state <change>} carry changes of cached broker state, which are
+ * delivered to the listeners added via {@link #addStateListener(Consumer)}.
+ * The message {@link #RESET} is delivered by a bus if messages of other instances
+ * may have been missed, e.g. after reconnecting.
+ * </p>
+ * <p>
+ * The bus shares events, but not the event logs used to resume sessions.
+ * Resuming websocket sessions and long polling nodes must therefore be routed
+ * to the same instance (sticky sessions).
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public final class Notifications {
+	private static final Logger log = Logger.getLogger(Notifications.class.getName());
+	private static volatile NotificationBus bus;
+	/** message to reset the event logs and tell resumed sessions to poll for changes */
+	public static final String RESET = "reset";
+	/** listeners for changes of cached broker state */
+	private static final List<Consumer<String>> stateListeners = new CopyOnWriteArrayList<>();
+
+	static {
+		LocalNotificationBus local = new LocalNotificationBus();
+		local.open(Notifications::receive);
+		bus = local;
+	}
+
+	private Notifications() {
+	}
+
+	/**
+	 * Replace the notification bus. The previous bus is closed.
+	 * @param next notification bus
+	 * @throws IOException unable to open the bus. The previous bus is kept
+	 */
+	public static synchronized void setBus(NotificationBus next) throws IOException {
+		next.open(Notifications::receive);
+		NotificationBus previous = bus;
+		bus = next;
+		try {
+			previous.close();
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to close previous notification bus", e);
+		}
+	}
+
+	public static NotificationBus getBus() {
+		return bus;
+	}
+
+	static void publishNodeEvent(String event, int[] nodeIds) {
+		String targets;
+		if( nodeIds == null ) {
+			targets = "*";
+		}else {
+			targets = Arrays.stream(nodeIds).mapToObj(Integer::toString).collect(Collectors.joining(","));
+		}
+		bus.publish("node "+targets+" "+event);
+	}
+
+	static void publishAdminEvent(String event) {
+		bus.publish("admin "+event);
+	}
+
+	/**
+	 * Publish a change of cached state to all broker instances
+	 * @param change single-line change
+	 */
+	public static void publishStateChange(String change) {
+		bus.publish("state "+change);
+	}
+
+	/**
+	 * Add a listener for changes of cached state published by any instance.
+	 * The listener receives {@link #RESET} if changes may have been missed.
+	 * @param listener listener
+	 */
+	public static void addStateListener(Consumer<String> listener) {
+		stateListeners.add(listener);
+	}
+
+	public static void removeStateListener(Consumer<String> listener) {
+		stateListeners.remove(listener);
+	}
+
+	private static int[] parseTargets(String targets) {
+		if( targets.equals("*") ) {
+			return null;
+		}else if( targets.isEmpty() ) {
+			return new int[0];
+		}
+		return Arrays.stream(targets.split(",")).mapToInt(Integer::parseInt).toArray();
+	}
+
+	/**
+	 * Deliver a message to the local sessions
+	 * @param message message received from the bus
+	 */
+	static void receive(String message) {
+		try {
+			if( message.startsWith("node ") ) {
+				int sep = message.indexOf(' ', 5);
+				MyBrokerWebsocket.receiveEvent(message.substring(sep+1), parseTargets(message.substring(5, sep)));
+			}else if( message.startsWith("admin ") ) {
+				RequestAdminWebsocket.receiveEvent(message.substring(6));
+			}else if( message.startsWith("state ") ) {
+				String change = message.substring(6);
+				stateListeners.forEach(l -> l.accept(change));
+			}else if( message.equals(RESET) ) {
+				stateListeners.forEach(l -> l.accept(RESET));
+				MyBrokerWebsocket.resetEvents();
+				RequestAdminWebsocket.resetEvents();
+			}else {
+				log.warning("Ignoring unsupported notification: "+message);
+			}
+		}catch( RuntimeException e ) {
+			log.log(Level.WARNING, "Invalid notification: "+message, e);
+		}
+	}
+}
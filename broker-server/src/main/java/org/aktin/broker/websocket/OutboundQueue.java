@@ -0,0 +1,278 @@
+package org.aktin.broker.websocket;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Bounded outbound queue for a single connection, e.g. a websocket session
+ * or a server-sent event stream.
+ * <p>
+ * At most one message is in flight. Further messages are queued until
+ * the previous send completes. If the queue is full, the {@link OverflowPolicy}
+ * decides which message is discarded or whether the connection is closed.
+ * </p>
+ * <p>
+ * Subclasses send messages asynchronously via {@link #transmit(Object)} and
+ * report the completion via {@link #completed(boolean)}.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ * @param <T> message type
+ */
+public abstract class OutboundQueue<T> {
+
+	/**
+	 * Behaviour for messages added to a full queue
+	 */
+	public enum OverflowPolicy{
+		/** discard the oldest queued message, or replace all queued messages by a reset for resumed sessions */
+		DROP_OLDEST,
+		/** discard the new message if an equal message is already queued. Otherwise like {@link #DROP_OLDEST} */
+		COALESCE,
+		/** close the connection, the client reconnects and resumes or polls the current state */
+		DISCONNECT
+	}
+
+	private static class Pending<T>{
+		final T message;
+		final long queued;
+		Pending(T message){
+			this.message = message;
+			this.queued = System.nanoTime();
+		}
+	}
+
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final Deque<Pending<T>> queue;
+	private Pending<T> inFlight;
+	private boolean closed;
+	private Supplier<T> overflowReset;
+
+	private int maxDepth;
+	private long sent;
+	private long failed;
+	private long dropped;
+	private long coalesced;
+	private long resets;
+	private long latencyNanosTotal;
+	private long latencyNanosMax;
+
+	/**
+	 * Create a queue
+	 * @param capacity maximum number of queued messages, excluding the message in flight
+	 * @param policy overflow policy
+	 */
+	protected OutboundQueue(int capacity, OverflowPolicy policy) {
+		this.capacity = capacity;
+		this.policy = policy;
+		this.queue = new ArrayDeque<>();
+	}
+
+	/**
+	 * Send a message asynchronously. {@link #completed(boolean)} must be called
+	 * once the message was sent or the send failed.
+	 * @param message message
+	 */
+	protected abstract void transmit(T message);
+
+	/**
+	 * Called after the queue was closed due to overflow with policy
+	 * {@link OverflowPolicy#DISCONNECT}. Implementations close the connection.
+	 */
+	protected abstract void overflow();
+
+	/**
+	 * Whether a new message is discarded for policy {@link OverflowPolicy#COALESCE}
+	 * @param queued queued message
+	 * @param message new message
+	 * @return {@code true} if both messages are equal
+	 */
+	protected boolean isDuplicate(T queued, T message) {
+		return queued.equals(message);
+	}
+
+	/**
+	 * Replace queued messages by a reset message instead of dropping single messages.
+	 * Used for connections which resumed from a cursor, the client polls the current
+	 * state after receiving the reset.
+	 * @param reset supplier for the reset message, called when the queue overflows
+	 */
+	public synchronized void setOverflowReset(Supplier<T> reset) {
+		this.overflowReset = reset;
+	}
+
+	/**
+	 * Add a message to the queue and start sending, if no other message is in flight.
+	 * @param message message
+	 * @return {@code false} if the queue is closed or was closed due to overflow
+	 */
+	public boolean offer(T message) {
+		Pending<T> next;
+		synchronized( this ) {
+			if( closed ) {
+				return false;
+			}
+			if( queue.size() >= capacity ) {
+				switch( policy ) {
+				case COALESCE:
+					for( Pending<T> p : queue ) {
+						if( isDuplicate(p.message, message) ) {
+							coalesced ++;
+							return true;
+						}
+					}
+					// no equal message queued, drop oldest
+				case DROP_OLDEST:
+					if( overflowReset != null ) {
+						// the queue is only full while a message is in flight, the reset is sent afterwards
+						dropped += queue.size() + 1;
+						resets ++;
+						queue.clear();
+						queue.addLast(new Pending<>(overflowReset.get()));
+						return true;
+					}
+					queue.pollFirst();
+					dropped ++;
+					break;
+				case DISCONNECT:
+					closed = true;
+					dropped += queue.size() + 1;
+					queue.clear();
+					break;
+				}
+			}
+			if( closed ) {
+				next = null;
+			}else {
+				queue.addLast(new Pending<>(message));
+				maxDepth = Math.max(maxDepth, queue.size());
+				if( inFlight != null ) {
+					// sent after completion of the current message
+					return true;
+				}
+				next = queue.pollFirst();
+				inFlight = next;
+			}
+		}
+		if( next == null ) {
+			// closed due to overflow
+			overflow();
+			return false;
+		}
+		transmit(next.message);
+		return true;
+	}
+
+	/**
+	 * Send a message only if no other message is queued or in flight, e.g. a keep-alive
+	 * @param message message
+	 * @return {@code true} if the message is sent
+	 */
+	public boolean offerIfIdle(T message) {
+		Pending<T> next;
+		synchronized( this ) {
+			if( closed || inFlight != null ) {
+				return false;
+			}
+			next = new Pending<>(message);
+			inFlight = next;
+		}
+		transmit(next.message);
+		return true;
+	}
+
+	/**
+	 * Report the completion of the message in flight and start sending the next message
+	 * @param success whether the message was sent successfully
+	 */
+	protected void completed(boolean success) {
+		Pending<T> next;
+		synchronized( this ) {
+			if( inFlight == null ) {
+				return;
+			}
+			long latency = System.nanoTime() - inFlight.queued;
+			if( success ) {
+				sent ++;
+				latencyNanosTotal += latency;
+				latencyNanosMax = Math.max(latencyNanosMax, latency);
+			}else {
+				failed ++;
+			}
+			if( closed ) {
+				inFlight = null;
+				return;
+			}
+			next = queue.pollFirst();
+			inFlight = next;
+		}
+		if( next != null ) {
+			transmit(next.message);
+		}
+	}
+
+	/**
+	 * Discard queued messages and stop sending
+	 */
+	protected void close() {
+		synchronized( this ) {
+			closed = true;
+			queue.clear();
+		}
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+	public int getCapacity() {
+		return capacity;
+	}
+	/**
+	 * Number of messages waiting, excluding the message in flight
+	 * @return queue depth
+	 */
+	public synchronized int getDepth() {
+		return queue.size();
+	}
+	public synchronized int getMaxDepth() {
+		return maxDepth;
+	}
+	public synchronized long getSentCount() {
+		return sent;
+	}
+	public synchronized long getFailedCount() {
+		return failed;
+	}
+	public synchronized long getDroppedCount() {
+		return dropped;
+	}
+	public synchronized long getCoalescedCount() {
+		return coalesced;
+	}
+	/**
+	 * Number of times queued messages were replaced by a reset message
+	 * @return reset count
+	 */
+	public synchronized long getResetCount() {
+		return resets;
+	}
+	/**
+	 * Average time from queueing to completion of successfully sent messages
+	 * @return latency in microseconds
+	 */
+	public synchronized long getAverageLatencyMicros() {
+		if( sent == 0 ) {
+			return 0;
+		}
+		return latencyNanosTotal / sent / 1000;
+	}
+	public synchronized long getMaxLatencyMicros() {
+		return latencyNanosMax / 1000;
+	}
+}
@@ -0,0 +1,222 @@
+package org.aktin.broker.websocket;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Notification bus for multiple broker instances sharing a PostgreSQL database.
+ * Messages are sent via {@code NOTIFY} and received by all instances via {@code LISTEN}.
+ * <p>
+ * Each instance holds one database connection for listening, which should not be
+ * taken from a connection pool. Messages are prefixed
+ * with a random instance id, so that local messages are delivered immediately and
+ * not again when received from the database. The PostgreSQL JDBC driver is accessed
+ * via reflection and only required at runtime.
+ * </p>
+ * <p>
+ * Messages sent while the listening connection is lost are not received by this
+ * instance. After reconnecting, {@link Notifications#RESET} is delivered locally,
+ * so that clients poll for changes. Messages exceeding the payload limit of
+ * PostgreSQL are delivered to other instances as {@link Notifications#RESET}.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class PostgresNotificationBus implements NotificationBus{
+	private static final Logger log = Logger.getLogger(PostgresNotificationBus.class.getName());
+	public static final String DEFAULT_CHANNEL = "aktin_broker";
+	/** maximum payload size supported by PostgreSQL */
+	private static final int MAX_PAYLOAD_BYTES = 7999;
+	private static final int POLL_MILLIS = 500;
+	private static final long RECONNECT_MILLIS = 5000;
+
+	private final DataSource ds;
+	private final String channel;
+	private final String instanceId;
+	private volatile Consumer<String> receiver;
+	private volatile boolean closed;
+	private Thread listener;
+
+	// used only by the listener thread
+	private Connection connection;
+	private Object pgConnection;
+	private Method getNotifications;
+	private Method getParameter;
+
+	/**
+	 * Create a notification bus
+	 * @param ds data source for the PostgreSQL database shared by all instances, without pooling
+	 * @param channel notification channel, lower case letters, digits and underscore
+	 */
+	public PostgresNotificationBus(DataSource ds, String channel) {
+		if( !channel.matches("[a-z_][a-z0-9_]*") ) {
+			throw new IllegalArgumentException("Invalid notification channel name: "+channel);
+		}
+		this.ds = ds;
+		this.channel = channel;
+		this.instanceId = UUID.randomUUID().toString();
+	}
+
+	@Override
+	public synchronized void open(Consumer<String> receiver) throws IOException {
+		if( listener != null ) {
+			throw new IllegalStateException("Notification bus already opened");
+		}
+		this.receiver = receiver;
+		try {
+			listen();
+		} catch (SQLException e) {
+			throw new IOException("Unable to listen for notifications on channel "+channel, e);
+		}
+		listener = new Thread(this::run, "notification-bus-listener");
+		listener.setDaemon(true);
+		listener.start();
+	}
+
+	private void listen() throws SQLException {
+		Connection c = ds.getConnection();
+		try {
+			c.setAutoCommit(true);
+			Class<?> pgClass = Class.forName("org.postgresql.PGConnection");
+			pgConnection = c.unwrap(pgClass);
+			getNotifications = pgClass.getMethod("getNotifications", int.class);
+			getParameter = Class.forName("org.postgresql.PGNotification").getMethod("getParameter");
+			try( Statement s = c.createStatement() ){
+				s.execute("LISTEN "+channel);
+			}
+		}catch( ClassNotFoundException | NoSuchMethodException e ) {
+			c.close();
+			throw new SQLException("PostgreSQL JDBC driver with notification support required", e);
+		}catch( SQLException e ) {
+			c.close();
+			throw e;
+		}
+		this.connection = c;
+	}
+
+	private void disconnect() {
+		if( connection == null ) {
+			return;
+		}
+		try( Connection c = connection;
+				Statement s = c.createStatement() ){
+			// in case the connection is reused by the data source
+			s.execute("UNLISTEN *");
+		} catch (SQLException e) {
+			// connection probably already lost
+		}
+		connection = null;
+		pgConnection = null;
+	}
+
+	private void run() {
+		while( !closed ) {
+			try {
+				if( connection == null ) {
+					listen();
+					log.info("Notification bus reconnected, resetting local sessions since notifications of other instances may have been missed");
+					deliver(Notifications.RESET);
+				}
+				Object[] list = (Object[])getNotifications.invoke(pgConnection, POLL_MILLIS);
+				if( list == null ) {
+					continue;
+				}
+				for( Object n : list ) {
+					receive((String)getParameter.invoke(n));
+				}
+			}catch( SQLException | InvocationTargetException | IllegalAccessException e ) {
+				if( closed ) {
+					break;
+				}
+				Throwable cause = (e instanceof InvocationTargetException) ? e.getCause() : e;
+				log.log(Level.WARNING, "Notification bus connection failed, retrying in "+RECONNECT_MILLIS+"ms", cause);
+				disconnect();
+				try {
+					Thread.sleep(RECONNECT_MILLIS);
+				} catch (InterruptedException e1) {
+					// closed or retry immediately
+				}
+			}
+		}
+		disconnect();
+	}
+
+	private void receive(String payload) {
+		int sep = payload.indexOf(' ');
+		if( sep == -1 || payload.substring(0, sep).equals(instanceId) ) {
+			// invalid or already delivered locally
+			return;
+		}
+		deliver(payload.substring(sep+1));
+	}
+
+	private void deliver(String message) {
+		Consumer<String> r = receiver;
+		if( r == null ) {
+			return;
+		}
+		try {
+			r.accept(message);
+		}catch( RuntimeException e ) {
+			log.log(Level.WARNING, "Notification processing failed", e);
+		}
+	}
+
+	@Override
+	public void publish(String message) {
+		Consumer<String> r = receiver;
+		if( r != null ) {
+			r.accept(message);
+		}
+		String payload = instanceId+" "+message;
+		if( payload.getBytes(StandardCharsets.UTF_8).length > MAX_PAYLOAD_BYTES ) {
+			// e.g. too many target nodes, other instances poll for changes instead
+			log.info("Notification too long for other broker instances, sending reset: "+message.substring(0, 64)+"...");
+			payload = instanceId+" "+Notifications.RESET;
+		}
+		try( Connection c = ds.getConnection();
+				PreparedStatement ps = c.prepareStatement("SELECT pg_notify(?, ?)") ){
+			ps.setString(1, channel);
+			ps.setString(2, payload);
+			ps.execute();
+			if( !c.getAutoCommit() ) {
+				// notifications are sent on commit
+				c.commit();
+			}
+		}catch( SQLException e ) {
+			log.log(Level.WARNING, "Unable to notify other broker instances", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		Thread t;
+		synchronized( this ) {
+			closed = true;
+			receiver = null;
+			t = listener;
+		}
+		if( t == null ) {
+			return;
+		}
+		t.interrupt();
+		try {
+			t.join(2*POLL_MILLIS);
+		} catch (InterruptedException e) {
+			// listener thread will exit anyways
+		}
+	}
+}
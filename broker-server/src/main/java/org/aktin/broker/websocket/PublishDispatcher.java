@@ -0,0 +1,289 @@
+package org.aktin.broker.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends publish notifications to nodes in waves, to avoid all targeted nodes
+ * retrieving a newly published request at the same time.
+ * <p>
+ * Nodes are split into waves of {@code batchSize} nodes, which are sent
+ * {@code intervalMillis} apart. Additionally, each node can be delayed by a
+ * random jitter of up to {@code jitterMillis}. The first wave is sent
+ * immediately. Without batch size and jitter, all nodes are notified at once.
+ * </p>
+ * <p>
+ * Waves still pending when the request is closed are cancelled.
+ * </p>
+ * <p>
+ * The notification is logged once for all targeted nodes when the request is
+ * dispatched. Waves only deliver to connected sessions, so that resuming nodes
+ * receive the notification at most once.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class PublishDispatcher {
+	private static final Logger log = Logger.getLogger(PublishDispatcher.class.getName());
+
+	/**
+	 * Event log and delivery of single waves
+	 */
+	interface Sink{
+		/**
+		 * Log a message once for all targeted nodes, so that resuming
+		 * nodes receive it regardless of their wave
+		 * @param message message
+		 * @param nodeIds targeted nodes, or {@code null} for all nodes
+		 * @return sequence number of the logged message
+		 */
+		long append(String message, int[] nodeIds);
+		/**
+		 * Send a logged message to the sessions of the given nodes
+		 * @param seq sequence number of the logged message
+		 * @param message message
+		 * @param nodeIds nodes to notify, or {@code null} for all nodes except the excluded
+		 * @param excludedNodeIds nodes already notified, only used if {@code nodeIds} is {@code null}
+		 * @return number of sessions notified
+		 */
+		int send(long seq, String message, int[] nodeIds, int[] excludedNodeIds);
+	}
+
+	/** scheduled waves of a single request */
+	private static class Waves{
+		final List<ScheduledFuture<?>> futures = new ArrayList<>();
+		int remaining;
+	}
+
+	private final Sink sink;
+	private final Supplier<int[]> connectedNodes;
+	private final Map<Integer, Waves> pending;
+	private ScheduledExecutorService executor;
+
+	private volatile int batchSize;
+	private volatile long intervalMillis;
+	private volatile long jitterMillis;
+
+	// statistics
+	private long dispatchCount;
+	private long staggeredCount;
+	private long waveCount;
+	private long cancelledWaves;
+	private long notifiedSessions;
+	private long lastSpreadMillis;
+	private long currentSecond;
+	private int currentSecondCount;
+	private int peakPerSecond;
+
+	PublishDispatcher(Sink sink, Supplier<int[]> connectedNodes){
+		this.sink = sink;
+		this.connectedNodes = connectedNodes;
+		this.pending = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Configure staggered notifications. Applies to requests published afterwards.
+	 * @param batchSize number of nodes per wave, zero to send a single wave
+	 * @param intervalMillis delay between waves
+	 * @param jitterMillis maximum random delay for each node, zero for no jitter
+	 */
+	public void configure(int batchSize, long intervalMillis, long jitterMillis) {
+		if( batchSize < 0 || intervalMillis < 0 || jitterMillis < 0 ) {
+			throw new IllegalArgumentException("Negative publish dispatch settings not allowed");
+		}
+		this.batchSize = batchSize;
+		this.intervalMillis = intervalMillis;
+		this.jitterMillis = jitterMillis;
+	}
+
+	private boolean isStaggered() {
+		return (batchSize > 0 && intervalMillis > 0) || jitterMillis > 0;
+	}
+
+	/**
+	 * Notify nodes about a published request
+	 * @param requestId request id
+	 * @param message notification
+	 * @param nodeIds targeted nodes or {@code null} for all nodes
+	 */
+	void dispatch(int requestId, String message, int[] nodeIds) {
+		int[] targets = (nodeIds == null) ? connectedNodes.get() : nodeIds;
+		long seq = sink.append(message, nodeIds);
+		if( !isStaggered() || targets.length <= 1 ) {
+			deliver(seq, message, nodeIds, null);
+			synchronized( this ) {
+				dispatchCount ++;
+				lastSpreadMillis = 0;
+			}
+			return;
+		}
+		// group nodes by delay
+		TreeMap<Long, List<Integer>> waves = new TreeMap<>();
+		for( int i=0; i<targets.length; i++ ) {
+			long delay = 0;
+			if( batchSize > 0 ) {
+				delay = (i / batchSize) * intervalMillis;
+			}
+			if( jitterMillis > 0 ) {
+				delay += ThreadLocalRandom.current().nextLong(jitterMillis);
+			}
+			waves.computeIfAbsent(delay, k -> new ArrayList<>()).add(targets[i]);
+		}
+		synchronized( this ) {
+			dispatchCount ++;
+			staggeredCount ++;
+			lastSpreadMillis = waves.lastKey();
+		}
+		Waves scheduled = new Waves();
+		// waves without delay are sent immediately
+		scheduled.remaining = (waves.firstKey() == 0) ? waves.size() - 1 : waves.size();
+		if( scheduled.remaining > 0 ) {
+			pending.put(requestId, scheduled);
+		}
+		int[] notified = new int[0];
+		for( Map.Entry<Long, List<Integer>> wave : waves.entrySet() ) {
+			int[] ids = wave.getValue().stream().mapToInt(Integer::intValue).toArray();
+			Runnable task;
+			if( nodeIds == null && wave.getKey().equals(waves.lastKey()) ) {
+				// last wave of untargeted requests also reaches nodes connected meanwhile
+				int[] excluded = notified;
+				task = () -> deliver(seq, message, null, excluded);
+			}else {
+				task = () -> deliver(seq, message, ids, null);
+			}
+			int[] merged = new int[notified.length + ids.length];
+			System.arraycopy(notified, 0, merged, 0, notified.length);
+			System.arraycopy(ids, 0, merged, notified.length, ids.length);
+			notified = merged;
+
+			if( wave.getKey() == 0 ) {
+				task.run();
+			}else {
+				synchronized( scheduled ) {
+					scheduled.futures.add(schedule(requestId, scheduled, task, wave.getKey()));
+				}
+			}
+		}
+	}
+
+	private synchronized ScheduledFuture<?> schedule(int requestId, Waves scheduled, Runnable task, long delay) {
+		if( executor == null ) {
+			executor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "websocket-publish-dispatch");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return executor.schedule(() -> {
+			try {
+				task.run();
+			}catch( RuntimeException e ) {
+				log.log(Level.WARNING, "Publish notification failed for request "+requestId, e);
+			}
+			synchronized( scheduled ) {
+				scheduled.remaining --;
+				if( scheduled.remaining == 0 ) {
+					// last wave completed
+					pending.remove(requestId, scheduled);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void deliver(long seq, String message, int[] nodeIds, int[] excludedNodeIds) {
+		int count = sink.send(seq, message, nodeIds, excludedNodeIds);
+		long second = System.currentTimeMillis() / 1000;
+		synchronized( this ) {
+			waveCount ++;
+			notifiedSessions += count;
+			if( second != currentSecond ) {
+				currentSecond = second;
+				currentSecondCount = 0;
+			}
+			currentSecondCount += count;
+			peakPerSecond = Math.max(peakPerSecond, currentSecondCount);
+		}
+	}
+
+	/**
+	 * Cancel pending waves for a request, e.g. if the request was closed.
+	 * @param requestId request id
+	 */
+	void cancel(int requestId) {
+		Waves scheduled = pending.remove(requestId);
+		if( scheduled == null ) {
+			return;
+		}
+		int cancelled = 0;
+		synchronized( scheduled ) {
+			for( ScheduledFuture<?> f : scheduled.futures ) {
+				if( f.cancel(false) ) {
+					cancelled ++;
+				}
+			}
+		}
+		synchronized( this ) {
+			cancelledWaves += cancelled;
+		}
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+	public long getJitterMillis() {
+		return jitterMillis;
+	}
+	/**
+	 * Number of requests with waves not yet sent
+	 * @return request count
+	 */
+	public int getPendingRequests() {
+		return pending.size();
+	}
+	public synchronized long getDispatchCount() {
+		return dispatchCount;
+	}
+	public synchronized long getStaggeredCount() {
+		return staggeredCount;
+	}
+	public synchronized long getWaveCount() {
+		return waveCount;
+	}
+	public synchronized long getCancelledWaves() {
+		return cancelledWaves;
+	}
+	public synchronized long getNotifiedSessions() {
+		return notifiedSessions;
+	}
+	/**
+	 * Delay of the last wave of the most recently published request
+	 * @return delay in milliseconds
+	 */
+	public synchronized long getLastSpreadMillis() {
+		return lastSpreadMillis;
+	}
+	/**
+	 * Maximum number of publish notifications sent within one second. Each notified
+	 * node will usually retrieve the request immediately, so this is an estimate
+	 * for the peak request rate caused by publishing.
+	 * @return notifications per second
+	 */
+	public synchronized int getPeakPerSecond() {
+		return peakPerSecond;
+	}
+}
@@ -2,7 +2,9 @@ package org.aktin.broker.websocket;
 
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -14,6 +16,17 @@ import org.aktin.broker.auth.Principal;
 /**
  * Websocket endpoint for admin connections to notify about status updates for requests and resources
  * changed by clients.
+ * <p>
+ * By default, each event is sent as a single text frame. Sessions connecting with the
+ * query parameter {@code batch=true} receive events accumulated over the batch window
+ * as a single frame {@code batch <count>} followed by one event per line. Within a window,
+ * status and result events are deduplicated per request and node.
+ * Reconnecting sessions without batching can resume missed events, see {@link AbstractBroadcastWebsocket}.
+ * </p>
+ * <p>
+ * Other transports, e.g. server-sent events, receive the same events via {@link EventListener}.
+ * Events are distributed to all broker instances via {@link Notifications}.
+ * </p>
  *
  * @author R.W.Majeed
  *
@@ -23,31 +36,155 @@ public class RequestAdminWebsocket extends AbstractBroadcastWebsocket{
 	public static final String REST_PATH = "/broker/websocket";
 	/** set of connected sessions, needs to be static and local */ 
 	private static Set<Session> clients = Collections.synchronizedSet(new HashSet<Session>());
+	/** sessions which opted in to batched notifications */
+	private static Set<Session> batchClients = Collections.synchronizedSet(new HashSet<Session>());
+	/** default time window for batched notifications */
+	public static final long DEFAULT_BATCH_MILLIS = 250;
+	/** recent events for resuming sessions */
+	private static final EventLog events = new EventLog(EventLog.DEFAULT_CAPACITY);
+	/** listeners of other transports */
+	private static final Set<EventListener> listeners = new CopyOnWriteArraySet<>();
+	private static final EventBatcher batcher = new EventBatcher("websocket-admin-batch", DEFAULT_BATCH_MILLIS, frame -> broadcast(batchClients, frame));
 
 	private static final Logger log = Logger.getLogger(RequestAdminWebsocket.class.getName());
-	
+
+	/**
+	 * Set the time window for batched notifications. Applies to windows started afterwards.
+	 * @param millis window in milliseconds, zero to disable batching for new sessions
+	 */
+	public static void setBatchWindow(long millis) {
+		batcher.setWindowMillis(millis);
+	}
+
+	/**
+	 * Set the number of events kept for resuming sessions. Previous events are discarded.
+	 * @param capacity number of events
+	 */
+	public static void setEventLogCapacity(int capacity) {
+		events.resize(capacity);
+	}
+
+	/**
+	 * Receives the same events as admin websocket sessions. Events are delivered
+	 * in order while the event log is locked, so implementations must not block.
+	 */
+	public interface EventListener{
+		/**
+		 * Called for each event
+		 * @param cursor position of the event, see {@link EventLog#getCursor()}
+		 * @param event event in single-line notation, or {@code reset} if
+		 *  missed events are unavailable. In this case, the cursor is the current position.
+		 */
+		void onEvent(String cursor, String event);
+	}
+
+	/**
+	 * Add a listener for admin events. Events after the given cursor are delivered
+	 * to the listener before any new events. If these events are no longer available
+	 * or no cursor is given, the listener first receives {@code reset}.
+	 * @param listener listener
+	 * @param cursor cursor of the last event received via a previous connection, may be {@code null}
+	 */
+	public static void addEventListener(EventListener listener, String cursor) {
+		synchronized( events ) {
+			List<String> missed = null;
+			if( cursor != null ) {
+				missed = events.since(cursor, t -> true);
+			}
+			if( missed == null ) {
+				listener.onEvent(events.getCursor(), "reset");
+			}else {
+				for( String line : missed ) {
+					// formatted as #<seq> <event>
+					int sep = line.indexOf(' ');
+					listener.onEvent(events.getCursor(Long.parseLong(line.substring(1, sep))), line.substring(sep+1));
+				}
+			}
+			listeners.add(listener);
+		}
+	}
+
+	public static void removeEventListener(EventListener listener) {
+		listeners.remove(listener);
+	}
+
+	public static int getEventListenerCount() {
+		return listeners.size();
+	}
+
+	private static void notify(String key, String message) {
+		synchronized( events ) {
+			long seq = events.append(message, null);
+			broadcast(clients, seq, message);
+			for( EventListener listener : listeners ) {
+				listener.onEvent(events.getCursor(seq), message);
+			}
+		}
+		if( !batchClients.isEmpty() ) {
+			batcher.add(key, message);
+		}
+	}
+
 	public static void broadcastRequestCreated(int requestId){
 		// transmitted to all clients and administrators
-		broadcast(clients, "created "+requestId);
+		Notifications.publishAdminEvent("created "+requestId);
 	}
 	
 	public static void broadcastRequestPublished(int requestId){
 		// transmitted to all clients and administrators
-		broadcast(clients, "published "+requestId);
+		Notifications.publishAdminEvent("published "+requestId);
 	}
 	public static void broadcastRequestClosed(int requestId){
 		// transmitted to all clients and administrators		
-		broadcast(clients, "closed "+requestId);
+		Notifications.publishAdminEvent("closed "+requestId);
 	}
 	public static void broadcastRequestNodeStatus(int requestId, int nodeId, String status){
 		// transmitted only to administrators
-		broadcast(clients, "status "+requestId+" "+nodeId+" "+status);	
+		Notifications.publishAdminEvent("status "+requestId+" "+nodeId+" "+status);
 	}
 	public static void broadcastNodeResourceChange(int nodeId, String resourceId) {
-		broadcast(clients, "resource "+nodeId+" "+resourceId);
+		Notifications.publishAdminEvent("resource "+nodeId+" "+resourceId);
 	}
 	public static void broadcastNodeResult(int requestId, int nodeId, String mediaType) {
-		broadcast(clients, "result "+requestId+" "+nodeId+" "+mediaType);	
+		Notifications.publishAdminEvent("result "+requestId+" "+nodeId+" "+mediaType);
+	}
+
+	/**
+	 * Deliver an admin event from the {@link NotificationBus} to the sessions of this instance.
+	 * @param event event in websocket notation
+	 */
+	static void receiveEvent(String event) {
+		String key = null;
+		if( event.startsWith("status ") || event.startsWith("result ") ) {
+			// only the latest status or result per request and node is batched
+			String[] args = event.split(" ", 4);
+			key = args[0]+" "+args[1]+" "+args[2];
+		}
+		notify(key, event);
+	}
+
+	/**
+	 * Discard logged events after events of other instances may have been missed.
+	 * Resumed and batched sessions as well as listeners receive {@code reset}.
+	 */
+	static void resetEvents() {
+		synchronized( events ) {
+			events.clear();
+			String cursor = events.getCursor();
+			synchronized( clients ) {
+				clients.forEach(session -> sendReset(session, cursor));
+			}
+			for( EventListener listener : listeners ) {
+				listener.onEvent(cursor, "reset");
+			}
+		}
+		// batched sessions never resume
+		broadcast(batchClients, "reset");
+	}
+
+	private static boolean isBatchRequested(Session session) {
+		List<String> values = session.getRequestParameterMap().get("batch");
+		return values != null && values.contains("true") && batcher.getWindowMillis() > 0;
 	}
 
 	@Override
@@ -59,14 +196,32 @@ public class RequestAdminWebsocket extends AbstractBroadcastWebsocket{
 		return true;
 	}
 	@Override
+	protected EventLog getEventLog(Session session) {
+		if( isBatchRequested(session) ) {
+			// batched frames are not logged
+			return null;
+		}
+		return events;
+	}
+	@Override
+	protected boolean isTargeted(Principal user, int[] nodeIds) {
+		return true;
+	}
+	@Override
 	protected void addSession(Session session, Principal user) {
 		user.incrementWebsocketCount();
-		clients.add(session);
+		if( isBatchRequested(session) ) {
+			batchClients.add(session);
+		}else {
+			clients.add(session);
+		}
 	}
 
 	@Override
 	protected void removeSession(Session session, Principal user) {
 		user.decrementWebsocketCount();
-		clients.remove(session);
+		if( !clients.remove(session) ) {
+			batchClients.remove(session);
+		}
 	}
 }
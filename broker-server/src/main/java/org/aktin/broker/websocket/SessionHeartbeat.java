@@ -0,0 +1,228 @@
+package org.aktin.broker.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.Session;
+
+/**
+ * Server side heartbeat for a single websocket session.
+ * <p>
+ * Ping control frames are sent periodically to all sessions. The ping payload
+ * carries the send time, so that the round trip time is measured when the pong
+ * arrives. Sessions which did not answer the previous pings are reaped: they are
+ * removed from the broadcast sets immediately and closed afterwards. Half-open
+ * connections are thereby detected long before the idle timeout.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class SessionHeartbeat {
+	private static final Logger log = Logger.getLogger(SessionHeartbeat.class.getName());
+	private static final String USER_PROPERTY = SessionHeartbeat.class.getName();
+	/** number of round trip times kept for each session */
+	private static final int RTT_SAMPLES = 32;
+	/** default interval between pings, 30 seconds */
+	public static final long DEFAULT_INTERVAL_MILLIS = 30000;
+	/** default number of unanswered pings before a session is reaped */
+	public static final int DEFAULT_MAX_MISSED = 3;
+
+	/** heartbeats of all open sessions */
+	private static final Set<SessionHeartbeat> heartbeats = ConcurrentHashMap.newKeySet();
+	private static final AtomicLong reaped = new AtomicLong();
+	private static volatile int maxMissed = DEFAULT_MAX_MISSED;
+	private static ScheduledExecutorService scheduler;
+
+	private final Session session;
+	private final Runnable reaper;
+	/** round trip times in nanoseconds, ring buffer */
+	private final long[] rtt;
+	private int rttCount;
+	private int missed;
+	private boolean detached;
+
+	private SessionHeartbeat(Session session, Runnable reaper) {
+		this.session = session;
+		this.reaper = reaper;
+		this.rtt = new long[RTT_SAMPLES];
+	}
+
+	/**
+	 * Create a heartbeat for the session. The heartbeat is stored in the session user properties.
+	 * @param session session
+	 * @param reaper removes the session from the endpoint, called if the session does not answer pings
+	 * @return heartbeat
+	 */
+	static SessionHeartbeat attach(Session session, Runnable reaper) {
+		SessionHeartbeat h = new SessionHeartbeat(session, reaper);
+		session.getUserProperties().put(USER_PROPERTY, h);
+		heartbeats.add(h);
+		return h;
+	}
+	/**
+	 * Get the heartbeat for a session
+	 * @param session session
+	 * @return heartbeat or {@code null} if no heartbeat was attached
+	 */
+	static SessionHeartbeat of(Session session) {
+		return (SessionHeartbeat)session.getUserProperties().get(USER_PROPERTY);
+	}
+	/**
+	 * Stop sending pings. Must be called when the session is closed.
+	 * @return {@code false} if the heartbeat was already detached, e.g. by reaping the session
+	 */
+	boolean detach() {
+		synchronized( this ) {
+			if( detached ) {
+				return false;
+			}
+			detached = true;
+		}
+		heartbeats.remove(this);
+		return true;
+	}
+
+	/**
+	 * Start or stop sending pings to all sessions.
+	 * @param intervalMillis interval between pings, zero or less to disable the heartbeat
+	 * @param maxMissed number of unanswered pings after which a session is reaped
+	 */
+	public static synchronized void configure(long intervalMillis, int maxMissed) {
+		if( maxMissed < 1 ) {
+			throw new IllegalArgumentException("Number of missed pings must be positive");
+		}
+		SessionHeartbeat.maxMissed = maxMissed;
+		if( scheduler != null ) {
+			scheduler.shutdown();
+			scheduler = null;
+		}
+		if( intervalMillis <= 0 ) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+			Thread t = new Thread(r, "websocket-heartbeat");
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.scheduleWithFixedDelay(SessionHeartbeat::pingAll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		log.info("Websocket heartbeat every "+intervalMillis+"ms, sessions reaped after "+maxMissed+" missed pings");
+	}
+
+	/**
+	 * Send a ping to every session
+	 */
+	static void pingAll() {
+		for( SessionHeartbeat h : heartbeats ) {
+			try {
+				h.ping();
+			}catch( RuntimeException e ) {
+				log.log(Level.WARNING, "Websocket heartbeat failed for session "+h.session.getId(), e);
+			}
+		}
+	}
+
+	/**
+	 * Send a ping or reap the session, if the previous pings were not answered
+	 */
+	void ping() {
+		synchronized( this ) {
+			if( detached ) {
+				return;
+			}
+			if( missed < maxMissed ) {
+				missed ++;
+				send();
+				return;
+			}
+		}
+		reap();
+	}
+
+	private void send() {
+		ByteBuffer payload = ByteBuffer.allocate(Long.BYTES);
+		payload.putLong(System.nanoTime());
+		payload.flip();
+		try {
+			session.getAsyncRemote().sendPing(payload);
+		}catch( IOException | IllegalArgumentException | IllegalStateException e ) {
+			// counted as missed
+			log.log(Level.FINE, "Unable to ping websocket session {0}: {1}", new Object[] {session.getId(), e});
+		}
+	}
+
+	private void reap() {
+		log.log(Level.WARNING, "Reaping websocket session {0} for {1}: {2} pings not answered", new Object[] {session.getId(), AbstractBroadcastWebsocket.getSessionPrincipal(session), maxMissed});
+		reaped.incrementAndGet();
+		reaper.run();
+		try {
+			session.close(new CloseReason(CloseCodes.GOING_AWAY, "heartbeat timeout"));
+		} catch (IOException | IllegalStateException e) {
+			log.log(Level.FINE, "Failed to close reaped websocket session "+session.getId(), e);
+		}
+	}
+
+	/**
+	 * Process a pong received from the client. Pongs with a
+	 * payload sent by {@link #ping()} are used to measure the round trip time.
+	 * @param payload pong application data
+	 */
+	synchronized void pong(ByteBuffer payload) {
+		missed = 0;
+		if( payload.remaining() != Long.BYTES ) {
+			// unsolicited pong
+			return;
+		}
+		long nanos = System.nanoTime() - payload.getLong(payload.position());
+		if( nanos < 0 ) {
+			return;
+		}
+		rtt[rttCount % RTT_SAMPLES] = nanos;
+		rttCount ++;
+	}
+
+	/**
+	 * Get the recent round trip times
+	 * @return round trip times in nanoseconds, unordered
+	 */
+	public synchronized long[] getRoundTripTimes() {
+		return Arrays.copyOf(rtt, Math.min(rttCount, RTT_SAMPLES));
+	}
+	/**
+	 * Number of pings sent since the last pong
+	 * @return count
+	 */
+	public synchronized int getMissedCount() {
+		return missed;
+	}
+
+	/**
+	 * Number of sessions which were reaped since startup
+	 * @return count
+	 */
+	public static long getReapedCount() {
+		return reaped.get();
+	}
+
+	/**
+	 * Determine a percentile using the nearest rank method
+	 * @param sorted sorted values, not empty
+	 * @param percent percentile between 0 and 100
+	 * @return value
+	 */
+	static long percentile(long[] sorted, int percent) {
+		int rank = (int)Math.ceil(percent / 100.0 * sorted.length);
+		return sorted[Math.max(rank, 1) - 1];
+	}
+}
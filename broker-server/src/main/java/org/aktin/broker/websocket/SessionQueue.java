@@ -0,0 +1,118 @@
+package org.aktin.broker.websocket;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.CloseReason.CloseCodes;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.aktin.broker.auth.Principal;
+
+/**
+ * Bounded outbound message queue for a single websocket session, see {@link OutboundQueue}.
+ * <p>
+ * Sessions which resumed from a cursor are never silently dropped. If messages
+ * would be discarded, the queued messages are replaced by a reset message
+ * (see {@link #setOverflowReset(java.util.function.Supplier)}) and the client polls the current state.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class SessionQueue extends OutboundQueue<String> {
+	private static final Logger log = Logger.getLogger(SessionQueue.class.getName());
+	private static final String USER_PROPERTY = SessionQueue.class.getName();
+	/** queues of all open sessions */
+	private static final Set<SessionQueue> queues = ConcurrentHashMap.newKeySet();
+
+	private final Session session;
+	private final String endpoint;
+
+	private SessionQueue(Session session, String endpoint, int capacity, OverflowPolicy policy) {
+		super(capacity, policy);
+		this.session = session;
+		this.endpoint = endpoint;
+	}
+
+	/**
+	 * Create a queue for the session. The queue is stored in the session user properties.
+	 * @param session session
+	 * @param endpoint endpoint path, used for statistics
+	 * @param capacity maximum number of queued messages, excluding the message in flight
+	 * @param policy overflow policy
+	 * @return queue
+	 */
+	static SessionQueue attach(Session session, String endpoint, int capacity, OverflowPolicy policy) {
+		SessionQueue q = new SessionQueue(session, endpoint, capacity, policy);
+		session.getUserProperties().put(USER_PROPERTY, q);
+		queues.add(q);
+		return q;
+	}
+	/**
+	 * Get the queue for a session
+	 * @param session session
+	 * @return queue or {@code null} if no queue was attached
+	 */
+	static SessionQueue of(Session session) {
+		return (SessionQueue)session.getUserProperties().get(USER_PROPERTY);
+	}
+	/**
+	 * Discard queued messages and stop sending. Must be called when the session is closed.
+	 */
+	void detach() {
+		close();
+		queues.remove(this);
+	}
+
+	/**
+	 * Get queues for all open sessions
+	 * @return unmodifiable set of queues
+	 */
+	public static Set<SessionQueue> getAll(){
+		return Collections.unmodifiableSet(queues);
+	}
+
+	@Override
+	protected void overflow() {
+		log.log(Level.WARNING, "Closing slow websocket session {0} for {1}: outbound queue overflow", new Object[] {session.getId(), getUser()});
+		queues.remove(this);
+		try {
+			session.close(new CloseReason(CloseCodes.VIOLATED_POLICY, "outbound queue overflow"));
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Failed to close websocket session "+session.getId(), e);
+		}
+	}
+
+	@Override
+	protected void transmit(String message) {
+		try {
+			session.getAsyncRemote().sendText(message, this::completed);
+		}catch( IllegalStateException e ) {
+			// session closed concurrently
+			completed(new SendResult(e));
+		}
+	}
+
+	private void completed(SendResult result) {
+		if( !result.isOK() ) {
+			log.log(Level.INFO, "Websocket send failed for session {0}: {1}", new Object[] {session.getId(), result.getException()});
+		}
+		completed(result.isOK());
+	}
+
+	public String getSessionId() {
+		return session.getId();
+	}
+	public String getEndpoint() {
+		return endpoint;
+	}
+	public Principal getUser() {
+		return AbstractBroadcastWebsocket.getSessionPrincipal(session);
+	}
+}
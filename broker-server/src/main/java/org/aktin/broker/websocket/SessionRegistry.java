@@ -0,0 +1,99 @@
+package org.aktin.broker.websocket;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Consumer;
+
+import javax.websocket.Session;
+
+/**
+ * Registry of websocket sessions indexed by node id.
+ * <p>
+ * Sessions for each node are kept in copy-on-write sets, so that
+ * broadcasts can iterate the sessions of the targeted nodes without
+ * locking, while connects and disconnects of other nodes proceed
+ * concurrently.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+class SessionRegistry {
+	private final ConcurrentHashMap<Integer, Set<Session>> sessions;
+
+	SessionRegistry(){
+		this.sessions = new ConcurrentHashMap<>();
+	}
+
+	void add(int nodeId, Session session) {
+		sessions.compute(nodeId, (k, set) -> {
+			if( set == null ) {
+				set = new CopyOnWriteArraySet<>();
+			}
+			set.add(session);
+			return set;
+		});
+	}
+
+	void remove(int nodeId, Session session) {
+		// remove the node entry with the last session
+		sessions.computeIfPresent(nodeId, (k, set) -> {
+			set.remove(session);
+			return set.isEmpty() ? null : set;
+		});
+	}
+
+	/**
+	 * Get the sessions connected for a node
+	 * @param nodeId node id
+	 * @return unmodifiable set of sessions, empty if the node is not connected
+	 */
+	Set<Session> get(int nodeId) {
+		Set<Session> set = sessions.get(nodeId);
+		if( set == null ) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(set);
+	}
+
+	/**
+	 * Perform an action for each session of the given nodes. Cost is
+	 * proportional to the number of given nodes, not to the number of connected sessions.
+	 * @param nodeIds node ids, expected to be unique
+	 * @param action action to perform
+	 */
+	void forEach(int[] nodeIds, Consumer<Session> action) {
+		for( int i=0; i<nodeIds.length; i++ ) {
+			Set<Session> set = sessions.get(nodeIds[i]);
+			if( set != null ) {
+				set.forEach(action);
+			}
+		}
+	}
+
+	/**
+	 * Perform an action for each registered session
+	 * @param action action to perform
+	 */
+	void forEach(Consumer<Session> action) {
+		sessions.values().forEach(set -> set.forEach(action));
+	}
+
+	/**
+	 * Get the nodes with at least one connected session
+	 * @return node ids
+	 */
+	int[] getNodeIds() {
+		return sessions.keySet().stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Number of nodes with at least one connected session
+	 * @return node count
+	 */
+	int getNodeCount() {
+		return sessions.size();
+	}
+}
@@ -15,6 +15,7 @@ public abstract class AbstractTestBroker {
 	@Before
 	public void setupServer() throws Exception{
 		server = new BrokerTestServer(new AuthFilterSSLHeaders());
+		server.setCompression(isCompressionEnabled());
 		server.start_local(0);
 		// TODO reset database
 	}
@@ -25,6 +26,14 @@ public abstract class AbstractTestBroker {
 		server.destroy();
 	}
 
+	/**
+	 * Whether the server stores uploaded data compressed
+	 * @return {@code false}, override to run the tests with compression
+	 */
+	protected boolean isCompressionEnabled() {
+		return false;
+	}
+
 	public abstract BrokerClient initializeClient(String arg);
 	
 	public abstract BrokerAdmin initializeAdmin();
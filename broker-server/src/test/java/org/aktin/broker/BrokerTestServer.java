@@ -68,6 +68,14 @@ public class BrokerTestServer {
 		this.binder = new MyBinder(ds, headerAuth);
 		rc.register(binder);
 	}
+	/**
+	 * Store uploaded data compressed. Disabled by default.
+	 * Must be called before the server is started.
+	 * @param compress whether to compress stored data
+	 */
+	public void setCompression(boolean compress){
+		binder.setCompression(compress);
+	}
 	public void register(Class<?> componentClass){
 		rc.register(componentClass);
 	}
@@ -105,6 +113,8 @@ public class BrokerTestServer {
 		jetty.setHandler(context);
 
 		ServletHolder jersey = new ServletHolder(new ServletContainer(rc));
+		// suspended long-poll requests
+		jersey.setAsyncSupported(true);
 //		jersey.setInitOrder(0);
 		context.addServlet(jersey, "/*");
 //		WebSocketServlet wss = new WebSocketServlet() {
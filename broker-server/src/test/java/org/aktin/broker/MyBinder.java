@@ -19,19 +19,31 @@ import org.glassfish.hk2.utilities.binding.AbstractBinder;
 public class MyBinder extends AbstractBinder{
 
 	private DataSource ds;
+	private BrokerImpl broker;
 	private BrokerBackend backend;
 	private AuthCache cache;
 	private HeaderAuthentication headerAuth;
+	private boolean compression;
 
 	public MyBinder(DataSource ds, HeaderAuthentication headerAuth) throws IOException{
 		this.ds = ds;
 		this.headerAuth = headerAuth;
-		this.backend = new BrokerImpl(ds, Paths.get("target/broker-data"));
+		this.broker = new BrokerImpl(ds, Paths.get("target/broker-data"));
+		this.backend = broker;
 		this.cache = new AuthCache(backend);
 	}
 	public AuthCache getAuthCache() {
 		return cache;
 	}
+	/**
+	 * Store uploaded node resources and results compressed.
+	 * Must be called before the binder is configured.
+	 * @param compress whether to compress stored data
+	 */
+	public void setCompression(boolean compress) {
+		this.compression = compress;
+		broker.setCompression(compress);
+	}
 	@Override
 	protected void configure() {
 //		bind(Impl.class).to(Inter.class);
@@ -51,6 +63,7 @@ public class MyBinder extends AbstractBinder{
 			
 			// aggregator
 			AggregatorImpl adb = new AggregatorImpl(ds, Paths.get("target/aggregator-data"));
+			adb.setCompression(compression);
 			// clear uploaded files
 			adb.clearDataDirectory();
 			bind(adb).to(AggregatorBackend.class);
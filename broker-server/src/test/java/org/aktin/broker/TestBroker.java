@@ -5,7 +5,15 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.sql.SQLException;
 import java.time.Instant;
 import java.util.Arrays;
@@ -14,6 +22,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import org.aktin.broker.client.TestAdmin;
 import org.aktin.broker.client.TestClient;
@@ -21,6 +31,7 @@ import org.aktin.broker.client.Utils;
 import org.aktin.broker.client2.AuthFilter;
 import org.aktin.broker.client2.BrokerAdmin2;
 import org.aktin.broker.client2.BrokerClient2;
+import org.aktin.broker.client2.HttpStatusException;
 import org.aktin.broker.db.BrokerImpl;
 import org.aktin.broker.client.AuthFilterImpl;
 import org.aktin.broker.client.BrokerAdmin;
@@ -39,14 +50,14 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 
 public class TestBroker extends AbstractTestBroker {
-	private static final String CLIENT_01_SERIAL = "01";
-	private static final String CLIENT_01_DN = "CN=Test 1,ST=Hessen,C=DE,O=AKTIN,OU=Uni Giessen";
+	static final String CLIENT_01_SERIAL = "01";
+	static final String CLIENT_01_DN = "CN=Test 1,ST=Hessen,C=DE,O=AKTIN,OU=Uni Giessen";
 
-	private static final String CLIENT_02_SERIAL = "02";
-	private static final String CLIENT_02_DN = "CN=Test 2,ST=Hessen,C=DE,O=AKTIN,OU=Uni Giessen";
+	static final String CLIENT_02_SERIAL = "02";
+	static final String CLIENT_02_DN = "CN=Test 2,ST=Hessen,C=DE,O=AKTIN,OU=Uni Giessen";
 
-	private static final String ADMIN_00_DN = "CN=Test Adm,ST=Hessen,C=DE,O=AKTIN,OU=Uni Giessen,OU=admin";
-	private static final String ADMIN_00_SERIAL = "00";
+	static final String ADMIN_00_DN = "CN=Test Adm,ST=Hessen,C=DE,O=AKTIN,OU=Uni Giessen,OU=admin";
+	static final String ADMIN_00_SERIAL = "00";
 
 
 	@Override
@@ -376,6 +387,72 @@ public class TestBroker extends AbstractTestBroker {
 		a.deleteRequest(qid);
 		Assert.assertTrue( c.listMyRequests().isEmpty() );
 	}
+	@Test
+	public void resumableResultUpload() throws Exception{
+		BrokerAdmin a = initializeAdmin();
+		int qid = a.createRequest("text/x-test-1", "test1");
+		a.publishRequest(qid);
+		BrokerClient2 c = initializeClient(CLIENT_01_SERIAL);
+		c.setUploadChunkSize(1000);
+		c.setUploadRetryMillis(0);
+		StringBuilder b = new StringBuilder();
+		Random rand = new Random(42);
+		while( b.length() < 5000 ) {
+			b.append((char)('a'+rand.nextInt(26)));
+		}
+		byte[] data = b.toString().getBytes(StandardCharsets.US_ASCII);
+		byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(data);
+
+		// protocol
+		String uploadId = c.createResultUpload(qid, "text/plain");
+		Assert.assertEquals(0, c.getResultUploadOffset(qid, uploadId));
+		Assert.assertEquals(1000, c.appendResultUpload(qid, uploadId, 0, data, 0, 1000));
+		// wrong offset is rejected with the current offset
+		Assert.assertEquals(1000, c.appendResultUpload(qid, uploadId, 500, data, 500, 1000));
+		Assert.assertEquals(1000, c.getResultUploadOffset(qid, uploadId));
+		// other nodes can not access the upload
+		Assert.assertEquals(-1, initializeClient(CLIENT_02_SERIAL).getResultUploadOffset(qid, uploadId));
+		// wrong digest discards the upload
+		try {
+			c.completeResultUpload(qid, uploadId, sha256);
+			Assert.fail("digest mismatch not detected");
+		}catch( HttpStatusException e ) {
+			Assert.assertEquals(400, e.getStatusCode());
+		}
+		Assert.assertEquals(-1, c.getResultUploadOffset(qid, uploadId));
+		Assert.assertTrue(a.listResults(qid).isEmpty());
+
+		// transfer interrupted after 2500 bytes is resumed
+		AtomicInteger opened = new AtomicInteger();
+		c.putRequestResultResumable(qid, "text/plain", () -> {
+			if( opened.getAndIncrement() == 0 ) {
+				return new SequenceInputStream(new ByteArrayInputStream(data, 0, 2500), new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("connection lost");
+					}
+				});
+			}
+			return new ByteArrayInputStream(data);
+		});
+		Assert.assertEquals(2, opened.get());
+		List<ResultInfo> r = a.listResults(qid);
+		Assert.assertEquals(1, r.size());
+		Assert.assertEquals("text/plain", r.get(0).type);
+		Assert.assertEquals(b.toString(), a.getResultString(qid, r.get(0).node));
+
+		// rejected uploads are not retried
+		c.setUploadRetryMillis(5000);
+		long start = System.currentTimeMillis();
+		try {
+			c.putRequestResultResumable(qid, "invalid", () -> new ByteArrayInputStream(data));
+			Assert.fail("upload with invalid media type not rejected");
+		}catch( HttpStatusException e ) {
+			Assert.assertEquals(400, e.getStatusCode());
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+	}
+
 	@Test
 	public void verifyLastContactUpdated() throws IOException{
 		BrokerAdmin a = initializeAdmin();
@@ -436,4 +513,97 @@ public class TestBroker extends AbstractTestBroker {
 		assertEquals(qid, list.get(0).getId());
 	
 	}
+	@Test
+	public void requestDefinitionWithEntityTagAndGzip() throws IOException, InterruptedException{
+		BrokerAdmin a = initializeAdmin();
+		// long and repetitive definition to make compression worthwhile
+		String content = String.join("", Collections.nCopies(100, "<query>test</query>"));
+		int rid = a.createRequest("text/vnd.test1", content);
+		a.publishRequest(rid);
+
+		HttpClient http = HttpClient.newHttpClient();
+		AuthFilterImpl auth = new AuthFilterImpl(CLIENT_01_SERIAL, CLIENT_01_DN);
+		URI uri = server.getBrokerServiceURI().resolve("my/request/"+rid);
+		HttpRequest.Builder rb = HttpRequest.newBuilder(uri).header("Accept", "text/vnd.test1").header("Accept-Encoding", "gzip");
+		auth.addAuthentication(rb);
+		HttpResponse<byte[]> resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(200, resp.statusCode());
+		assertEquals("gzip", resp.headers().firstValue("Content-Encoding").orElse(null));
+		String tag = resp.headers().firstValue("ETag").orElse(null);
+		assertNotNull(tag);
+		try( InputStream in = new GZIPInputStream(new ByteArrayInputStream(resp.body())) ){
+			assertEquals(content, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+
+		// conditional request
+		rb = HttpRequest.newBuilder(uri).header("Accept", "text/vnd.test1").header("Accept-Encoding", "gzip").header("If-None-Match", tag);
+		auth.addAuthentication(rb);
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(304, resp.statusCode());
+
+		// changed definition must not match the tag
+		a.putRequestDefinition(rid, "text/vnd.test1", "changed");
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(200, resp.statusCode());
+	}
+	@Test
+	public void nodeResourceRangesAndHead() throws IOException, InterruptedException{
+		initializeAdmin();
+		BrokerClient c = initializeClient(CLIENT_01_SERIAL);
+		byte[] content = new byte[10000];
+		new Random(42).nextBytes(content);
+		c.putMyResource("binary", "application/octet-stream", new ByteArrayInputStream(content));
+
+		HttpClient http = HttpClient.newHttpClient();
+		AuthFilterImpl auth = new AuthFilterImpl(ADMIN_00_SERIAL, ADMIN_00_DN);
+		URI uri = server.getBrokerServiceURI().resolve("node/0/binary");
+		HttpRequest.Builder rb = HttpRequest.newBuilder(uri).header("Range", "bytes=100-199");
+		auth.addAuthentication(rb);
+		HttpResponse<byte[]> resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(206, resp.statusCode());
+		assertEquals("bytes 100-199/10000", resp.headers().firstValue("Content-Range").orElse(null));
+		assertArrayEquals(Arrays.copyOfRange(content, 100, 200), resp.body());
+		String tag = resp.headers().firstValue("ETag").orElse(null);
+
+		// resume with matching validator
+		rb = HttpRequest.newBuilder(uri).header("Range", "bytes=9990-").header("If-Range", tag);
+		auth.addAuthentication(rb);
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(206, resp.statusCode());
+		assertArrayEquals(Arrays.copyOfRange(content, 9990, 10000), resp.body());
+		// changed validator returns the complete content
+		rb = HttpRequest.newBuilder(uri).header("Range", "bytes=9990-").header("If-Range", "\"other\"");
+		auth.addAuthentication(rb);
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(200, resp.statusCode());
+		assertArrayEquals(content, resp.body());
+
+		// multiple ranges
+		rb = HttpRequest.newBuilder(uri).header("Range", "bytes=0-9,-10");
+		auth.addAuthentication(rb);
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(206, resp.statusCode());
+		String type = resp.headers().firstValue("Content-Type").orElse("");
+		assertTrue(type.startsWith("multipart/byteranges"));
+		assertEquals(resp.body().length, resp.headers().firstValueAsLong("Content-Length").orElse(-1));
+		String body = new String(resp.body(), StandardCharsets.ISO_8859_1);
+		assertTrue(body.contains("Content-Range: bytes 0-9/10000\r\n\r\n"+new String(content, 0, 10, StandardCharsets.ISO_8859_1)+"\r\n"));
+		assertTrue(body.contains("Content-Range: bytes 9990-9999/10000\r\n\r\n"+new String(content, 9990, 10, StandardCharsets.ISO_8859_1)+"\r\n"));
+
+		// not satisfiable
+		rb = HttpRequest.newBuilder(uri).header("Range", "bytes=20000-");
+		auth.addAuthentication(rb);
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(416, resp.statusCode());
+		assertEquals("bytes */10000", resp.headers().firstValue("Content-Range").orElse(null));
+
+		// HEAD
+		rb = HttpRequest.newBuilder(uri).method("HEAD", BodyPublishers.noBody());
+		auth.addAuthentication(rb);
+		resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(200, resp.statusCode());
+		assertEquals(0, resp.body().length);
+		assertEquals(10000, resp.headers().firstValueAsLong("Content-Length").orElse(-1));
+		assertEquals("bytes", resp.headers().firstValue("Accept-Ranges").orElse(null));
+	}
 }
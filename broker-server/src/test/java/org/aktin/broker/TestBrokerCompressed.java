@@ -0,0 +1,68 @@
+package org.aktin.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+
+import org.aktin.broker.client.AuthFilterImpl;
+import org.aktin.broker.client.BrokerAdmin;
+import org.aktin.broker.client.BrokerClient;
+import org.junit.Test;
+
+/**
+ * Runs the tests of {@link TestBroker} with uploaded data stored compressed.
+ */
+public class TestBrokerCompressed extends TestBroker {
+
+	@Override
+	protected boolean isCompressionEnabled() {
+		return true;
+	}
+
+	@Test
+	public void compressedNodeResourceServedAsStored() throws IOException, InterruptedException{
+		BrokerAdmin a = initializeAdmin();
+		BrokerClient c = initializeClient(CLIENT_01_SERIAL);
+		String content = String.join("\n", Collections.nCopies(100, "line of text"));
+		c.putMyResource("stats", "text/plain", content);
+
+		HttpClient http = HttpClient.newHttpClient();
+		AuthFilterImpl auth = new AuthFilterImpl(ADMIN_00_SERIAL, ADMIN_00_DN);
+		URI uri = server.getBrokerServiceURI().resolve("node/0/stats");
+		HttpRequest.Builder rb = HttpRequest.newBuilder(uri).header("Accept-Encoding", "gzip");
+		auth.addAuthentication(rb);
+		HttpResponse<byte[]> resp = http.send(rb.build(), BodyHandlers.ofByteArray());
+		assertEquals(200, resp.statusCode());
+		assertEquals("gzip", resp.headers().firstValue("Content-Encoding").orElse(null));
+		assertTrue(resp.body().length < content.length());
+		String tag = resp.headers().firstValue("ETag").orElse(null);
+		assertNotNull(tag);
+		try( InputStream in = new GZIPInputStream(new ByteArrayInputStream(resp.body())) ){
+			assertEquals(content, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		// conditional request for the gzip representation
+		rb = HttpRequest.newBuilder(uri).header("Accept-Encoding", "gzip").header("If-None-Match", tag);
+		auth.addAuthentication(rb);
+		assertEquals(304, http.send(rb.build(), BodyHandlers.ofByteArray()).statusCode());
+
+		// decoded for clients not accepting gzip
+		rb = HttpRequest.newBuilder(uri);
+		auth.addAuthentication(rb);
+		HttpResponse<String> plain = http.send(rb.build(), BodyHandlers.ofString());
+		assertEquals(200, plain.statusCode());
+		assertFalse(plain.headers().firstValue("Content-Encoding").isPresent());
+		assertNotEquals(tag, plain.headers().firstValue("ETag").orElse(null));
+		assertEquals(content, plain.body());
+		assertEquals(content, a.getNodeString(0, "stats"));
+	}
+}
@@ -2,17 +2,21 @@ package org.aktin.broker;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.aktin.broker.client.AuthFilterImpl;
 import org.aktin.broker.client.BrokerAdmin;
@@ -24,6 +28,12 @@ import org.aktin.broker.client2.BrokerAdmin2;
 import org.aktin.broker.client2.BrokerClient2;
 import org.aktin.broker.client2.ClientNotificationListener;
 import org.aktin.broker.util.AuthFilterSSLHeaders;
+import org.aktin.broker.websocket.LocalNotificationBus;
+import org.aktin.broker.websocket.MyBrokerWebsocket;
+import org.aktin.broker.websocket.NotificationBus;
+import org.aktin.broker.websocket.Notifications;
+import org.aktin.broker.websocket.RequestAdminWebsocket;
+import org.aktin.broker.websocket.SessionHeartbeat;
 import org.aktin.broker.xml.RequestInfo;
 import org.aktin.broker.xml.RequestStatus;
 import org.eclipse.jetty.websocket.api.Session;
@@ -306,10 +316,335 @@ public class TestWebsockets extends AbstractTestBroker{
 	}
 
 	
+	@Test
+	public void batchedAdminNotifications() throws IOException, InterruptedException{
+		// long window to make sure all status updates are within the same batch
+		RequestAdminWebsocket.setBatchWindow(1000);
+		try {
+			BrokerAdmin2 a = initializeAdmin();
+			a.setBatchNotifications(true);
+			List<String> events = new CopyOnWriteArrayList<>();
+			a.addListener(new AdminNotificationListener() {
+				@Override
+				public void onResourceUpdate(int nodeId, String resourceId) {
+					events.add("resource "+nodeId+" "+resourceId);
+				}
+				@Override
+				public void onRequestStatusUpdate(int requestId, int nodeId, String status) {
+					events.add("status "+nodeId+" "+status);
+				}
+				@Override
+				public void onRequestResultUpdate(int requestId, int nodeId, String mediaType) {
+					events.add("result "+nodeId+" "+mediaType);
+				}
+				@Override
+				public void onRequestPublished(int requestId) {
+					events.add("published");
+				}
+				@Override
+				public void onRequestCreated(int requestId) {
+					events.add("created");
+				}
+				@Override
+				public void onRequestClosed(int requestId) {
+					events.add("closed");
+				}
+				@Override
+				public void onWebsocketClosed(int statusCode) {
+				}
+			});
+			a.connectWebsocket();
+
+			BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+			c1.listMyRequests();
+			int rid = a.createRequest("text/x-test-1", "test1");
+			a.publishRequest(rid);
+			c1.postRequestStatus(rid, RequestStatus.retrieved);
+			c1.postRequestStatus(rid, RequestStatus.queued);
+			c1.postRequestStatus(rid, RequestStatus.processing);
+			Thread.sleep(1500);
+			// status updates of the same node are reduced to the latest
+			Assert.assertEquals(Arrays.asList("created", "published", "status 0 processing"), events);
+		}finally {
+			RequestAdminWebsocket.setBatchWindow(RequestAdminWebsocket.DEFAULT_BATCH_MILLIS);
+		}
+	}
+
+	@Test
+	public void adminEventStream() throws IOException{
+		BrokerAdmin2 a = initializeAdmin();
+		List<String> events = new CopyOnWriteArrayList<>();
+		a.addListener(new AdminNotificationListener() {
+			@Override
+			public void onResourceUpdate(int nodeId, String resourceId) {
+				events.add("resource "+nodeId+" "+resourceId);
+			}
+			@Override
+			public void onRequestStatusUpdate(int requestId, int nodeId, String status) {
+				events.add("status "+requestId+" "+status);
+			}
+			@Override
+			public void onRequestResultUpdate(int requestId, int nodeId, String mediaType) {
+				events.add("result "+requestId+" "+mediaType);
+			}
+			@Override
+			public void onRequestPublished(int requestId) {
+				events.add("published "+requestId);
+			}
+			@Override
+			public void onRequestCreated(int requestId) {
+				events.add("created "+requestId);
+			}
+			@Override
+			public void onRequestClosed(int requestId) {
+				events.add("closed "+requestId);
+			}
+			@Override
+			public void onWebsocketClosed(int statusCode) {
+				events.add("disconnected");
+			}
+			@Override
+			public void onNotificationsMissed() {
+				events.add("missed");
+			}
+		});
+		a.connectEventStream();
+		sleepForWebsocketAction();
+		Assert.assertEquals(1, RequestAdminWebsocket.getEventListenerCount());
+
+		BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+		c1.listMyRequests();
+		int r1 = a.createRequest("text/x-test-1", "test1");
+		a.publishRequest(r1);
+		c1.postRequestStatus(r1, RequestStatus.retrieved);
+		sleepForWebsocketAction();
+		Assert.assertEquals(Arrays.asList("created "+r1, "published "+r1, "status "+r1+" retrieved"), events);
+
+		// events while disconnected are delivered after reconnect
+		a.closeEventStream();
+		a.closeRequest(r1);
+		sleepForWebsocketAction();
+		Assert.assertEquals(3, events.size());
+		a.connectEventStream();
+		sleepForWebsocketAction();
+		Assert.assertEquals("closed "+r1, events.get(events.size()-1));
+		Assert.assertEquals(4, events.size());
+		a.closeEventStream();
+	}
+
+	/** in-memory stand-in for a notification bus shared with another broker instance */
+	private static class LinkedBus implements NotificationBus{
+		private LinkedBus peer;
+		private volatile Consumer<String> receiver;
+		@Override
+		public void open(Consumer<String> receiver) {
+			this.receiver = receiver;
+		}
+		@Override
+		public void publish(String message) {
+			receiver.accept(message);
+			peer.receiver.accept(message);
+		}
+		@Override
+		public void close() {
+			this.receiver = null;
+		}
+	}
+
+	@Test
+	public void notificationsOfOtherInstances() throws IOException{
+		LinkedBus local = new LinkedBus();
+		LinkedBus remote = new LinkedBus();
+		local.peer = remote;
+		remote.peer = local;
+		List<String> remoteMessages = new CopyOnWriteArrayList<>();
+		remote.open(remoteMessages::add);
+		Notifications.setBus(local);
+		List<String> adminEvents = new CopyOnWriteArrayList<>();
+		RequestAdminWebsocket.EventListener adminListener = (cursor, event) -> adminEvents.add(event);
+		try {
+			BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+			c1.listMyRequests();
+			List<String> events = new CopyOnWriteArrayList<>();
+			c1.addListener(recordingListener(events));
+			c1.connectWebsocket();
+			RequestAdminWebsocket.addEventListener(adminListener, null);
+
+			// events of this instance reach the other instance
+			BrokerAdmin a = initializeAdmin();
+			int r1 = a.createRequest("text/x-test-1", "test1");
+			a.publishRequest(r1);
+			sleepForWebsocketAction();
+			Assert.assertEquals(Arrays.asList("admin created "+r1, "node * published "+r1, "admin published "+r1), remoteMessages);
+			Assert.assertEquals(Arrays.asList("published "+r1), events);
+
+			// events of the other instance reach local sessions
+			remote.publish("node * closed "+r1);
+			remote.publish("admin status "+r1+" 1 completed");
+			sleepForWebsocketAction();
+			Assert.assertEquals(Arrays.asList("published "+r1, "closed "+r1), events);
+			Assert.assertEquals(Arrays.asList("reset", "created "+r1, "published "+r1, "status "+r1+" 1 completed"), adminEvents);
+			c1.closeWebsocket();
+		}finally {
+			RequestAdminWebsocket.removeEventListener(adminListener);
+			Notifications.setBus(new LocalNotificationBus());
+		}
+	}
+
+	private static ClientNotificationListener recordingListener(List<String> events) {
+		return new ClientNotificationListener() {
+			@Override
+			public void onResourceChanged(String resourceName) {}
+			@Override
+			public void onRequestPublished(int requestId) {
+				events.add("published "+requestId);
+			}
+			@Override
+			public void onRequestClosed(int requestId) {
+				events.add("closed "+requestId);
+			}
+			@Override
+			public void onWebsocketClosed(int statusCode) {}
+			@Override
+			public void onNotificationsMissed() {
+				events.add("missed");
+			}
+		};
+	}
+
+	@Test
+	public void resumeMissedNotifications() throws IOException{
+		BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+		c1.listMyRequests();
+		List<String> events = new CopyOnWriteArrayList<>();
+		c1.addListener(recordingListener(events));
+		c1.setResumeNotifications(true);
+		c1.connectWebsocket();
+
+		BrokerAdmin a = initializeAdmin();
+		int r1 = a.createRequest("text/x-test-1", "test1");
+		a.publishRequest(r1);
+		sleepForWebsocketAction();
+		Assert.assertEquals(Arrays.asList("published "+r1), events);
+
+		// notifications while disconnected
+		c1.closeWebsocket();
+		sleepForWebsocketAction();
+		int r2 = a.createRequest("text/x-test-1", "test2");
+		a.publishRequest(r2);
+		a.closeRequest(r1);
+		sleepForWebsocketAction();
+		Assert.assertEquals(1, events.size());
+
+		// missed notifications are delivered after reconnect
+		c1.connectWebsocket();
+		sleepForWebsocketAction();
+		Assert.assertEquals(Arrays.asList("published "+r1, "published "+r2, "closed "+r1), events);
+
+		// live notifications continue
+		a.closeRequest(r2);
+		sleepForWebsocketAction();
+		Assert.assertEquals("closed "+r2, events.get(events.size()-1));
+		Assert.assertEquals(4, events.size());
+	}
+
+	@Test
+	public void heartbeatMeasuresRoundTripTime() throws IOException, InterruptedException{
+		SessionHeartbeat.configure(50, SessionHeartbeat.DEFAULT_MAX_MISSED);
+		long reaped = SessionHeartbeat.getReapedCount();
+		try {
+			BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+			c1.listMyRequests();
+			c1.connectWebsocket();
+			Thread.sleep(500);
+			BrokerAdmin2 a = initializeAdmin();
+			org.aktin.broker.xml.Node node = a.listNodes().get(0);
+			Assert.assertTrue(node.websocket);
+			// pongs were received from the client
+			Assert.assertNotNull(node.websocketRttMedian);
+			Assert.assertTrue(node.websocketRttMedian <= node.websocketRtt99);
+			Assert.assertEquals(reaped, SessionHeartbeat.getReapedCount());
+			c1.closeWebsocket();
+			sleepForWebsocketAction();
+			Assert.assertNull(a.getNode(node.id).websocketRttMedian);
+		}finally {
+			SessionHeartbeat.configure(0, SessionHeartbeat.DEFAULT_MAX_MISSED);
+		}
+	}
+
+	@Test
+	public void resumeUnavailableRequiresPolling() throws IOException{
+		MyBrokerWebsocket.setEventLogCapacity(2);
+		try {
+			BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+			c1.listMyRequests();
+			List<String> events = new CopyOnWriteArrayList<>();
+			c1.addListener(recordingListener(events));
+			c1.setResumeNotifications(true);
+			c1.connectWebsocket();
+			sleepForWebsocketAction();
+			// nothing missed on first connection
+			Assert.assertEquals(Collections.emptyList(), events);
+
+			c1.closeWebsocket();
+			sleepForWebsocketAction();
+			BrokerAdmin a = initializeAdmin();
+			for( int i=0; i<3; i++ ) {
+				a.publishRequest(a.createRequest("text/x-test-1", "test"+i));
+			}
+			c1.connectWebsocket();
+			sleepForWebsocketAction();
+			Assert.assertEquals(Arrays.asList("missed"), events);
+		}finally {
+			MyBrokerWebsocket.setEventLogCapacity(1024);
+		}
+	}
+
 	/**
 	 * Test basic websocket functionality without using the broker-client libraries
 	 * @throws Exception unexpected test failure
 	 */
+	@Test
+	public void longPollNotifications() throws Exception{
+		BrokerClient2 c1 = initializeClient(CLIENT_01_SERIAL);
+		c1.listMyRequests();
+		List<String> events = new CopyOnWriteArrayList<>();
+		c1.addListener(recordingListener(events));
+		// first poll returns the cursor immediately
+		Assert.assertFalse(c1.pollNotifications(10));
+		Assert.assertEquals(Collections.emptyList(), events);
+
+		BrokerAdmin a = initializeAdmin();
+		int r1 = a.createRequest("text/x-test-1", "test1");
+		a.publishRequest(r1);
+		// notifications after the cursor are returned immediately
+		Assert.assertTrue(c1.pollNotifications(10));
+		Assert.assertEquals(Arrays.asList("published "+r1), events);
+
+		// suspended poll returns with the next notification
+		CompletableFuture<Void> poll = CompletableFuture.runAsync(() -> {
+			try {
+				c1.pollNotifications(10);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		sleepForWebsocketAction();
+		Assert.assertFalse(poll.isDone());
+		Assert.assertEquals(1, MyBrokerWebsocket.getWaitingCount());
+		a.closeRequest(r1);
+		poll.get(5, TimeUnit.SECONDS);
+		Assert.assertEquals(Arrays.asList("published "+r1, "closed "+r1), events);
+		Assert.assertEquals(0, MyBrokerWebsocket.getWaitingCount());
+
+		// timeout without notifications
+		long start = System.currentTimeMillis();
+		Assert.assertTrue(c1.pollNotifications(1));
+		Assert.assertTrue(System.currentTimeMillis() - start >= 900);
+		Assert.assertEquals(2, events.size());
+		Assert.assertEquals(0, MyBrokerWebsocket.getWaitingCount());
+	}
+
 	@Test
 	public void testWebsocket() throws Exception{
 		WebSocketClient client = new WebSocketClient();
@@ -0,0 +1,235 @@
+package org.aktin.broker.auth;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aktin.broker.db.BrokerImpl;
+import org.aktin.broker.db.TestDataSource;
+import org.aktin.broker.db.TestDatabaseHSQL;
+import org.aktin.broker.server.auth.AuthInfo;
+import org.aktin.broker.server.auth.AuthInfoImpl;
+import org.aktin.broker.server.auth.AuthRole;
+import org.aktin.broker.xml.Node;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies loading, expiry and eviction of cached principals and that
+ * last-contact timestamps are written to the database without writing
+ * unchanged timestamps again.
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class TestAuthCache {
+	private CountingBroker broker;
+	private AuthCache cache;
+
+	/**
+	 * Counts backend principal retrievals for each user
+	 */
+	private static class CountingBroker extends BrokerImpl{
+		private Map<String, AtomicInteger> accessCount;
+		/** thrown once by the next retrieval */
+		private Error error;
+
+		CountingBroker() throws SQLException, IOException{
+			super(new TestDataSource(new TestDatabaseHSQL()), Paths.get("target/broker-data"));
+			accessCount = new ConcurrentHashMap<>();
+		}
+		@Override
+		public Principal accessPrincipal(AuthInfo auth) throws SQLException {
+			accessCount.computeIfAbsent(auth.getUserId(), k -> new AtomicInteger()).incrementAndGet();
+			if( error != null ) {
+				Error e = error;
+				error = null;
+				throw e;
+			}
+			return super.accessPrincipal(auth);
+		}
+		int getAccessCount(String userId) {
+			AtomicInteger count = accessCount.get(userId);
+			return count == null ? 0 : count.get();
+		}
+	}
+
+	@Before
+	public void createCache() throws SQLException, IOException {
+		broker = new CountingBroker();
+		cache = new AuthCache(broker);
+	}
+
+	private static AuthInfo nodeInfo(int i) {
+		return new AuthInfoImpl("key"+i, "CN=Node "+i, AuthRole.ALL_NODE);
+	}
+	@After
+	public void closeCache() throws IOException {
+		cache.close();
+	}
+
+	private Instant storedLastContact(int nodeId) throws SQLException {
+		return broker.getNode(nodeId).lastContact;
+	}
+
+	@Test
+	public void flushWritesOnlyChangedTimestamps() throws IOException, SQLException, InterruptedException {
+		Principal p1 = cache.getPrincipal(new AuthInfoImpl("key1", "CN=Node 1", AuthRole.ALL_NODE));
+		Principal p2 = cache.getPrincipal(new AuthInfoImpl("key2", "CN=Node 2", AuthRole.ALL_NODE));
+		cache.flush();
+		Assert.assertEquals(1, cache.getFlushCount());
+		Assert.assertEquals(2, cache.getFlushedTimestamps());
+		Assert.assertEquals(Instant.ofEpochMilli(p1.getLastAccessed()), storedLastContact(p1.getNodeId()));
+		Assert.assertEquals(Instant.ofEpochMilli(p2.getLastAccessed()), storedLastContact(p2.getNodeId()));
+
+		// nothing changed
+		cache.flush();
+		Assert.assertEquals(1, cache.getFlushCount());
+
+		// only the accessed node is written
+		Thread.sleep(5);
+		cache.getPrincipal(new AuthInfoImpl("key2", "CN=Node 2", AuthRole.ALL_NODE));
+		cache.flush();
+		Assert.assertEquals(2, cache.getFlushCount());
+		Assert.assertEquals(3, cache.getFlushedTimestamps());
+		Assert.assertEquals(Instant.ofEpochMilli(p2.getLastAccessed()), storedLastContact(p2.getNodeId()));
+	}
+
+	@Test
+	public void errorDuringLoadAllowsRetry() throws IOException {
+		broker.error = new AssertionError("load failed");
+		try {
+			cache.getPrincipal(nodeInfo(1));
+			Assert.fail("error not propagated");
+		}catch( AssertionError e ) {
+			Assert.assertEquals("load failed", e.getMessage());
+		}
+		// the failed entry is removed, the next lookup loads again instead of blocking
+		Assert.assertNotNull(cache.getPrincipal(nodeInfo(1)));
+		Assert.assertEquals(2, broker.getAccessCount("key1"));
+	}
+
+	@Test
+	public void periodicFlush() throws IOException, SQLException, InterruptedException {
+		Principal p = cache.getPrincipal(new AuthInfoImpl("key1", "CN=Node 1", AuthRole.ALL_NODE));
+		cache.startFlusher(20);
+		for( int i=0; i<100 && cache.getFlushCount() == 0; i++ ) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(1, cache.getFlushCount());
+		Assert.assertEquals(Instant.ofEpochMilli(p.getLastAccessed()), storedLastContact(p.getNodeId()));
+	}
+
+	@Test
+	public void reconnectStormLoadsEachNodeOnce() throws Exception {
+		final int nodes = 1000;
+		final int requestsPerNode = 4;
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+		try {
+			CountDownLatch start = new CountDownLatch(1);
+			List<Future<Principal>> futures = new ArrayList<>();
+			for( int r=0; r<requestsPerNode; r++ ) {
+				for( int i=0; i<nodes; i++ ) {
+					AuthInfo info = nodeInfo(i);
+					futures.add(executor.submit(() -> {
+						start.await();
+						return cache.getPrincipal(info);
+					}));
+				}
+			}
+			start.countDown();
+			for( Future<Principal> f : futures ) {
+				Assert.assertNotNull(f.get());
+			}
+		}finally {
+			executor.shutdownNow();
+		}
+		for( int i=0; i<nodes; i++ ) {
+			Assert.assertEquals(1, broker.getAccessCount("key"+i));
+		}
+		Assert.assertEquals(nodes, cache.getMissCount());
+		Assert.assertEquals(nodes*(requestsPerNode-1), cache.getHitCount());
+		Assert.assertEquals(nodes, cache.size());
+	}
+
+	@Test
+	public void expiredPrincipalsAreReloaded() throws IOException, InterruptedException {
+		cache.setTimeToLive(20);
+		Principal p1 = cache.getPrincipal(nodeInfo(1));
+		p1.incrementWebsocketCount();
+		Assert.assertSame(p1, cache.getPrincipal(nodeInfo(1)));
+		Thread.sleep(30);
+		Principal p2 = cache.getPrincipal(nodeInfo(1));
+		Assert.assertNotSame(p1, p2);
+		Assert.assertEquals(2, broker.getAccessCount("key1"));
+		// websocket connections registered with the previous principal are still counted
+		Assert.assertEquals(1, p2.getWebsocketCount());
+		p1.decrementWebsocketCount();
+		Assert.assertEquals(0, p2.getWebsocketCount());
+	}
+
+	@Test
+	public void evictedTimestampsAreFlushed() throws IOException, SQLException {
+		cache.setMaximumSize(10);
+		List<Principal> principals = new ArrayList<>();
+		for( int i=0; i<20; i++ ) {
+			principals.add(cache.getPrincipal(nodeInfo(i)));
+		}
+		Assert.assertTrue(cache.size() <= 10);
+		Assert.assertTrue(cache.getEvictionCount() >= 10);
+		cache.flush();
+		Assert.assertEquals(20, cache.getFlushedTimestamps());
+		for( Principal p : principals ) {
+			Assert.assertEquals(Instant.ofEpochMilli(p.getLastAccessed()), storedLastContact(p.getNodeId()));
+		}
+	}
+
+	@Test
+	public void websocketStatusIsSharedBetweenInstances() throws IOException, SQLException {
+		cache.setSharedInstance("instance-a", 60000);
+		AuthCache other = new AuthCache(broker);
+		other.setSharedInstance("instance-b", 60000);
+		try {
+			Principal p = cache.getPrincipal(nodeInfo(1));
+			p.incrementWebsocketCount();
+			cache.flush();
+
+			Node node = broker.getNode(p.getNodeId());
+			other.fillCachedAccessTimestamps(Collections.singletonList(node));
+			Assert.assertTrue(node.websocket);
+			Assert.assertEquals(Instant.ofEpochMilli(p.getLastAccessed()), node.lastContact);
+
+			// round trip times measured by the instance holding the connection
+			Node measured = new Node(p.getNodeId(), null, null);
+			measured.websocketRttMedian = 100L;
+			measured.websocketRtt95 = 200L;
+			measured.websocketRtt99 = 300L;
+			broker.updateNodeWebsockets("instance-a", Collections.singletonList(measured), Instant.now());
+			node = broker.getNode(p.getNodeId());
+			other.fillCachedAccessTimestamps(Collections.singletonList(node));
+			Assert.assertEquals(Long.valueOf(100), node.websocketRttMedian);
+			Assert.assertEquals(Long.valueOf(300), node.websocketRtt99);
+
+			// connections are removed when the instance is closed
+			cache.close();
+			node = broker.getNode(p.getNodeId());
+			other.fillCachedAccessTimestamps(Collections.singletonList(node));
+			Assert.assertFalse(node.websocket);
+		}finally {
+			other.close();
+		}
+	}
+}
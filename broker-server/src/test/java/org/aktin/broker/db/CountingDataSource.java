@@ -0,0 +1,62 @@
+package org.aktin.broker.db;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Test data source which counts the statements executed by its connections
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class CountingDataSource extends TestDataSource{
+	private AtomicInteger statementCount;
+
+	public CountingDataSource(AbstractDatabase db) throws SQLException {
+		super(db);
+		this.statementCount = new AtomicInteger();
+	}
+
+	public int getStatementCount() {
+		return statementCount.get();
+	}
+	public void resetStatementCount() {
+		statementCount.set(0);
+	}
+
+	/**
+	 * Create a proxy which forwards all calls to the target
+	 */
+	private static <T> T forward(Class<T> iface, T target, Function<Object, Object> wrapResult, Runnable onExecute) {
+		return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface}, (proxy, method, args) -> {
+			if( method.getName().startsWith("execute") ) {
+				onExecute.run();
+			}
+			try {
+				return wrapResult.apply(method.invoke(target, args));
+			}catch( InvocationTargetException e ) {
+				throw e.getCause();
+			}
+		}));
+	}
+
+	private Object wrapStatement(Object o) {
+		if( o instanceof PreparedStatement ) {
+			return forward(PreparedStatement.class, (PreparedStatement)o, Function.identity(), statementCount::incrementAndGet);
+		}else if( o instanceof Statement ) {
+			return forward(Statement.class, (Statement)o, Function.identity(), statementCount::incrementAndGet);
+		}
+		return o;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		return forward(Connection.class, super.getConnection(), this::wrapStatement, () -> {});
+	}
+}
@@ -0,0 +1,171 @@
+package org.aktin.broker.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+import javax.ws.rs.core.MediaType;
+
+import org.aktin.broker.util.DigestPathDataSource;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestBlobStore {
+	private DataSource ds;
+	private Path dir;
+	private AggregatorImpl aggregator;
+
+	@Before
+	public void createDatabase() throws SQLException, IOException {
+		ds = new TestDataSource(new TestDatabaseHSQL());
+		dir = Paths.get("target/aggregator-data");
+		aggregator = new AggregatorImpl(ds, dir);
+		aggregator.clearDataDirectory();
+	}
+
+	private static ByteArrayInputStream content(String text) {
+		return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+	}
+	private static String blobName(String text) throws Exception {
+		return BlobStore.toHex(MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8)));
+	}
+	private long countFiles() throws IOException {
+		try( Stream<Path> files = Files.list(dir) ){
+			return files.count();
+		}
+	}
+	private int referenceCount(String name) throws SQLException {
+		try( Connection dbc = ds.getConnection() ){
+			return new BlobStore("results").getReferenceCount(dbc, name);
+		}
+	}
+
+	@Test
+	public void identicalResultsAreStoredOnce() throws Exception {
+		String name = blobName("same");
+		aggregator.addOrReplaceResult(1, 1, MediaType.TEXT_PLAIN_TYPE, content("same"));
+		aggregator.addOrReplaceResult(1, 2, MediaType.TEXT_PLAIN_TYPE, content("same"));
+		aggregator.addOrReplaceResult(2, 1, MediaType.APPLICATION_XML_TYPE, content("same"));
+		Assert.assertEquals(1, countFiles());
+		Assert.assertEquals(3, referenceCount(name));
+		DigestPathDataSource result = aggregator.getResult(1, 2);
+		Assert.assertEquals(dir.resolve(name), result.getPath());
+		Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest("same".getBytes(StandardCharsets.UTF_8)), result.sha256);
+
+		// uploading the same content again keeps a single reference
+		aggregator.addOrReplaceResult(1, 1, MediaType.TEXT_PLAIN_TYPE, content("same"));
+		Assert.assertEquals(3, referenceCount(name));
+
+		// replacing releases the previous content
+		aggregator.addOrReplaceResult(1, 1, MediaType.TEXT_PLAIN_TYPE, content("other"));
+		aggregator.addOrReplaceResult(1, 2, MediaType.TEXT_PLAIN_TYPE, content("other"));
+		Assert.assertEquals(1, referenceCount(name));
+		Assert.assertEquals(2, referenceCount(blobName("other")));
+		Assert.assertEquals(2, countFiles());
+		// last reference removes the file
+		aggregator.addOrReplaceResult(2, 1, MediaType.TEXT_PLAIN_TYPE, content("other"));
+		Assert.assertEquals(0, referenceCount(name));
+		Assert.assertFalse(Files.exists(dir.resolve(name)));
+		Assert.assertEquals(1, countFiles());
+	}
+
+	@Test
+	public void failedReplacementKeepsPreviousContent() throws Exception {
+		String name = blobName("kept");
+		aggregator.addOrReplaceResult(1, 1, MediaType.TEXT_PLAIN_TYPE, content("kept"));
+		// media type exceeds the column size, the transaction is rolled back after the release
+		MediaType invalid = MediaType.valueOf("text/"+String.join("", Collections.nCopies(100, "x")));
+		try {
+			aggregator.addOrReplaceResult(1, 1, invalid, content("replacement"));
+			Assert.fail("replacement should fail");
+		}catch( SQLException e ) {
+			// expected
+		}
+		Assert.assertEquals(1, referenceCount(name));
+		Assert.assertTrue(Files.exists(dir.resolve(name)));
+		Assert.assertEquals(0, referenceCount(blobName("replacement")));
+		try( InputStream in = aggregator.getResult(1, 1).getInputStream() ){
+			Assert.assertEquals("kept", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	public void garbageCollectionRemovesOrphans() throws Exception {
+		aggregator.addOrReplaceResult(1, 1, MediaType.TEXT_PLAIN_TYPE, content("kept"));
+		// leftovers from an interrupted upload and an interrupted transaction
+		Path temp = Files.write(dir.resolve("upload123.tmp"), new byte[] {1});
+		Path orphan = Files.write(dir.resolve(blobName("orphan")), new byte[] {2});
+		Path recent = Files.write(dir.resolve(blobName("recent")), new byte[] {3});
+		FileTime old = FileTime.from(Instant.now().minus(2, ChronoUnit.HOURS));
+		Files.setLastModifiedTime(temp, old);
+		Files.setLastModifiedTime(orphan, old);
+		Files.setLastModifiedTime(dir.resolve(blobName("kept")), old);
+
+		Assert.assertEquals(2, aggregator.collectGarbage());
+		Assert.assertFalse(Files.exists(temp));
+		Assert.assertFalse(Files.exists(orphan));
+		// may belong to a running transaction
+		Assert.assertTrue(Files.exists(recent));
+		Assert.assertTrue(Files.exists(dir.resolve(blobName("kept"))));
+	}
+
+	@Test
+	public void compressibleResultsAreStoredCompressed() throws Exception {
+		String text = String.join(",", Collections.nCopies(1000, "value"));
+		aggregator.addOrReplaceResult(1, 1, MediaType.valueOf("text/csv"), content(text));
+		aggregator.setCompression(true);
+		// already stored uncompressed, the stored encoding is kept
+		aggregator.addOrReplaceResult(1, 2, MediaType.valueOf("text/csv"), content(text));
+		Assert.assertNull(aggregator.getResult(1, 2).getContentEncoding());
+
+		aggregator.addOrReplaceResult(2, 1, MediaType.valueOf("text/csv"), content(text+"2"));
+		aggregator.addOrReplaceResult(2, 2, MediaType.APPLICATION_OCTET_STREAM_TYPE, content(text+"3"));
+		DigestPathDataSource result = aggregator.getResult(2, 1);
+		Assert.assertEquals("gzip", result.getContentEncoding());
+		Assert.assertTrue(Files.size(result.getPath()) < text.length()/10);
+		Assert.assertEquals(Long.valueOf(text.length()+1), result.getContentLength());
+		try( InputStream in = result.getInputStream() ){
+			Assert.assertEquals(text+"2", new String(in.readAllBytes(), StandardCharsets.UTF_8));
+		}
+		// digest of the decoded content
+		Assert.assertEquals(blobName(text+"2"), result.getPath().getFileName().toString());
+		// binary types are stored as is
+		Assert.assertNull(aggregator.getResult(2, 2).getContentEncoding());
+	}
+
+	@Test
+	public void leftoverOfRolledBackTransactionIsReplaced() throws Exception {
+		String text = String.join(",", Collections.nCopies(1000, "value"));
+		BlobStore store = new BlobStore("results");
+		store.setDirectory(dir);
+		store.setCompression(true);
+		BlobStore.Blob blob = store.receive(content(text), new String[] {BlobStore.KEY_DIGEST}, MediaType.valueOf("text/csv"));
+		try( Connection dbc = ds.getConnection() ){
+			dbc.setAutoCommit(false);
+			store.store(dbc, Dbms.detect(ds), blob);
+			dbc.rollback();
+		}
+		// compressed file without row
+		Assert.assertTrue(Files.exists(dir.resolve(blob.name)));
+
+		// stored uncompressed, the leftover must not be reused
+		aggregator.addOrReplaceResult(1, 1, MediaType.valueOf("text/csv"), content(text));
+		DigestPathDataSource result = aggregator.getResult(1, 1);
+		Assert.assertNull(result.getContentEncoding());
+		Assert.assertEquals(text, Files.readString(result.getPath()));
+	}
+}
@@ -0,0 +1,259 @@
+package org.aktin.broker.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+import javax.ws.rs.core.MediaType;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes the same keys from many threads concurrently and verifies
+ * that the upserts neither fail nor produce duplicate rows.
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class TestConcurrentUpsert {
+	private static final int THREADS = 8;
+	private static final int ITERATIONS = 25;
+
+	private DataSource ds;
+	private ExecutorService executor;
+
+	@Before
+	public void createDatabase() throws SQLException {
+		ds = new TestDataSource(new TestDatabaseHSQL());
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+	@After
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Run the task concurrently from all threads and propagate the first failure
+	 */
+	private void hammer(Callable<Void> task) throws InterruptedException, ExecutionException {
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<Void>> futures = new ArrayList<>();
+		for( int t=0; t<THREADS; t++ ) {
+			futures.add(executor.submit(() -> {
+				start.await();
+				for( int i=0; i<ITERATIONS; i++ ) {
+					task.call();
+				}
+				return null;
+			}));
+		}
+		start.countDown();
+		for( Future<Void> f : futures ) {
+			f.get();
+		}
+	}
+
+	private int countRows(String sql, int a) throws SQLException {
+		try( Connection dbc = ds.getConnection();
+				PreparedStatement ps = dbc.prepareStatement(sql) ){
+			ps.setInt(1, a);
+			ResultSet rs = ps.executeQuery();
+			rs.next();
+			return rs.getInt(1);
+		}
+	}
+
+	@Test
+	public void concurrentRequestDefinitions() throws Exception {
+		BrokerImpl broker = new BrokerImpl(ds, Paths.get("target/broker-data"));
+		int id = broker.createRequest();
+		hammer(() -> {
+			broker.setRequestDefinition(id, "text/vnd.test1", new StringReader("<query>"+Thread.currentThread().getName()+"</query>"));
+			return null;
+		});
+		Assert.assertEquals(1, countRows("SELECT COUNT(*) FROM request_definitions WHERE request_id=?", id));
+		Assert.assertNotNull(broker.getCachedRequestDefinition(id, "text/vnd.test1"));
+	}
+
+	@Test
+	public void concurrentNodeResources() throws Exception {
+		BrokerImpl broker = new BrokerImpl(ds, Paths.get("target/broker-data"));
+		broker.clearDataDirectory();
+		hammer(() -> {
+			byte[] data = Thread.currentThread().getName().getBytes(StandardCharsets.UTF_8);
+			broker.updateNodeResource(1, "versions", MediaType.TEXT_PLAIN_TYPE, new ByteArrayInputStream(data));
+			return null;
+		});
+		Assert.assertEquals(1, countRows("SELECT COUNT(*) FROM node_resources WHERE node_id=?", 1));
+		Assert.assertNotNull(broker.getNodeResource(1, "versions"));
+	}
+
+	@Test
+	public void concurrentAggregatorResults() throws Exception {
+		AggregatorImpl aggregator = new AggregatorImpl(ds, Paths.get("target/aggregator-data"));
+		aggregator.clearDataDirectory();
+		hammer(() -> {
+			byte[] data = Thread.currentThread().getName().getBytes(StandardCharsets.UTF_8);
+			aggregator.addOrReplaceResult(1, 1, MediaType.TEXT_PLAIN_TYPE, new ByteArrayInputStream(data));
+			return null;
+		});
+		Assert.assertEquals(1, countRows("SELECT COUNT(*) FROM request_node_results WHERE request_id=?", 1));
+		Assert.assertEquals(1, aggregator.listResults(1).size());
+		// data of replaced results is released
+		try( Stream<Path> files = Files.list(Paths.get("target/aggregator-data")) ){
+			Assert.assertEquals(1, files.count());
+		}
+	}
+
+	/**
+	 * Data source which allows only a single open connection, like a pool of size one.
+	 * Fails if no connection becomes available within a short time.
+	 */
+	private static class SingleConnectionDataSource extends TestDataSource{
+		private final Semaphore available = new Semaphore(1);
+
+		SingleConnectionDataSource() throws SQLException {
+			super(new TestDatabaseHSQL());
+		}
+		@Override
+		public Connection getConnection() throws SQLException {
+			try {
+				if( !available.tryAcquire(500, TimeUnit.MILLISECONDS) ) {
+					throw new SQLException("Timeout waiting for database connection");
+				}
+			} catch (InterruptedException e) {
+				throw new SQLException(e);
+			}
+			Connection c = super.getConnection();
+			return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+				if( method.getName().equals("close") ) {
+					available.release();
+				}
+				try {
+					return method.invoke(c, args);
+				}catch( InvocationTargetException e ) {
+					throw e.getCause();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Delivers the data in small pieces with a delay between each piece
+	 */
+	private static class SlowInputStream extends InputStream{
+		private final byte[] data;
+		private int pos;
+
+		SlowInputStream(byte[] data){
+			this.data = data;
+		}
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if( pos == data.length ) {
+				return -1;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			int count = Math.min(Math.min(len, 16), data.length - pos);
+			System.arraycopy(data, pos, b, off, count);
+			pos += count;
+			return count;
+		}
+	}
+
+	@Test
+	public void slowUploadsDoNotHoldConnections() throws Exception {
+		ds = new SingleConnectionDataSource();
+		AggregatorImpl aggregator = new AggregatorImpl(ds, Paths.get("target/aggregator-data"));
+		aggregator.clearDataDirectory();
+		// each upload takes about one second
+		byte[] data = new byte[160];
+		for( int i=0; i<data.length; i++ ) {
+			data[i] = (byte)i;
+		}
+		List<Future<Void>> futures = new ArrayList<>();
+		for( int t=0; t<4; t++ ) {
+			int nodeId = t+1;
+			futures.add(executor.submit(() -> {
+				aggregator.addOrReplaceResult(3, nodeId, MediaType.TEXT_PLAIN_TYPE, new SlowInputStream(data));
+				return null;
+			}));
+		}
+		for( Future<Void> f : futures ) {
+			f.get();
+		}
+		Assert.assertEquals(4, aggregator.listResults(3).size());
+		// size and digest are calculated while receiving
+		try( Connection dbc = ds.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("SELECT data_size, data_sha2 FROM request_node_results WHERE request_id=? AND node_id=?") ){
+			ps.setInt(1, 3);
+			ps.setInt(2, 1);
+			ResultSet rs = ps.executeQuery();
+			Assert.assertTrue(rs.next());
+			Assert.assertEquals(data.length, rs.getLong(1));
+			Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(data), rs.getBytes(2));
+		}
+	}
+
+	@Test
+	public void upsertReplacesMediaType() throws SQLException, IOException {
+		AggregatorImpl aggregator = new AggregatorImpl(ds, Paths.get("target/aggregator-data"));
+		aggregator.clearDataDirectory();
+		aggregator.addOrReplaceResult(2, 1, MediaType.TEXT_PLAIN_TYPE, new ByteArrayInputStream(new byte[] {1}));
+		aggregator.addOrReplaceResult(2, 1, MediaType.APPLICATION_XML_TYPE, new ByteArrayInputStream(new byte[] {2}));
+		Assert.assertEquals(MediaType.APPLICATION_XML, aggregator.getResult(2, 1).getContentType());
+	}
+
+	@Test
+	public void upsertSqlDialects() {
+		String[] keys = {"request_id","node_id"};
+		String[] values = {"media_type","data_file"};
+		String[] insertOnly = {"first_received"};
+		String[] placeholders = {"?","?","?","?","?"};
+		Assert.assertEquals("INSERT INTO request_node_results(request_id, node_id, media_type, data_file, first_received) VALUES(?, ?, ?, ?, ?)"
+				+ " ON CONFLICT(request_id, node_id) DO UPDATE SET media_type=EXCLUDED.media_type, data_file=EXCLUDED.data_file",
+				Dbms.POSTGRES.upsertSql("request_node_results", keys, values, insertOnly, placeholders));
+		Assert.assertEquals("MERGE INTO request_node_results USING (VALUES(?, ?, ?, ?, ?)) AS v(request_id, node_id, media_type, data_file, first_received)"
+				+ " ON request_node_results.request_id=v.request_id AND request_node_results.node_id=v.node_id"
+				+ " WHEN MATCHED THEN UPDATE SET request_node_results.media_type=v.media_type, request_node_results.data_file=v.data_file"
+				+ " WHEN NOT MATCHED THEN INSERT (request_id, node_id, media_type, data_file, first_received)"
+				+ " VALUES(v.request_id, v.node_id, v.media_type, v.data_file, v.first_received)",
+				Dbms.HSQL.upsertSql("request_node_results", keys, values, insertOnly, placeholders));
+	}
+}
@@ -0,0 +1,198 @@
+package org.aktin.broker.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Uploads and retrieves a request definition which is much larger
+ * than the available heap memory. The upload runs in a separate JVM
+ * with a small maximum heap size.
+ * <p>
+ * The main method can also be run manually against a PostgreSQL
+ * database, e.g. with the JDBC URL
+ * {@code jdbc:postgresql://localhost/postgres?user=postgres&password=mysecretpassword}
+ * and the PostgreSQL driver on the class path.
+ * </p>
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class TestLargeRequestDefinition {
+	private static final long DEFINITION_SIZE = 200L*1024*1024;
+	private static final String MAX_HEAP = "-Xmx64m";
+
+	/**
+	 * Reader producing the given number of characters without
+	 * holding them in memory
+	 */
+	private static class GeneratedReader extends Reader{
+		private long remaining;
+
+		GeneratedReader(long length){
+			this.remaining = length;
+		}
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if( remaining == 0 ) {
+				return -1;
+			}
+			int n = (int)Math.min(len, remaining);
+			for( int i=0; i<n; i++ ) {
+				cbuf[off+i] = (char)('a' + (remaining-i) % 26);
+			}
+			remaining -= n;
+			return n;
+		}
+		@Override
+		public void close() {
+		}
+	}
+
+	private static DataSource createDataSource(String jdbcUrl) {
+		if( jdbcUrl.startsWith("jdbc:postgresql:") ) {
+			try {
+				Class<? extends DataSource> clazz = Class.forName("org.postgresql.ds.PGSimpleDataSource").asSubclass(DataSource.class);
+				DataSource ds = clazz.getConstructor().newInstance();
+				clazz.getMethod("setURL", String.class).invoke(ds, jdbcUrl);
+				return ds;
+			} catch ( Exception e) {
+				throw new RuntimeException("Unable to initialize PostgreSQL DataSource", e);
+			}
+		}
+		JDBCDataSource ds = new JDBCDataSource();
+		ds.setUrl(jdbcUrl);
+		ds.setUser("sa");
+		ds.setPassword("");
+		return ds;
+	}
+
+	private static void deleteDirectory(Path dir) throws IOException {
+		if( Files.exists(dir) ) {
+			try( Stream<Path> files = Files.walk(dir) ){
+				files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+			}
+		}
+	}
+
+	private static void runUpload(String jdbcUrl, Path dir) throws IOException, InterruptedException {
+		// output is written to a file, surefire does not allow direct writes to the native streams
+		File log = new File("target/large-definition.log");
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process p = new ProcessBuilder(java, MAX_HEAP,
+				"-cp", System.getProperty("java.class.path"),
+				TestLargeRequestDefinition.class.getName(),
+				jdbcUrl, dir.toString())
+				.redirectErrorStream(true).redirectOutput(log).start();
+		Assert.assertTrue("upload timed out", p.waitFor(5, TimeUnit.MINUTES));
+		Assert.assertEquals("upload failed, see "+log, 0, p.exitValue());
+	}
+
+	@Test
+	public void uploadDefinitionLargerThanHeap() throws IOException, InterruptedException {
+		Path dir = Paths.get("target/large-definition");
+		deleteDirectory(dir);
+		Files.createDirectories(dir);
+		runUpload("jdbc:hsqldb:file:"+dir.resolve("db").toAbsolutePath(), dir);
+		// remove the large database files
+		deleteDirectory(dir);
+	}
+
+	/**
+	 * Same as {@link #uploadDefinitionLargerThanHeap()} for PostgreSQL. Requires the
+	 * PostgreSQL JDBC driver in the classpath and the system property
+	 * {@code aktin.test.postgresql.url}. Skipped otherwise.
+	 */
+	@Test
+	public void uploadDefinitionLargerThanHeapPostgres() throws IOException, InterruptedException {
+		String url = System.getProperty("aktin.test.postgresql.url");
+		Assume.assumeNotNull(url);
+		try {
+			Class.forName("org.postgresql.ds.PGSimpleDataSource");
+		} catch ( ClassNotFoundException e ) {
+			Assume.assumeNoException(e);
+		}
+		Path dir = Paths.get("target/large-definition");
+		Files.createDirectories(dir);
+		runUpload(url, dir);
+	}
+
+	/**
+	 * Compare the content of a reader with the generated content without
+	 * holding either in memory
+	 */
+	private static boolean contentEquals(Reader expected, Reader actual) throws IOException {
+		char[] a = new char[8192];
+		char[] b = new char[8192];
+		int len;
+		while( (len = expected.read(a)) != -1 ) {
+			int pos = 0;
+			while( pos < len ) {
+				int n = actual.read(b, pos, len - pos);
+				if( n == -1 ) {
+					return false;
+				}
+				pos += n;
+			}
+			if( !Arrays.equals(a, 0, len, b, 0, len) ) {
+				return false;
+			}
+		}
+		return actual.read() == -1;
+	}
+
+	public static void main(String[] args) throws SQLException, IOException {
+		DataSource ds = createDataSource(args[0]);
+		try( Connection dbc = ds.getConnection() ){
+			TestDatabaseHSQL.initializeDatabase(dbc);
+		}
+		BrokerImpl broker = new BrokerImpl(ds, Paths.get(args.length > 1 ? args[1] : "target/"));
+		int id = broker.createRequest();
+		long start = System.currentTimeMillis();
+		broker.setRequestDefinition(id, "text/plain", new GeneratedReader(DEFINITION_SIZE));
+		System.out.println("Uploaded "+DEFINITION_SIZE+" characters in "+(System.currentTimeMillis()-start)+"ms");
+		try( Connection dbc = ds.getConnection();
+				PreparedStatement ps = dbc.prepareStatement("SELECT LENGTH(query_def) FROM request_definitions WHERE request_id=?") ){
+			ps.setInt(1, id);
+			ResultSet rs = ps.executeQuery();
+			if( !rs.next() || rs.getLong(1) != DEFINITION_SIZE ) {
+				System.err.println("Stored definition length does not match");
+				System.exit(1);
+			}
+			// read the definition back
+			start = System.currentTimeMillis();
+			try( Reader reader = broker.getRequestDefinition(id, "text/plain") ){
+				if( !contentEquals(new GeneratedReader(DEFINITION_SIZE), reader) ) {
+					System.err.println("Retrieved definition does not match");
+					System.exit(1);
+				}
+			}
+			System.out.println("Retrieved "+DEFINITION_SIZE+" characters in "+(System.currentTimeMillis()-start)+"ms");
+			broker.deleteRequest(id);
+			if( args[0].startsWith("jdbc:hsqldb:") ) {
+				try( Statement st = dbc.createStatement() ){
+					st.execute("SHUTDOWN");
+				}
+			}
+		}
+	}
+}
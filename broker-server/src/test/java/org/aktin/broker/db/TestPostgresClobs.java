@@ -0,0 +1,163 @@
+package org.aktin.broker.db;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.DataSource;
+
+import org.aktin.broker.server.auth.AuthInfoImpl;
+import org.aktin.broker.server.auth.AuthRole;
+import org.aktin.broker.xml.RequestStatus;
+import org.aktin.broker.xml.util.Util;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes and reads CLOB values spanning multiple chunks on PostgreSQL.
+ * All statements use a single physical connection, like a connection pool would.
+ * Requires the PostgreSQL JDBC driver in the classpath and the system property
+ * {@code aktin.test.postgresql.url}, e.g. {@code jdbc:postgresql://localhost/postgres?user=postgres&password=mysecretpassword}.
+ * Skipped otherwise.
+ */
+public class TestPostgresClobs {
+	private Connection physical;
+	private List<String> updates;
+	private BrokerImpl broker;
+
+	private static DataSource createDataSource() {
+		String url = System.getProperty("aktin.test.postgresql.url");
+		Assume.assumeNotNull(url);
+		try {
+			Class<? extends DataSource> clazz = Class.forName("org.postgresql.ds.PGSimpleDataSource").asSubclass(DataSource.class);
+			DataSource ds = clazz.getConstructor().newInstance();
+			clazz.getMethod("setURL", String.class).invoke(ds, url);
+			return ds;
+		} catch ( ClassNotFoundException e ) {
+			Assume.assumeNoException(e);
+			return null;
+		} catch ( ReflectiveOperationException e ) {
+			throw new RuntimeException("Unable to initialize PostgreSQL DataSource", e);
+		}
+	}
+
+	private static <T> T forward(Class<T> iface, T target, String ignored, List<String> updates) {
+		return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] {iface}, (proxy, method, args) -> {
+			if( method.getName().equals(ignored) ) {
+				return null;
+			}
+			if( method.getName().equals("executeUpdate") && args != null && args[0] instanceof String ) {
+				updates.add((String)args[0]);
+			}
+			try {
+				Object result = method.invoke(target, args);
+				if( method.getName().equals("createStatement") ) {
+					return forward(Statement.class, (Statement)result, null, updates);
+				}
+				return result;
+			}catch( InvocationTargetException e ) {
+				throw e.getCause();
+			}
+		}));
+	}
+
+	@Before
+	public void createBroker() throws SQLException, IOException {
+		DataSource ds = createDataSource();
+		try( Connection dbc = ds.getConnection() ){
+			TestDatabaseHSQL.initializeDatabase(dbc);
+		}
+		physical = ds.getConnection();
+		updates = new CopyOnWriteArrayList<>();
+		// each borrowed connection uses the same physical connection and is not closed
+		DataSource single = (DataSource)Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class<?>[] {DataSource.class}, (proxy, method, args) -> {
+			if( method.getName().equals("getConnection") ) {
+				return forward(Connection.class, physical, "close", updates);
+			}
+			try {
+				return method.invoke(ds, args);
+			}catch( InvocationTargetException e ) {
+				throw e.getCause();
+			}
+		});
+		broker = new BrokerImpl(single, Paths.get("target/broker-data"));
+	}
+
+	@After
+	public void closeConnection() throws SQLException {
+		if( physical != null ) {
+			physical.close();
+		}
+	}
+
+	private static String createContent(int length) {
+		StringBuilder b = new StringBuilder(length);
+		for( int i=0; i<length; i++ ) {
+			// include multi-byte characters to verify character based chunks
+			b.append(i%1000 == 0 ? '€' : (char)('a' + i%26));
+		}
+		return b.toString();
+	}
+
+	private long countUpdates(String prefix) {
+		return updates.stream().filter(sql -> sql.startsWith(prefix)).count();
+	}
+
+	@Test
+	public void largeDefinitionsAreStoredAndReadInChunks() throws SQLException, IOException {
+		String content = createContent(Dbms.CLOB_CHUNK_SIZE*5/2);
+		int id = broker.createRequest("text/vnd.test1", new StringReader(content));
+		broker.setRequestDefinition(id, "text/vnd.test2", new StringReader(content));
+		// temporary table created once for the physical connection
+		Assert.assertEquals(1, countUpdates("CREATE TEMPORARY TABLE"));
+		Assert.assertEquals(2, countUpdates("TRUNCATE"));
+		try( Statement st = physical.createStatement() ){
+			st.execute("SELECT COUNT(*) FROM clob_chunks");
+			st.getResultSet().next();
+			Assert.assertEquals(0, st.getResultSet().getInt(1));
+		}
+
+		try( Reader reader = broker.getRequestDefinition(id, "text/vnd.test1") ){
+			Assert.assertEquals(content, Util.readContent(reader));
+		}
+		try( Reader reader = broker.getRequestDefinition(id, "text/vnd.test2") ){
+			Assert.assertEquals(content, Util.readContent(reader));
+		}
+		Assert.assertNull(broker.getRequestDefinition(id, "text/vnd.test3"));
+		broker.deleteRequest(id);
+	}
+
+	@Test
+	public void nodeStatusMessagesAreStreamed() throws SQLException, IOException {
+		int nodeId = broker.accessPrincipal(new AuthInfoImpl(UUID.randomUUID().toString(), "CN=Test", AuthRole.ALL_NODE)).getNodeId();
+		int id = broker.createRequest("text/vnd.test1", new StringReader("<query/>"));
+		broker.setRequestNodeStatus(id, nodeId, RequestStatus.failed, Instant.now());
+		Assert.assertNull(broker.getRequestNodeStatusMessage(id, nodeId));
+
+		String message = createContent(Dbms.CLOB_CHUNK_SIZE+1);
+		broker.setRequestNodeStatusMessage(id, nodeId, "text/plain", new StringReader(message));
+		try( Reader reader = broker.getRequestNodeStatusMessage(id, nodeId) ){
+			Assert.assertEquals(message, Util.readContent(reader));
+		}
+		broker.setRequestNodeStatusMessage(id, nodeId, "text/plain", new StringReader("short"));
+		try( Reader reader = broker.getRequestNodeStatusMessage(id, nodeId) ){
+			Assert.assertEquals("short", Util.readContent(reader));
+		}
+		Assert.assertEquals(1, countUpdates("CREATE TEMPORARY TABLE"));
+		// only the large message is transferred via the temporary table
+		Assert.assertEquals(1, countUpdates("TRUNCATE"));
+	}
+}
@@ -0,0 +1,174 @@
+package org.aktin.broker.db;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.aktin.broker.util.CachedRequestDefinition;
+import org.aktin.broker.websocket.Notifications;
+import org.aktin.broker.xml.RequestInfo;
+import org.aktin.broker.xml.RequestStatus;
+import org.aktin.broker.xml.util.Util;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Verifies that request listings are loaded with a constant
+ * number of SQL statements, independent of the number of requests,
+ * that request list versions follow modifications and that
+ * request definitions are cached.
+ *
+ * @author R.W.Majeed
+ *
+ */
+public class TestRequestListQueries {
+	private CountingDataSource ds;
+	private BrokerImpl broker;
+
+	@Before
+	public void createBroker() throws SQLException, IOException {
+		ds = new CountingDataSource(new TestDatabaseHSQL());
+		broker = new BrokerImpl(ds, Paths.get("target/broker-data"));
+	}
+
+	private void createPublishedRequest(String... mediaTypes) throws SQLException {
+		int id = broker.createRequest();
+		for( String type : mediaTypes ) {
+			broker.setRequestDefinition(id, type, new StringReader("<query/>"));
+		}
+		broker.setRequestPublished(id, Instant.now());
+	}
+
+	@Test
+	public void listRequestsForNodeExecutesSingleQuery() throws SQLException {
+		for( int i=0; i<20; i++ ) {
+			createPublishedRequest("text/vnd.test1", "text/vnd.test2");
+		}
+		// request without definition
+		int id = broker.createRequest();
+		broker.setRequestPublished(id, Instant.now());
+
+		ds.resetStatementCount();
+		List<RequestInfo> list = broker.listRequestsForNode(1);
+		Assert.assertEquals(1, ds.getStatementCount());
+
+		Assert.assertEquals(21, list.size());
+		for( int i=0; i<20; i++ ) {
+			RequestInfo ri = list.get(i);
+			Assert.assertEquals(2, ri.types.length);
+			Assert.assertTrue(ri.hasMediaType("text/vnd.test1"));
+			Assert.assertTrue(ri.hasMediaType("text/vnd.test2"));
+			Assert.assertTrue(ri.nodeStatus.isEmpty());
+		}
+		Assert.assertNull(list.get(20).types);
+	}
+
+	@Test
+	public void requestListVersionChangesWithList() throws SQLException {
+		String v0 = broker.getRequestListVersion(1);
+		int id = broker.createRequest("text/vnd.test1", new StringReader("<query/>"));
+		broker.setRequestPublished(id, Instant.now());
+		String v1 = broker.getRequestListVersion(1);
+		Assert.assertNotEquals(v0, v1);
+		// no change without modifications
+		Assert.assertEquals(v1, broker.getRequestListVersion(1));
+
+		// node status affects only the reporting node
+		String other = broker.getRequestListVersion(2);
+		broker.setRequestNodeStatus(id, 1, RequestStatus.retrieved, Instant.now());
+		String v2 = broker.getRequestListVersion(1);
+		Assert.assertNotEquals(v1, v2);
+		Assert.assertEquals(other, broker.getRequestListVersion(2));
+
+		broker.markRequestDeletedForNode(1, id);
+		Assert.assertNotEquals(v2, broker.getRequestListVersion(1));
+		Assert.assertEquals(other, broker.getRequestListVersion(2));
+
+		broker.setRequestClosed(id, Instant.now());
+		Assert.assertNotEquals(other, broker.getRequestListVersion(2));
+	}
+
+	@Test
+	public void requestDefinitionsAreCached() throws SQLException, IOException {
+		int id = broker.createRequest("text/vnd.test1", new StringReader("<query/>"));
+		CachedRequestDefinition def = broker.getCachedRequestDefinition(id, "text/vnd.test1");
+		Assert.assertEquals("<query/>", def.getContent());
+		Assert.assertNull(broker.getCachedRequestDefinition(id, "text/vnd.test2"));
+		Assert.assertEquals(Collections.singletonList("text/vnd.test1"), broker.getRequestTypes(id));
+
+		// served from cache without database access
+		ds.resetStatementCount();
+		Assert.assertEquals(Collections.singletonList("text/vnd.test1"), broker.getRequestTypes(id));
+		Assert.assertSame(def, broker.getCachedRequestDefinition(id, "text/vnd.test1"));
+		Assert.assertEquals(0, ds.getStatementCount());
+
+		// updates invalidate the cache
+		broker.setRequestDefinition(id, "text/vnd.test1", new StringReader("<query2/>"));
+		CachedRequestDefinition def2 = broker.getCachedRequestDefinition(id, "text/vnd.test1");
+		Assert.assertEquals("<query2/>", def2.getContent());
+		Assert.assertNotEquals(def.getEntityTag(), def2.getEntityTag());
+
+		broker.deleteRequest(id);
+		Assert.assertNull(broker.getCachedRequestDefinition(id, "text/vnd.test1"));
+		Assert.assertTrue(broker.getRequestTypes(id).isEmpty());
+	}
+
+	@Test
+	public void unknownAndLargeDefinitionsAreNotCached() throws SQLException, IOException {
+		int id = broker.createRequest("text/vnd.test1", new StringReader("<query/>"));
+		// probing the next id before it is created
+		Assert.assertTrue(broker.getRequestTypes(id+1).isEmpty());
+		int next = broker.createRequest("text/vnd.test1", new StringReader("<query2/>"));
+		Assert.assertEquals(id+1, next);
+		Assert.assertEquals(Collections.singletonList("text/vnd.test1"), broker.getRequestTypes(next));
+
+		// large definitions are retrieved directly
+		String large = String.join("", Collections.nCopies(300*1024, "x"));
+		int big = broker.createRequest("text/vnd.test1", new StringReader(large));
+		Assert.assertNull(broker.getCachedRequestDefinition(big, "text/vnd.test1"));
+		try( Reader reader = broker.getRequestDefinition(big, "text/vnd.test1") ){
+			Assert.assertEquals(large, Util.readContent(reader));
+		}
+	}
+
+	@Test
+	public void changesReachOtherInstance() throws SQLException, IOException {
+		// second instance sharing the database, changes are distributed via the notification bus
+		BrokerImpl other = new BrokerImpl(ds, Paths.get("target/broker-data"));
+		List<Consumer<String>> listeners = Arrays.asList(broker::applyChange, other::applyChange);
+		broker.setChangePublisher(Notifications::publishStateChange);
+		other.setChangePublisher(Notifications::publishStateChange);
+		listeners.forEach(Notifications::addStateListener);
+		try {
+			int id = broker.createRequest("text/vnd.test1", new StringReader("<query/>"));
+			String etag = other.getRequestListVersion(1);
+			Assert.assertEquals("<query/>", other.getCachedRequestDefinition(id, "text/vnd.test1").getContent());
+
+			broker.setRequestPublished(id, Instant.now());
+			Assert.assertNotEquals(etag, other.getRequestListVersion(1));
+			Assert.assertEquals(1, other.listRequestsForNode(1).size());
+
+			etag = other.getRequestListVersion(1);
+			broker.setRequestNodeStatus(id, 1, RequestStatus.retrieved, Instant.now());
+			Assert.assertNotEquals(etag, other.getRequestListVersion(1));
+
+			broker.setRequestDefinition(id, "text/vnd.test1", new StringReader("<query2/>"));
+			Assert.assertEquals("<query2/>", other.getCachedRequestDefinition(id, "text/vnd.test1").getContent());
+
+			// missed changes
+			etag = other.getRequestListVersion(1);
+			Notifications.getBus().publish(Notifications.RESET);
+			Assert.assertNotEquals(etag, other.getRequestListVersion(1));
+		}finally {
+			listeners.forEach(Notifications::removeStateListener);
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.aktin.broker.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.UUID;
+
+import javax.sql.DataSource;
+
+import org.aktin.broker.db.TestDataSource;
+import org.aktin.broker.db.TestDatabaseHSQL;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Two download managers representing two broker instances
+ * which share the database and the temporary directory.
+ */
+public class TestDownloadManager {
+
+	@Test
+	public void sharedDownloadsAreServedByOtherInstance() throws IOException, SQLException {
+		DataSource ds = new TestDataSource(new TestDatabaseHSQL());
+		DownloadManager first = new DownloadManager(Paths.get("target/download-temp"));
+		first.setSharedDatabase(ds);
+		DownloadManager second = new DownloadManager(Paths.get("target/download-temp"));
+		second.setSharedDatabase(ds);
+
+		Download d = first.createTemporaryFile("text/plain", "test.txt");
+		try( OutputStream out = d.getOutputStream() ){
+			out.write("shared".getBytes(StandardCharsets.UTF_8));
+		}
+		Download other = second.get(d.getId());
+		Assert.assertNotNull(other);
+		Assert.assertEquals("test.txt", other.getName());
+		Assert.assertEquals("text/plain", other.getContentType());
+		Assert.assertEquals(d.getExpireTimestamp(), other.getExpireTimestamp());
+		try( InputStream in = other.getInputStream() ){
+			byte[] buf = new byte[16];
+			int len = in.read(buf);
+			Assert.assertEquals("shared", new String(buf, 0, len, StandardCharsets.UTF_8));
+		}
+		Assert.assertNull(second.get(UUID.randomUUID()));
+	}
+}
@@ -0,0 +1,69 @@
+package org.aktin.broker.rest;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.aktin.broker.rest.RangeResponse.Range;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestRangeResponse {
+
+	private static void assertRange(long first, long last, Range r) {
+		Assert.assertEquals(first, r.first);
+		Assert.assertEquals(last, r.last);
+	}
+
+	@Test
+	public void parseRanges() {
+		List<Range> r = RangeResponse.parse("bytes=0-99", 1000);
+		Assert.assertEquals(1, r.size());
+		assertRange(0, 99, r.get(0));
+		// open and suffix ranges
+		assertRange(900, 999, RangeResponse.parse("bytes=900-", 1000).get(0));
+		assertRange(950, 999, RangeResponse.parse("bytes=-50", 1000).get(0));
+		assertRange(0, 999, RangeResponse.parse("bytes=-5000", 1000).get(0));
+		// last position beyond the end
+		assertRange(500, 999, RangeResponse.parse("bytes=500-5000", 1000).get(0));
+		// sorted and coalesced
+		r = RangeResponse.parse("bytes=500-599, 0-9, 550-700, 10-19", 1000);
+		Assert.assertEquals(2, r.size());
+		assertRange(0, 19, r.get(0));
+		assertRange(500, 700, r.get(1));
+	}
+
+	@Test
+	public void unsatisfiableAndInvalidRanges() {
+		// not satisfiable
+		Assert.assertTrue(RangeResponse.parse("bytes=1000-", 1000).isEmpty());
+		Assert.assertTrue(RangeResponse.parse("bytes=0-10", 0).isEmpty());
+		// invalid, ignored
+		Assert.assertNull(RangeResponse.parse("items=0-10", 1000));
+		Assert.assertNull(RangeResponse.parse("bytes=10-5", 1000));
+		Assert.assertNull(RangeResponse.parse("bytes=a-b", 1000));
+		Assert.assertNull(RangeResponse.parse("bytes=5", 1000));
+		StringBuilder many = new StringBuilder("bytes=0-0");
+		for( int i=1; i<=RangeResponse.MAX_RANGES; i++ ) {
+			many.append(',').append(2*i).append('-').append(2*i);
+		}
+		Assert.assertNull(RangeResponse.parse(many.toString(), 1000));
+	}
+
+	@Test
+	public void ifRangeValidators() {
+		EntityTag tag = new EntityTag("abc");
+		Date lastModified = new Date(1500000000123L);
+		Assert.assertTrue(RangeResponse.matchesIfRange(null, tag, lastModified));
+		Assert.assertTrue(RangeResponse.matchesIfRange("\"abc\"", tag, lastModified));
+		Assert.assertFalse(RangeResponse.matchesIfRange("\"xyz\"", tag, lastModified));
+		// weak tags never match
+		Assert.assertFalse(RangeResponse.matchesIfRange("W/\"abc\"", tag, lastModified));
+		Assert.assertFalse(RangeResponse.matchesIfRange("\"abc\"", null, lastModified));
+		// dates with second resolution
+		Assert.assertTrue(RangeResponse.matchesIfRange("Fri, 14 Jul 2017 02:40:00 GMT", tag, lastModified));
+		Assert.assertFalse(RangeResponse.matchesIfRange("Fri, 14 Jul 2017 02:40:01 GMT", tag, lastModified));
+		Assert.assertFalse(RangeResponse.matchesIfRange("not a date", tag, lastModified));
+	}
+}
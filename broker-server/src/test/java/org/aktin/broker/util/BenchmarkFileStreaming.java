@@ -0,0 +1,104 @@
+package org.aktin.broker.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Manual benchmark comparing the throughput of file responses
+ * sent over a loopback TCP connection:
+ * <ul>
+ * <li>{@link Files#copy(Path, OutputStream)}, the previous implementation</li>
+ * <li>{@link FileStreamingResponse}, transferring via a channel wrapping the output stream</li>
+ * <li>{@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} directly
+ *  to a socket channel, for comparison with the zero copy path of the platform</li>
+ * </ul>
+ * <p>
+ * Not run during the build. The file size in MiB can be given as first argument, defaults to 256.
+ * </p>
+ * @author R.W.Majeed
+ *
+ */
+public class BenchmarkFileStreaming {
+	private static final int ROUNDS = 5;
+
+	@FunctionalInterface
+	private interface Sender{
+		void send(Path file, Socket socket) throws IOException;
+	}
+
+	/**
+	 * Accepts connections and discards all received data
+	 */
+	private static ServerSocket startSink() throws IOException {
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread t = new Thread( () -> {
+			byte[] buffer = new byte[64*1024];
+			while( !server.isClosed() ) {
+				try( Socket s = server.accept();
+						InputStream in = s.getInputStream() ){
+					while( in.read(buffer) != -1 ) {
+						// discard
+					}
+				}catch( IOException e ) {
+					// closed
+				}
+			}
+		}, "sink");
+		t.setDaemon(true);
+		t.start();
+		return server;
+	}
+
+	private static double measure(Path file, int port, Sender sender) throws IOException {
+		long best = Long.MAX_VALUE;
+		for( int i=0; i<ROUNDS; i++ ) {
+			try( SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)) ){
+				long start = System.nanoTime();
+				sender.send(file, channel.socket());
+				best = Math.min(best, System.nanoTime() - start);
+			}
+		}
+		// MiB per second for the fastest round
+		return Files.size(file) / (1024.0*1024.0) / (best / 1e9);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int mib = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		Path file = Files.createTempFile("benchmark", ".bin");
+		try( ServerSocket sink = startSink() ){
+			byte[] block = new byte[1024*1024];
+			new Random(42).nextBytes(block);
+			try( OutputStream out = Files.newOutputStream(file) ){
+				for( int i=0; i<mib; i++ ) {
+					out.write(block);
+				}
+			}
+			int port = sink.getLocalPort();
+			// socket streams of channel based sockets are used, like the servlet output stream they are no channels
+			double copy = measure(file, port, (f, s) -> Files.copy(f, s.getOutputStream()) );
+			double streaming = measure(file, port, (f, s) -> new FileStreamingResponse(f).write(s.getOutputStream()) );
+			double direct = measure(file, port, (f, s) -> {
+				try( FileChannel fc = FileChannel.open(f, StandardOpenOption.READ) ){
+					FileStreamingResponse.transfer(fc, 0, fc.size(), s.getChannel());
+				}
+			});
+			System.out.println("File size: "+mib+" MiB, best of "+ROUNDS+" rounds");
+			System.out.println(String.format("Files.copy:                %8.1f MiB/s", copy));
+			System.out.println(String.format("FileStreamingResponse:     %8.1f MiB/s", streaming));
+			System.out.println(String.format("transferTo socket channel: %8.1f MiB/s", direct));
+		}finally {
+			Files.delete(file);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package org.aktin.broker.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileStreamingResponse {
+	private Server server;
+	private Path file;
+	private byte[] data;
+	/** whether each response was sent via Jetty's HttpOutput */
+	private BlockingQueue<Boolean> sentByJetty;
+
+	@Before
+	public void startServer() throws Exception {
+		data = new byte[100000];
+		new Random(42).nextBytes(data);
+		file = Files.createTempFile("streaming", ".bin");
+		Files.write(file, data);
+		sentByJetty = new LinkedBlockingQueue<>();
+
+		server = new Server(0);
+		server.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+				long offset = Long.parseLong(request.getParameter("offset"));
+				long count = Long.parseLong(request.getParameter("count"));
+				response.setContentType("application/octet-stream");
+				response.setContentLengthLong(count);
+				OutputStream output = response.getOutputStream();
+				if( target.equals("/wrapped") ) {
+					// e.g. the JAX-RS output stream
+					output = new FilterOutputStream(output);
+				}
+				try( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ) ){
+					boolean sent = FileStreamingResponse.sendJettyContent(output, channel, offset, count);
+					if( !sent ) {
+						new FileStreamingResponse(file, offset, count).write(output);
+					}
+					sentByJetty.add(sent);
+				}
+				baseRequest.setHandled(true);
+			}
+		});
+		server.start();
+	}
+
+	@After
+	public void stopServer() throws Exception {
+		server.stop();
+		Files.deleteIfExists(file);
+	}
+
+	private byte[] get(String path, long offset, long count) throws IOException {
+		int port = ((ServerConnector)server.getConnectors()[0]).getLocalPort();
+		HttpURLConnection c = (HttpURLConnection)new URL("http://localhost:"+port+path+"?offset="+offset+"&count="+count).openConnection();
+		Assert.assertEquals(200, c.getResponseCode());
+		try( InputStream in = c.getInputStream() ){
+			return in.readAllBytes();
+		}
+	}
+
+	@Test
+	public void jettyOutputSendsMappedFile() throws Exception {
+		Assert.assertArrayEquals(data, get("/", 0, data.length));
+		Assert.assertTrue(sentByJetty.poll(5, TimeUnit.SECONDS));
+		Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 51000), get("/", 1000, 50000));
+		Assert.assertTrue(sentByJetty.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void wrappedOutputStreamsFallBackToTransfer() throws Exception {
+		Assert.assertArrayEquals(data, get("/wrapped", 0, data.length));
+		Assert.assertFalse(sentByJetty.poll(5, TimeUnit.SECONDS));
+		Assert.assertArrayEquals(Arrays.copyOfRange(data, 1000, 51000), get("/wrapped", 1000, 50000));
+		Assert.assertFalse(sentByJetty.poll(5, TimeUnit.SECONDS));
+	}
+}
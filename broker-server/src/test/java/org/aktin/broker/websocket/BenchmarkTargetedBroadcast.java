@@ -0,0 +1,68 @@
+package org.aktin.broker.websocket;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.websocket.Session;
+
+/**
+ * Manual benchmark comparing targeted broadcasts over a synchronized set
+ * of all sessions with the node-indexed {@link SessionRegistry}.
+ * <p>
+ * Not run during the build. Uses 10000 simulated sessions,
+ * each broadcast targets 10 nodes.
+ * </p>
+ * @author R.W.Majeed
+ *
+ */
+public class BenchmarkTargetedBroadcast {
+	private static final int SESSIONS = 10000;
+	private static final int TARGETS = 10;
+	private static final int ITERATIONS = 20000;
+
+	private static long runSynchronizedSet(Set<Session> clients, int[][] targets) {
+		long start = System.nanoTime();
+		for( int i=0; i<ITERATIONS; i++ ) {
+			int[] nodeIds = targets[i%targets.length];
+			Set<Integer> nodes = new HashSet<>();
+			for( int id : nodeIds ) {
+				nodes.add(id);
+			}
+			AbstractBroadcastWebsocket.broadcast(clients, "published "+i, p -> nodes.contains(p.getNodeId()));
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long runRegistry(SessionRegistry registry, int[][] targets) {
+		long start = System.nanoTime();
+		for( int i=0; i<ITERATIONS; i++ ) {
+			String message = "published "+i;
+			registry.forEach(targets[i%targets.length], s -> AbstractBroadcastWebsocket.send(s, message));
+		}
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String[] args) {
+		Set<Session> clients = Collections.synchronizedSet(new HashSet<>());
+		SessionRegistry registry = new SessionRegistry();
+		for( int i=0; i<SESSIONS; i++ ) {
+			Session s = new SimulatedSession("s"+i, TestSessionRegistry.nodePrincipal(i)).getSession();
+			clients.add(s);
+			registry.add(i, s);
+		}
+		int[][] targets = new int[100][TARGETS];
+		for( int i=0; i<targets.length; i++ ) {
+			for( int j=0; j<TARGETS; j++ ) {
+				targets[i][j] = (i*TARGETS + j*997) % SESSIONS;
+			}
+		}
+		for( int round=0; round<3; round++ ) {
+			// first rounds for warm-up
+			long set = runSynchronizedSet(clients, targets);
+			long reg = runRegistry(registry, targets);
+			System.out.printf("round %d: synchronized set %.3f us/broadcast, registry %.3f us/broadcast%n",
+					round, set/1000.0/ITERATIONS, reg/1000.0/ITERATIONS);
+		}
+	}
+}
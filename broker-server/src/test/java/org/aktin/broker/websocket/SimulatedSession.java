@@ -0,0 +1,156 @@
+package org.aktin.broker.websocket;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.CloseReason;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.aktin.broker.auth.Principal;
+
+/**
+ * Websocket session stand-in which counts sent messages
+ * without any network communication. Sends complete immediately,
+ * unless the session is stalled via {@link #setStalled(boolean)}.
+ *
+ * @author R.W.Majeed
+ *
+ */
+class SimulatedSession {
+	private final String id;
+	private final Map<String, Object> properties;
+	private final AtomicInteger sent;
+	private volatile boolean open;
+	private volatile boolean stalled;
+	private final Deque<SendHandler> pending;
+	private final List<String> messages;
+	private final Deque<ByteBuffer> pings;
+	private CloseReason closeReason;
+	private final Session session;
+
+	SimulatedSession(String id, Principal user){
+		this(id, user, AbstractBroadcastWebsocket.DEFAULT_QUEUE_CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+	}
+
+	SimulatedSession(String id, Principal user, int capacity, OutboundQueue.OverflowPolicy policy){
+		this.id = id;
+		this.properties = new HashMap<>();
+		this.sent = new AtomicInteger();
+		this.open = true;
+		this.pending = new ArrayDeque<>();
+		this.messages = new ArrayList<>();
+		this.pings = new ArrayDeque<>();
+		properties.put(HeaderAuthSessionConfigurator.AUTH_USER, user);
+		RemoteEndpoint.Async remote = (RemoteEndpoint.Async)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {RemoteEndpoint.Async.class}, (proxy, method, args) -> {
+			if( method.getName().equals("sendText") ) {
+				sent.incrementAndGet();
+				SendHandler handler = (SendHandler)args[1];
+				synchronized( pending ) {
+					messages.add((String)args[0]);
+					if( stalled ) {
+						pending.add(handler);
+						return null;
+					}
+				}
+				handler.onResult(new SendResult());
+			}else if( method.getName().equals("sendPing") ) {
+				synchronized( pings ) {
+					pings.add(((ByteBuffer)args[0]).duplicate());
+				}
+			}
+			return null;
+		});
+		this.session = (Session)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Session.class}, (proxy, method, args) -> {
+			switch( method.getName() ) {
+			case "getId":
+				return this.id;
+			case "getUserProperties":
+				return properties;
+			case "isOpen":
+				return open;
+			case "getAsyncRemote":
+				return remote;
+			case "close":
+				open = false;
+				closeReason = (CloseReason)args[0];
+				return null;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "SimulatedSession("+this.id+")";
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+		SessionQueue.attach(session, "/simulated", capacity, policy);
+	}
+
+	Session getSession() {
+		return session;
+	}
+	int getSentCount() {
+		return sent.get();
+	}
+	void setOpen(boolean open) {
+		this.open = open;
+	}
+	/**
+	 * Stall the session. Sends of a stalled session complete only after
+	 * calling {@link #completeSends(int)}
+	 * @param stalled stalled
+	 */
+	void setStalled(boolean stalled) {
+		this.stalled = stalled;
+	}
+	/**
+	 * Complete pending sends of a stalled session
+	 * @param count maximum number of sends to complete
+	 * @return number of completed sends
+	 */
+	int completeSends(int count) {
+		int i;
+		for( i=0; i<count; i++ ) {
+			SendHandler handler;
+			synchronized( pending ) {
+				handler = pending.poll();
+			}
+			if( handler == null ) {
+				break;
+			}
+			handler.onResult(new SendResult());
+		}
+		return i;
+	}
+	List<String> getMessages(){
+		synchronized( pending ) {
+			return new ArrayList<>(messages);
+		}
+	}
+	CloseReason getCloseReason() {
+		return closeReason;
+	}
+	/**
+	 * Remove the oldest ping sent to the session
+	 * @return ping payload or {@code null} if no ping was sent
+	 */
+	ByteBuffer pollPing() {
+		synchronized( pings ) {
+			return pings.poll();
+		}
+	}
+	SessionQueue getQueue() {
+		return SessionQueue.of(session);
+	}
+}
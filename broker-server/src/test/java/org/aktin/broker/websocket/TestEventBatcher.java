@@ -0,0 +1,52 @@
+package org.aktin.broker.websocket;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEventBatcher {
+
+	@Test
+	public void eventsAreDeduplicatedPerKey() {
+		List<String> frames = new CopyOnWriteArrayList<>();
+		EventBatcher b = new EventBatcher("test-batch", 60000, frames::add);
+		b.add(null, "published 1");
+		b.add("status 1 0", "status 1 0 retrieved");
+		b.add("status 1 1", "status 1 1 retrieved");
+		b.add("status 1 0", "status 1 0 processing");
+		b.add("status 1 0", "status 1 0 completed");
+		b.add("result 1 0", "result 1 0 text/plain");
+		b.add(null, "resource 1 stats");
+		b.add(null, "resource 1 stats");
+		b.flush();
+		Assert.assertEquals(1, frames.size());
+		Assert.assertEquals("batch 6\n"
+				+ "published 1\n"
+				+ "status 1 1 retrieved\n"
+				+ "status 1 0 completed\n"
+				+ "result 1 0 text/plain\n"
+				+ "resource 1 stats\n"
+				+ "resource 1 stats", frames.get(0));
+		// nothing pending
+		b.flush();
+		Assert.assertEquals(1, frames.size());
+	}
+
+	@Test
+	public void windowIsFlushedAutomatically() throws InterruptedException {
+		List<String> frames = new CopyOnWriteArrayList<>();
+		EventBatcher b = new EventBatcher("test-batch", 50, frames::add);
+		for( int i=0; i<100; i++ ) {
+			b.add("status 1 "+(i%10), "status 1 "+(i%10)+" processing");
+		}
+		Thread.sleep(500);
+		Assert.assertEquals(1, frames.size());
+		Assert.assertTrue(frames.get(0).startsWith("batch 10\n"));
+		b.add(null, "closed 1");
+		Thread.sleep(500);
+		Assert.assertEquals(2, frames.size());
+		Assert.assertEquals("batch 1\nclosed 1", frames.get(1));
+	}
+}
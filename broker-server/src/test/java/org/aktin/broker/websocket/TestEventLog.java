@@ -0,0 +1,68 @@
+package org.aktin.broker.websocket;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestEventLog {
+
+	private static boolean targets(int[] nodeIds, int nodeId) {
+		return nodeIds == null || Arrays.stream(nodeIds).anyMatch(i -> i == nodeId);
+	}
+
+	@Test
+	public void resumeAfterCursor() {
+		EventLog log = new EventLog(10);
+		log.append("published 1", new int[] {1,2});
+		String cursor = log.getCursor();
+		Assert.assertEquals(Collections.emptyList(), log.since(cursor, t -> true));
+
+		log.append("published 2", new int[] {2});
+		log.append("closed 1", new int[] {1,2});
+		log.append("published 3", null);
+		List<String> missed = log.since(cursor, t -> targets(t, 1));
+		Assert.assertEquals(Arrays.asList("#3 closed 1", "#4 published 3"), missed);
+		Assert.assertEquals(3, log.since(cursor, t -> targets(t, 2)).size());
+		Assert.assertTrue(log.getCursor().endsWith("-4"));
+	}
+
+	@Test
+	public void unavailableEvents() {
+		EventLog log = new EventLog(3);
+		String cursor = log.getCursor();
+		// no events yet
+		Assert.assertEquals(Collections.emptyList(), log.since(cursor, t -> true));
+		for( int i=0; i<3; i++ ) {
+			log.append("published "+i, null);
+		}
+		Assert.assertEquals(3, log.since(cursor, t -> true).size());
+		// buffer wrapped
+		log.append("published 3", null);
+		Assert.assertNull(log.since(cursor, t -> true));
+		// cursors of other server runs or invalid cursors
+		Assert.assertNull(log.since("", t -> true));
+		Assert.assertNull(log.since("abc-1", t -> true));
+		Assert.assertNull(log.since(cursor.replace("-0", "-99"), t -> true));
+		// resize discards events
+		String latest = log.getCursor();
+		log.resize(5);
+		Assert.assertEquals(Collections.emptyList(), log.since(latest, t -> true));
+		Assert.assertNull(log.since(cursor.replace("-0", "-3"), t -> true));
+	}
+
+	@Test
+	public void clearedEventsAreNotResumed() {
+		EventLog log = new EventLog(10);
+		String before = log.getCursor();
+		log.append("published 1", null);
+		log.clear();
+		String after = log.getCursor();
+		Assert.assertNull(log.since(before, t -> true));
+		Assert.assertEquals(Collections.emptyList(), log.since(after, t -> true));
+		log.append("published 2", null);
+		Assert.assertEquals(Arrays.asList("#2 published 2"), log.since(after, t -> true));
+	}
+}
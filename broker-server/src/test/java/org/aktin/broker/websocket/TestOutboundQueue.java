@@ -0,0 +1,85 @@
+package org.aktin.broker.websocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.aktin.broker.websocket.OutboundQueue.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestOutboundQueue {
+
+	/**
+	 * Records transmitted messages, completion is triggered by the test
+	 */
+	private static class RecordingQueue extends OutboundQueue<String>{
+		final List<String> transmitted = new ArrayList<>();
+		boolean overflowed;
+
+		RecordingQueue(int capacity, OverflowPolicy policy) {
+			super(capacity, policy);
+		}
+		@Override
+		protected void transmit(String message) {
+			transmitted.add(message);
+		}
+		@Override
+		protected void overflow() {
+			overflowed = true;
+		}
+		@Override
+		protected boolean isDuplicate(String queued, String message) {
+			// compare the event name only
+			return queued.split(" ")[0].equals(message.split(" ")[0]);
+		}
+	}
+
+	@Test
+	public void keepAliveOnlyWhenIdle() {
+		RecordingQueue q = new RecordingQueue(3, OverflowPolicy.DROP_OLDEST);
+		Assert.assertTrue(q.offerIfIdle(":"));
+		Assert.assertFalse(q.offerIfIdle(":"));
+		// queued behind the keep-alive
+		Assert.assertTrue(q.offer("published 1"));
+		Assert.assertEquals(1, q.getDepth());
+		q.completed(true);
+		Assert.assertFalse(q.offerIfIdle(":"));
+		q.completed(true);
+		Assert.assertTrue(q.offerIfIdle(":"));
+		q.completed(false);
+		Assert.assertEquals(Arrays.asList(":", "published 1", ":"), q.transmitted);
+		Assert.assertEquals(2, q.getSentCount());
+		Assert.assertEquals(1, q.getFailedCount());
+	}
+
+	@Test
+	public void coalesceUsesDuplicateCheck() {
+		RecordingQueue q = new RecordingQueue(2, OverflowPolicy.COALESCE);
+		q.offer("published 1");
+		q.offer("published 2");
+		q.offer("closed 1");
+		// full queue, equal event name
+		q.offer("published 3");
+		Assert.assertEquals(1, q.getCoalescedCount());
+		Assert.assertEquals(2, q.getDepth());
+		q.completed(true);
+		q.completed(true);
+		q.completed(true);
+		Assert.assertEquals(Arrays.asList("published 1", "published 2", "closed 1"), q.transmitted);
+	}
+
+	@Test
+	public void disconnectClosesQueue() {
+		RecordingQueue q = new RecordingQueue(1, OverflowPolicy.DISCONNECT);
+		Assert.assertTrue(q.offer("published 1"));
+		Assert.assertTrue(q.offer("published 2"));
+		Assert.assertFalse(q.offer("published 3"));
+		Assert.assertTrue(q.overflowed);
+		Assert.assertTrue(q.isClosed());
+		Assert.assertEquals(2, q.getDroppedCount());
+		q.completed(true);
+		Assert.assertFalse(q.offer("published 4"));
+		Assert.assertEquals(Arrays.asList("published 1"), q.transmitted);
+	}
+}
@@ -0,0 +1,78 @@
+package org.aktin.broker.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.sql.DataSource;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Two notification buses representing two broker instances sharing a PostgreSQL database.
+ * Requires the PostgreSQL JDBC driver in the classpath and the system property
+ * {@code aktin.test.postgresql.url}, e.g. {@code jdbc:postgresql://localhost/postgres?user=postgres&password=mysecretpassword}.
+ * Skipped otherwise.
+ */
+public class TestPostgresNotificationBus {
+
+	private static DataSource createDataSource() {
+		String url = System.getProperty("aktin.test.postgresql.url");
+		Assume.assumeNotNull(url);
+		try {
+			Class<? extends DataSource> clazz = Class.forName("org.postgresql.ds.PGSimpleDataSource").asSubclass(DataSource.class);
+			DataSource ds = clazz.getConstructor().newInstance();
+			clazz.getMethod("setURL", String.class).invoke(ds, url);
+			return ds;
+		} catch ( ClassNotFoundException e ) {
+			Assume.assumeNoException(e);
+			return null;
+		} catch ( ReflectiveOperationException e ) {
+			throw new RuntimeException("Unable to initialize PostgreSQL DataSource", e);
+		}
+	}
+
+	@Test
+	public void messagesReachOtherInstance() throws IOException, InterruptedException {
+		DataSource ds = createDataSource();
+		List<String> first = new CopyOnWriteArrayList<>();
+		List<String> second = new CopyOnWriteArrayList<>();
+		try( PostgresNotificationBus a = new PostgresNotificationBus(ds, "aktin_broker_test");
+				PostgresNotificationBus b = new PostgresNotificationBus(ds, "aktin_broker_test") ){
+			a.open(first::add);
+			b.open(second::add);
+			a.publish("node 1,2 published 1");
+			b.publish("admin status 1 2 completed");
+			Thread.sleep(2000);
+			// each message is delivered once to every instance
+			Assert.assertEquals(2, first.size());
+			Assert.assertEquals(2, second.size());
+			Assert.assertEquals("node 1,2 published 1", second.get(0));
+			Assert.assertEquals("admin status 1 2 completed", first.get(1));
+		}
+	}
+
+	@Test
+	public void oversizeMessageResetsOtherInstance() throws IOException, InterruptedException {
+		DataSource ds = createDataSource();
+		List<String> first = new CopyOnWriteArrayList<>();
+		List<String> second = new CopyOnWriteArrayList<>();
+		StringBuilder targets = new StringBuilder("1");
+		for( int i=2; i<5000; i++ ) {
+			targets.append(',').append(i);
+		}
+		String message = "node "+targets+" published 1";
+		try( PostgresNotificationBus a = new PostgresNotificationBus(ds, "aktin_broker_test");
+				PostgresNotificationBus b = new PostgresNotificationBus(ds, "aktin_broker_test") ){
+			a.open(first::add);
+			b.open(second::add);
+			a.publish(message);
+			Thread.sleep(2000);
+			Assert.assertEquals(Arrays.asList(message), first);
+			Assert.assertEquals(Arrays.asList(Notifications.RESET), second);
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package org.aktin.broker.websocket;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestPublishDispatcher {
+
+	private static class RecordingSink implements PublishDispatcher.Sink{
+		final List<String> waves = new CopyOnWriteArrayList<>();
+		final List<String> logged = new CopyOnWriteArrayList<>();
+		@Override
+		public long append(String message, int[] nodeIds) {
+			logged.add(message+" "+Arrays.toString(nodeIds));
+			return logged.size();
+		}
+		@Override
+		public int send(long seq, String message, int[] nodeIds, int[] excludedNodeIds) {
+			if( seq != logged.size() ) {
+				throw new IllegalStateException("Wave not sent for the latest logged message");
+			}
+			if( nodeIds == null ) {
+				waves.add("all except "+Arrays.toString(excludedNodeIds));
+				return 1;
+			}
+			waves.add(Arrays.toString(nodeIds));
+			return nodeIds.length;
+		}
+	}
+
+	@Test
+	public void notStaggeredByDefault() {
+		RecordingSink sink = new RecordingSink();
+		PublishDispatcher d = new PublishDispatcher(sink, () -> new int[] {1,2,3});
+		d.dispatch(1, "published 1", new int[] {1,2,3,4,5});
+		d.dispatch(2, "published 2", null);
+		Assert.assertEquals(Arrays.asList("[1, 2, 3, 4, 5]", "all except null"), sink.waves);
+		Assert.assertEquals(0, d.getStaggeredCount());
+		Assert.assertTrue(d.getPeakPerSecond() >= 5);
+	}
+
+	@Test
+	public void nodesAreNotifiedInWaves() throws InterruptedException {
+		RecordingSink sink = new RecordingSink();
+		PublishDispatcher d = new PublishDispatcher(sink, () -> new int[0]);
+		d.configure(3, 100, 0);
+		d.dispatch(1, "published 1", new int[] {1,2,3,4,5,6,7});
+		// first wave is sent immediately
+		Assert.assertEquals(Arrays.asList("[1, 2, 3]"), sink.waves);
+		Assert.assertEquals(1, d.getPendingRequests());
+		Assert.assertEquals(200, d.getLastSpreadMillis());
+		Thread.sleep(500);
+		Assert.assertEquals(Arrays.asList("[1, 2, 3]", "[4, 5, 6]", "[7]"), sink.waves);
+		Assert.assertEquals(0, d.getPendingRequests());
+		Assert.assertEquals(3, d.getWaveCount());
+		Assert.assertEquals(7, d.getNotifiedSessions());
+		Assert.assertEquals(Arrays.asList("published 1 [1, 2, 3, 4, 5, 6, 7]"), sink.logged);
+	}
+
+	@Test
+	public void closingCancelsPendingWaves() throws InterruptedException {
+		RecordingSink sink = new RecordingSink();
+		PublishDispatcher d = new PublishDispatcher(sink, () -> new int[0]);
+		d.configure(2, 200, 0);
+		d.dispatch(1, "published 1", new int[] {1,2,3,4,5,6});
+		d.cancel(1);
+		Thread.sleep(600);
+		Assert.assertEquals(Arrays.asList("[1, 2]"), sink.waves);
+		Assert.assertEquals(2, d.getCancelledWaves());
+		Assert.assertEquals(0, d.getPendingRequests());
+	}
+
+	@Test
+	public void untargetedLastWaveReachesRemainingNodes() throws InterruptedException {
+		RecordingSink sink = new RecordingSink();
+		PublishDispatcher d = new PublishDispatcher(sink, () -> new int[] {1,2,3,4});
+		d.configure(2, 50, 0);
+		d.dispatch(1, "published 1", null);
+		Thread.sleep(300);
+		Assert.assertEquals(Arrays.asList("[1, 2]", "all except [1, 2]"), sink.waves);
+		// logged once for all nodes, not per wave
+		Assert.assertEquals(Arrays.asList("published 1 null"), sink.logged);
+	}
+
+	@Test
+	public void jitterSpreadsNotifications() throws InterruptedException {
+		RecordingSink sink = new RecordingSink();
+		PublishDispatcher d = new PublishDispatcher(sink, () -> new int[0]);
+		d.configure(0, 0, 100);
+		int[] nodes = new int[50];
+		for( int i=0; i<nodes.length; i++ ) {
+			nodes[i] = i;
+		}
+		d.dispatch(1, "published 1", nodes);
+		Thread.sleep(400);
+		Assert.assertEquals(50, d.getNotifiedSessions());
+		Assert.assertTrue(d.getLastSpreadMillis() < 100);
+		Assert.assertTrue(d.getWaveCount() > 1);
+	}
+}
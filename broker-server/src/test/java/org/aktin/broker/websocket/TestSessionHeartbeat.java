@@ -0,0 +1,77 @@
+package org.aktin.broker.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.websocket.CloseReason.CloseCodes;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSessionHeartbeat {
+
+	@Test
+	public void pongsMeasureRoundTripTime() {
+		SimulatedSession s = new SimulatedSession("s1", TestSessionRegistry.nodePrincipal(1));
+		SessionHeartbeat h = SessionHeartbeat.attach(s.getSession(), () -> {});
+		for( int i=0; i<5; i++ ) {
+			h.ping();
+			Assert.assertEquals(1, h.getMissedCount());
+			ByteBuffer ping = s.pollPing();
+			Assert.assertNotNull(ping);
+			h.pong(ping);
+			Assert.assertEquals(0, h.getMissedCount());
+		}
+		long[] rtt = h.getRoundTripTimes();
+		Assert.assertEquals(5, rtt.length);
+		for( long nanos : rtt ) {
+			Assert.assertTrue(nanos >= 0);
+		}
+		// unsolicited pongs do not add samples
+		h.pong(ByteBuffer.allocate(0));
+		Assert.assertEquals(5, h.getRoundTripTimes().length);
+		Assert.assertTrue(h.detach());
+	}
+
+	@Test
+	public void unansweredSessionsAreReaped() {
+		SessionHeartbeat.configure(0, 2);
+		try {
+			SimulatedSession s = new SimulatedSession("s1", TestSessionRegistry.nodePrincipal(1));
+			AtomicInteger removed = new AtomicInteger();
+			SessionHeartbeat h = SessionHeartbeat.attach(s.getSession(), () -> {
+				if( SessionHeartbeat.of(s.getSession()).detach() ) {
+					removed.incrementAndGet();
+				}
+			});
+			long reaped = SessionHeartbeat.getReapedCount();
+			h.ping();
+			h.ping();
+			Assert.assertEquals(0, removed.get());
+			Assert.assertNull(s.getCloseReason());
+			// third ping without pong reaps the session
+			h.ping();
+			Assert.assertEquals(1, removed.get());
+			Assert.assertEquals(reaped+1, SessionHeartbeat.getReapedCount());
+			Assert.assertEquals(CloseCodes.GOING_AWAY, s.getCloseReason().getCloseCode());
+			// no further pings after detaching
+			h.ping();
+			Assert.assertEquals(1, removed.get());
+			Assert.assertFalse(h.detach());
+		}finally {
+			SessionHeartbeat.configure(0, SessionHeartbeat.DEFAULT_MAX_MISSED);
+		}
+	}
+
+	@Test
+	public void nearestRankPercentiles() {
+		long[] sorted = new long[100];
+		for( int i=0; i<sorted.length; i++ ) {
+			sorted[i] = i+1;
+		}
+		Assert.assertEquals(50, SessionHeartbeat.percentile(sorted, 50));
+		Assert.assertEquals(95, SessionHeartbeat.percentile(sorted, 95));
+		Assert.assertEquals(1, SessionHeartbeat.percentile(sorted, 0));
+		Assert.assertEquals(7, SessionHeartbeat.percentile(new long[] {7}, 99));
+	}
+}
@@ -0,0 +1,112 @@
+package org.aktin.broker.websocket;
+
+import java.util.Arrays;
+
+import javax.websocket.CloseReason.CloseCodes;
+
+import org.aktin.broker.websocket.OutboundQueue.OverflowPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSessionQueue {
+
+	private static SimulatedSession stalledSession(OverflowPolicy policy) {
+		SimulatedSession s = new SimulatedSession("s1", TestSessionRegistry.nodePrincipal(1), 3, policy);
+		s.setStalled(true);
+		return s;
+	}
+
+	@Test
+	public void singleMessageInFlight() {
+		SimulatedSession s = stalledSession(OverflowPolicy.DROP_OLDEST);
+		SessionQueue q = s.getQueue();
+		for( int i=0; i<3; i++ ) {
+			Assert.assertTrue(AbstractBroadcastWebsocket.send(s.getSession(), "published "+i));
+		}
+		// first message in flight, others queued
+		Assert.assertEquals(1, s.getSentCount());
+		Assert.assertEquals(2, q.getDepth());
+		// each completion starts the next send
+		Assert.assertEquals(1, s.completeSends(1));
+		Assert.assertEquals(2, s.getSentCount());
+		Assert.assertEquals(1, q.getDepth());
+		Assert.assertEquals(2, s.completeSends(10));
+		Assert.assertEquals(3, s.getSentCount());
+		Assert.assertEquals(0, q.getDepth());
+		Assert.assertEquals(3, q.getSentCount());
+		Assert.assertEquals(Arrays.asList("published 0", "published 1", "published 2"), s.getMessages());
+		q.detach();
+	}
+
+	@Test
+	public void dropOldest() {
+		SimulatedSession s = stalledSession(OverflowPolicy.DROP_OLDEST);
+		SessionQueue q = s.getQueue();
+		for( int i=0; i<10; i++ ) {
+			AbstractBroadcastWebsocket.send(s.getSession(), "published "+i);
+		}
+		Assert.assertEquals(3, q.getDepth());
+		Assert.assertEquals(6, q.getDroppedCount());
+		s.setStalled(false);
+		s.completeSends(1);
+		Assert.assertEquals(Arrays.asList("published 0", "published 7", "published 8", "published 9"), s.getMessages());
+		Assert.assertEquals(4, q.getSentCount());
+		Assert.assertEquals(3, q.getMaxDepth());
+		q.detach();
+	}
+
+	@Test
+	public void coalesceEqualMessages() {
+		SimulatedSession s = stalledSession(OverflowPolicy.COALESCE);
+		SessionQueue q = s.getQueue();
+		String[] messages = {"status 1", "status 2", "status 3", "status 4", "status 2", "status 3", "status 5"};
+		for( String m : messages ) {
+			AbstractBroadcastWebsocket.send(s.getSession(), m);
+		}
+		// status 1 in flight, status 2 dropped by status 5
+		Assert.assertEquals(2, q.getCoalescedCount());
+		Assert.assertEquals(1, q.getDroppedCount());
+		s.setStalled(false);
+		s.completeSends(1);
+		Assert.assertEquals(Arrays.asList("status 1", "status 3", "status 4", "status 5"), s.getMessages());
+		q.detach();
+	}
+
+	@Test
+	public void resumedSessionRecoversAfterOverflow() {
+		EventLog events = new EventLog(16);
+		SimulatedSession s = stalledSession(OverflowPolicy.DROP_OLDEST);
+		SessionQueue q = s.getQueue();
+		q.setOverflowReset(() -> "reset "+events.getCursor());
+		for( int i=1; i<=10; i++ ) {
+			long seq = events.append("published "+i, null);
+			Assert.assertTrue(AbstractBroadcastWebsocket.send(s.getSession(), EventLog.format(seq, "published "+i)));
+		}
+		// queued events are replaced by a reset instead of being dropped silently
+		Assert.assertEquals(2, q.getResetCount());
+		s.setStalled(false);
+		s.completeSends(1);
+		String reset = "reset "+events.getCursor(8);
+		Assert.assertEquals(Arrays.asList("#1 published 1", reset, "#9 published 9", "#10 published 10"), s.getMessages());
+		// the node polls the current state and can resume from the reset cursor without missing events
+		Assert.assertEquals(Arrays.asList("#9 published 9", "#10 published 10"), events.since(reset.substring(6), t -> true));
+		q.detach();
+	}
+
+	@Test
+	public void disconnectSlowConsumer() {
+		SimulatedSession s = stalledSession(OverflowPolicy.DISCONNECT);
+		SessionQueue q = s.getQueue();
+		for( int i=0; i<4; i++ ) {
+			Assert.assertTrue(AbstractBroadcastWebsocket.send(s.getSession(), "published "+i));
+		}
+		Assert.assertFalse(AbstractBroadcastWebsocket.send(s.getSession(), "published 4"));
+		Assert.assertNotNull(s.getCloseReason());
+		Assert.assertEquals(CloseCodes.VIOLATED_POLICY, s.getCloseReason().getCloseCode());
+		Assert.assertFalse(SessionQueue.getAll().contains(q));
+		// completion of the message in flight does not send further messages
+		s.completeSends(1);
+		Assert.assertEquals(1, s.getSentCount());
+		Assert.assertEquals(0, q.getDepth());
+	}
+}
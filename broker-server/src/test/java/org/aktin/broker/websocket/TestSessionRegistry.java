@@ -0,0 +1,62 @@
+package org.aktin.broker.websocket;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aktin.broker.auth.Principal;
+import org.aktin.broker.server.auth.AuthInfoImpl;
+import org.aktin.broker.server.auth.AuthRole;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSessionRegistry {
+
+	static Principal nodePrincipal(int nodeId) {
+		return new Principal(nodeId, new AuthInfoImpl("key"+nodeId, "CN=Node "+nodeId, AuthRole.ALL_NODE));
+	}
+
+	@Test
+	public void targetedSessionsOnly() {
+		SessionRegistry registry = new SessionRegistry();
+		SimulatedSession[] sessions = new SimulatedSession[10];
+		for( int i=0; i<sessions.length; i++ ) {
+			sessions[i] = new SimulatedSession("s"+i, nodePrincipal(i%5));
+			registry.add(i%5, sessions[i].getSession());
+		}
+		Assert.assertEquals(5, registry.getNodeCount());
+		Assert.assertEquals(2, registry.get(1).size());
+
+		registry.forEach(new int[] {1,3,7}, s -> AbstractBroadcastWebsocket.send(s, "published 1"));
+		for( int i=0; i<sessions.length; i++ ) {
+			int expected = (i%5 == 1 || i%5 == 3) ? 1 : 0;
+			Assert.assertEquals(expected, sessions[i].getSentCount());
+		}
+
+		AtomicInteger count = new AtomicInteger();
+		registry.forEach(s -> count.incrementAndGet());
+		Assert.assertEquals(10, count.get());
+	}
+
+	@Test
+	public void lastSessionRemovesNode() {
+		SessionRegistry registry = new SessionRegistry();
+		SimulatedSession s1 = new SimulatedSession("s1", nodePrincipal(1));
+		SimulatedSession s2 = new SimulatedSession("s2", nodePrincipal(1));
+		registry.add(1, s1.getSession());
+		registry.add(1, s2.getSession());
+		registry.remove(1, s1.getSession());
+		Assert.assertEquals(1, registry.getNodeCount());
+		registry.remove(1, s2.getSession());
+		Assert.assertEquals(0, registry.getNodeCount());
+		Assert.assertTrue(registry.get(1).isEmpty());
+	}
+
+	@Test
+	public void closedSessionsAreSkipped() {
+		SessionRegistry registry = new SessionRegistry();
+		SimulatedSession s1 = new SimulatedSession("s1", nodePrincipal(1));
+		s1.setOpen(false);
+		registry.add(1, s1.getSession());
+		registry.forEach(new int[] {1}, s -> AbstractBroadcastWebsocket.send(s, "closed 1"));
+		Assert.assertEquals(0, s1.getSentCount());
+	}
+}